@@ -1,13 +1,33 @@
+import java.io.File;
+import java.io.IOException;
+
+import com.craigl.softsynth.Preset;
+import com.craigl.softsynth.PresetBank;
+
 public class Arp0 {
 
-  public static void main(String [] args) {
-    Arp0Configuration config = new Arp0Configuration();
-    config.setToneLength(50);
-    config.getArpControl(0).setUpBeats(1);
-    config.getArpControl(4).setUpBeats(1);
-    config.getArpControl(7).setUpBeats(1);
-    config.getArpControl(10).setUpBeats(1);
-    config.getArpControl(12).setUpBeats(1);
+  public static void main(String [] args) throws IOException {
+    Arp0Configuration config;
+    if (args.length == 2) {
+      // Load the named preset from a preset bank
+      Preset preset = new PresetBank(new File(args[0])).getPreset(args[1]);
+      if (preset == null) {
+        System.err.println("No preset named " + args[1]);
+        return;
+      }
+      // Only the application data is applied: the arpeggiator plays its own
+      // oscillator and hosts no softsynth chain, so the preset's modules,
+      // which Preset.instantiate() would build, have nothing to drive.
+      config = Arp0Configuration.readPreset(preset);
+    } else {
+      config = new Arp0Configuration();
+      config.setToneLength(50);
+      config.getArpControl(0).setUpBeats(1);
+      config.getArpControl(4).setUpBeats(1);
+      config.getArpControl(7).setUpBeats(1);
+      config.getArpControl(10).setUpBeats(1);
+      config.getArpControl(12).setUpBeats(1);
+    }
     Arpeggiator arp = new Arpeggiator(config);
 
     SamplePlayer player = new SamplePlayer();
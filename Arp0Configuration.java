@@ -1,15 +1,25 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.craigl.softsynth.Preset;
+import com.craigl.softsynth.Tuning;
+
 public class Arp0Configuration {
   public static int ARP_CONTROL_COUNT = 13;
+  public static final int PRESET_VERSION = 1;
   public int tempo;
   public int volume;
   public int toneLength;
   public int frequency;
+  public Tuning tuning;
   public ArpControl[] arpControls = new ArpControl [ARP_CONTROL_COUNT];
 
   public Arp0Configuration() {
     this.tempo = 120;
     this.volume = 100;
     this.frequency = 440;
+    this.tuning = Tuning.EQUAL_TEMPERAMENT;
     this.toneLength = 100;
     initArpControls();
   }
@@ -46,10 +56,52 @@ public class Arp0Configuration {
     this.frequency = frequency;
   }
 
+  public void setTuning(Tuning tuning) {
+    this.tuning = tuning;
+  }
+
   public void setToneLength(int length) {
     this.toneLength = length;
   }
 
+  // The tuning is not saved: a Tuning may come from Scala files the preset
+  // cannot carry, so a configuration read back plays equal temperament
+  // until the application sets its tuning again.
+  public void writePreset(Preset preset) {
+    ByteBuffer data = ByteBuffer.allocate(18 + ARP_CONTROL_COUNT * 8);
+    data.putShort((short) PRESET_VERSION);
+    data.putInt(this.tempo);
+    data.putInt(this.volume);
+    data.putInt(this.toneLength);
+    data.putInt(this.frequency);
+    for (ArpControl control : this.arpControls) {
+      data.putInt(control.upBeats);
+      data.putInt(control.downBeats);
+    }
+    preset.setApplicationData(data.array());
+  }
+
+  public static Arp0Configuration readPreset(Preset preset) throws IOException {
+    ByteBuffer data = ByteBuffer.wrap(preset.getApplicationData());
+    Arp0Configuration config = new Arp0Configuration();
+    try {
+      if (data.getShort() != PRESET_VERSION) {
+        throw new IOException("Preset " + preset.getName() + " has no supported arpeggiator configuration");
+      }
+      config.setTempo(data.getInt());
+      config.setVolume(data.getInt());
+      config.setToneLength(data.getInt());
+      config.setFrequency(data.getInt());
+      for (ArpControl control : config.arpControls) {
+        control.setUpBeats(data.getInt());
+        control.setDownBeats(data.getInt());
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Preset " + preset.getName() + " has a truncated arpeggiator configuration");
+    }
+    return config;
+  }
+
   private void initArpControls() {
     for (int i = 0; i < ARP_CONTROL_COUNT; i++) {
       this.arpControls[i] = new ArpControl(i);
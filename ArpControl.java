@@ -1,5 +1,6 @@
+import com.craigl.softsynth.Tuning;
+
 public class ArpControl {
-  public static final int CENTS_PER_OCTAVE = 1200;
   public final int arptone;
   public int upBeats;
   public int downBeats;
@@ -11,11 +12,12 @@ public class ArpControl {
   }
 
   public double relativeFrequency(double frequency) {
-    return frequency * Math.pow(2.0, (cents() / CENTS_PER_OCTAVE));
+    return relativeFrequency(frequency, Tuning.EQUAL_TEMPERAMENT);
   }
 
-  public double cents() {
-    return (double) (arptone * 100);
+  // The base frequency is the tonic; each arptone is a scale degree above it
+  public double relativeFrequency(double frequency, Tuning tuning) {
+    return frequency * tuning.getRatio(this.arptone);
   }
 
   public void setUpBeats(int beats) {
@@ -1,5 +1,7 @@
 import java.util.Arrays;
 
+import com.craigl.softsynth.PcmCodec;
+
 public class Arpeggiator implements SampleProviderIntfc {
 
   private Arp0Configuration config;
@@ -14,7 +16,7 @@ public class Arpeggiator implements SampleProviderIntfc {
     int index = 0;
     int sampleCount = (SamplePlayer.SAMPLES_PER_BUFFER / (this.config.getUpBeatCount() + this.config.getDownBeatCount()));
     for (ArpControl arpControl : this.config.arpControls) {
-      osc.setFrequency(arpControl.relativeFrequency(this.config.frequency));
+      osc.setFrequency(arpControl.relativeFrequency(this.config.frequency, this.config.tuning));
       for (int repetition = 0; repetition < arpControl.upBeats; repetition++) {
         index = fillBuffer(buffer, sampleCount, index);
       }
@@ -22,7 +24,7 @@ public class Arpeggiator implements SampleProviderIntfc {
 
     for (int arpControlIndex = this.config.arpControls.length; arpControlIndex > 0; arpControlIndex--) {
       ArpControl arpControl = this.config.arpControls[arpControlIndex - 1];
-      osc.setFrequency(arpControl.relativeFrequency(this.config.frequency));
+      osc.setFrequency(arpControl.relativeFrequency(this.config.frequency, this.config.tuning));
       for (int repetition = 0; repetition < arpControl.downBeats; repetition++) {
         index = fillBuffer(buffer, sampleCount, index);
       }
@@ -34,14 +36,11 @@ public class Arpeggiator implements SampleProviderIntfc {
     int toneLengthThreshold = (sampleCount / 100) * this.config.toneLength;
     for (int i = 0; i < sampleCount; i++) {
       if (i < toneLengthThreshold) {
-        double ds = osc.getSample() * Short.MAX_VALUE;
-        short ss = (short) Math.round(ds);
-        buffer[bufferIndex++] = (byte)(ss >> 8);
-        buffer[bufferIndex++] = (byte)(ss & 0xFF);
+        PcmCodec.put(buffer, bufferIndex >> 1, osc.getSample());
       } else {
-        buffer[bufferIndex++] = 0;
-        buffer[bufferIndex++] = 0;
+        PcmCodec.put(buffer, bufferIndex >> 1, 0.0);
       }
+      bufferIndex += 2;
     }
     return bufferIndex;
   }
@@ -1,3 +1,5 @@
+import com.craigl.softsynth.PcmCodec;
+
 /**
  * BasicOscillator Class
  * <p>
@@ -90,12 +92,8 @@ public class BasicOscillator implements SampleProviderIntfc {
 	 * @return Count of bytes produced.
 	 */
 	public int getSamples(byte [] buffer) {
-		int index = 0;
 		for (int i = 0; i < SamplePlayer.SAMPLES_PER_BUFFER; i++) {
-			double ds = getSample() * Short.MAX_VALUE;
-			short ss = (short) Math.round(ds);
-			buffer[index++] = (byte)(ss >> 8);
-			buffer[index++] = (byte)(ss & 0xFF);			
+			PcmCodec.put(buffer, i, getSample());
 		}
 		return SamplePlayer.BUFFER_SIZE;
 	}
@@ -0,0 +1,449 @@
+package com.craigl.softsynth;
+
+import java.util.Arrays;
+
+/**
+ * Additive Voice
+ * <p>
+ * Sums up to PARTIALS_MAX sine partials, each with its own frequency<br>
+ * ratio, level, amplitude envelope and pitch glide, for organ and other<br>
+ * additive timbres.
+ * <p>
+ * Partials are not rendered one sample at a time. Instead the voice<br>
+ * builds the spectrum of a Hann windowed frame directly: every partial<br>
+ * adds the few bins of the window's main lobe and first side lobes<br>
+ * around its frequency, read from a precomputed kernel. One inverse<br>
+ * FFT then produces the frame and successive frames, half a frame<br>
+ * apart, are overlap added; Hann windows at that spacing sum to one.<br>
+ * A partial thus costs a handful of complex additions per frame rather<br>
+ * than a Math.sin per sample, and the FFT cost does not depend on the<br>
+ * count of partials. Partials above the Nyquist frequency are dropped.
+ * <p>
+ * Envelopes and glides are updated once per frame, every ADDITIVE_HOP<br>
+ * samples. All partial state is held in preallocated parallel arrays<br>
+ * and the spectrum and frame arrays are reused, so rendering does not<br>
+ * allocate. Frames in which no partial sounds skip the inverse FFT.
+ * <p>
+ * At the CHEAP_KERNELS quality stage and below each partial only adds<br>
+ * the CHEAP_KERNEL_BINS either side of it, the window's main lobe,<br>
+ * which lets more leakage through but adds five bins instead of nine.
+ */
+
+public class AdditiveVoice implements SampleProviderIntfc, SilenceIntfc, QualityIntfc {
+
+	public static final int PARTIALS_MAX = 512;
+
+	public static final double RATIO_MIN = 0.0;
+	public static final double RATIO_MAX = 256.0;
+
+	public static final double LEVEL_MIN = 0.0;
+	public static final double LEVEL_MAX = 1.0;
+
+	public static final double GLIDE_MIN_CENTS = -2400.0;
+	public static final double GLIDE_MAX_CENTS =  2400.0;
+
+	// Samples per frame and between frames
+	public static final int ADDITIVE_FRAME_SIZE = 1024;
+	public static final int ADDITIVE_HOP = ADDITIVE_FRAME_SIZE / 2;
+
+	// Bins either side of a partial that the kernel covers
+	private static final int KERNEL_BINS = 4;
+	private static final int CHEAP_KERNEL_BINS = 2;
+
+	// Kernel entries per bin; the kernel is interpolated linearly
+	private static final int KERNEL_OVERSAMPLING = 64;
+
+	private static final int HALF = ADDITIVE_FRAME_SIZE / 2;
+	private static final double FRAME_SECONDS = ADDITIVE_HOP / (double) SamplePlayer.SAMPLE_RATE;
+
+	private static final double SUSTAIN_DEFAULT = 1.0;
+
+	// Fixed point phase of a quarter cycle; sin(phase + QUARTER_CYCLE) is cos(phase)
+	private static final int QUARTER_CYCLE = 1 << 30;
+
+	// Envelope stages
+	private static final byte STAGE_IDLE = 0;
+	private static final byte STAGE_ATTACK = 1;
+	private static final byte STAGE_DECAY = 2;
+	private static final byte STAGE_SUSTAIN = 3;
+	private static final byte STAGE_RELEASE = 4;
+
+	// Spectrum of the centered Hann window sampled between 0 and KERNEL_BINS + 1 bins
+	private static final double [] KERNEL = new double[(KERNEL_BINS + 1) * KERNEL_OVERSAMPLING + 2];
+	static {
+		for (int i = 0; i < KERNEL.length; i++) {
+			double bins = i / (double) KERNEL_OVERSAMPLING;
+			double sum = 1.0;
+			for (int m = 1; m < HALF; m++) {
+				double w = 0.5 + 0.5 * Math.cos((2.0 * Math.PI * m) / ADDITIVE_FRAME_SIZE);
+				sum += 2.0 * w * Math.cos((2.0 * Math.PI * bins * m) / ADDITIVE_FRAME_SIZE);
+			}
+			KERNEL[i] = sum;
+		}
+	}
+
+	/**
+	 * AdditiveVoice Class Constructor
+	 * <p>
+	 * Default instance has a single partial at the fundamental, 440 Hz
+	 */
+	public AdditiveVoice() {
+
+		fft = new FFT(ADDITIVE_FRAME_SIZE);
+
+		for (int p = 0; p < PARTIALS_MAX; p++) {
+			ratios[p] = p + 1;
+			setPartialEnvelope(p, 10, 0, SUSTAIN_DEFAULT, 100);
+		}
+		levels[0] = LEVEL_MAX;
+
+		// Set defaults
+		setPartialCount(1);
+		setFrequency(440.0);
+
+		// Nothing is pending until the first frame is rendered
+		outputIndex = ADDITIVE_HOP;
+	}
+
+	/**
+	 * Set the count of partials rendered
+	 *
+	 * @param count Count between 0 and PARTIALS_MAX
+	 */
+	public void setPartialCount(int count) {
+
+		count = (count < 0) ? 0 : count;
+		count = (count > PARTIALS_MAX) ? PARTIALS_MAX : count;
+
+		partialCount = count;
+	}
+
+	/**
+	 * Return the count of partials rendered
+	 *
+	 * @return Count of partials
+	 */
+	public int getPartialCount() {
+
+		return partialCount;
+	}
+
+	/**
+	 * Set the frequency ratio and level of a partial
+	 * <p>
+	 * By default partial n is the n + 1 th harmonic with level 0,<br>
+	 * except partial 0 which has level 1.
+	 *
+	 * @param index Partial number
+	 * @param ratio Frequency as a multiple of the fundamental, between RATIO_MIN and RATIO_MAX
+	 * @param level Level between LEVEL_MIN and LEVEL_MAX
+	 */
+	public void setPartial(int index, double ratio, double level) {
+
+		ratio = (ratio < RATIO_MIN) ? RATIO_MIN : ratio;
+		ratio = (ratio > RATIO_MAX) ? RATIO_MAX : ratio;
+		level = (level < LEVEL_MIN) ? LEVEL_MIN : level;
+		level = (level > LEVEL_MAX) ? LEVEL_MAX : level;
+
+		ratios[index] = ratio;
+		levels[index] = level;
+	}
+
+	/**
+	 * Set the amplitude envelope of a partial
+	 * <p>
+	 * Times are rounded up to whole frames of ADDITIVE_HOP samples.
+	 *
+	 * @param index Partial number
+	 * @param attackMs Attack time in ms
+	 * @param decayMs Decay time in ms; 0 goes straight to the sustain level
+	 * @param sustainLevel Sustain level between 0.0 and 1.0
+	 * @param releaseMs Release time in ms
+	 */
+	public void setPartialEnvelope(int index, int attackMs, int decayMs, double sustainLevel, int releaseMs) {
+
+		sustainLevel = (sustainLevel < 0.0) ? 0.0 : sustainLevel;
+		sustainLevel = (sustainLevel > 1.0) ? 1.0 : sustainLevel;
+
+		attackSteps[index] = step(attackMs);
+		decaySteps[index] = step(decayMs) * (1.0 - sustainLevel);
+		sustainLevels[index] = sustainLevel;
+		releaseSteps[index] = step(releaseMs);
+	}
+
+	/**
+	 * Set a pitch glide of a partial
+	 * <p>
+	 * On each noteOn the partial starts detuned by cents and glides<br>
+	 * exponentially back to its ratio with the given time constant.
+	 *
+	 * @param index Partial number
+	 * @param cents Starting detune between GLIDE_MIN_CENTS and GLIDE_MAX_CENTS; 0 for none
+	 * @param timeMs Time in ms for the detune to fall to about a third
+	 */
+	public void setPartialGlide(int index, double cents, int timeMs) {
+
+		cents = (cents < GLIDE_MIN_CENTS) ? GLIDE_MIN_CENTS : cents;
+		cents = (cents > GLIDE_MAX_CENTS) ? GLIDE_MAX_CENTS : cents;
+		timeMs = (timeMs < 1) ? 1 : timeMs;
+
+		glideCents[index] = cents;
+		glideFactors[index] = Math.exp(-FRAME_SECONDS * 1000.0 / timeMs);
+	}
+
+	/**
+	 * Set frequency of the fundamental in Hz.
+	 *
+	 * @param frequency Frequency in Hz for this voice
+	 */
+	public void setFrequency(double frequency) {
+
+		this.frequency = frequency;
+	}
+
+	/**
+	 * Start the envelopes and glides of all partials
+	 */
+	public void noteOn() {
+
+		for (int p = 0; p < PARTIALS_MAX; p++) {
+			stages[p] = STAGE_ATTACK;
+			detunes[p] = glideCents[p];
+		}
+	}
+
+	/**
+	 * Release the envelopes of all partials
+	 */
+	public void noteOff() {
+
+		for (int p = 0; p < PARTIALS_MAX; p++) {
+			if (stages[p] != STAGE_IDLE) {
+				stages[p] = STAGE_RELEASE;
+			}
+		}
+	}
+
+	/**
+	 * Convert a time to the change of a unit envelope per frame
+	 *
+	 * @param ms Time in ms
+	 *
+	 * @return Step per frame; 1.0 or more completes in one frame
+	 */
+	private static double step(int ms) {
+
+		return (ms <= 0) ? 1.0 : (FRAME_SECONDS * 1000.0) / ms;
+	}
+
+	/**
+	 * Advance the envelope of a partial by one frame
+	 *
+	 * @param p Partial number
+	 *
+	 * @return The partial's envelope value for the frame
+	 */
+	private double advanceEnvelope(int p) {
+
+		double value = envelopes[p];
+
+		switch (stages[p]) {
+			case STAGE_ATTACK:
+				value += attackSteps[p];
+				if (value >= 1.0) {
+					value = 1.0;
+					stages[p] = STAGE_DECAY;
+				}
+				break;
+
+			case STAGE_DECAY:
+				value -= decaySteps[p];
+				if (value <= sustainLevels[p]) {
+					value = sustainLevels[p];
+					stages[p] = STAGE_SUSTAIN;
+				}
+				break;
+
+			case STAGE_RELEASE:
+				value -= releaseSteps[p];
+				if (value <= 0.0) {
+					value = 0.0;
+					stages[p] = STAGE_IDLE;
+				}
+				break;
+
+			default:
+				break;
+		}
+		envelopes[p] = value;
+		return value;
+	}
+
+	/**
+	 * Synthesize the next frame and overlap add it into the output
+	 */
+	private void renderFrame() {
+
+		double [] re = spectrumRe;
+		double [] im = spectrumIm;
+		for (int k = 0; k <= HALF; k++) {
+			re[k] = 0.0;
+			im[k] = 0.0;
+		}
+
+		double binsPerHz = ADDITIVE_FRAME_SIZE / (double) SamplePlayer.SAMPLE_RATE;
+		double phasePerHz = (0.5 * ADDITIVE_HOP * SineTable.PHASE_SCALE) / SamplePlayer.SAMPLE_RATE;
+
+		int bins = kernelBins;
+		boolean sounding = false;
+		for (int p = 0; p < partialCount; p++) {
+			double amplitude = levels[p] * advanceEnvelope(p);
+
+			// Glide back towards the partial's ratio
+			double ratio = ratios[p];
+			double cents = detunes[p];
+			if (cents != 0.0) {
+				ratio *= Math.pow(2.0, cents / 1200.0);
+				cents *= glideFactors[p];
+				detunes[p] = (Math.abs(cents) < 0.01) ? 0.0 : cents;
+			}
+			double f = frequency * ratio;
+
+			// Keep the phase continuous at the overlap using the mean frequency
+			int phase = phases[p] + (int)(long)(phasePerHz * (lastFrequencies[p] + f));
+			phases[p] = phase;
+			lastFrequencies[p] = f;
+
+			double bin = f * binsPerHz;
+			if ((amplitude == 0.0) || (bin >= HALF)) {
+				continue;
+			}
+
+			sounding = true;
+
+			// A cos(wt + phase) contributes (A / 2) exp(j phase) W(k - bin) at bin k
+			double a = 0.5 * amplitude;
+			double c = a * SineTable.sin(phase + QUARTER_CYCLE);
+			double s = a * SineTable.sin(phase);
+
+			int first = (int) Math.ceil(bin - bins);
+			int last = (int) Math.floor(bin + bins);
+			for (int k = first; k <= last; k++) {
+				double x = Math.abs(k - bin) * KERNEL_OVERSAMPLING;
+				int i = (int) x;
+				double w = KERNEL[i] + (KERNEL[i + 1] - KERNEL[i]) * (x - i);
+
+				if ((k >= 0) && (k <= HALF)) {
+					re[k] += c * w;
+					im[k] += s * w;
+				}
+				// Bins beyond DC and Nyquist fold back as complex conjugates
+				if (k <= 0) {
+					re[-k] += c * w;
+					im[-k] -= s * w;
+				}	else if (k >= HALF)	{
+					re[ADDITIVE_FRAME_SIZE - k] += c * w;
+					im[ADDITIVE_FRAME_SIZE - k] -= s * w;
+				}
+			}
+		}
+
+		double [] out = output;
+		double [] tail = overlap;
+		if (! sounding) {
+			// Only the previous frame's tail remains
+			System.arraycopy(tail, 0, out, 0, ADDITIVE_HOP);
+			Arrays.fill(tail, 0.0);
+			outputIndex = 0;
+			return;
+		}
+
+		// Pack the spectrum and transform
+		double [] data = frame;
+		data[0] = re[0];
+		data[1] = re[HALF];
+		for (int k = 1; k < HALF; k++) {
+			data[2 * k] = re[k];
+			data[2 * k + 1] = im[k];
+		}
+		fft.realInverse(data);
+
+		// The frame is centered on sample 0; its first half is at the end of the array
+		for (int n = 0; n < ADDITIVE_HOP; n++) {
+			out[n] = tail[n] + data[HALF + n];
+			tail[n] = data[n];
+		}
+		outputIndex = 0;
+	}
+
+	/**
+	 * Set the quality stage to render at
+	 *
+	 * @param stage Stage; from CHEAP_KERNELS on partials only add their main lobe
+	 */
+	public void setQualityStage(QualityController.STAGE stage) {
+
+		boolean cheap = stage.compareTo(QualityController.STAGE.CHEAP_KERNELS) >= 0;
+		kernelBins = cheap ? CHEAP_KERNEL_BINS : KERNEL_BINS;
+	}
+
+	/**
+	 * Return whether the last buffer was silent
+	 *
+	 * @return true if the last buffer was silent
+	 */
+	public boolean isSilent() {
+
+		return silent;
+	}
+
+	/**
+	 * Get a buffer of samples
+	 *
+	 * @param buffer Array to fill with samples
+	 *
+	 * @return Count of bytes produced.
+	 */
+	public int getSamples(byte [] buffer) {
+
+		int sound = 0;
+		for (int i = 0; i < SamplePlayer.SAMPLES_PER_BUFFER; i++) {
+			if (outputIndex == ADDITIVE_HOP) {
+				renderFrame();
+			}
+			sound |= PcmCodec.put(buffer, i, output[outputIndex++]);
+		}
+		silent = (sound == 0);
+		return SamplePlayer.BUFFER_SIZE;
+	}
+
+	// Instance data
+	private final FFT fft;
+	private int partialCount;
+	private double frequency;
+
+	// Partial state, one element per partial
+	private final double [] ratios = new double[PARTIALS_MAX];
+	private final double [] levels = new double[PARTIALS_MAX];
+	private final int [] phases = new int[PARTIALS_MAX];
+	private final double [] lastFrequencies = new double[PARTIALS_MAX];
+	private final double [] glideCents = new double[PARTIALS_MAX];
+	private final double [] glideFactors = new double[PARTIALS_MAX];
+	private final double [] detunes = new double[PARTIALS_MAX];
+	private final byte [] stages = new byte[PARTIALS_MAX];
+	private final double [] envelopes = new double[PARTIALS_MAX];
+	private final double [] attackSteps = new double[PARTIALS_MAX];
+	private final double [] decaySteps = new double[PARTIALS_MAX];
+	private final double [] sustainLevels = new double[PARTIALS_MAX];
+	private final double [] releaseSteps = new double[PARTIALS_MAX];
+
+	// Frame synthesis
+	private final double [] spectrumRe = new double[HALF + 1];
+	private final double [] spectrumIm = new double[HALF + 1];
+	private final double [] frame = new double[ADDITIVE_FRAME_SIZE];
+	private final double [] output = new double[ADDITIVE_HOP];
+	private final double [] overlap = new double[ADDITIVE_HOP];
+	private int outputIndex;
+	private int kernelBins = KERNEL_BINS;
+	private boolean silent;
+}
@@ -30,6 +30,7 @@ public class AdvancedOscillator extends BasicOscillator {
 	
 	public AdvancedOscillator() {
 		
+		rangeSpecifier = 4;
 		rangeMultiplier = 1.0;
 		detuneMultiplier = 1.0;
 		modulationType = MOD_TYPE.NONE;
@@ -45,6 +46,32 @@ public class AdvancedOscillator extends BasicOscillator {
 		this.frequency = frequency;
 	}
 
+	/**
+	 * Return the frequency of the oscillator in Hz.
+	 *
+	 * @return Frequency in Hz for this oscillator before range and detune
+	 */
+	public double getFrequency() {
+
+		return frequency;
+	}
+
+	/**
+	 * Schedule a change of the oscillator frequency a number of samples from now.
+	 * 
+	 * @param frequency Frequency in Hz for this oscillator
+	 * @param delaySamples Count of samples to produce before the change; 0 changes immediately
+	 */
+	public void setFrequency(double frequency, int delaySamples) {
+		
+		if (delaySamples <= 0) {
+			events.clear();
+			this.frequency = frequency;
+		}	else if (! events.schedule(delaySamples, 0, frequency)) {
+			this.frequency = frequency;
+		}
+	}
+
 	/**
 	 * Set oscillator range
 	 * <p>
@@ -59,6 +86,8 @@ public class AdvancedOscillator extends BasicOscillator {
 	 */
 	public void setFrequencyRange(int rangeSpecifier) {
 		
+		this.rangeSpecifier = rangeSpecifier;
+
 		switch(rangeSpecifier) {
 
 		case 16:
@@ -71,6 +100,7 @@ public class AdvancedOscillator extends BasicOscillator {
 			
 		case 4:
 	   default:
+			this.rangeSpecifier = 4;
 			rangeMultiplier = 1.0;
 			break;
 			
@@ -83,6 +113,16 @@ public class AdvancedOscillator extends BasicOscillator {
 			break;			
 		}		
 	}
+
+	/**
+	 * Return oscillator range
+	 *
+	 * @return The range in feet; 16, 8, 4, 2 or 1
+	 */
+	public int getFrequencyRange() {
+
+		return rangeSpecifier;
+	}
 	
 	/**
 	 * Set modulation type for oscillator
@@ -93,6 +133,16 @@ public class AdvancedOscillator extends BasicOscillator {
 		
 		this.modulationType = modulationType;
 	}
+
+	/**
+	 * Return modulation type for oscillator
+	 *
+	 * @return The type of modulation for this oscillator
+	 */
+	public MOD_TYPE getModulationType() {
+
+		return modulationType;
+	}
 	
 	/**
 	 * Set modulation depth
@@ -110,6 +160,16 @@ public class AdvancedOscillator extends BasicOscillator {
 		
 		this.modulationDepth = modulationDepth;
 	}
+
+	/**
+	 * Return modulation depth
+	 *
+	 * @return The depth of the modulation
+	 */
+	public double getModulationDepth() {
+
+		return modulationDepth;
+	}
 		
 	/**
 	 * Set oscillator detune
@@ -127,6 +187,7 @@ public class AdvancedOscillator extends BasicOscillator {
 		detuneCents = (detuneCents < CENTS_DETUNE_MIN) ? CENTS_DETUNE_MIN : detuneCents;
 		detuneCents = (detuneCents > CENTS_DETUNE_MAX) ? CENTS_DETUNE_MAX : detuneCents;
 		
+		this.detuneCents = detuneCents;
 		detuneMultiplier = Math.pow(2.0, ((double) detuneCents / CENTS_PER_OCTAVE));	
 	}	
 	
@@ -140,6 +201,26 @@ public class AdvancedOscillator extends BasicOscillator {
 		lfo.setWaveshape(waveshape);
 	}
 
+	/**
+	 * Return the waveshape of the LFO
+	 *
+	 * @return The waveshape of the LFO oscillator
+	 */
+	public WAVESHAPE getLfoWaveshape() {
+
+		return lfo.getWaveshape();
+	}
+
+	/**
+	 * Return oscillator detune
+	 *
+	 * @return Cents this oscillator is detuned
+	 */
+	public int getDetuneInCents() {
+
+		return detuneCents;
+	}
+
 	/**
 	 * Set the frequency of the LFO.
 	 * 
@@ -150,6 +231,16 @@ public class AdvancedOscillator extends BasicOscillator {
 		lfo.setFrequency(frequency);
 	}
 
+	/**
+	 * Return the frequency of the LFO.
+	 *
+	 * @return Frequency in Hz for the LFO oscillator
+	 */
+	public double getLfoFrequency() {
+
+		return lfo.getFrequency();
+	}
+
 	/**
 	 * Return the next sample of the oscillator's waveform
 	 * 
@@ -157,6 +248,13 @@ public class AdvancedOscillator extends BasicOscillator {
 	 */
 	protected double getSample() {
 
+		// Apply scheduled frequency changes when they fall due
+		while (events.hasDue(1)) {
+			frequency = events.peekValue();
+			events.pop();
+		}
+		events.advance(1);
+
 		double freq = frequency;
 
 		// Are we frequency modulating
@@ -186,30 +284,15 @@ public class AdvancedOscillator extends BasicOscillator {
 		return sample;
 	}	
 	
-	/**
-	 * Get a buffer of oscillator samples
-	 * 
-	 * @param buffer Array to fill with samples
-	 * 
-	 * @return Count of bytes produced.
-	 */
-	public int getSamples(byte [] buffer) {
-		int index = 0;
-		for (int i = 0; i < SamplePlayer.SAMPLES_PER_BUFFER; i++) {
-			double ds = getSample() * Short.MAX_VALUE;
-			short ss = (short) Math.round(ds);
-			buffer[index++] = (byte)(ss >> 8);
-			buffer[index++] = (byte)(ss & 0xFF);			
-		}
-		return SamplePlayer.BUFFER_SIZE;
-	}
-		
 	// Instance data
 	private double frequency;
 	private BasicOscillator lfo = new BasicOscillator();
 	private MOD_TYPE modulationType;
 	private double modulationDepth;
+	private int rangeSpecifier;
 	private double rangeMultiplier;
+	private int detuneCents;
 	private double detuneMultiplier;
+	private final EventSchedule events = new EventSchedule();
 
 }
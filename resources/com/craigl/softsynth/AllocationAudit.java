@@ -0,0 +1,847 @@
+package com.craigl.softsynth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+import com.craigl.softsynth.AdvancedOscillator.MOD_TYPE;
+import com.craigl.softsynth.BasicOscillator.WAVESHAPE;
+
+/**
+ * Allocation Audit
+ * <p>
+ * Renders every module and the signal chains of SoftSynth examples one<br>
+ * to twelve for a number of buffers, measuring the heap allocated by the<br>
+ * rendering thread around each getSamples call. Example thirteen renders<br>
+ * offline to files through a BatchRenderer and is not audited. Any buffer that allocates fails<br>
+ * the audit, since every allocation on the audio thread eventually costs<br>
+ * a garbage collection and with it a possible dropout.
+ * <p>
+ * Notes are played and parameters changed between buffers, outside the<br>
+ * measurement, as a control thread would. Each chain is warmed up first<br>
+ * so that one-time class loading and JIT work is not counted.
+ * <p>
+ * Finally the render threads of SamplePlayer, AudioEngine, SessionManager<br>
+ * and PcmStreamSink are run in real time and their allocation measured.
+ * <p>
+ * Usage: java com.craigl.softsynth.AllocationAudit [buffers]
+ * <p>
+ * A passing library can also be run for hours without any garbage<br>
+ * collector, e.g. with -XX:+UnlockExperimentalVMOptions -XX:+UseEpsilonGC.
+ */
+
+public class AllocationAudit {
+
+	private static final int BUFFERS_DEFAULT = 20000;
+	private static final int WARM_UP_BUFFERS = 20000;
+
+	// Buffers between note on and note off events
+	private static final int NOTE_BUFFERS = 17;
+
+	// Real time audit of the render threads. Render threads run at audio
+	// rate, so they take several seconds to reach fully compiled code; the
+	// switch from interpreted to compiled loops allocates once.
+	private static final int THREAD_WARM_UP_MS = 10000;
+	private static final int THREAD_AUDIT_MS = 10000;
+	private static final int THREAD_SESSIONS = 4;
+
+	/**
+	 * One signal chain to audit
+	 */
+	private static abstract class AuditCase {
+
+		AuditCase(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Play notes and change parameters before a buffer; not measured
+		 *
+		 * @param index Index of the buffer about to be rendered
+		 */
+		void control(int index) {
+		}
+
+		/**
+		 * Render one buffer; measured
+		 *
+		 * @return Count of bytes produced or -1 when finished
+		 */
+		abstract int render();
+
+		final String name;
+		final byte [] buffer = new byte[SamplePlayer.BUFFER_SIZE];
+
+		// Results of the last measure
+		int allocatingBuffers;
+		int firstAllocatingBuffer;
+		long allocatedBytes;
+	}
+
+	/**
+	 * Play a note on or note off every NOTE_BUFFERS buffers, cycling through a riff
+	 */
+	private static abstract class NoteCase extends AuditCase {
+
+		NoteCase(String name) {
+			super(name);
+		}
+
+		void control(int index) {
+
+			if ((index % NOTE_BUFFERS) != 0) {
+				return;
+			}
+			int step = index / NOTE_BUFFERS;
+			if ((step & 1) == 0) {
+				noteOn(RIFF[(step >> 1) % RIFF.length]);
+			}	else	{
+				noteOff();
+			}
+		}
+
+		abstract void noteOn(int mnn);
+
+		abstract void noteOff();
+	}
+
+	private static final int [] RIFF = {60, 72, 71, 67, 69, 71, 72, 60, 69, 67};
+
+	/**
+	 * Convert a midi note number to a frequency in Hz
+	 */
+	private static double frequency(int mnn) {
+
+		return Tuning.EQUAL_TEMPERAMENT.getFrequency(mnn);
+	}
+
+	/**
+	 * AllocationAudit entry point
+	 *
+	 * @param args Optional count of buffers to render per chain
+	 *
+	 * @throws Exception If the audit cannot be set up
+	 */
+	public static void main(String [] args) throws Exception {
+
+		int buffers = (args.length > 0) ? Integer.parseInt(args[0]) : BUFFERS_DEFAULT;
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (! threads.isThreadAllocatedMemorySupported()) {
+			System.err.println("Per-thread allocation measurement is not supported by this JVM");
+			System.exit(2);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		List<AuditCase> cases = createCases();
+		long threadId = Thread.currentThread().getId();
+
+		// Cost of the measurement itself
+		long overhead = Long.MAX_VALUE;
+		for (int i = 0; i < 1000; i++) {
+			long before = threads.getThreadAllocatedBytes(threadId);
+			long after = threads.getThreadAllocatedBytes(threadId);
+			overhead = Math.min(overhead, after - before);
+		}
+
+		int failures = 0;
+		for (AuditCase c : cases) {
+			// Warm up through the same loop so that it is compiled as well
+			measure(threads, overhead, c, 0, WARM_UP_BUFFERS);
+			measure(threads, overhead, c, WARM_UP_BUFFERS, buffers);
+
+			if (c.allocatingBuffers == 0) {
+				System.out.printf("PASS  %-36s%n", c.name);
+			}	else	{
+				failures++;
+				System.out.printf("FAIL  %-36s %d of %d buffers allocated %d bytes; first at buffer %d%n",
+						c.name, c.allocatingBuffers, buffers, c.allocatedBytes, c.firstAllocatingBuffer);
+			}
+		}
+
+		failures += auditThreads(threads);
+
+		System.out.println((failures == 0) ? "All chains allocation free" : failures + " chain(s) allocate");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	/**
+	 * Render buffers of a chain, recording those that allocate
+	 *
+	 * @param threads Allocation measurement
+	 * @param overhead Bytes allocated by the measurement itself
+	 * @param c Chain to render
+	 * @param first Index of the first buffer, for the chain's control
+	 * @param buffers Count of buffers to render
+	 */
+	private static void measure(com.sun.management.ThreadMXBean threads, long overhead, AuditCase c, int first, int buffers) {
+
+		long threadId = Thread.currentThread().getId();
+
+		c.allocatingBuffers = 0;
+		c.firstAllocatingBuffer = -1;
+		c.allocatedBytes = 0;
+		for (int i = 0; i < buffers; i++) {
+			c.control(first + i);
+
+			long before = threads.getThreadAllocatedBytes(threadId);
+			c.render();
+			long after = threads.getThreadAllocatedBytes(threadId);
+
+			long bytes = after - before - overhead;
+			if (bytes > 0) {
+				if (c.allocatingBuffers == 0) {
+					c.firstAllocatingBuffer = i;
+				}
+				c.allocatingBuffers++;
+				c.allocatedBytes += bytes;
+			}
+		}
+	}
+
+	/**
+	 * Run the library's render threads in real time and check that none
+	 * of them allocates once warmed up
+	 *
+	 * @param threads Allocation measurement
+	 *
+	 * @return Count of threads that allocated
+	 *
+	 * @throws Exception If the threads cannot be set up
+	 */
+	private static int auditThreads(com.sun.management.ThreadMXBean threads) throws Exception {
+
+		List<Thread> audited = new ArrayList<Thread>();
+
+		SessionManager manager = new SessionManager(2);
+		for (int i = 0; i < THREAD_SESSIONS; i++) {
+			manager.openSession(new BasicOscillator(), new PcmStreamSink(OutputStream.nullOutputStream()));
+		}
+		for (Thread worker : manager.getWorkers()) {
+			audited.add(worker);
+		}
+
+		PcmStreamSink engineSink = new PcmStreamSink(OutputStream.nullOutputStream());
+		AudioEngine engine = new AudioEngine(engineSink);
+		engine.setSampleProvider(new BasicOscillator());
+		engine.open();
+		engine.startEngine();
+		audited.add(engine);
+		audited.add(engineSink.getWriterThread());
+
+		SamplePlayer player = new SamplePlayer(new PcmStreamSink(OutputStream.nullOutputStream()));
+		player.setSampleProvider(new BasicOscillator());
+		player.startPlayer();
+		audited.add(player);
+
+		PipelinedChain pipe = new PipelinedChain();
+		VCF pipeVcf = new VCF();
+		pipeVcf.setSampleProvider(new BasicOscillator());
+		DelayEffect pipeDelay = new DelayEffect();
+		pipeDelay.setBypassed(false);
+		pipeDelay.setSampleProvider(pipe.addStage(pipeVcf));
+		pipe.addStage(pipeDelay);
+		pipe.startPipeline();
+		SamplePlayer pipePlayer = new SamplePlayer(new PcmStreamSink(OutputStream.nullOutputStream()));
+		pipePlayer.setSampleProvider(pipe);
+		pipePlayer.startPlayer();
+		audited.add(pipePlayer);
+		for (Thread worker : pipe.getWorkers()) {
+			audited.add(worker);
+		}
+
+		Thread.sleep(THREAD_WARM_UP_MS);
+
+		long [] before = new long[audited.size()];
+		for (int i = 0; i < before.length; i++) {
+			before[i] = threads.getThreadAllocatedBytes(audited.get(i).getId());
+		}
+		Thread.sleep(THREAD_AUDIT_MS);
+
+		int failures = 0;
+		for (int i = 0; i < before.length; i++) {
+			Thread t = audited.get(i);
+			long bytes = threads.getThreadAllocatedBytes(t.getId()) - before[i];
+			if (bytes <= 0) {
+				System.out.printf("PASS  %-36s%n", "thread " + t.getName());
+			}	else	{
+				failures++;
+				System.out.printf("FAIL  %-36s allocated %d bytes in %d ms%n", "thread " + t.getName(), bytes, THREAD_AUDIT_MS);
+			}
+		}
+
+		player.stopPlayer();
+		pipePlayer.stopPlayer();
+		pipe.stopPipeline();
+		engine.shutdown();
+		manager.shutdown();
+		return failures;
+	}
+
+	/**
+	 * Build the chains to audit
+	 *
+	 * @return Audit cases
+	 *
+	 * @throws Exception If a chain cannot be set up
+	 */
+	private static List<AuditCase> createCases() throws Exception {
+
+		List<AuditCase> cases = new ArrayList<AuditCase>();
+
+		// Single modules
+		for (final WAVESHAPE shape : WAVESHAPE.values()) {
+			final BasicOscillator osc = new BasicOscillator();
+			osc.setWaveshape(shape);
+			cases.add(new NoteCase("BasicOscillator " + shape) {
+				void noteOn(int mnn) { osc.setFrequency(frequency(mnn)); }
+				void noteOff() { osc.setFrequency(frequency(24), SamplePlayer.SAMPLES_PER_BUFFER / 2); }
+				int render() { return osc.getSamples(buffer); }
+			});
+		}
+		for (final MOD_TYPE type : MOD_TYPE.values()) {
+			final AdvancedOscillator osc = new AdvancedOscillator();
+			osc.setWaveshape(WAVESHAPE.SIN);
+			osc.setLfoFrequency(3.0);
+			osc.setModulationDepth(1.0);
+			osc.setModulationType(type);
+			cases.add(new NoteCase("AdvancedOscillator " + type) {
+				void noteOn(int mnn) { osc.setFrequency(frequency(mnn)); osc.setDetuneInCents(mnn); }
+				void noteOff() { osc.setFrequencyRange(4); }
+				int render() { return osc.getSamples(buffer); }
+			});
+		}
+
+		final DelayEffect delay = new DelayEffect();
+		final BasicOscillator delayOsc = new BasicOscillator();
+		delay.setSampleProvider(delayOsc);
+		delay.setBypassed(false);
+		delay.setDelayInMs(250);
+		cases.add(new NoteCase("DelayEffect") {
+			void noteOn(int mnn) { delayOsc.setFrequency(frequency(mnn)); }
+			void noteOff() { delay.setFeedbackPercent(30); }
+			int render() { return delay.getSamples(buffer); }
+		});
+
+		final PhaserEffect phaser = new PhaserEffect();
+		phaser.setSampleProvider(new BasicOscillator());
+		phaser.setBypassed(false);
+		phaser.setFeedbackPercent(50);
+		cases.add(new AuditCase("PhaserEffect stereo") {
+			final byte [] right = new byte[SamplePlayer.BUFFER_SIZE];
+			int render() { return phaser.getSamples(buffer, right); }
+		});
+
+		final BasicOscillator modOsc = new BasicOscillator();
+		final VCF modVcf = new VCF();
+		modVcf.setSampleProvider(modOsc);
+		final VCA modVca = new VCA();
+		modVca.setSampleProvider(modVcf);
+		final DelayEffect modDelay = new DelayEffect();
+		modDelay.setSampleProvider(modVca);
+		modDelay.setBypassed(false);
+		final PhaserEffect modPhaser = new PhaserEffect();
+		modPhaser.setSampleProvider(modDelay);
+		modPhaser.setBypassed(false);
+		final ModulationMatrix matrix = new ModulationMatrix();
+		matrix.setSampleProvider(modPhaser);
+		modOsc.setPitchModulation(matrix.getTrack(ModulationMatrix.DESTINATION.OSC_PITCH));
+		modVcf.setCutoffModulation(matrix.getTrack(ModulationMatrix.DESTINATION.VCF_CUTOFF));
+		modVcf.setResonanceModulation(matrix.getTrack(ModulationMatrix.DESTINATION.VCF_RESONANCE));
+		modVca.setGainModulation(matrix.getTrack(ModulationMatrix.DESTINATION.VCA_GAIN));
+		modDelay.setMixModulation(matrix.getTrack(ModulationMatrix.DESTINATION.DELAY_MIX));
+		modPhaser.setFeedbackModulation(matrix.getTrack(ModulationMatrix.DESTINATION.PHASER_FEEDBACK));
+		matrix.setLfoFrequency(0, 5.0);
+		matrix.addRoute(ModulationMatrix.SOURCE.LFO_1, ModulationMatrix.DESTINATION.OSC_PITCH, 0.02);
+		matrix.addRoute(ModulationMatrix.SOURCE.ENVELOPE_1, ModulationMatrix.DESTINATION.VCF_CUTOFF, 1.0);
+		matrix.addRoute(ModulationMatrix.SOURCE.LFO_2, ModulationMatrix.DESTINATION.VCF_RESONANCE, 0.2);
+		matrix.addRoute(ModulationMatrix.SOURCE.VELOCITY, ModulationMatrix.DESTINATION.VCA_GAIN, -0.5);
+		matrix.addRoute(ModulationMatrix.SOURCE.RANDOM, ModulationMatrix.DESTINATION.DELAY_MIX, 30.0);
+		matrix.addRoute(ModulationMatrix.SOURCE.LFO_3, ModulationMatrix.DESTINATION.PHASER_FEEDBACK, 40.0);
+		cases.add(new NoteCase("ModulationMatrix") {
+			void noteOn(int mnn) {
+				modOsc.setFrequency(frequency(mnn));
+				modVca.noteOn();
+				modVcf.noteOn();
+				matrix.noteOn(mnn, 100, 0);
+			}
+			void noteOff() {
+				modVca.noteOff();
+				modVcf.noteOff();
+				matrix.noteOff(0);
+			}
+			int render() { return matrix.getSamples(buffer); }
+		});
+
+		final UnisonOscillator unison = new UnisonOscillator();
+		unison.setVoiceCount(UnisonOscillator.VOICES_MAX);
+		cases.add(new NoteCase("UnisonOscillator stereo") {
+			final byte [] right = new byte[SamplePlayer.BUFFER_SIZE];
+			void noteOn(int mnn) { unison.setFrequency(frequency(mnn)); }
+			void noteOff() { unison.setStereoWidth(UnisonOscillator.WIDTH_MAX); }
+			int render() { return unison.getSamples(buffer, right); }
+		});
+
+		final FMVoice fm = new FMVoice();
+		fm.setOperatorRatio(1, 2.0);
+		fm.setOperatorFeedback(5, 0.5);
+		cases.add(new NoteCase("FMVoice") {
+			void noteOn(int mnn) { fm.setFrequency(frequency(mnn)); fm.noteOn(); }
+			void noteOff() { fm.noteOff(); }
+			int render() { return fm.getSamples(buffer); }
+		});
+
+		final AdditiveVoice additive = new AdditiveVoice();
+		additive.setPartialCount(AdditiveVoice.PARTIALS_MAX);
+		for (int p = 0; p < AdditiveVoice.PARTIALS_MAX; p++) {
+			additive.setPartial(p, p + 1, 0.25 / (p + 1));
+			additive.setPartialGlide(p, 50.0, 100);
+		}
+		cases.add(new NoteCase("AdditiveVoice") {
+			void noteOn(int mnn) { additive.setFrequency(frequency(mnn)); additive.noteOn(); }
+			void noteOff() { additive.noteOff(); }
+			int render() { return additive.getSamples(buffer); }
+		});
+
+		final Mixer mixer = new Mixer();
+		final VCA [] mixerVoices = new VCA[4];
+		for (int v = 0; v < mixerVoices.length; v++) {
+			BasicOscillator voiceOsc = new BasicOscillator();
+			voiceOsc.setWaveshape(WAVESHAPE.SAW);
+			voiceOsc.setFrequency(frequency(RIFF[v]));
+			mixerVoices[v] = new VCA();
+			mixerVoices[v].setSampleProvider(voiceOsc);
+			mixerVoices[v].setSustainLevel(0.5);
+			int channel = mixer.addChannel(mixerVoices[v]);
+			mixer.setChannelGain(channel, 0.25);
+			mixer.setChannelPan(channel, v / 1.5 - 1.0);
+		}
+		final DelayEffect busDelay = new DelayEffect();
+		busDelay.setBypassed(false);
+		int delayBus = mixer.addBus();
+		busDelay.setSampleProvider(mixer.getSend(delayBus));
+		mixer.setReturn(delayBus, busDelay);
+		final PhaserEffect busPhaser = new PhaserEffect();
+		busPhaser.setBypassed(false);
+		int phaserBus = mixer.addBus();
+		busPhaser.setSampleProvider(mixer.getSend(phaserBus));
+		mixer.setReturn(phaserBus, busPhaser);
+		for (int v = 0; v < mixerVoices.length; v++) {
+			mixer.setSendLevel(v, delayBus, 0.5);
+			mixer.setSendLevel(v, phaserBus, 0.25 * v);
+		}
+		cases.add(new NoteCase("Mixer stereo") {
+			final byte [] right = new byte[SamplePlayer.BUFFER_SIZE];
+			void noteOn(int mnn) { mixerVoices[mnn & 3].noteOn(); }
+			void noteOff() { for (VCA vca : mixerVoices) { vca.noteOff(); } }
+			int render() { return mixer.getSamples(buffer, right); }
+		});
+
+		final BasicOscillator probed = new BasicOscillator();
+		final LatencyProbe probe = new LatencyProbe(new SimulatedAudioSink(Integer.MAX_VALUE, 1));
+		probe.setSampleProvider(probed);
+		cases.add(new NoteCase("LatencyProbe") {
+			void noteOn(int mnn) { probed.setFrequency(frequency(mnn)); probe.stamp(); }
+			void noteOff() { probe.stamp(); }
+			int render() {
+				int n = probe.getSamples(buffer);
+				try {
+					probe.write(buffer, 0, n);
+				}	catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				return n;
+			}
+		});
+
+		final Mixer qualityMixer = new Mixer();
+		final QualityController quality = new QualityController();
+		quality.setSampleProvider(qualityMixer);
+		final VCF [] qualityVcfs = new VCF[4];
+		final QualityIntfc [] qualityParticipants = new QualityIntfc[2 * qualityVcfs.length + 1];
+		qualityParticipants[0] = qualityMixer;
+		for (int v = 0; v < qualityVcfs.length; v++) {
+			BasicOscillator voiceOsc = new BasicOscillator();
+			voiceOsc.setFrequency(frequency(RIFF[v]));
+			qualityVcfs[v] = new VCF();
+			qualityVcfs[v].setSampleProvider(voiceOsc);
+			qualityMixer.setChannelGain(qualityMixer.addChannel(qualityVcfs[v]), 0.1 * (v + 1));
+			qualityParticipants[2 * v + 1] = voiceOsc;
+			qualityParticipants[2 * v + 2] = qualityVcfs[v];
+		}
+		for (QualityIntfc participant : qualityParticipants) {
+			quality.addParticipant(participant);
+		}
+		cases.add(new NoteCase("QualityController") {
+			final QualityController.STAGE [] stages = QualityController.STAGE.values();
+			int step;
+			void noteOn(int mnn) {
+				// Walk the participants through every stage as a loaded engine would
+				QualityController.STAGE stage = stages[step++ % stages.length];
+				for (QualityIntfc participant : qualityParticipants) { participant.setQualityStage(stage); }
+				for (VCF vcf : qualityVcfs) { vcf.noteOn(); }
+			}
+			void noteOff() { for (VCF vcf : qualityVcfs) { vcf.noteOff(); } }
+			int render() { return quality.getSamples(buffer); }
+		});
+
+		final AudioBuffer grainSource = AudioBuffer.allocateHeap(SamplePlayer.SAMPLE_RATE);
+		for (int i = 0; i < grainSource.size(); i++) {
+			grainSource.put(i, (short) (8000 * Math.sin(2.0 * Math.PI * 330.0 * i / SamplePlayer.SAMPLE_RATE)));
+		}
+		final GranularSynth granular = new GranularSynth();
+		granular.setSource(grainSource);
+		granular.setDensity(5000.0);
+		granular.setDurationMs(100.0);
+		granular.setPositionJitter(0.5);
+		granular.setPitchJitter(7.0);
+		granular.setDensityJitter(0.5);
+		granular.setGain(0.02);
+		final GranularSynth liveGranular = new GranularSynth(64);
+		liveGranular.setSource(new BasicOscillator(), 1.0);
+		cases.add(new NoteCase("GranularSynth") {
+			void noteOn(int mnn) {
+				granular.setPosition((mnn - 60) / 12.0);
+				granular.setPitchRatio(frequency(mnn) / frequency(60));
+				granular.start();
+				liveGranular.start();
+			}
+			void noteOff() { granular.stop(); liveGranular.stop(); }
+			int render() { granular.getSamples(buffer); return liveGranular.getSamples(buffer); }
+		});
+
+		final StringBank strings = new StringBank(256, StringBank.LOWEST_FREQUENCY_DEFAULT);
+		strings.setGain(0.05);
+		cases.add(new NoteCase("StringBank") {
+			int chord;
+			void noteOn(int mnn) {
+				// More notes than strings over time, so strings are stolen as well as freed
+				strings.setBrightness((mnn - 60) / 12.0);
+				for (int i = 0; i < 24; i++) { strings.pluck(frequency(mnn - 24 + i), 0.8); }
+				strings.strike(frequency(mnn), 1.0);
+				strings.setDecay(((chord++ & 1) == 0) ? 0.2 : 10.0);
+			}
+			void noteOff() { strings.pluck(frequency(36), 0.5); }
+			int render() { return strings.getSamples(buffer); }
+		});
+
+		final AnalysisTap tap = new AnalysisTap();
+		tap.setSampleProvider(new BasicOscillator());
+		cases.add(new AuditCase("AnalysisTap") {
+			void control(int index) {
+				// Consume every other buffer, as a slow analyzer would
+				if (((index & 1) == 0) && (tap.getRing().peek() != null)) {
+					tap.getRing().release();
+				}
+			}
+			int render() { return tap.getSamples(buffer); }
+		});
+
+		final SamplerVoice sampler = new SamplerVoice(createSample());
+		sampler.setLoopPoints(1000, 5000);
+		cases.add(new NoteCase("SamplerVoice") {
+			void noteOn(int mnn) { sampler.noteOn(mnn); }
+			void noteOff() { sampler.setInterpolation(sampler.getIncrement() > 1.0 ? SamplerVoice.INTERPOLATION.LINEAR : SamplerVoice.INTERPOLATION.CUBIC); }
+			int render() { return sampler.getSamples(buffer); }
+		});
+
+		final BasicOscillator inputOsc = new BasicOscillator();
+		final VCA inputVca = new VCA();
+		inputVca.setSampleProvider(inputOsc);
+		final MidiInputPlayer input = new MidiInputPlayer(inputOsc, inputVca, null);
+		input.setSampleProvider(inputVca);
+		final ShortMessage [] inputOn = new ShortMessage[RIFF.length];
+		final ShortMessage [] inputOff = new ShortMessage[RIFF.length];
+		for (int i = 0; i < RIFF.length; i++) {
+			inputOn[i] = shortMessage(ShortMessage.NOTE_ON, RIFF[i], 100);
+			inputOff[i] = shortMessage(ShortMessage.NOTE_OFF, RIFF[i], 0);
+		}
+		cases.add(new AuditCase("MidiInputPlayer") {
+			void control(int index) {
+				if ((index % NOTE_BUFFERS) == 0) {
+					int step = index / NOTE_BUFFERS;
+					int note = (step >> 1) % RIFF.length;
+					input.send(((step & 1) == 0) ? inputOn[note] : inputOff[note], -1);
+				}
+			}
+			int render() { return input.getSamples(buffer); }
+		});
+
+		// Sinks, as written to by the render thread
+		final BasicOscillator sinkOsc = new BasicOscillator();
+		final PcmStreamSink pcm = new PcmStreamSink(OutputStream.nullOutputStream(), false);
+		cases.add(new AuditCase("PcmStreamSink") {
+			int render() {
+				sinkOsc.getSamples(buffer);
+				try {
+					return pcm.writeNonBlocking(buffer, 0, buffer.length);
+				} catch (IOException e) {
+					return -1;
+				}
+			}
+		});
+		File wavFile = File.createTempFile("audit", ".wav");
+		wavFile.deleteOnExit();
+		final WavFileSink wav = new WavFileSink(wavFile);
+		cases.add(new AuditCase("WavFileSink") {
+			int render() {
+				sinkOsc.getSamples(buffer);
+				try {
+					wav.write(buffer, 0, buffer.length);
+					return buffer.length;
+				} catch (IOException e) {
+					return -1;
+				}
+			}
+		});
+
+		// The SoftSynth example chains
+		final BasicOscillator shapes = new BasicOscillator();
+		shapes.setFrequency(500);
+		cases.add(new AuditCase("exampleOne osc waveshapes") {
+			void control(int index) {
+				if ((index % NOTE_BUFFERS) == 0) {
+					shapes.setWaveshape(WAVESHAPE.values()[(index / NOTE_BUFFERS) % WAVESHAPE.values().length]);
+				}
+			}
+			int render() { return shapes.getSamples(buffer); }
+		});
+
+		final BasicOscillator sweep = new BasicOscillator();
+		sweep.setWaveshape(WAVESHAPE.SIN);
+		cases.add(new AuditCase("exampleTwo osc frequencies") {
+			void control(int index) {
+				if ((index % NOTE_BUFFERS) == 0) {
+					sweep.setFrequency(400 << ((index / NOTE_BUFFERS) & 3));
+				}
+			}
+			int render() { return sweep.getSamples(buffer); }
+		});
+
+		addVcaExample(cases, "exampleThree osc-vca", false, false, false);
+		addVcaExample(cases, "exampleFour osc-vcf", true, false, false);
+		addVcaExample(cases, "exampleFive osc-vcf-vca-music", true, true, false);
+		addVcaExample(cases, "exampleSix osc-vca-phaser-music", false, true, true);
+		addVcaExample(cases, "exampleSeven osc-vca-delay-music", false, true, false);
+		addRangeExample(cases);
+
+		final AdvancedOscillator detune = new AdvancedOscillator();
+		detune.setFrequency(440);
+		detune.setWaveshape(WAVESHAPE.SIN);
+		cases.add(new AuditCase("exampleNine advanced-osc detune") {
+			void control(int index) {
+				if ((index % NOTE_BUFFERS) == 0) {
+					detune.setDetuneInCents(100 * ((index / NOTE_BUFFERS) % 13));
+				}
+			}
+			int render() { return detune.getSamples(buffer); }
+		});
+
+		addModulationExample(cases, "exampleTen advanced-osc AM", 440, 2.0, MOD_TYPE.AM);
+		addModulationExample(cases, "exampleEleven advanced-osc FM", 400, 1.0, MOD_TYPE.FM);
+
+		final MidiFilePlayer midi = createMidiFileChain();
+		cases.add(new AuditCase("exampleTwelve MidiFilePlayer") {
+			void control(int index) {
+				if (midi.isFinished()) {
+					midi.rewind();
+				}
+			}
+			int render() { return midi.getSamples(buffer); }
+		});
+
+		return cases;
+	}
+
+	/**
+	 * Add one of the oscillator/VCF/VCA example chains
+	 */
+	private static void addVcaExample(List<AuditCase> cases, String name, boolean useVcf, boolean music, boolean phaser) {
+
+		final BasicOscillator osc = new BasicOscillator();
+		osc.setWaveshape(WAVESHAPE.SQU);
+		SampleProviderIntfc last = osc;
+
+		final VCF vcf = useVcf ? new VCF() : null;
+		if (vcf != null) {
+			vcf.setSampleProvider(last);
+			vcf.setAttackTimeInMS(100);
+			vcf.setCutoffFrequencyInHz(1000);
+			vcf.setResonance(0.85);
+			vcf.setDepth(2.0);
+			last = vcf;
+		}
+
+		final VCA vca = (useVcf && ! music) ? null : new VCA();
+		if (vca != null) {
+			vca.setSampleProvider(last);
+			vca.setAttackTimeInMS(1);
+			vca.setDecayTimeInMS(100);
+			vca.setSustainLevel(0.25);
+			vca.setReleaseTimeInMS(250);
+			last = vca;
+		}
+
+		if (music) {
+			if (phaser) {
+				PhaserEffect fe = new PhaserEffect();
+				fe.setSampleProvider(last);
+				fe.setBypassed(false);
+				last = fe;
+			}	else if (! useVcf) {
+				DelayEffect de = new DelayEffect();
+				de.setSampleProvider(last);
+				de.setBypassed(false);
+				last = de;
+			}
+			MusicPlayer mp = new MusicPlayer(osc, vca, vcf, new Note[0]);
+			mp.setSampleProvider(last);
+			last = mp;
+		}
+
+		final SampleProviderIntfc root = last;
+		cases.add(new NoteCase(name) {
+			void noteOn(int mnn) {
+				osc.setFrequency(frequency(mnn));
+				if (vca != null) {
+					vca.noteOn();
+				}
+				if (vcf != null) {
+					vcf.noteOn();
+				}
+			}
+			void noteOff() {
+				if (vca != null) {
+					vca.noteOff();
+				}
+				if (vcf != null) {
+					vcf.noteOff();
+				}
+			}
+			int render() { return root.getSamples(buffer); }
+		});
+	}
+
+	/**
+	 * Add the exampleEight chain, playing notes while stepping the oscillator's range
+	 */
+	private static void addRangeExample(List<AuditCase> cases) {
+
+		final AdvancedOscillator osc = new AdvancedOscillator();
+		osc.setWaveshape(WAVESHAPE.SQU);
+
+		final VCA vca = new VCA();
+		vca.setSampleProvider(osc);
+		vca.setAttackTimeInMS(1);
+		vca.setDecayTimeInMS(100);
+		vca.setSustainLevel(0.01);
+		vca.setReleaseTimeInMS(250);
+
+		final MusicPlayer mp = new MusicPlayer(osc, vca, null, new Note[0]);
+		mp.setSampleProvider(vca);
+
+		cases.add(new NoteCase("exampleEight advanced-osc-vca-music ranges") {
+			void noteOn(int mnn) {
+				osc.setFrequencyRange(2 << (mnn % 3));
+				osc.setFrequency(frequency(mnn));
+				vca.noteOn();
+			}
+			void noteOff() {
+				vca.noteOff();
+			}
+			int render() { return mp.getSamples(buffer); }
+		});
+	}
+
+	/**
+	 * Add one of the AdvancedOscillator LFO modulation example chains
+	 */
+	private static void addModulationExample(List<AuditCase> cases, String name, double frequency, double lfoFrequency, MOD_TYPE type) {
+
+		final AdvancedOscillator osc = new AdvancedOscillator();
+		osc.setFrequency(frequency);
+		osc.setWaveshape(WAVESHAPE.SIN);
+		osc.setLfoFrequency(lfoFrequency);
+		osc.setModulationDepth(1.0);
+		osc.setLfoWaveshape(WAVESHAPE.SIN);
+		osc.setModulationType(type);
+
+		cases.add(new AuditCase(name) {
+			int render() { return osc.getSamples(buffer); }
+		});
+	}
+
+	/**
+	 * Build the chain of exampleTwelve playing a short in-memory MIDI file
+	 */
+	private static MidiFilePlayer createMidiFileChain() throws IOException {
+
+		ByteBuffer track = ByteBuffer.allocate(1024);
+
+		// Tempo 120 bpm
+		track.put(new byte[] {0x00, (byte) 0xFF, 0x51, 0x03, 0x07, (byte) 0xA1, 0x20});
+		for (int mnn : RIFF) {
+			track.put(new byte[] {0x00, (byte) 0x90, (byte) mnn, 0x64});
+			track.put(new byte[] {0x30, (byte) 0x80, (byte) mnn, 0x00});
+		}
+		track.put(new byte[] {0x00, (byte) 0xFF, 0x2F, 0x00});
+		track.flip();
+
+		ByteBuffer smf = ByteBuffer.allocate(22 + track.remaining());
+		smf.put(new byte[] {'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0, 96});
+		smf.put(new byte[] {'M', 'T', 'r', 'k'});
+		smf.putInt(track.remaining());
+		smf.put(track);
+		smf.flip();
+
+		BasicOscillator osc = new BasicOscillator();
+		osc.setWaveshape(WAVESHAPE.SAW);
+		VCA vca = new VCA();
+		vca.setSampleProvider(osc);
+		vca.setReleaseTimeInMS(300);
+
+		MidiFilePlayer mp = new MidiFilePlayer(osc, vca, null, new MidiFileReader(smf).newCursor());
+		mp.setSampleProvider(vca);
+		return mp;
+	}
+
+	/**
+	 * Render a second of sine wave into a temporary WAV file
+	 */
+	private static MappedWavFile createSample() throws IOException {
+
+		File file = File.createTempFile("audit", ".wav");
+		file.deleteOnExit();
+
+		BasicOscillator osc = new BasicOscillator();
+		osc.setWaveshape(WAVESHAPE.SIN);
+		osc.setFrequency(frequency(60));
+
+		byte [] buffer = new byte[SamplePlayer.BUFFER_SIZE];
+		WavFileSink sink = new WavFileSink(file);
+		try {
+			for (int i = 0; i < SamplePlayer.SAMPLE_RATE / SamplePlayer.SAMPLES_PER_BUFFER; i++) {
+				osc.getSamples(buffer);
+				sink.write(buffer, 0, buffer.length);
+			}
+		} finally {
+			sink.close();
+		}
+		return new MappedWavFile(file);
+	}
+
+	private static ShortMessage shortMessage(int command, int data1, int data2) {
+
+		try {
+			return new ShortMessage(command, 0, data1, data2);
+		} catch (InvalidMidiDataException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.craigl.softsynth;
+
+/**
+ * Result of one analysis frame produced by a SpectrumAnalyzer.
+ * <p>
+ * Holds the magnitude spectrum of the frame along with the peak and<br>
+ * RMS levels of the samples that arrived since the previous frame.<br>
+ * Instances are preallocated by the analyzer and recycled, so a reader<br>
+ * must copy out any values it wants to keep beyond its next query.
+ */
+
+public class AnalysisSnapshot {
+
+	/**
+	 * AnalysisSnapshot Class Constructor
+	 *
+	 * @param fftSize Size of the transform the spectrum is derived from
+	 */
+	public AnalysisSnapshot(int fftSize) {
+
+		magnitudes = new double[fftSize / 2 + 1];
+		binWidthInHz = (double) SamplePlayer.SAMPLE_RATE / fftSize;
+	}
+
+	/**
+	 * Return the magnitude spectrum.
+	 * <p>
+	 * Bin k covers the frequency k * getBinWidthInHz(). Magnitudes are<br>
+	 * normalized so a full scale sine reads close to 1.0 in its bin.
+	 *
+	 * @return Array of fftSize / 2 + 1 magnitudes
+	 */
+	public double [] getMagnitudes() {
+
+		return magnitudes;
+	}
+
+	/**
+	 * Return the width of each spectrum bin
+	 *
+	 * @return Bin width in Hz
+	 */
+	public double getBinWidthInHz() {
+
+		return binWidthInHz;
+	}
+
+	/**
+	 * Return the peak absolute sample level between 0.0 and 1.0
+	 *
+	 * @return Peak level
+	 */
+	public double getPeak() {
+
+		return peak;
+	}
+
+	/**
+	 * Return the RMS sample level between 0.0 and 1.0
+	 *
+	 * @return RMS level
+	 */
+	public double getRms() {
+
+		return rms;
+	}
+
+	/**
+	 * Return the peak level in dB relative to full scale
+	 *
+	 * @return Peak level in dBFS
+	 */
+	public double getPeakInDb() {
+
+		return toDb(peak);
+	}
+
+	/**
+	 * Return the RMS level in dB relative to full scale
+	 *
+	 * @return RMS level in dBFS
+	 */
+	public double getRmsInDb() {
+
+		return toDb(rms);
+	}
+
+	/**
+	 * Return the number of samples analyzed before the end of this frame
+	 *
+	 * @return Sample position of the frame's last sample
+	 */
+	public long getSamplePosition() {
+
+		return samplePosition;
+	}
+
+	/**
+	 * Return the sequence number of this frame. Zero means no frame yet.
+	 *
+	 * @return Frame sequence number
+	 */
+	public long getSequence() {
+
+		return sequence;
+	}
+
+	/**
+	 * Convert a linear level into dB, floored at -120 dB
+	 *
+	 * @param level Linear level
+	 *
+	 * @return Level in dB
+	 */
+	private static double toDb(double level) {
+
+		return (level > 1.0e-6) ? 20.0 * Math.log10(level) : -120.0;
+	}
+
+	// Instance data
+	final double [] magnitudes;
+	final double binWidthInHz;
+	double peak;
+	double rms;
+	long samplePosition;
+	long sequence;
+}
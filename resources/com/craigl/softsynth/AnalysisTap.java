@@ -0,0 +1,76 @@
+package com.craigl.softsynth;
+
+/**
+ * Analysis Tap
+ * <p>
+ * A pass through sample provider that can be inserted at any point in<br>
+ * a signal chain. Every buffer flowing through the tap is copied into a<br>
+ * lock-free ring from which a SpectrumAnalyzer thread picks it up.
+ * <p>
+ * The only work done on the audio thread is a single array copy per buffer.<br>
+ * If the analyzer falls behind, buffers are dropped rather than waited for.
+ */
+
+public class AnalysisTap implements SampleProviderIntfc {
+
+	public static final int TAP_RING_BLOCKS_DEFAULT = 32;
+
+	/**
+	 * AnalysisTap Class Constructor
+	 * <p>
+	 * Creates a tap whose ring holds TAP_RING_BLOCKS_DEFAULT buffers
+	 */
+	public AnalysisTap() {
+
+		this(TAP_RING_BLOCKS_DEFAULT);
+	}
+
+	/**
+	 * AnalysisTap Class Constructor
+	 *
+	 * @param ringBlocks Count of buffers the ring can hold before the tap starts dropping
+	 */
+	public AnalysisTap(int ringBlocks) {
+
+		ring = new BlockRing(ringBlocks, SamplePlayer.BUFFER_SIZE);
+	}
+
+	/**
+	 * Setup the provider of samples
+	 *
+	 * @param provider The provider of samples for this tap
+	 */
+	public void setSampleProvider(SampleProviderIntfc provider) {
+		this.provider = provider;
+	}
+
+	/**
+	 * Return the ring the tapped buffers are copied into
+	 *
+	 * @return The tap's block ring
+	 */
+	public BlockRing getRing() {
+
+		return ring;
+	}
+
+	/**
+	 * Pass a buffer of samples through unchanged, copying it for analysis
+	 *
+	 * @param buffer Buffer in which the samples are to be processed
+	 *
+	 * @return Count of number of bytes processed
+	 */
+	public int getSamples(byte [] buffer) {
+
+		int nBytes = provider.getSamples(buffer);
+		if (nBytes > 0) {
+			ring.offer(buffer, nBytes);
+		}
+		return nBytes;
+	}
+
+	// Instance data
+	private final BlockRing ring;
+	private SampleProviderIntfc provider;
+}
@@ -0,0 +1,178 @@
+package com.craigl.softsynth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Audio Buffer
+ * <p>
+ * A fixed size buffer of 16 bit samples stored in the SamplePlayer's<br>
+ * byte format (signed, big endian). The storage is either an ordinary heap<br>
+ * buffer or off-heap memory owned by an AudioBufferArena.
+ * <p>
+ * Off-heap buffers are not scanned or copied by the garbage collector and<br>
+ * can be written to files, pipes and sockets with writeTo without first<br>
+ * being copied into a heap array. Once the owning arena is closed the<br>
+ * buffer is empty and any access fails with IndexOutOfBoundsException.
+ * <p>
+ * Copies use absolute bulk access and writeTo a view made once, so no<br>
+ * call allocates. writeTo must not be called by two threads at once on<br>
+ * the same buffer.
+ */
+
+public class AudioBuffer {
+
+	private static final ByteBuffer RELEASED = ByteBuffer.allocate(0);
+
+	/**
+	 * Allocate a buffer on the heap
+	 *
+	 * @param samples Capacity in samples
+	 *
+	 * @return A zeroed heap buffer
+	 */
+	public static AudioBuffer allocateHeap(int samples) {
+
+		return new AudioBuffer(ByteBuffer.allocate(samples * 2));
+	}
+
+	/**
+	 * AudioBuffer Class Constructor
+	 *
+	 * @param storage Backing bytes; two per sample
+	 */
+	AudioBuffer(ByteBuffer storage) {
+
+		storage.order(ByteOrder.BIG_ENDIAN);
+		this.storage = storage;
+		view = storage.duplicate();
+		samples = storage.capacity() / 2;
+	}
+
+	/**
+	 * Return the capacity of the buffer
+	 *
+	 * @return Number of samples
+	 */
+	public int size() {
+
+		return samples;
+	}
+
+	/**
+	 * Return whether the buffer lives outside the heap
+	 *
+	 * @return true for arena allocated buffers
+	 */
+	public boolean isDirect() {
+
+		return storage.isDirect();
+	}
+
+	/**
+	 * Read a sample
+	 *
+	 * @param index Sample index
+	 *
+	 * @return Sample value
+	 */
+	public short get(int index) {
+
+		return storage.getShort(index << 1);
+	}
+
+	/**
+	 * Write a sample
+	 *
+	 * @param index Sample index
+	 * @param value Sample value
+	 */
+	public void put(int index, short value) {
+
+		storage.putShort(index << 1, value);
+	}
+
+	/**
+	 * Set all samples to zero
+	 */
+	public void clear() {
+
+		ByteBuffer b = storage;
+		int i = 0;
+		for (; i + 8 <= b.capacity(); i += 8) {
+			b.putLong(i, 0L);
+		}
+		for (; i < b.capacity(); i++) {
+			b.put(i, (byte) 0);
+		}
+	}
+
+	/**
+	 * Copy samples into a byte buffer in the SamplePlayer's format
+	 *
+	 * @param fromSample Index of the first sample to copy
+	 * @param dest Destination array
+	 * @param offset Offset in bytes within dest
+	 * @param count Count of samples to copy
+	 */
+	public void copyTo(int fromSample, byte [] dest, int offset, int count) {
+
+		storage.get(fromSample << 1, dest, offset, count << 1);
+	}
+
+	/**
+	 * Copy samples from a byte buffer in the SamplePlayer's format
+	 *
+	 * @param src Source array
+	 * @param offset Offset in bytes within src
+	 * @param toSample Index of the first sample to write
+	 * @param count Count of samples to copy
+	 */
+	public void copyFrom(byte [] src, int offset, int toSample, int count) {
+
+		storage.put(toSample << 1, src, offset, count << 1);
+	}
+
+	/**
+	 * Write samples to a channel such as a FileChannel, Pipe or SocketChannel.
+	 * <p>
+	 * Off-heap buffers are handed to the channel directly, without a copy.
+	 *
+	 * @param channel Channel to write to
+	 * @param fromSample Index of the first sample to write
+	 * @param count Count of samples to write
+	 *
+	 * @throws IOException If the write fails
+	 */
+	public void writeTo(WritableByteChannel channel, int fromSample, int count) throws IOException {
+
+		ByteBuffer v = view;
+		v.clear();
+		v.limit((fromSample + count) << 1);
+		v.position(fromSample << 1);
+		while (v.hasRemaining()) {
+			channel.write(v);
+		}
+	}
+
+	/**
+	 * Detach the backing storage so it can be freed
+	 *
+	 * @return The storage detached
+	 */
+	ByteBuffer release() {
+
+		ByteBuffer released = storage;
+		storage = RELEASED;
+		view = RELEASED;
+		samples = 0;
+		return released;
+	}
+
+	// Instance data; volatile so other threads see a release
+	private volatile ByteBuffer storage;
+	private volatile ByteBuffer view;
+	private volatile int samples;
+}
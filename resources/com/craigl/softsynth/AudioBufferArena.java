@@ -0,0 +1,116 @@
+package com.craigl.softsynth;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Audio Buffer Arena
+ * <p>
+ * Allocates off-heap AudioBuffers for the modules of a patch and releases<br>
+ * them all at once when the patch is torn down. Create one arena per<br>
+ * patch, pass it to the modules that take one (e.g. DelayEffect), and<br>
+ * close it after the patch has stopped rendering.
+ * <p>
+ * Closing detaches the native memory from every buffer and frees it at<br>
+ * once instead of waiting for the garbage collector to find the buffers<br>
+ * unreachable. On a JVM that does not allow this, the memory is left to<br>
+ * the collector as usual.
+ * <p>
+ * Close the arena only once the engine has stopped pulling the chain, e.g.<br>
+ * after stopPlayer or stopEngine has returned: a thread still inside a<br>
+ * buffer would touch freed memory. A buffer used after close fails with<br>
+ * IndexOutOfBoundsException.
+ */
+
+public class AudioBufferArena implements AutoCloseable {
+
+	/**
+	 * Allocate a zeroed off-heap buffer owned by this arena
+	 *
+	 * @param samples Capacity in samples
+	 *
+	 * @return The new buffer
+	 */
+	public synchronized AudioBuffer allocate(int samples) {
+
+		if (closed) {
+			throw new IllegalStateException("AudioBufferArena is closed");
+		}
+		AudioBuffer buffer = new AudioBuffer(ByteBuffer.allocateDirect(samples * 2));
+		buffers.add(buffer);
+		allocatedBytes += samples * 2L;
+		return buffer;
+	}
+
+	/**
+	 * Return the off-heap memory currently held by this arena
+	 *
+	 * @return Size in bytes
+	 */
+	public synchronized long getAllocatedBytes() {
+
+		return allocatedBytes;
+	}
+
+	/**
+	 * Release every buffer allocated by this arena
+	 */
+	public synchronized void close() {
+
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (AudioBuffer buffer : buffers) {
+			free(buffer.release());
+		}
+		buffers.clear();
+		allocatedBytes = 0;
+	}
+
+	/**
+	 * Free the native memory of a direct buffer now, if the JVM permits it
+	 *
+	 * @param storage Direct buffer to free
+	 */
+	private static void free(ByteBuffer storage) {
+
+		if (INVOKE_CLEANER == null) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, storage);
+		} catch (Exception e) {
+			// Leave it to the garbage collector
+		}
+	}
+
+	// Explicit release of direct buffers (sun.misc.Unsafe.invokeCleaner, Java 9+)
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			unsafe = null;
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	// Instance data
+	private final List<AudioBuffer> buffers = new ArrayList<AudioBuffer>();
+	private long allocatedBytes;
+	private boolean closed;
+}
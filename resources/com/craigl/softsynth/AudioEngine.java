@@ -0,0 +1,275 @@
+package com.craigl.softsynth;
+
+/**
+ * Audio Engine
+ * <p>
+ * A long lived replacement for SamplePlayer. The engine opens its sink<br>
+ * once and keeps it open for its whole life; playback can be started,<br>
+ * paused and stopped any number of times, and the root sample provider<br>
+ * can be swapped between buffers without reopening anything.
+ * <p>
+ * While paused the engine keeps feeding silence to the sink so that<br>
+ * resuming is immediate. While stopped nothing is written at all.
+ * <p>
+ * Before the sink is opened the engine renders the configured provider<br>
+ * silently for a moment. This runs the hot sample loops often enough<br>
+ * for the JIT compiler to compile them, so the first audible notes do<br>
+ * not run interpreted and the start up glitches SamplePlayer hides with<br>
+ * zeroed buffers do not occur.
+ */
+
+public class AudioEngine extends Thread {
+
+	/**
+	 * Engine state enumeration
+	 */
+	public enum STATE {
+		STOPPED, RUNNING, PAUSED
+	}
+
+	// Warm up render time
+	public static final double WARM_UP_TIME_MIN = 0.0;
+	public static final double WARM_UP_TIME_MAX = 10.0;
+	public static final double WARM_UP_TIME_DEFAULT = 2.0;
+
+	/**
+	 * AudioEngine Class Constructor
+	 * <p>
+	 * Samples are played through the default sound device.
+	 */
+	public AudioEngine() {
+
+		this(null);
+	}
+
+	/**
+	 * AudioEngine Class Constructor
+	 *
+	 * @param sink Destination of the samples or null for the default sound device.<br>
+	 * The engine closes the sink on shutdown.
+	 */
+	public AudioEngine(AudioSinkIntfc sink) {
+
+		super("AudioEngine");
+
+		this.sink = sink;
+		state = STATE.STOPPED;
+		setWarmUpTime(WARM_UP_TIME_DEFAULT);
+	}
+
+	/**
+	 * Set the length of the silent warm up render done by open
+	 *
+	 * @param seconds Warm up time; 0 disables warm up
+	 */
+	public void setWarmUpTime(double seconds) {
+
+		seconds = (seconds < WARM_UP_TIME_MIN) ? WARM_UP_TIME_MIN : seconds;
+		seconds = (seconds > WARM_UP_TIME_MAX) ? WARM_UP_TIME_MAX : seconds;
+
+		warmUpBuffers = (int) Math.ceil(seconds / SamplePlayer.BUFFER_TIME_IN_SECS);
+	}
+
+	/**
+	 * Set the root provider of samples.
+	 * <p>
+	 * May be called at any time; the new provider is used from the next buffer.
+	 *
+	 * @param provider The provider of samples for the engine
+	 */
+	public void setSampleProvider(SampleProviderIntfc provider) {
+
+		this.provider = provider;
+	}
+
+	/**
+	 * Return the root provider of samples
+	 *
+	 * @return The current provider
+	 */
+	public SampleProviderIntfc getSampleProvider() {
+
+		return provider;
+	}
+
+	/**
+	 * Warm up the configured provider, open the sink and start the engine<br>
+	 * thread in the stopped state. Call once, before start.
+	 * <p>
+	 * NOTE: the warm up render advances the provider's state just as<br>
+	 * playing would; rewind sequencers such as MidiFilePlayer afterwards.
+	 *
+	 * @throws Exception If the sink cannot be opened
+	 */
+	public synchronized void open() throws Exception {
+
+		if (opened) {
+			throw new IllegalStateException("AudioEngine is already open");
+		}
+		opened = true;
+
+		SampleProviderIntfc p = provider;
+		if (p != null) {
+			warmUp(p, warmUpBuffers);
+		}
+
+		if (sink == null) {
+			sink = new LineAudioSink();
+		}
+		start();
+	}
+
+	/**
+	 * Render a provider into a scratch buffer and discard the result
+	 *
+	 * @param p Provider to render
+	 * @param buffers Count of buffers to render
+	 */
+	public static void warmUp(SampleProviderIntfc p, int buffers) {
+
+		byte [] scratch = new byte[SamplePlayer.BUFFER_SIZE];
+		for (int i = 0; i < buffers; i++) {
+			if (p.getSamples(scratch) < 0) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Start or resume playing the root provider
+	 */
+	public synchronized void startEngine() {
+
+		setState(STATE.RUNNING);
+	}
+
+	/**
+	 * Pause playback; silence is played until the engine is started again
+	 */
+	public synchronized void pauseEngine() {
+
+		if (state == STATE.RUNNING) {
+			setState(STATE.PAUSED);
+		}
+	}
+
+	/**
+	 * Stop writing to the sink. The sink stays open.
+	 */
+	public synchronized void stopEngine() {
+
+		setState(STATE.STOPPED);
+	}
+
+	/**
+	 * Return the engine's state
+	 *
+	 * @return STOPPED, RUNNING or PAUSED
+	 */
+	public synchronized STATE getEngineState() {
+
+		return state;
+	}
+
+	/**
+	 * End the engine thread and close the sink. The engine cannot be reopened.
+	 *
+	 * @throws InterruptedException If interrupted while waiting for the thread
+	 */
+	public void shutdown() throws InterruptedException {
+
+		synchronized (this) {
+			shutdown = true;
+			notifyAll();
+		}
+		if (isAlive()) {
+			join();
+		}
+	}
+
+	/**
+	 * Change state and wake the engine thread
+	 *
+	 * @param newState The new state
+	 */
+	private void setState(STATE newState) {
+
+		if (! opened) {
+			throw new IllegalStateException("AudioEngine has not been opened");
+		}
+		state = newState;
+		notifyAll();
+	}
+
+	/**
+	 * Engine thread; do not call directly
+	 */
+	public void run() {
+
+		try {
+			while (true) {
+				STATE current;
+				boolean drainNow = false;
+				synchronized (this) {
+					if ((state == STATE.STOPPED) && (! drained)) {
+						// Let what was written play out before going idle
+						drained = true;
+						drainNow = true;
+					}
+					while ((state == STATE.STOPPED) && (! shutdown) && (! drainNow)) {
+						wait();
+					}
+					if (shutdown) {
+						break;
+					}
+					current = state;
+					if (current != STATE.STOPPED) {
+						drained = false;
+					}
+				}
+				if (drainNow) {
+					sink.drain();
+					continue;
+				}
+
+				SampleProviderIntfc p = provider;
+				if ((current == STATE.RUNNING) && (p != null)) {
+					int nBytesRead = p.getSamples(sampleData);
+					if (nBytesRead < 0) {
+						// Provider is finished
+						synchronized (this) {
+							if (state == STATE.RUNNING) {
+								state = STATE.STOPPED;
+							}
+						}
+						continue;
+					}
+					if (nBytesRead > 0) {
+						sink.write(sampleData, 0, nBytesRead);
+					}
+				}	else	{
+					sink.write(silence, 0, silence.length);
+				}
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				sink.close();
+			} catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// Instance data
+	private AudioSinkIntfc sink;
+	private volatile SampleProviderIntfc provider;
+	private STATE state;
+	private boolean opened;
+	private boolean shutdown;
+	private boolean drained = true;
+	private int warmUpBuffers;
+	private final byte [] sampleData = new byte[SamplePlayer.BUFFER_SIZE];
+	private final byte [] silence = new byte[SamplePlayer.BUFFER_SIZE];
+}
@@ -0,0 +1,52 @@
+package com.craigl.softsynth;
+
+import java.io.IOException;
+
+/**
+ * The Audio Sink Interface
+ * <p>
+ * Destination for rendered buffers in the SamplePlayer's format<br>
+ * (16 bit signed big endian mono at SAMPLE_RATE). Implementations send<br>
+ * the samples to a sound card, a WAV file, a raw PCM stream or memory.
+ */
+
+public interface AudioSinkIntfc {
+
+	/**
+	 * Write samples to the sink, waiting for room if necessary
+	 *
+	 * @param buffer Buffer holding the samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 *
+	 * @throws IOException If the sink cannot accept the samples
+	 */
+	void write(byte [] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Write as many samples as the sink can accept without waiting
+	 *
+	 * @param buffer Buffer holding the samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 *
+	 * @return Count of bytes accepted; always even, possibly zero
+	 *
+	 * @throws IOException If the sink cannot accept the samples
+	 */
+	int writeNonBlocking(byte [] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Wait until every sample written so far has reached its destination
+	 *
+	 * @throws IOException If the samples cannot be delivered
+	 */
+	void drain() throws IOException;
+
+	/**
+	 * Drain the sink and release its resources. No writes may follow.
+	 *
+	 * @throws IOException If the sink cannot be closed cleanly
+	 */
+	void close() throws IOException;
+}
@@ -5,12 +5,15 @@ package com.craigl.softsynth;
  * <p>
  * A non bandwidth controlled digital oscillator which can produce three waveshapes.
  * <p>
+ * At the CHEAP_KERNELS quality stage and below the sine is read from<br>
+ * the shared SineTable instead of calling Math.sin.
+ * <p>
  * See text for details.
  * 
  * @author craiglindley
  */
 
-public class BasicOscillator implements SampleProviderIntfc {
+public class BasicOscillator implements SampleProviderIntfc, QualityIntfc {
 		
 	/**
 	 * Waveshape enumeration
@@ -41,6 +44,16 @@ public class BasicOscillator implements SampleProviderIntfc {
 		this.waveshape = waveshape;
 	}
 
+	/**
+	 * Return waveshape of oscillator
+	 *
+	 * @return The waveshape of this oscillator
+	 */
+	public WAVESHAPE getWaveshape() {
+
+		return waveshape;
+	}
+
 	/**
 	 * Set frequency of the oscillator in Hz.
 	 * 
@@ -48,7 +61,76 @@ public class BasicOscillator implements SampleProviderIntfc {
 	 */
 	public void setFrequency(double frequency) {
 		
-		periodSamples = (long)(SamplePlayer.SAMPLE_RATE / frequency);
+		this.frequency = frequency;
+		updatePeriod();
+	}
+
+	/**
+	 * Return frequency of the oscillator in Hz.
+	 *
+	 * @return Frequency in Hz for this oscillator
+	 */
+	public double getFrequency() {
+
+		return frequency;
+	}
+
+	/**
+	 * Schedule a change of the oscillator frequency a number of samples from now.
+	 * <p>
+	 * Used to place frequency changes accurately within the next buffer.<br>
+	 * Any number of changes may be scheduled; they take effect in time order.
+	 * 
+	 * @param frequency Frequency in Hz for this oscillator
+	 * @param delaySamples Count of samples to produce before the change; 0 changes immediately
+	 */
+	public void setFrequency(double frequency, int delaySamples) {
+		
+		if (delaySamples <= 0) {
+			events.clear();
+			setFrequency(frequency);
+		}	else if (! events.schedule(delaySamples, 0, frequency)) {
+			setFrequency(frequency);
+		}
+	}
+
+	/**
+	 * Set the track modulating the oscillator's pitch
+	 * 
+	 * @param track Pitch modulation in octaves from a ModulationMatrix or null for none
+	 */
+	public void setPitchModulation(ModulationTrack track) {
+		
+		pitchModulation = track;
+	}
+
+	/**
+	 * Set the ratio by which modulation currently shifts the frequency
+	 * 
+	 * @param ratio Frequency multiplier; 1.0 for none
+	 */
+	protected void setPitchRatio(double ratio) {
+		
+		pitchRatio = ratio;
+		updatePeriod();
+	}
+
+	/**
+	 * Recalculate the period from the frequency and pitch modulation
+	 */
+	private void updatePeriod() {
+		
+		periodSamples = Math.max(1L, (long)(SamplePlayer.SAMPLE_RATE / (frequency * pitchRatio)));
+	}
+
+	/**
+	 * Set the quality stage to render at
+	 * 
+	 * @param stage Stage; from CHEAP_KERNELS on the sine comes from a table
+	 */
+	public void setQualityStage(QualityController.STAGE stage) {
+		
+		cheapKernel = stage.compareTo(QualityController.STAGE.CHEAP_KERNELS) >= 0;
 	}
 
 	/**
@@ -58,6 +140,13 @@ public class BasicOscillator implements SampleProviderIntfc {
 	 */
 	protected double getSample() {
 		
+		// Apply scheduled frequency changes when they fall due
+		while (events.hasDue(1)) {
+			setFrequency(events.peekValue());
+			events.pop();
+		}
+		events.advance(1);
+
 		double value;	
 		double x = sampleNumber / (double) periodSamples;
 		
@@ -65,7 +154,11 @@ public class BasicOscillator implements SampleProviderIntfc {
 
 			default:
 			case SIN:
-				value = Math.sin(2.0 * Math.PI * x);
+				if (cheapKernel) {
+					value = SineTable.sin((int)(long)(x * SineTable.PHASE_SCALE));
+				}	else	{
+					value = Math.sin(2.0 * Math.PI * x);
+				}
 				break;
 
 			case SQU:
@@ -92,18 +185,37 @@ public class BasicOscillator implements SampleProviderIntfc {
 	 * @return Count of bytes produced.
 	 */
 	public int getSamples(byte [] buffer) {
-		int index = 0;
+		
+		ModulationTrack pm = pitchModulation;
+		boolean modulated = (pm != null) && pm.isActive();
+		int interval = modulated ? pm.interval : SamplePlayer.SAMPLES_PER_BUFFER;
+		double ratio = 1.0;
+		double ratioStep = 0.0;
+		double nextRatio = modulated ? Math.pow(2.0, pm.values[0]) : 1.0;
+		
 		for (int i = 0; i < SamplePlayer.SAMPLES_PER_BUFFER; i++) {
-			double ds = getSample() * Short.MAX_VALUE;
-			short ss = (short) Math.round(ds);
-			buffer[index++] = (byte)(ss >> 8);
-			buffer[index++] = (byte)(ss & 0xFF);			
+			if (modulated) {
+				// Interpolate the frequency ratio between control points
+				if ((i % interval) == 0) {
+					ratio = nextRatio;
+					nextRatio = Math.pow(2.0, pm.values[(i / interval) + 1]);
+					ratioStep = (nextRatio - ratio) / interval;
+				}
+				setPitchRatio(ratio);
+				ratio += ratioStep;
+			}
+			PcmCodec.put(buffer, i, getSample());
 		}
 		return SamplePlayer.BUFFER_SIZE;
 	}
 	
 	// Instance data
 	private WAVESHAPE waveshape;
+	private double frequency;
+	private double pitchRatio = 1.0;
+	private ModulationTrack pitchModulation;
 	private long periodSamples;
 	private long sampleNumber;
+	private final EventSchedule events = new EventSchedule();
+	private boolean cheapKernel;
 }
@@ -0,0 +1,23 @@
+package com.craigl.softsynth;
+
+import java.io.File;
+
+/**
+ * The Batch Progress Interface
+ * <p>
+ * Notified by the BatchRenderer each time a render has been written.<br>
+ * Called from the worker threads, so implementations must be thread safe.
+ */
+
+public interface BatchProgressIntfc {
+	
+	/**
+	 * Report a completed render
+	 * 
+	 * @param index Grid index of the render that completed
+	 * @param file The file that was written
+	 * @param completed Count of renders completed so far
+	 * @param total Count of renders in the batch
+	 */
+	void renderCompleted(int index, File file, int completed, int total);
+}
@@ -0,0 +1,205 @@
+package com.craigl.softsynth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batch Renderer
+ * <p>
+ * Renders one patch for every point of a ParameterGrid to WAV files,<br>
+ * as fast as the machine allows instead of in realtime.
+ * <p>
+ * A fixed set of worker threads, one per core by default, each claims the<br>
+ * next grid index, builds an independent patch for it through the<br>
+ * PatchFactoryIntfc, and streams the rendered buffers straight to disk.<br>
+ * Memory use is therefore bounded by one patch and one buffer per worker,<br>
+ * whatever the size of the grid. File names are derived from the grid<br>
+ * index and parameter values, so they are the same on every run.
+ */
+
+public class BatchRenderer {
+
+	/**
+	 * BatchRenderer Class Constructor
+	 *
+	 * @param factory Builds a patch for a set of parameter values
+	 * @param grid Parameter values to render
+	 * @param outputDirectory Directory in which the WAV files are written
+	 * @param renderSeconds Length of each render in seconds
+	 */
+	public BatchRenderer(PatchFactoryIntfc factory, ParameterGrid grid, File outputDirectory, double renderSeconds) {
+
+		this.factory = factory;
+		this.grid = grid;
+		this.outputDirectory = outputDirectory;
+		this.renderSamples = (long) (renderSeconds * SamplePlayer.SAMPLE_RATE);
+
+		filePrefix = "render";
+		threadCount = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Set the leading part of each output file name
+	 *
+	 * @param filePrefix File name prefix
+	 */
+	public void setFilePrefix(String filePrefix) {
+
+		this.filePrefix = filePrefix;
+	}
+
+	/**
+	 * Set the number of worker threads
+	 *
+	 * @param threadCount Worker count; defaults to the number of available processors
+	 */
+	public void setThreadCount(int threadCount) {
+
+		this.threadCount = Math.max(1, threadCount);
+	}
+
+	/**
+	 * Set the listener notified as renders complete
+	 *
+	 * @param listener Progress listener; may be null
+	 */
+	public void setProgressListener(BatchProgressIntfc listener) {
+
+		this.listener = listener;
+	}
+
+	/**
+	 * Return the count of renders completed so far
+	 *
+	 * @return Completed render count
+	 */
+	public int getCompletedCount() {
+
+		return completed.get();
+	}
+
+	/**
+	 * Render the whole grid, returning when all files are written.
+	 * <p>
+	 * If any render fails the remaining renders are abandoned and the<br>
+	 * first failure is thrown.
+	 *
+	 * @throws IOException If a file cannot be written
+	 * @throws InterruptedException If the calling thread is interrupted
+	 */
+	public void render() throws IOException, InterruptedException {
+
+		if (! outputDirectory.isDirectory() && ! outputDirectory.mkdirs()) {
+			throw new IOException("Cannot create " + outputDirectory);
+		}
+
+		final int total = grid.size();
+		nextIndex.set(0);
+		completed.set(0);
+		failure = null;
+
+		Thread [] workers = new Thread[Math.min(threadCount, Math.max(1, total))];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread("BatchRenderer-" + i) {
+				public void run() {
+					renderLoop(total);
+				}
+			};
+			workers[i].start();
+		}
+		try {
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			// Make the workers stop after their current render
+			nextIndex.set(total);
+			throw e;
+		}
+
+		Throwable t = failure;
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		}	else if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}	else if (t != null) {
+			throw new IOException(t);
+		}
+	}
+
+	/**
+	 * Worker loop; claims and renders grid indices until none are left
+	 *
+	 * @param total Number of points in the grid
+	 */
+	private void renderLoop(int total) {
+
+		byte [] buffer = new byte[SamplePlayer.BUFFER_SIZE];
+		double [] parameters = new double[grid.getAxisCount()];
+
+		int index;
+		while ((index = nextIndex.getAndIncrement()) < total) {
+			try {
+				grid.getPoint(index, parameters);
+				File file = new File(outputDirectory, grid.getFileName(filePrefix, index));
+				renderOne(factory.createPatch(parameters), file, buffer);
+
+				int done = completed.incrementAndGet();
+				BatchProgressIntfc l = listener;
+				if (l != null) {
+					l.renderCompleted(index, file, done, total);
+				}
+			} catch (Throwable t) {
+				synchronized (this) {
+					if (failure == null) {
+						failure = t;
+					}
+				}
+				// Abandon the rest of the batch
+				nextIndex.set(total);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Pull renderSamples samples from a patch into a WAV file
+	 *
+	 * @param patch Last provider of the patch's chain
+	 * @param file The file to write
+	 * @param buffer Worker's sample buffer
+	 *
+	 * @throws IOException If the file cannot be written
+	 */
+	private void renderOne(SampleProviderIntfc patch, File file, byte [] buffer) throws IOException {
+
+		WavFileSink sink = new WavFileSink(file);
+		try {
+			long remainingBytes = renderSamples * 2;
+			while (remainingBytes > 0) {
+				int nBytes = patch.getSamples(buffer);
+				if (nBytes <= 0) {
+					break;
+				}
+				int n = (int) Math.min(nBytes, remainingBytes);
+				sink.write(buffer, 0, n);
+				remainingBytes -= n;
+			}
+		} finally {
+			sink.close();
+		}
+	}
+
+	// Instance data
+	private final PatchFactoryIntfc factory;
+	private final ParameterGrid grid;
+	private final File outputDirectory;
+	private final long renderSamples;
+	private String filePrefix;
+	private int threadCount;
+	private volatile BatchProgressIntfc listener;
+	private final AtomicInteger nextIndex = new AtomicInteger();
+	private final AtomicInteger completed = new AtomicInteger();
+	private volatile Throwable failure;
+}
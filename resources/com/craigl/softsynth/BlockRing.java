@@ -0,0 +1,157 @@
+package com.craigl.softsynth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single producer / single consumer ring of sample blocks.
+ * <p>
+ * All block storage is allocated up front. The producer copies a block<br>
+ * into the next free slot and publishes it; the consumer borrows the<br>
+ * oldest slot, works on it in place and then releases it.
+ * <p>
+ * Neither side ever blocks or allocates. When the ring is full the<br>
+ * offered block is dropped and counted as an overrun so that a slow<br>
+ * consumer can never stall the audio thread.
+ */
+
+public class BlockRing {
+
+	/**
+	 * BlockRing Class Constructor
+	 *
+	 * @param slotCount Number of blocks the ring can hold. Rounded up to a power of two.
+	 * @param blockSize Size in bytes of each block
+	 */
+	public BlockRing(int slotCount, int blockSize) {
+
+		int capacity = Integer.highestOneBit(Math.max(2, slotCount) - 1) << 1;
+
+		mask = capacity - 1;
+		slots = new byte[capacity][blockSize];
+		lengths = new int[capacity];
+	}
+
+	/**
+	 * Copy a block into the ring. Called from the producer thread only.
+	 *
+	 * @param block Source of the samples
+	 * @param length Count of bytes to copy
+	 *
+	 * @return true if the block was queued; false if the ring was full
+	 */
+	public boolean offer(byte [] block, int length) {
+
+		long t = tail.get();
+		if (t - head.get() > mask) {
+			overruns.lazySet(overruns.get() + 1);
+			return false;
+		}
+		int slot = (int) (t & mask);
+		System.arraycopy(block, 0, slots[slot], 0, length);
+		lengths[slot] = length;
+
+		// Publish the slot to the consumer
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Claim the next free slot for writing in place. Called from the producer thread only.
+	 * <p>
+	 * The slot becomes visible to the consumer when commit is called.
+	 *
+	 * @return The slot's storage or null if the ring is full
+	 */
+	public byte [] claim() {
+
+		long t = tail.get();
+		if (t - head.get() > mask) {
+			return null;
+		}
+		return slots[(int) (t & mask)];
+	}
+
+	/**
+	 * Publish the slot previously returned by claim.
+	 *
+	 * @param length Count of valid bytes written to the slot
+	 */
+	public void commit(int length) {
+
+		long t = tail.get();
+		lengths[(int) (t & mask)] = length;
+		tail.lazySet(t + 1);
+	}
+
+	/**
+	 * Borrow the oldest queued block. Called from the consumer thread only.
+	 * <p>
+	 * The block remains owned by the consumer until release is called.
+	 *
+	 * @return The block's storage or null if the ring is empty
+	 */
+	public byte [] peek() {
+
+		long h = head.get();
+		if (h == tail.get()) {
+			return null;
+		}
+		return slots[(int) (h & mask)];
+	}
+
+	/**
+	 * Return the count of valid bytes in the block returned by peek
+	 *
+	 * @return Length of the oldest block
+	 */
+	public int peekLength() {
+
+		return lengths[(int) (head.get() & mask)];
+	}
+
+	/**
+	 * Hand the block returned by peek back to the producer
+	 */
+	public void release() {
+
+		head.lazySet(head.get() + 1);
+	}
+
+	/**
+	 * Return the count of blocks currently queued
+	 *
+	 * @return Queued block count
+	 */
+	public int size() {
+
+		return (int) (tail.get() - head.get());
+	}
+
+	/**
+	 * Return the maximum count of blocks the ring can hold
+	 *
+	 * @return Ring capacity in blocks
+	 */
+	public int capacity() {
+
+		return mask + 1;
+	}
+
+	/**
+	 * Return the number of blocks dropped because the ring was full
+	 *
+	 * @return Overrun count
+	 */
+	public long getOverrunCount() {
+
+		return overruns.get();
+	}
+
+	// Instance data
+	private final int mask;
+	private final byte [][] slots;
+	private final int [] lengths;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong overruns = new AtomicLong();
+}
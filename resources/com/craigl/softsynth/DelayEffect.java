@@ -4,11 +4,18 @@ package com.craigl.softsynth;
  * Delay Effect
  * <p>
  * Variable delay between 1 and 2000 milliseconds
+ * <p>
+ * The delay line is an AudioBuffer, on the heap by default or off-heap<br>
+ * when the effect is created with an AudioBufferArena.
+ * <p>
+ * A bypassed effect passes buffers through untouched. Once the input<br>
+ * is silent and the whole delay line holds zeros, buffers pass through<br>
+ * without being processed.
  * 
  * @author craiglindley
  */
 
-public class DelayEffect implements SampleProviderIntfc {
+public class DelayEffect implements SampleProviderIntfc, SilenceIntfc {
 
 	public static final double DELAY_DRYWETMIXPERCENT_MIN     =   0.0;
 	public static final double DELAY_DRYWETMIXPERCENT_MAX     = 100.0;	
@@ -33,6 +40,22 @@ public class DelayEffect implements SampleProviderIntfc {
 	 */	
 	public DelayEffect() {
 		
+		this(null);
+	}
+
+	/**
+	 * Delay Effect Class Constructor
+	 * <p>
+	 * Creates a DelayEffect instance whose delay line is allocated from an arena
+	 * <p>
+	 * DelayEffect is initially bypassed
+	 * 
+	 * @param arena Arena owning the delay line; null to use the heap
+	 */	
+	public DelayEffect(AudioBufferArena arena) {
+		
+		delayBuffer = (arena != null) ? arena.allocate(DELAY_BUFFER_SIZE) : AudioBuffer.allocateHeap(DELAY_BUFFER_SIZE);
+
 		readIndex = 0;
 		writeIndex = 0;
 		
@@ -54,6 +77,16 @@ public class DelayEffect implements SampleProviderIntfc {
 		this.bypassed = bypassed;
 	}
 
+	/**
+	 * Returns the state of the DelayEffect
+	 *
+	 * @return true if the effect is bypassed
+	 */
+	public boolean isBypassed() {
+
+		return bypassed;
+	}
+
 	/**
 	 * Sets the dry / wet mix for the DelayEffect
 	 * 
@@ -67,6 +100,16 @@ public class DelayEffect implements SampleProviderIntfc {
 		this.dryWetMixPercent = dryWetMixPercent;
 	}
 
+	/**
+	 * Returns the dry / wet mix for the DelayEffect
+	 *
+	 * @return The percentage of wet signal in the mix
+	 */
+	public double getDryWetMixPercent() {
+
+		return dryWetMixPercent;
+	}
+
 	/**
 	 * Sets the delay time for the DelayEffect
 	 * <p>
@@ -79,6 +122,7 @@ public class DelayEffect implements SampleProviderIntfc {
 		delayInMs = (delayInMs < DELAY_DELAY_MIN) ? DELAY_DELAY_MIN : delayInMs;
 		delayInMs = (delayInMs > DELAY_DELAY_MAX) ? DELAY_DELAY_MAX : delayInMs;
 
+		this.delayInMs = delayInMs;
 		int delayInSamples = (int) (0.001 * delayInMs * SamplePlayer.SAMPLE_RATE);
 		
 		readIndex = writeIndex - delayInSamples;
@@ -87,6 +131,16 @@ public class DelayEffect implements SampleProviderIntfc {
 		}
 	}
 
+	/**
+	 * Returns the delay time for the DelayEffect
+	 *
+	 * @return Delay time in milliseconds
+	 */
+	public int getDelayInMs() {
+
+		return delayInMs;
+	}
+
 	/**
 	 * Sets the feedback level which is the amount of output feedback to the input.
 	 * 
@@ -100,6 +154,16 @@ public class DelayEffect implements SampleProviderIntfc {
 		this.feedbackPercent = feedbackPercent;
 	}
 
+	/**
+	 * Returns the feedback level
+	 *
+	 * @return The percentage of the output feedback to the input
+	 */
+	public double getFeedbackPercent() {
+
+		return feedbackPercent;
+	}
+
 	/**
 	 * Setup the provider of samples
 	 * 
@@ -109,48 +173,52 @@ public class DelayEffect implements SampleProviderIntfc {
 		this.provider = provider;
 	}
 
+	/**
+	 * Set the track modulating the dry / wet mix
+	 * 
+	 * @param track Percentage added to the mix from a ModulationMatrix or null for none
+	 */
+	public void setMixModulation(ModulationTrack track) {
+		
+		mixModulation = track;
+	}
+
+	/**
+	 * Set the track modulating the feedback
+	 * 
+	 * @param track Percentage added to the feedback from a ModulationMatrix or null for none
+	 */
+	public void setFeedbackModulation(ModulationTrack track) {
+		
+		feedbackModulation = track;
+	}
+
 	/**
 	 * Process a single sample through the effect.
 	 * 
-	 * @param inputSample The input sample to process
+	 * @param inputSample The normalized input sample to process
 	 * 
 	 * @return Processed sample including wet and dry signal
 	 */
-	private short processSample(short inputSample) {
-		
-		if (bypassed) {
-			return inputSample;
-		}
+	private double processSample(double inputSample) {
 		
-		short delayedSample = delayBuffer[readIndex++];
+		double delayedSample = delayBuffer.get(readIndex++) * (1.0 / PcmCodec.FULL_SCALE_16);
 
-		double dryLevel = ((100.0 - dryWetMixPercent) * inputSample) / 100.0;
-		double wetLevel = (dryWetMixPercent * delayedSample) / 100.0;
+		double dryLevel = ((100.0 - mixPercent) * inputSample) / 100.0;
+		double wetLevel = (mixPercent * delayedSample) / 100.0;
 		
-		short outputSample = (short) (dryLevel + wetLevel);
+		double outputSample = dryLevel + wetLevel;
 
-/*
-  		if (outputSample > Short.MAX_VALUE) {
- 
-			outputSample = Short.MAX_VALUE;
-			System.out.println("outputSample max");
-		}	else if (outputSample < Short.MIN_VALUE) {
-			outputSample = Short.MIN_VALUE;
-			System.out.println("outputSample min");
-		}
-*/		
-		inputSample += (delayedSample * feedbackPercent) / 100.0;
-		
-/*
- 		if (inputSample > Short.MAX_VALUE) {
-			inputSample = Short.MAX_VALUE;
-			System.out.println("inputSample max");
-		}	else if (inputSample < Short.MIN_VALUE) {
-			inputSample = Short.MIN_VALUE;
-			System.out.println("inputSample min");
+		// Feedback saturates in the delay line rather than wrapping around
+		short fedSample = PcmCodec.quantize(inputSample + (delayedSample * feedbackLevelPercent) / 100.0);
+		delayBuffer.put(writeIndex++, fedSample);
+		
+		// Count the zeros written since the last sound
+		if (fedSample != 0) {
+			zerosWritten = 0;
+		}	else if (zerosWritten < DELAY_BUFFER_SIZE)	{
+			zerosWritten++;
 		}
-*/
-		delayBuffer[writeIndex++] = inputSample;
 				
 		// Update indices
 		readIndex  %= DELAY_BUFFER_SIZE;
@@ -171,33 +239,87 @@ public class DelayEffect implements SampleProviderIntfc {
 		// Grab samples to manipulate from this modules sample provider
 		provider.getSamples(buffer);
 		
-		int index = 0;
+		if (bypassed) {
+			silent = Silence.isSilent(provider);
+			return SamplePlayer.BUFFER_SIZE;
+		}
+		
+		// Silence in and nothing left in the delay line; silence out
+		silent = Silence.isSilent(provider) && (zerosWritten >= DELAY_BUFFER_SIZE);
+		if (silent) {
+			return SamplePlayer.BUFFER_SIZE;
+		}
+		
+		ModulationTrack mm = mixModulation;
+		ModulationTrack fm = feedbackModulation;
+		boolean mixModulated = (mm != null) && mm.isActive();
+		boolean feedbackModulated = (fm != null) && fm.isActive();
+		double mixMod = 0.0;
+		double mixModStep = 0.0;
+		double feedbackMod = 0.0;
+		double feedbackModStep = 0.0;
+		
+		mixPercent = dryWetMixPercent;
+		feedbackLevelPercent = feedbackPercent;
+		
 		for (int i = 0; i < SamplePlayer.SAMPLES_PER_BUFFER; i++) {
-			// Get a sample to process
-			byte b2 = buffer[index];
-			byte b1 = buffer[index+1];
-
-			// Convert bytes into short sample
-			short s = (short)((((int) b2) << 8) + b1);
-			
-			// Process the sample
-			s = processSample(s);
+			// Interpolate modulation between control points
+			if (mixModulated) {
+				if ((i % mm.interval) == 0) {
+					mixMod = mm.values[i / mm.interval];
+					mixModStep = (mm.values[(i / mm.interval) + 1] - mixMod) / mm.interval;
+				}
+				mixPercent = dryWetMixPercent + mixMod;
+				mixPercent = (mixPercent < DELAY_DRYWETMIXPERCENT_MIN) ? DELAY_DRYWETMIXPERCENT_MIN : mixPercent;
+				mixPercent = (mixPercent > DELAY_DRYWETMIXPERCENT_MAX) ? DELAY_DRYWETMIXPERCENT_MAX : mixPercent;
+				mixMod += mixModStep;
+			}
+			if (feedbackModulated) {
+				if ((i % fm.interval) == 0) {
+					feedbackMod = fm.values[i / fm.interval];
+					feedbackModStep = (fm.values[(i / fm.interval) + 1] - feedbackMod) / fm.interval;
+				}
+				feedbackLevelPercent = feedbackPercent + feedbackMod;
+				feedbackLevelPercent = (feedbackLevelPercent < DELAY_FEEDBACKPERCENT_MIN) ? DELAY_FEEDBACKPERCENT_MIN : feedbackLevelPercent;
+				feedbackLevelPercent = (feedbackLevelPercent > DELAY_FEEDBACKPERCENT_MAX) ? DELAY_FEEDBACKPERCENT_MAX : feedbackLevelPercent;
+				feedbackMod += feedbackModStep;
+			}
 			
-			// Store the processed sample
-			buffer[index++] = (byte)(s >> 8);
-			buffer[index++] = (byte)(s & 0xFF);			
+			// Process the sample and store it
+			PcmCodec.put(buffer, i, processSample(PcmCodec.get(buffer, i)));
 		}
 		return SamplePlayer.BUFFER_SIZE;
 	}
 
+	/**
+	 * Return whether the last buffer was silent
+	 * 
+	 * @return true if the last buffer was silent
+	 */
+	public boolean isSilent() {
+		
+		return silent;
+	}
+
 	// Instance data
     private boolean bypassed;
-    private double dryWetMixPercent;   
+    private double dryWetMixPercent;
+	private int delayInMs;   
 	private double feedbackPercent;
+	
+	// Consecutive zero samples written to the delay line
+	private int zerosWritten;
+	private boolean silent;
+	
+	// Mix and feedback in effect for the current sample, including modulation
+	private double mixPercent;
+	private double feedbackLevelPercent;
 	private int readIndex;
 	private int writeIndex;
 	
-	private short [] delayBuffer = new short [DELAY_BUFFER_SIZE];
+	private final AudioBuffer delayBuffer;
 	
 	private SampleProviderIntfc provider;
+	private ModulationTrack mixModulation;
+	private ModulationTrack feedbackModulation;
 }
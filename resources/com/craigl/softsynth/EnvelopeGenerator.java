@@ -24,6 +24,10 @@ public class EnvelopeGenerator {
 	public static final double SUSTAIN_MIN = 0.0;
 	public static final double SUSTAIN_MAX = 1.0;
 	
+	// Kinds of scheduled event
+	private static final int EVENT_NOTE_ON = 0;
+	private static final int EVENT_NOTE_OFF = 1;
+
 	// States of the Envelope Generator
 	private enum SM_STATE {
 		STATE_IDLE, STATE_ATTACK, STATE_DECAY, STATE_SUSTAIN, STATE_RELEASE
@@ -64,6 +68,36 @@ public class EnvelopeGenerator {
 		noteOff = true;
 	}
 
+	/**
+	 * Schedule a noteOn event a number of samples from now.
+	 * <p>
+	 * Used to place events accurately within the next buffer. Any number<br>
+	 * of events may be scheduled; they take effect in time order. A pending<br>
+	 * noteOff scheduled later than this noteOn is cancelled, as it belongs<br>
+	 * to the note being replaced.
+	 * 
+	 * @param delaySamples Count of getValue calls before the event; 0 is immediate
+	 */
+	public void noteOn(int delaySamples) {
+		
+		events.cancelAfter(EVENT_NOTE_OFF, delaySamples);
+		if ((delaySamples <= 0) || (! events.schedule(delaySamples, EVENT_NOTE_ON, 0.0))) {
+			noteOn = true;
+		}
+	}
+
+	/**
+	 * Schedule a noteOff event a number of samples from now.
+	 * 
+	 * @param delaySamples Count of getValue calls before the event; 0 is immediate
+	 */
+	public void noteOff(int delaySamples) {
+		
+		if ((delaySamples <= 0) || (! events.schedule(delaySamples, EVENT_NOTE_OFF, 0.0))) {
+			noteOff = true;
+		}
+	}
+
 	/**
 	 * Sets the attack time of the generated envelope. This is the time<br>
 	 * for the envelope value to go from 0.0 to 1.0.
@@ -78,11 +112,22 @@ public class EnvelopeGenerator {
 		ms = (ms < MS_MIN) ? MS_MIN : ms;
 		ms = (ms > MS_MAX) ? MS_MAX : ms;
 		
+		attackMS = ms;
 		double temp = ((0.001 * ms) / sampleTime);
 		attackCount = (int) temp;
 		attackSlope = (1.0 / temp);
 	}
 
+	/**
+	 * Returns the attack time of the generated envelope.
+	 *
+	 * @return The attack time in milliseconds
+	 */
+	public int getAttackTimeInMS() {
+
+		return attackMS;
+	}
+
 	/**
 	 * Sets the decay time of the generated envelope. This is the time<br>
 	 * for the envelope value to go from 1.0 to the sustain level.
@@ -103,6 +148,16 @@ public class EnvelopeGenerator {
 		decaySlope = ((1.0 - sustainLevel) / temp);
 	}
 
+	/**
+	 * Returns the decay time of the generated envelope.
+	 *
+	 * @return The decay time in milliseconds
+	 */
+	public int getDecayTimeInMS() {
+
+		return decayMS;
+	}
+
 	/**
 	 * Sets the sustain level of the generated envelope.
 	 * <p>
@@ -125,6 +180,16 @@ public class EnvelopeGenerator {
 		setReleaseTimeInMS(releaseMS);
 	}
 
+	/**
+	 * Returns the sustain level of the generated envelope.
+	 *
+	 * @return The sustain level produced
+	 */
+	public double getSustainLevel() {
+
+		return sustainLevel;
+	}
+
 	/**
 	 * Sets the release time of the generated envelope. This is the time<br>
 	 * for the envelope value to go from the sustain level to 0.0.
@@ -145,6 +210,179 @@ public class EnvelopeGenerator {
 		releaseSlope = (sustainLevel / temp);
 	}
 
+	/**
+	 * Returns the release time of the generated envelope.
+	 *
+	 * @return The release time in milliseconds
+	 */
+	public int getReleaseTimeInMS() {
+
+		return releaseMS;
+	}
+
+	/**
+	 * Return whether the envelope is idle with no note on pending
+	 * 
+	 * @return true while getValue would keep returning 0.0
+	 */
+	public boolean isIdle() {
+		
+		return (state == SM_STATE.STATE_IDLE) && (! noteOn) && (! events.contains(EVENT_NOTE_ON));
+	}
+
+	/**
+	 * Return the count of samples the envelope has run for
+	 * 
+	 * @return Sample time of the next value
+	 */
+	long getTime() {
+		
+		return events.getTime();
+	}
+
+	/**
+	 * Return the sample time at which the last noteOn event was taken up
+	 * 
+	 * @return Sample time of the first attack value or -1 if none was
+	 */
+	long getNoteOnTime() {
+		
+		return noteOnTime;
+	}
+
+	/**
+	 * Return the envelope value and advance the state machine by a span of samples
+	 * <p>
+	 * For modulation at control rate: one call per control interval keeps<br>
+	 * the same timing as calling getValue() every sample. Scheduled note<br>
+	 * events falling due within the span take effect at their sample.
+	 * 
+	 * @param samples Count of sample times the call stands for
+	 * 
+	 * @return The envelope value at the start of the span between 0.0 and 1.0
+	 */ 
+	public double getValue(int samples) {
+		
+		double value = getValue();
+		int span = samples - 1;
+		
+		// Fast forward the state machine over the rest of the span, stopping
+		// at each scheduled event so it takes effect at its own sample
+		int done = 0;
+		while (done < span) {
+			raiseEvents(done + 1);
+			long due = events.getDueIn() - done;
+			int chunk = span - done;
+			chunk = (due < chunk) ? (int) Math.max(due, 1) : chunk;
+			fastForward(chunk, done);
+			done += chunk;
+		}
+		events.advance(span);
+		return value;
+	}
+
+	/**
+	 * Run the state machine over samples in which no scheduled event falls due
+	 * 
+	 * @param samples Count of samples to run over
+	 * @param start Samples after the next sample time the run begins at
+	 */
+	private void fastForward(int samples, int start) {
+		
+		int length = samples;
+		while (samples > 0) {
+			int remaining;
+			
+			if ((state != SM_STATE.STATE_IDLE) && noteOn) {
+				// Another noteOn event restarts the envelope
+				state = SM_STATE.STATE_IDLE;
+				samples--;
+				continue;
+			}
+			switch (state) {
+				case STATE_IDLE:
+					noteOff = false;
+					if (! noteOn) {
+						samples = 0;
+						break;
+					}
+					noteOn = false;
+					noteOnTime = events.getTime() + start + length - samples;
+					count = 0;
+					state = SM_STATE.STATE_ATTACK;
+					samples--;
+					break;
+					
+				case STATE_ATTACK:
+					remaining = attackCount - count;
+					if (samples <= remaining) {
+						count += samples;
+						samples = 0;
+					}	else	{
+						samples -= remaining + 1;
+						count = 0;
+						state = SM_STATE.STATE_DECAY;
+					}
+					break;
+					
+				case STATE_DECAY:
+					remaining = decayCount - count;
+					if (samples <= remaining) {
+						count += samples;
+						samples = 0;
+					}	else	{
+						samples -= remaining + 1;
+						state = SM_STATE.STATE_SUSTAIN;
+					}
+					break;
+					
+				case STATE_SUSTAIN:
+					if (! noteOff) {
+						samples = 0;
+						break;
+					}
+					noteOff = false;
+					count = 0;
+					state = SM_STATE.STATE_RELEASE;
+					samples--;
+					break;
+					
+				case STATE_RELEASE:
+					remaining = releaseCount - count;
+					if (samples <= remaining) {
+						count += samples;
+						samples = 0;
+					}	else	{
+						samples -= remaining + 1;
+						state = SM_STATE.STATE_IDLE;
+					}
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Raise the scheduled events that have fallen due
+	 * <p>
+	 * A noteOff due with the noteOn it follows waits a sample, so the<br>
+	 * note is not lost.
+	 * 
+	 * @param samples Events due within this many samples from now are raised
+	 */
+	private void raiseEvents(int samples) {
+		
+		while (events.hasDue(samples)) {
+			if (events.peekType() == EVENT_NOTE_ON) {
+				noteOn = true;
+			}	else if (noteOn) {
+				break;
+			}	else	{
+				noteOff = true;
+			}
+			events.pop();
+		}
+	}
+
 	/**
 	 * Run the envelope generator state machine to return the next value
 	 * <p>
@@ -155,6 +393,10 @@ public class EnvelopeGenerator {
 	public double getValue() {
 		
 		double value = 0.0;
+
+		// Raise scheduled events when they fall due
+		raiseEvents(1);
+		events.advance(1);
 		
 		switch (state) {
 			// Process the idle state
@@ -162,6 +404,7 @@ public class EnvelopeGenerator {
 				noteOff = false;
 				if (noteOn) {
 					noteOn = false;
+					noteOnTime = events.getTime() - 1;
 					count = 0;
 					state = SM_STATE.STATE_ATTACK;
 				}
@@ -249,10 +492,13 @@ public class EnvelopeGenerator {
 	// Instance data
 	private boolean noteOn;
 	private boolean noteOff;
+	private final EventSchedule events = new EventSchedule();
+	private long noteOnTime = -1;
 	private int count;
 	private SM_STATE state;
 	private double sustainLevel;
 	private double sampleTime;
+	private int attackMS;
 	private int attackCount;
 	private double attackSlope;
 	private int decayMS;
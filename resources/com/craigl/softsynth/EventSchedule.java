@@ -0,0 +1,179 @@
+package com.craigl.softsynth;
+
+/**
+ * Event Schedule
+ * <p>
+ * Holds the events a module has been asked to apply a number of samples<br>
+ * from now, in time order, so that several events may fall within one<br>
+ * buffer. The module drains the events that have fallen due before each<br>
+ * sample it renders and then advances the schedule by one sample.
+ * <p>
+ * An event scheduled with a delay of d falls due for the sample after d<br>
+ * samples have been rendered: a delay of 0 applies to the first sample.<br>
+ * Events due at the same sample keep the order they were scheduled in.
+ * <p>
+ * The schedule is a fixed number of slots in primitive arrays and does<br>
+ * not allocate. It is meant for the audio thread only.
+ */
+
+final class EventSchedule {
+
+	static final int EVENTS_MAX = 64;
+
+	/**
+	 * Schedule an event
+	 *
+	 * @param delaySamples Count of samples rendered before the event; 0 or less is the next sample
+	 * @param type Kind of event, defined by the module
+	 * @param value Value carried by the event
+	 *
+	 * @return false if the schedule is full and the event was not scheduled
+	 */
+	boolean schedule(int delaySamples, int type, double value) {
+
+		if (count == EVENTS_MAX) {
+			return false;
+		}
+		long due = now + Math.max(delaySamples, 0);
+
+		// Insert behind every event due at or before the same time
+		int i = count;
+		while ((i > 0) && (dueTimes[i - 1] > due)) {
+			dueTimes[i] = dueTimes[i - 1];
+			types[i] = types[i - 1];
+			values[i] = values[i - 1];
+			i--;
+		}
+		dueTimes[i] = due;
+		types[i] = type;
+		values[i] = value;
+		count++;
+		return true;
+	}
+
+	/**
+	 * Remove events of a kind due later than a delay
+	 *
+	 * @param type Kind of event to remove
+	 * @param delaySamples Events due after this many samples are removed
+	 */
+	void cancelAfter(int type, int delaySamples) {
+
+		long limit = now + Math.max(delaySamples, 0);
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			if ((types[i] != type) || (dueTimes[i] <= limit)) {
+				dueTimes[kept] = dueTimes[i];
+				types[kept] = types[i];
+				values[kept] = values[i];
+				kept++;
+			}
+		}
+		count = kept;
+	}
+
+	/**
+	 * Return whether the earliest event falls due within a span of samples
+	 *
+	 * @param samples Span starting at the next sample; 1 for the next sample only
+	 *
+	 * @return true if an event is due
+	 */
+	boolean hasDue(int samples) {
+
+		return (count > 0) && (dueTimes[0] < now + samples);
+	}
+
+	/**
+	 * Return the count of samples until the earliest event falls due
+	 *
+	 * @return 0 if it is due at the next sample, Long.MAX_VALUE if none is scheduled
+	 */
+	long getDueIn() {
+
+		return (count == 0) ? Long.MAX_VALUE : dueTimes[0] - now;
+	}
+
+	/**
+	 * Return the kind of the earliest event
+	 *
+	 * @return Event type
+	 */
+	int peekType() {
+
+		return types[0];
+	}
+
+	/**
+	 * Return the value of the earliest event
+	 *
+	 * @return Event value
+	 */
+	double peekValue() {
+
+		return values[0];
+	}
+
+	/**
+	 * Remove the earliest event
+	 */
+	void pop() {
+
+		count--;
+		System.arraycopy(dueTimes, 1, dueTimes, 0, count);
+		System.arraycopy(types, 1, types, 0, count);
+		System.arraycopy(values, 1, values, 0, count);
+	}
+
+	/**
+	 * Return whether an event of a kind is scheduled
+	 *
+	 * @param type Kind of event
+	 *
+	 * @return true if one is waiting
+	 */
+	boolean contains(int type) {
+
+		for (int i = 0; i < count; i++) {
+			if (types[i] == type) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove every event
+	 */
+	void clear() {
+
+		count = 0;
+	}
+
+	/**
+	 * Return the count of samples the schedule has been advanced by
+	 *
+	 * @return Sample time of the next sample
+	 */
+	long getTime() {
+
+		return now;
+	}
+
+	/**
+	 * Advance the schedule past rendered samples
+	 *
+	 * @param samples Count of samples rendered
+	 */
+	void advance(int samples) {
+
+		now += samples;
+	}
+
+	// Instance data
+	private final long [] dueTimes = new long[EVENTS_MAX];
+	private final int [] types = new int[EVENTS_MAX];
+	private final double [] values = new double[EVENTS_MAX];
+	private int count;
+	private long now;
+}
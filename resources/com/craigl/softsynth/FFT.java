@@ -0,0 +1,216 @@
+package com.craigl.softsynth;
+
+/**
+ * Real valued Fast Fourier Transform
+ * <p>
+ * Radix-2 transform of a real sequence whose length is a power of two.<br>
+ * The N real samples are packed into N/2 complex values, transformed<br>
+ * with a complex FFT of half the size and then split into the spectrum.
+ * <p>
+ * All twiddle and bit reversal tables are computed in the constructor<br>
+ * so the transforms themselves never allocate and can be run repeatedly<br>
+ * on the same work array.
+ * <p>
+ * The spectrum is stored in place using the packed layout:<br>
+ * data[0] = Re X[0], data[1] = Re X[N/2]<br>
+ * data[2k] = Re X[k], data[2k+1] = Im X[k] for 0 < k < N/2
+ */
+
+public class FFT {
+
+	public static final int SIZE_MIN = 16;
+	public static final int SIZE_MAX = 65536;
+
+	/**
+	 * FFT Class Constructor
+	 *
+	 * @param size Number of real samples per transform. Must be a power of two<br>
+	 * between SIZE_MIN and SIZE_MAX.
+	 */
+	public FFT(int size) {
+
+		if ((size < SIZE_MIN) || (size > SIZE_MAX) || (Integer.bitCount(size) != 1)) {
+			throw new IllegalArgumentException("FFT size must be a power of two between " + SIZE_MIN + " and " + SIZE_MAX);
+		}
+		this.size = size;
+		half = size / 2;
+
+		// Twiddles for the half size complex transform
+		cosTable = new double[half / 2];
+		sinTable = new double[half / 2];
+		for (int k = 0; k < half / 2; k++) {
+			cosTable[k] = Math.cos(2.0 * Math.PI * k / half);
+			sinTable[k] = Math.sin(2.0 * Math.PI * k / half);
+		}
+
+		// Twiddles for splitting the packed result into the real spectrum
+		splitCos = new double[half / 2 + 1];
+		splitSin = new double[half / 2 + 1];
+		for (int k = 0; k <= half / 2; k++) {
+			splitCos[k] = Math.cos(2.0 * Math.PI * k / size);
+			splitSin[k] = Math.sin(2.0 * Math.PI * k / size);
+		}
+
+		// Bit reversal permutation of the complex indices
+		bitReverse = new int[half];
+		int bits = Integer.numberOfTrailingZeros(half);
+		for (int i = 0; i < half; i++) {
+			bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+	}
+
+	/**
+	 * Return the number of real samples per transform
+	 *
+	 * @return Transform size
+	 */
+	public int getSize() {
+
+		return size;
+	}
+
+	/**
+	 * Forward transform of size real samples, in place.
+	 * <p>
+	 * On return data holds the spectrum in the packed layout described above.
+	 *
+	 * @param data Array of at least size samples
+	 */
+	public void realForward(double [] data) {
+
+		complexTransform(data, -1.0);
+
+		// DC and Nyquist are both purely real
+		double re0 = data[0];
+		double im0 = data[1];
+		data[0] = re0 + im0;
+		data[1] = re0 - im0;
+
+		for (int k = 1; k <= half / 2; k++) {
+			int i = 2 * k;
+			int j = 2 * (half - k);
+
+			double a = data[i],   b = data[i+1];
+			double c = data[j],   d = data[j+1];
+
+			// Even and odd parts of the packed sequence
+			double feRe = 0.5 * (a + c);
+			double feIm = 0.5 * (b - d);
+			double foRe = 0.5 * (b + d);
+			double foIm = -0.5 * (a - c);
+
+			// Rotate odd part by exp(-j 2 pi k / N)
+			double wr = splitCos[k];
+			double wi = -splitSin[k];
+			double tRe = wr * foRe - wi * foIm;
+			double tIm = wr * foIm + wi * foRe;
+
+			data[i]   = feRe + tRe;
+			data[i+1] = feIm + tIm;
+			data[j]   = feRe - tRe;
+			data[j+1] = -(feIm - tIm);
+		}
+	}
+
+	/**
+	 * Inverse transform of a packed spectrum back into size real samples, in place.
+	 * <p>
+	 * The result is scaled by 1/N so that realInverse(realForward(x)) == x.
+	 *
+	 * @param data Array of at least size values in the packed layout
+	 */
+	public void realInverse(double [] data) {
+
+		double x0 = data[0];
+		double xn = data[1];
+		data[0] = 0.5 * (x0 + xn);
+		data[1] = 0.5 * (x0 - xn);
+
+		for (int k = 1; k <= half / 2; k++) {
+			int i = 2 * k;
+			int j = 2 * (half - k);
+
+			double a = data[i],   b = data[i+1];
+			double c = data[j],   d = data[j+1];
+
+			// Even part and rotated odd part
+			double feRe = 0.5 * (a + c);
+			double feIm = 0.5 * (b - d);
+			double tRe = 0.5 * (a - c);
+			double tIm = 0.5 * (b + d);
+
+			// Undo the rotation by multiplying with exp(+j 2 pi k / N)
+			double wr = splitCos[k];
+			double wi = splitSin[k];
+			double foRe = wr * tRe - wi * tIm;
+			double foIm = wr * tIm + wi * tRe;
+
+			// Z[k] = Fe + j Fo and Z[M-k] = conj(Fe) + j conj(Fo)
+			data[i]   = feRe - foIm;
+			data[i+1] = feIm + foRe;
+			data[j]   = feRe + foIm;
+			data[j+1] = -feIm + foRe;
+		}
+
+		complexTransform(data, 1.0);
+
+		double scale = 1.0 / half;
+		for (int n = 0; n < size; n++) {
+			data[n] *= scale;
+		}
+	}
+
+	/**
+	 * Unscaled in place complex FFT of half complex values stored interleaved.
+	 *
+	 * @param data Interleaved real / imaginary values
+	 * @param sign -1.0 for the forward transform; 1.0 for the inverse
+	 */
+	private void complexTransform(double [] data, double sign) {
+
+		// Reorder into bit reversed sequence
+		for (int i = 0; i < half; i++) {
+			int j = bitReverse[i];
+			if (j > i) {
+				double tr = data[2*i];
+				double ti = data[2*i+1];
+				data[2*i]   = data[2*j];
+				data[2*i+1] = data[2*j+1];
+				data[2*j]   = tr;
+				data[2*j+1] = ti;
+			}
+		}
+
+		// Butterflies
+		for (int len = 2; len <= half; len <<= 1) {
+			int span = len / 2;
+			int step = half / len;
+			for (int start = 0; start < half; start += len) {
+				for (int k = 0; k < span; k++) {
+					double wr = cosTable[k * step];
+					double wi = sign * sinTable[k * step];
+
+					int p = 2 * (start + k);
+					int q = 2 * (start + k + span);
+
+					double vr = data[q] * wr - data[q+1] * wi;
+					double vi = data[q] * wi + data[q+1] * wr;
+
+					data[q]   = data[p] - vr;
+					data[q+1] = data[p+1] - vi;
+					data[p]   += vr;
+					data[p+1] += vi;
+				}
+			}
+		}
+	}
+
+	// Instance data
+	private final int size;
+	private final int half;
+	private final double [] cosTable;
+	private final double [] sinTable;
+	private final double [] splitCos;
+	private final double [] splitSin;
+	private final int [] bitReverse;
+}
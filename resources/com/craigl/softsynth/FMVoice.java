@@ -0,0 +1,479 @@
+package com.craigl.softsynth;
+
+import java.util.Arrays;
+
+/**
+ * FM Voice
+ * <p>
+ * A 4 or 6 operator frequency modulation voice in the style of the<br>
+ * DX family. Each operator is a sine oscillator with its own frequency<br>
+ * ratio, detune, output level, self feedback and envelope. The algorithm<br>
+ * selects which operators modulate which and which are heard.
+ * <p>
+ * Operators run on 32 bit fixed point phase accumulators and read the<br>
+ * shared SineTable, so modulation is true audio rate phase modulation<br>
+ * with no Math.sin or Math.pow per sample. Operator state is held in<br>
+ * parallel arrays and each control interval is rendered operator by<br>
+ * operator: modulators first, each in a tight loop writing its output<br>
+ * to a block that the operators it modulates read. Envelopes are<br>
+ * evaluated once per control interval and interpolated.
+ * <p>
+ * Once every operator's envelope is idle the voice produces silence<br>
+ * without rendering.
+ * <p>
+ * Operators are numbered from 0 here; operator 0 is the DX's OP1.
+ */
+
+public class FMVoice implements SampleProviderIntfc, SilenceIntfc {
+
+	public static final int OPERATORS_4 = 4;
+	public static final int OPERATORS_6 = 6;
+
+	public static final double RATIO_MIN     =  0.125;
+	public static final double RATIO_MAX     = 32.0;
+	public static final double RATIO_DEFAULT =  1.0;
+
+	public static final double DETUNE_MIN_HZ = -10.0;
+	public static final double DETUNE_MAX_HZ =  10.0;
+
+	public static final double LEVEL_MIN = 0.0;
+	public static final double LEVEL_MAX = 1.0;
+
+	public static final double FEEDBACK_MIN = 0.0;
+	public static final double FEEDBACK_MAX = 1.0;
+
+	// Samples between envelope evaluations
+	public static final int FM_CONTROL_INTERVAL = 20;
+
+	// Modulation by an operator at full level shifts the phase by up to this many cycles
+	private static final double MODULATION_CYCLES_MAX = 2.0;
+	private static final double MODULATION_SCALE = MODULATION_CYCLES_MAX * SineTable.PHASE_SCALE;
+
+	// Self feedback at full amount shifts the phase by up to this many cycles
+	private static final double FEEDBACK_CYCLES_MAX = 0.5;
+	private static final double FEEDBACK_SCALE = FEEDBACK_CYCLES_MAX * SineTable.PHASE_SCALE;
+
+	private static final int SAMPLES = SamplePlayer.SAMPLES_PER_BUFFER;
+
+	private static final int RELEASE_MS_DEFAULT = 100;
+
+	/*
+	 * Algorithm tables. For each algorithm, entry n of MODULATORS is a bit
+	 * mask of the operators modulating operator n, and CARRIERS is a mask
+	 * of the operators mixed to the output. Modulators always have higher
+	 * numbers than the operators they modulate.
+	 */
+
+	// After the 4 operator TX81Z algorithms 1 - 8
+	private static final int [][] MODULATORS_4 = {
+		{0x2, 0x4, 0x8, 0},	// 4>3>2>1
+		{0x2, 0xC, 0, 0},	// 3+4>2>1
+		{0xA, 0x4, 0, 0},	// 3>2>1, 4>1
+		{0x6, 0, 0x8, 0},	// 4>3>1, 2>1
+		{0x2, 0, 0x8, 0},	// 2>1, 4>3
+		{0x8, 0x8, 0x8, 0},	// 4>1, 4>2, 4>3
+		{0, 0, 0x8, 0},		// 4>3, 1, 2
+		{0, 0, 0, 0},		// 1, 2, 3, 4
+	};
+	private static final int [] CARRIERS_4 = {0x1, 0x1, 0x1, 0x1, 0x5, 0x7, 0x7, 0xF};
+
+	// After a selection of the 6 operator DX7 algorithms 1, 5, 7, 16, 19, 22, 31 and 32
+	private static final int [][] MODULATORS_6 = {
+		{0x02, 0, 0x08, 0x10, 0x20, 0},			// 2>1, 6>5>4>3
+		{0x02, 0, 0x08, 0, 0x20, 0},			// 2>1, 4>3, 6>5
+		{0x02, 0, 0x18, 0, 0x20, 0},			// 2>1, 4>3, 6>5>3
+		{0x16, 0, 0x08, 0, 0x20, 0},			// 2>1, 4>3>1, 6>5>1
+		{0x02, 0x04, 0, 0x20, 0x20, 0},			// 3>2>1, 6>4, 6>5
+		{0x02, 0, 0x20, 0x20, 0x20, 0},			// 2>1, 6>3, 6>4, 6>5
+		{0, 0, 0, 0, 0x20, 0},				// 6>5, 1, 2, 3, 4
+		{0, 0, 0, 0, 0, 0},				// 1, 2, 3, 4, 5, 6
+	};
+	private static final int [] CARRIERS_6 = {0x05, 0x15, 0x05, 0x01, 0x19, 0x1D, 0x1F, 0x3F};
+
+	/**
+	 * FMVoice Class Constructor
+	 * <p>
+	 * Creates a 6 operator voice
+	 */
+	public FMVoice() {
+
+		this(OPERATORS_6);
+	}
+
+	/**
+	 * FMVoice Class Constructor
+	 * <p>
+	 * All operators default to ratio 1, full level and an organ like<br>
+	 * envelope (instant attack, full sustain), with algorithm 1.
+	 *
+	 * @param operatorCount OPERATORS_4 or OPERATORS_6
+	 */
+	public FMVoice(int operatorCount) {
+
+		if ((operatorCount != OPERATORS_4) && (operatorCount != OPERATORS_6)) {
+			throw new IllegalArgumentException("FMVoice has 4 or 6 operators");
+		}
+		this.operatorCount = operatorCount;
+		modulators = (operatorCount == OPERATORS_4) ? MODULATORS_4 : MODULATORS_6;
+		carriers = (operatorCount == OPERATORS_4) ? CARRIERS_4 : CARRIERS_6;
+
+		phases = new int[operatorCount];
+		increments = new int[operatorCount];
+		ratios = new double[operatorCount];
+		detunes = new double[operatorCount];
+		levels = new double[operatorCount];
+		feedbacks = new double[operatorCount];
+		amplitudes = new double[operatorCount];
+		feedbackHistory = new double[operatorCount * 2];
+		envelopes = new EnvelopeGenerator[operatorCount];
+		outputs = new double[operatorCount * SAMPLES];
+
+		for (int op = 0; op < operatorCount; op++) {
+			EnvelopeGenerator e = new EnvelopeGenerator();
+			e.setAttackTimeInMS(EnvelopeGenerator.MS_MIN);
+			e.setDecayTimeInMS(EnvelopeGenerator.MS_MIN);
+			e.setSustainLevel(EnvelopeGenerator.SUSTAIN_MAX);
+			e.setReleaseTimeInMS(RELEASE_MS_DEFAULT);
+			envelopes[op] = e;
+			ratios[op] = RATIO_DEFAULT;
+			levels[op] = LEVEL_MAX;
+		}
+
+		// Set defaults
+		setAlgorithm(1);
+		setFrequency(440.0);
+	}
+
+	/**
+	 * Return the count of operators
+	 *
+	 * @return 4 or 6
+	 */
+	public int getOperatorCount() {
+
+		return operatorCount;
+	}
+
+	/**
+	 * Return the count of algorithms available to this voice
+	 *
+	 * @return Count of algorithms
+	 */
+	public int getAlgorithmCount() {
+
+		return carriers.length;
+	}
+
+	/**
+	 * Select the algorithm connecting the operators
+	 *
+	 * @param algorithm Algorithm between 1 and getAlgorithmCount()
+	 */
+	public void setAlgorithm(int algorithm) {
+
+		algorithm = (algorithm < 1) ? 1 : algorithm;
+		algorithm = (algorithm > carriers.length) ? carriers.length : algorithm;
+
+		this.algorithm = algorithm - 1;
+	}
+
+	/**
+	 * Set the frequency of an operator as a multiple of the note frequency
+	 *
+	 * @param op Operator number
+	 * @param ratio Ratio between RATIO_MIN and RATIO_MAX
+	 */
+	public void setOperatorRatio(int op, double ratio) {
+
+		ratio = (ratio < RATIO_MIN) ? RATIO_MIN : ratio;
+		ratio = (ratio > RATIO_MAX) ? RATIO_MAX : ratio;
+
+		ratios[op] = ratio;
+		updateIncrements();
+	}
+
+	/**
+	 * Set a fixed frequency offset of an operator
+	 *
+	 * @param op Operator number
+	 * @param hz Offset between DETUNE_MIN_HZ and DETUNE_MAX_HZ
+	 */
+	public void setOperatorDetuneInHz(int op, double hz) {
+
+		hz = (hz < DETUNE_MIN_HZ) ? DETUNE_MIN_HZ : hz;
+		hz = (hz > DETUNE_MAX_HZ) ? DETUNE_MAX_HZ : hz;
+
+		detunes[op] = hz;
+		updateIncrements();
+	}
+
+	/**
+	 * Set the output level of an operator
+	 * <p>
+	 * For a modulator the level sets the modulation index; for a carrier its loudness.
+	 *
+	 * @param op Operator number
+	 * @param level Level between LEVEL_MIN and LEVEL_MAX
+	 */
+	public void setOperatorLevel(int op, double level) {
+
+		level = (level < LEVEL_MIN) ? LEVEL_MIN : level;
+		level = (level > LEVEL_MAX) ? LEVEL_MAX : level;
+
+		levels[op] = level;
+	}
+
+	/**
+	 * Set how much of an operator's output modulates its own phase
+	 *
+	 * @param op Operator number
+	 * @param feedback Feedback between FEEDBACK_MIN and FEEDBACK_MAX
+	 */
+	public void setOperatorFeedback(int op, double feedback) {
+
+		feedback = (feedback < FEEDBACK_MIN) ? FEEDBACK_MIN : feedback;
+		feedback = (feedback > FEEDBACK_MAX) ? FEEDBACK_MAX : feedback;
+
+		feedbacks[op] = feedback;
+	}
+
+	/**
+	 * Return the envelope of an operator, for setting its times and sustain level
+	 *
+	 * @param op Operator number
+	 *
+	 * @return The operator's envelope
+	 */
+	public EnvelopeGenerator getEnvelope(int op) {
+
+		return envelopes[op];
+	}
+
+	/**
+	 * Set frequency of the note in Hz.
+	 *
+	 * @param frequency Frequency in Hz for this voice
+	 */
+	public void setFrequency(double frequency) {
+
+		this.frequency = frequency;
+		updateIncrements();
+	}
+
+	/**
+	 * Set the track modulating the voice's pitch
+	 * <p>
+	 * The pitch is held constant over each control interval of the track.
+	 *
+	 * @param track Pitch modulation in octaves from a ModulationMatrix or null for none
+	 */
+	public void setPitchModulation(ModulationTrack track) {
+
+		pitchModulation = track;
+	}
+
+	/**
+	 * Start the envelopes of all operators
+	 */
+	public void noteOn() {
+
+		for (EnvelopeGenerator e : envelopes) {
+			e.noteOn();
+		}
+	}
+
+	/**
+	 * Release the envelopes of all operators
+	 */
+	public void noteOff() {
+
+		for (EnvelopeGenerator e : envelopes) {
+			e.noteOff();
+		}
+	}
+
+	/**
+	 * Recalculate the phase increments of the operators
+	 */
+	private void updateIncrements() {
+
+		for (int op = 0; op < operatorCount; op++) {
+			double hz = (frequency * ratios[op]) + detunes[op];
+			increments[op] = SineTable.toIncrement(hz / SamplePlayer.SAMPLE_RATE);
+		}
+	}
+
+	/**
+	 * Render one operator over a span of samples into its output block
+	 *
+	 * @param op Operator number
+	 * @param offset Index of the first sample of the span
+	 * @param count Count of samples in the span
+	 * @param scale Multiplier applied to the phase increment
+	 */
+	private void renderOperator(int op, int offset, int count, double scale) {
+
+		double [] out = outputs;
+		double [] mod = modulation;
+		int base = op * SAMPLES;
+
+		int phase = phases[op];
+		int inc = (scale == 1.0) ? increments[op] : SineTable.toIncrement((increments[op] * scale) / SineTable.PHASE_SCALE);
+
+		// Amplitude moves linearly from the previous envelope value to the new one
+		double amp = amplitudes[op];
+		double target = levels[op] * envelopes[op].getValue(count);
+		double ampStep = (target - amp) / count;
+		amplitudes[op] = target;
+
+		// Sum the modulators into one block
+		int mask = modulators[algorithm][op];
+		boolean modulated = mask != 0;
+		if (modulated) {
+			for (int i = offset; i < offset + count; i++) {
+				mod[i] = 0.0;
+			}
+			for (int m = op + 1; m < operatorCount; m++) {
+				if ((mask & (1 << m)) != 0) {
+					int mBase = m * SAMPLES;
+					for (int i = offset; i < offset + count; i++) {
+						mod[i] += out[mBase + i];
+					}
+				}
+			}
+		}
+
+		double feedback = feedbacks[op] * FEEDBACK_SCALE * 0.5;
+		if (feedback != 0.0) {
+			// Self feedback is serial; average the last two outputs to keep it stable
+			double y1 = feedbackHistory[op * 2];
+			double y2 = feedbackHistory[op * 2 + 1];
+			for (int i = offset; i < offset + count; i++) {
+				double pm = feedback * (y1 + y2);
+				if (modulated) {
+					pm += mod[i] * MODULATION_SCALE;
+				}
+				double y = SineTable.sin(phase + (int)(long) pm) * amp;
+				y2 = y1;
+				y1 = y;
+				out[base + i] = y;
+				phase += inc;
+				amp += ampStep;
+			}
+			feedbackHistory[op * 2] = y1;
+			feedbackHistory[op * 2 + 1] = y2;
+		}	else if (modulated)	{
+			for (int i = offset; i < offset + count; i++) {
+				out[base + i] = SineTable.sin(phase + (int)(long)(mod[i] * MODULATION_SCALE)) * amp;
+				phase += inc;
+				amp += ampStep;
+			}
+		}	else	{
+			for (int i = offset; i < offset + count; i++) {
+				out[base + i] = SineTable.sin(phase) * amp;
+				phase += inc;
+				amp += ampStep;
+			}
+		}
+		phases[op] = phase;
+	}
+
+	/**
+	 * Return whether every operator has fallen silent, clearing feedback if so
+	 *
+	 * @return true if no operator can sound until the next noteOn
+	 */
+	private boolean isIdle() {
+
+		for (int op = 0; op < operatorCount; op++) {
+			if ((amplitudes[op] != 0.0) || ! envelopes[op].isIdle()) {
+				return false;
+			}
+		}
+		Arrays.fill(feedbackHistory, 0.0);
+		return true;
+	}
+
+	/**
+	 * Return whether the last buffer was silent
+	 *
+	 * @return true if the last buffer was silent
+	 */
+	public boolean isSilent() {
+
+		return silent;
+	}
+
+	/**
+	 * Get a buffer of samples
+	 *
+	 * @param buffer Array to fill with samples
+	 *
+	 * @return Count of bytes produced.
+	 */
+	public int getSamples(byte [] buffer) {
+
+		silent = isIdle();
+		if (silent) {
+			Arrays.fill(buffer, (byte) 0);
+			return SamplePlayer.BUFFER_SIZE;
+		}
+
+		ModulationTrack pm = pitchModulation;
+		boolean modulated = (pm != null) && pm.isActive();
+
+		for (int i = 0; i < SAMPLES; i += FM_CONTROL_INTERVAL) {
+			double scale = 1.0;
+			if (modulated) {
+				scale = Math.pow(2.0, pm.getValue(i + FM_CONTROL_INTERVAL / 2));
+			}
+			// Modulators have higher numbers, so render from the top down
+			for (int op = operatorCount - 1; op >= 0; op--) {
+				renderOperator(op, i, FM_CONTROL_INTERVAL, scale);
+			}
+		}
+
+		// Mix the carriers
+		int mask = carriers[algorithm];
+		double [] mix = modulation;
+		double gain = 1.0 / Integer.bitCount(mask);
+		for (int i = 0; i < SAMPLES; i++) {
+			mix[i] = 0.0;
+		}
+		for (int op = 0; op < operatorCount; op++) {
+			if ((mask & (1 << op)) != 0) {
+				int base = op * SAMPLES;
+				for (int i = 0; i < SAMPLES; i++) {
+					mix[i] += outputs[base + i];
+				}
+			}
+		}
+
+		PcmCodec.pack(mix, gain, buffer, SAMPLES);
+		return SamplePlayer.BUFFER_SIZE;
+	}
+
+	// Instance data
+	private final int operatorCount;
+	private final int [][] modulators;
+	private final int [] carriers;
+	private int algorithm;
+	private double frequency;
+	private ModulationTrack pitchModulation;
+	private boolean silent;
+
+	// Operator state, one element per operator
+	private final int [] phases;
+	private final int [] increments;
+	private final double [] ratios;
+	private final double [] detunes;
+	private final double [] levels;
+	private final double [] feedbacks;
+	private final double [] amplitudes;
+	private final double [] feedbackHistory;
+	private final EnvelopeGenerator [] envelopes;
+
+	// Output block of each operator, operator after operator
+	private final double [] outputs;
+	private final double [] modulation = new double[SAMPLES];
+}
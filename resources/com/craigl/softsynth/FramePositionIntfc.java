@@ -0,0 +1,19 @@
+package com.craigl.softsynth;
+
+/**
+ * The Frame Position Interface
+ * <p>
+ * Implemented by audio sinks that know which of the frames written to<br>
+ * them is being played, like a SourceDataLine does. Used to tell when<br>
+ * a rendered frame is actually heard.
+ */
+
+public interface FramePositionIntfc {
+
+	/**
+	 * Return the count of frames played since the sink was opened
+	 *
+	 * @return Frame position of the device
+	 */
+	long getLongFramePosition();
+}
@@ -0,0 +1,590 @@
+package com.craigl.softsynth;
+
+/**
+ * Granular Synth
+ * <p>
+ * Builds textures from many short, overlapping grains of a source<br>
+ * sound. Each grain reads a stretch of the source at its own pitch and<br>
+ * shapes it with a window. A scheduler starts grains at a set density,<br>
+ * scattering their start position, pitch and spacing by set amounts.
+ * <p>
+ * The source is either a sound held in memory (an AudioBuffer) or any<br>
+ * upstream provider, which is recorded into a ring as it plays so that<br>
+ * grains can be taken from the last few seconds of live sound.
+ * <p>
+ * Grains live in a pool of fixed size kept in primitive arrays, with the<br>
+ * playing grains packed at the front; a grain that ends is replaced by<br>
+ * the last playing one. Windows are precomputed tables. Nothing is<br>
+ * allocated while rendering, and when the pool is full new grains are<br>
+ * dropped and counted instead of stealing old ones.
+ * <p>
+ * Grains are rendered one at a time across the buffer, so a grain's<br>
+ * state stays in registers while it is mixed. Density times duration is<br>
+ * the count of grains playing at once; lower the gain as it rises.
+ * <p>
+ * granular.setSource(recording);<br>
+ * granular.setDensity(200.0);<br>
+ * granular.setDurationMs(60.0);<br>
+ * granular.start();
+ */
+
+public class GranularSynth implements SampleProviderIntfc, SilenceIntfc, QualityIntfc {
+
+	/**
+	 * Grain window enumeration
+	 */
+	public enum WINDOW {
+		HANN, TRIANGLE, GAUSSIAN, TUKEY
+	}
+
+	public static final int GRAINS_DEFAULT = 1024;
+	public static final int GRAINS_MAX = 16384;
+
+	public static final double DENSITY_MIN = 0.1;
+	public static final double DENSITY_MAX = 20000.0;
+	public static final double DENSITY_DEFAULT = 50.0;
+
+	public static final double DURATION_MS_MIN = 1.0;
+	public static final double DURATION_MS_MAX = 2000.0;
+	public static final double DURATION_MS_DEFAULT = 80.0;
+
+	public static final double PITCH_RATIO_MIN = 0.125;
+	public static final double PITCH_RATIO_MAX = 8.0;
+
+	public static final double PITCH_JITTER_MAX = 24.0;
+
+	public static final double LIVE_SECONDS_MIN = 0.5;
+	public static final double LIVE_SECONDS_MAX = 60.0;
+	public static final double LIVE_SECONDS_DEFAULT = 4.0;
+
+	public static final double GAIN_DEFAULT = 0.5;
+
+	// Window table size; one extra entry so interpolation never reads past the end
+	private static final int WINDOW_SIZE = 1024;
+
+	private static final double [][] WINDOWS = new double[WINDOW.values().length][WINDOW_SIZE + 1];
+	static {
+		for (int i = 0; i <= WINDOW_SIZE; i++) {
+			double x = (double) i / WINDOW_SIZE;
+			WINDOWS[WINDOW.HANN.ordinal()][i] = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * x);
+			WINDOWS[WINDOW.TRIANGLE.ordinal()][i] = 1.0 - Math.abs(2.0 * x - 1.0);
+
+			// Truncated at 3.5 standard deviations and lowered to reach zero at the ends
+			double d = (x - 0.5) * 7.0;
+			double edge = Math.exp(-0.5 * 3.5 * 3.5);
+			WINDOWS[WINDOW.GAUSSIAN.ordinal()][i] = (Math.exp(-0.5 * d * d) - edge) / (1.0 - edge);
+
+			// Flat top with cosine tapers over the outer quarters
+			double taper = (x < 0.25) ? x / 0.25 : (x > 0.75) ? (1.0 - x) / 0.25 : 1.0;
+			WINDOWS[WINDOW.TUKEY.ordinal()][i] = 0.5 - 0.5 * Math.cos(Math.PI * taper);
+		}
+	}
+
+	private static final double SOURCE_SCALE = 1.0 / PcmCodec.FULL_SCALE_16;
+
+	/**
+	 * GranularSynth Class Constructor
+	 * <p>
+	 * Creates a pool of GRAINS_DEFAULT grains with no source.
+	 */
+	public GranularSynth() {
+
+		this(GRAINS_DEFAULT);
+	}
+
+	/**
+	 * GranularSynth Class Constructor
+	 *
+	 * @param grains Size of the grain pool; the most grains that can play at once
+	 */
+	public GranularSynth(int grains) {
+
+		if ((grains < 1) || (grains > GRAINS_MAX)) {
+			throw new IllegalArgumentException("Grain pool must hold 1 to " + GRAINS_MAX + " grains");
+		}
+		poolSize = grains;
+		grainPosition = new double[grains];
+		grainIncrement = new double[grains];
+		grainPhase = new double[grains];
+		grainPhaseIncrement = new double[grains];
+		grainRemaining = new int[grains];
+		grainDelay = new int[grains];
+
+		setWindow(WINDOW.HANN);
+		setDensity(DENSITY_DEFAULT);
+		setDurationMs(DURATION_MS_DEFAULT);
+		setPitchRatio(1.0);
+		setGain(GAIN_DEFAULT);
+	}
+
+	/**
+	 * Take grains from a sound held in memory
+	 * <p>
+	 * The samples are copied, so the buffer may be reused afterwards.
+	 *
+	 * @param source Sound to take grains from
+	 */
+	public void setSource(AudioBuffer source) {
+
+		int length = source.size();
+		short [] samples = new short[ringSizeFor(length)];
+		for (int i = 0; i < length; i++) {
+			samples[i] = source.get(i);
+		}
+		recorder = null;
+		sourceLength = length;
+		written = length;
+		ring = samples;
+	}
+
+	/**
+	 * Take grains from the last LIVE_SECONDS_DEFAULT seconds of a provider
+	 *
+	 * @param provider Provider recorded as it plays
+	 */
+	public void setSource(SampleProviderIntfc provider) {
+
+		setSource(provider, LIVE_SECONDS_DEFAULT);
+	}
+
+	/**
+	 * Take grains from the last seconds of a provider
+	 * <p>
+	 * The provider is rendered once per buffer, whether or not grains<br>
+	 * are playing, and its samples recorded into a ring.
+	 *
+	 * @param provider Provider recorded as it plays
+	 * @param seconds Length of the recording between LIVE_SECONDS_MIN and LIVE_SECONDS_MAX
+	 */
+	public void setSource(SampleProviderIntfc provider, double seconds) {
+
+		seconds = (seconds < LIVE_SECONDS_MIN) ? LIVE_SECONDS_MIN : seconds;
+		seconds = (seconds > LIVE_SECONDS_MAX) ? LIVE_SECONDS_MAX : seconds;
+
+		short [] samples = new short[ringSizeFor((int) (seconds * SamplePlayer.SAMPLE_RATE))];
+		sourceLength = samples.length;
+		written = 0;
+		ring = samples;
+		recorder = provider;
+	}
+
+	/**
+	 * Return a power of two ring size with room for a sound
+	 *
+	 * @param samples Length of the sound
+	 *
+	 * @return Ring size in samples
+	 */
+	private static int ringSizeFor(int samples) {
+
+		// Room past the end so grains reaching beyond a memory source read silence
+		int size = Integer.highestOneBit(Math.max(samples, 1) + SamplePlayer.SAMPLES_PER_BUFFER);
+		return size << 1;
+	}
+
+	/**
+	 * Set the window that shapes every new grain
+	 *
+	 * @param window Grain window
+	 */
+	public void setWindow(WINDOW window) {
+
+		this.window = WINDOWS[window.ordinal()];
+	}
+
+	/**
+	 * Set the count of grains started per second
+	 *
+	 * @param density Grains per second between DENSITY_MIN and DENSITY_MAX
+	 */
+	public void setDensity(double density) {
+
+		density = (density < DENSITY_MIN) ? DENSITY_MIN : density;
+		density = (density > DENSITY_MAX) ? DENSITY_MAX : density;
+
+		this.density = density;
+	}
+
+	/**
+	 * Set how irregularly grains are spaced
+	 *
+	 * @param jitter 0.0 for evenly spaced grains up to 1.0 for spacing anywhere from none to twice the average
+	 */
+	public void setDensityJitter(double jitter) {
+
+		jitter = (jitter < 0.0) ? 0.0 : jitter;
+		jitter = (jitter > 1.0) ? 1.0 : jitter;
+
+		densityJitter = jitter;
+	}
+
+	/**
+	 * Set the length of new grains
+	 *
+	 * @param ms Duration in milliseconds between DURATION_MS_MIN and DURATION_MS_MAX
+	 */
+	public void setDurationMs(double ms) {
+
+		ms = (ms < DURATION_MS_MIN) ? DURATION_MS_MIN : ms;
+		ms = (ms > DURATION_MS_MAX) ? DURATION_MS_MAX : ms;
+
+		durationSamples = Math.max(2, (int) (ms * SamplePlayer.SAMPLE_RATE / 1000.0));
+	}
+
+	/**
+	 * Set where in the source new grains start
+	 * <p>
+	 * For a live source 0.0 is the oldest sound recorded and 1.0 the most recent.
+	 *
+	 * @param position 0.0 for the start of the source up to 1.0 for its end
+	 */
+	public void setPosition(double position) {
+
+		position = (position < 0.0) ? 0.0 : position;
+		position = (position > 1.0) ? 1.0 : position;
+
+		this.position = position;
+	}
+
+	/**
+	 * Set how far grain start positions are scattered around the position
+	 *
+	 * @param jitter Largest offset as a fraction of the source, 0.0 to 1.0
+	 */
+	public void setPositionJitter(double jitter) {
+
+		jitter = (jitter < 0.0) ? 0.0 : jitter;
+		jitter = (jitter > 1.0) ? 1.0 : jitter;
+
+		positionJitter = jitter;
+	}
+
+	/**
+	 * Set the playback pitch of grains relative to the source
+	 *
+	 * @param ratio Between PITCH_RATIO_MIN and PITCH_RATIO_MAX; 2.0 plays an octave up
+	 */
+	public void setPitchRatio(double ratio) {
+
+		ratio = (ratio < PITCH_RATIO_MIN) ? PITCH_RATIO_MIN : ratio;
+		ratio = (ratio > PITCH_RATIO_MAX) ? PITCH_RATIO_MAX : ratio;
+
+		pitchRatio = ratio;
+	}
+
+	/**
+	 * Set how far grain pitches are scattered around the pitch ratio
+	 *
+	 * @param semitones Largest offset in semitones, 0.0 to PITCH_JITTER_MAX
+	 */
+	public void setPitchJitter(double semitones) {
+
+		semitones = (semitones < 0.0) ? 0.0 : semitones;
+		semitones = (semitones > PITCH_JITTER_MAX) ? PITCH_JITTER_MAX : semitones;
+
+		pitchJitter = semitones;
+	}
+
+	/**
+	 * Set the output gain
+	 *
+	 * @param gain Gain applied to the sum of the grains; 0.0 or more
+	 */
+	public void setGain(double gain) {
+
+		this.gain = (gain < 0.0) ? 0.0 : gain;
+	}
+
+	/**
+	 * Start scheduling grains
+	 */
+	public void start() {
+
+		playing = true;
+	}
+
+	/**
+	 * Stop scheduling grains; grains already playing finish
+	 */
+	public void stop() {
+
+		playing = false;
+	}
+
+	/**
+	 * Return whether grains are being scheduled
+	 *
+	 * @return true between start and stop
+	 */
+	public boolean isPlaying() {
+
+		return playing;
+	}
+
+	/**
+	 * Set the quality stage to render at
+	 * <p>
+	 * From CHEAP_KERNELS grains read the source without interpolation and<br>
+	 * from STEAL_VOICES half as many grains are started.
+	 *
+	 * @param stage Quality stage
+	 */
+	public void setQualityStage(QualityController.STAGE stage) {
+
+		int s = stage.ordinal();
+		interpolate = s < QualityController.STAGE.CHEAP_KERNELS.ordinal();
+		thinned = s >= QualityController.STAGE.STEAL_VOICES.ordinal();
+	}
+
+	/**
+	 * Return the size of the grain pool
+	 *
+	 * @return Most grains that can play at once
+	 */
+	public int getPoolSize() {
+
+		return poolSize;
+	}
+
+	/**
+	 * Return the count of grains playing
+	 *
+	 * @return Grains playing at the end of the last buffer
+	 */
+	public int getActiveGrainCount() {
+
+		return activeCount;
+	}
+
+	/**
+	 * Return the count of grains not started because the pool was full
+	 *
+	 * @return Dropped grain count
+	 */
+	public long getDroppedGrainCount() {
+
+		return dropped;
+	}
+
+	/**
+	 * Return whether the last buffer was silent
+	 *
+	 * @return true if no grain produced sound
+	 */
+	public boolean isSilent() {
+
+		return silent;
+	}
+
+	/**
+	 * Get a buffer of samples
+	 *
+	 * @param buffer Array to fill with samples
+	 *
+	 * @return Count of bytes produced.
+	 */
+	public int getSamples(byte [] buffer) {
+
+		short [] src = ring;
+		SampleProviderIntfc rec = recorder;
+		if (rec != null) {
+			record(rec, src);
+		}
+
+		schedule(src);
+
+		double [] out = mix;
+		for (int i = 0; i < SAMPLES; i++) {
+			out[i] = 0.0;
+		}
+
+		int mask = src.length - 1;
+		double [] win = window;
+		boolean lerp = interpolate;
+		int n = activeCount;
+		for (int g = 0; g < n; ) {
+			int from = grainDelay[g];
+			int count = Math.min(grainRemaining[g], SAMPLES - from);
+			double pos = grainPosition[g];
+			double inc = grainIncrement[g];
+			double phase = grainPhase[g];
+			double phaseInc = grainPhaseIncrement[g];
+
+			for (int i = from, end = from + count; i < end; i++) {
+				int w = (int) phase;
+				double wa = win[w];
+				double envelope = wa + (win[w + 1] - wa) * (phase - w);
+				long p = (long) pos;
+				double value = src[(int) p & mask];
+				if (lerp) {
+					value += (src[(int) (p + 1) & mask] - value) * (pos - p);
+				}
+				out[i] += envelope * value;
+				pos += inc;
+				phase += phaseInc;
+			}
+
+			int remaining = grainRemaining[g] - count;
+			if (remaining > 0) {
+				grainPosition[g] = pos;
+				grainPhase[g] = phase;
+				grainRemaining[g] = remaining;
+				grainDelay[g] = 0;
+				g++;
+			}	else	{
+				// Move the last playing grain into the ended grain's slot
+				n--;
+				grainPosition[g] = grainPosition[n];
+				grainIncrement[g] = grainIncrement[n];
+				grainPhase[g] = grainPhase[n];
+				grainPhaseIncrement[g] = grainPhaseIncrement[n];
+				grainRemaining[g] = grainRemaining[n];
+				grainDelay[g] = grainDelay[n];
+			}
+		}
+		activeCount = n;
+
+		silent = PcmCodec.pack(out, gain * SOURCE_SCALE, buffer, SAMPLES);
+		return SamplePlayer.BUFFER_SIZE;
+	}
+
+	/**
+	 * Record a buffer of the live source into the ring
+	 *
+	 * @param rec Live source
+	 * @param src Ring to record into
+	 */
+	private void record(SampleProviderIntfc rec, short [] src) {
+
+		rec.getSamples(recordBuffer);
+		int mask = src.length - 1;
+		long head = written;
+		for (int i = 0; i < SAMPLES; i++) {
+			src[(int) (head + i) & mask] = PcmCodec.getShort(recordBuffer, i);
+		}
+		written = head + SAMPLES;
+	}
+
+	/**
+	 * Start the grains falling due in the coming buffer
+	 *
+	 * @param src Source ring
+	 */
+	private void schedule(short [] src) {
+
+		if (! playing) {
+			return;
+		}
+		double interval = SamplePlayer.SAMPLE_RATE / (thinned ? 0.5 * density : density);
+		double next = untilNext;
+		while (next < SAMPLES) {
+			startGrain(src, (int) next);
+			next += interval * (1.0 + densityJitter * nextBipolar());
+		}
+		untilNext = next - SAMPLES;
+	}
+
+	/**
+	 * Start a grain, or count it as dropped if the pool is full
+	 *
+	 * @param src Source ring
+	 * @param delay Offset of the grain's first sample in the coming buffer
+	 */
+	private void startGrain(short [] src, int delay) {
+
+		if (activeCount == poolSize) {
+			dropped++;
+			return;
+		}
+		int length = durationSamples;
+		double ratio = pitchRatio;
+		if (pitchJitter > 0.0) {
+			ratio *= Math.pow(2.0, pitchJitter * nextBipolar() / 12.0);
+		}
+		double reach = length * ratio + 2.0;
+
+		// Range of start positions whose whole grain lies in recorded sound
+		double first;
+		double last;
+		if (recorder != null) {
+			long head = written;
+			first = head - (src.length - length - SamplePlayer.SAMPLES_PER_BUFFER);
+			last = head - reach;
+		}	else	{
+			first = 0.0;
+			last = sourceLength - reach;
+		}
+		if (last < first) {
+			// Grain longer than the source; keep it from reading ahead of the sound
+			first = last;
+		}
+
+		double at = position + positionJitter * nextBipolar();
+		at = (at < 0.0) ? 0.0 : (at > 1.0) ? 1.0 : at;
+
+		int g = activeCount;
+		grainPosition[g] = first + at * (last - first);
+		grainIncrement[g] = ratio;
+		grainPhase[g] = 0.0;
+		grainPhaseIncrement[g] = (double) WINDOW_SIZE / length;
+		grainRemaining[g] = length;
+		grainDelay[g] = delay;
+		activeCount = g + 1;
+	}
+
+	/**
+	 * Return a uniformly distributed value between -1.0 and 1.0
+	 */
+	private double nextBipolar() {
+
+		// xorshift64
+		long x = randomState;
+		x ^= x << 13;
+		x ^= x >>> 7;
+		x ^= x << 17;
+		randomState = x;
+		return (x >>> 11) * 0x1.0p-52 - 1.0;
+	}
+
+	private static final int SAMPLES = SamplePlayer.SAMPLES_PER_BUFFER;
+
+	// Instance data
+	private final int poolSize;
+	private final double [] mix = new double[SAMPLES];
+	private final byte [] recordBuffer = new byte[SamplePlayer.BUFFER_SIZE];
+
+	// Source; a memory sound or the ring a live source is recorded into
+	private volatile short [] ring = new short[ringSizeFor(0)];
+	private volatile SampleProviderIntfc recorder;
+	private volatile int sourceLength;
+	private long written;
+
+	// Scheduler settings
+	private double [] window;
+	private double density;
+	private double densityJitter;
+	private int durationSamples;
+	private double position;
+	private double positionJitter;
+	private double pitchRatio;
+	private double pitchJitter;
+	private double gain;
+	private volatile boolean playing;
+	private boolean interpolate = true;
+	private boolean thinned;
+
+	// Scheduler state
+	private double untilNext;
+	private long randomState = 0x2545F4914F6CDD1DL;
+
+	// Grain pool; playing grains occupy the first activeCount slots
+	private final double [] grainPosition;
+	private final double [] grainIncrement;
+	private final double [] grainPhase;
+	private final double [] grainPhaseIncrement;
+	private final int [] grainRemaining;
+	private final int [] grainDelay;
+	private volatile int activeCount;
+	private volatile long dropped;
+	private volatile boolean silent = true;
+}
@@ -0,0 +1,168 @@
+package com.craigl.softsynth;
+
+import java.util.Random;
+
+import com.craigl.softsynth.BasicOscillator.WAVESHAPE;
+
+/**
+ * Latency Harness
+ * <p>
+ * Measures the time from a noteOn on a control thread to its first<br>
+ * frame being played, with a LatencyProbe, for a range of simulated<br>
+ * device buffer sizes and periods. Each configuration is run twice:<br>
+ * once with notes played from a control thread at random intervals and<br>
+ * once with notes played by a MusicPlayer, whose control thread waits<br>
+ * for tics by polling.
+ * <p>
+ * Every module renders SamplePlayer.BUFFER_SIZE bytes at a time, so the<br>
+ * block size is the same for all configurations.
+ * <p>
+ * Usage: java com.craigl.softsynth.LatencyHarness [seconds] [line]
+ * <p>
+ * seconds is the time each configuration runs for; line also measures<br>
+ * the default sound device.
+ */
+
+public class LatencyHarness {
+
+	private static final double SECONDS_DEFAULT = 4.0;
+
+	// Results of the first moments are dropped while the JIT compiler catches up
+	private static final int SETTLE_MS = 500;
+
+	// Simulated devices: buffer frames and period frames
+	private static final int [][] DEVICES = {
+		{ 1024, 256 }, { 2048, 256 }, { 4096, 256 }, { 8192, 1024 }, { 22050, 1024 }
+	};
+
+	private static final int [] RIFF = {60, 64, 67, 72, 67, 64};
+
+	/**
+	 * LatencyHarness entry point
+	 *
+	 * @param args Optional seconds per configuration and "line"
+	 *
+	 * @throws Exception If a configuration cannot be run
+	 */
+	public static void main(String [] args) throws Exception {
+
+		double seconds = (args.length > 0) ? Double.parseDouble(args[0]) : SECONDS_DEFAULT;
+		boolean line = (args.length > 1) && args[1].equals("line");
+
+		System.out.println("Block " + SamplePlayer.SAMPLES_PER_BUFFER + " frames ("
+				+ String.format("%.2f", SamplePlayer.BUFFER_TIME_IN_SECS * 1000.0) + " ms)");
+
+		for (int [] device : DEVICES) {
+			String name = "sim " + device[0] + "/" + device[1];
+			SimulatedAudioSink sink = new SimulatedAudioSink(device[0], device[1]);
+			runControlThread(name + " noteOn", sink, seconds);
+			System.out.println("  underruns " + sink.getUnderrunCount());
+
+			runMusicPlayer(name + " MusicPlayer", new SimulatedAudioSink(device[0], device[1]), seconds);
+		}
+		if (line) {
+			runControlThread("line noteOn", new LineAudioSink(), seconds);
+			runMusicPlayer("line MusicPlayer", new LineAudioSink(), seconds);
+		}
+	}
+
+	/**
+	 * Create an oscillator and VCA, warmed up so rendering is compiled
+	 *
+	 * @return The VCA at the end of the chain
+	 */
+	private static VCA createVoice(BasicOscillator osc) {
+
+		osc.setWaveshape(WAVESHAPE.SAW);
+		VCA vca = new VCA();
+		vca.setSampleProvider(osc);
+		vca.setAttackTimeInMS(EnvelopeGenerator.MS_MIN);
+		vca.setSustainLevel(0.5);
+		vca.setReleaseTimeInMS(50);
+
+		vca.noteOn();
+		AudioEngine.warmUp(vca, 5000);
+		vca.noteOff();
+		return vca;
+	}
+
+	/**
+	 * Play notes from the calling thread at random intervals
+	 *
+	 * @param name Label of the configuration
+	 * @param sink Device to play to
+	 * @param seconds Time to run for
+	 */
+	private static void runControlThread(String name, AudioSinkIntfc sink, double seconds) throws Exception {
+
+		BasicOscillator osc = new BasicOscillator();
+		VCA vca = createVoice(osc);
+
+		LatencyProbe probe = new LatencyProbe(sink);
+		probe.setSampleProvider(vca);
+		vca.setLatencyProbe(probe);
+		SamplePlayer player = new SamplePlayer(probe);
+		player.setSampleProvider(probe);
+		player.startPlayer();
+
+		Random random = new Random(1);
+		long settle = System.nanoTime() + SETTLE_MS * 1000000L;
+		long end = settle + (long) (seconds * 1.0e9);
+		boolean settled = false;
+		int step = 0;
+		while (System.nanoTime() < end) {
+			if ((! settled) && (System.nanoTime() > settle)) {
+				probe.reset();
+				settled = true;
+			}
+			osc.setFrequency(Tuning.EQUAL_TEMPERAMENT.getFrequency(RIFF[step++ % RIFF.length]));
+			probe.stamp();
+			vca.noteOn();
+			Thread.sleep(5 + random.nextInt(40));
+			vca.noteOff();
+			Thread.sleep(5 + random.nextInt(20));
+		}
+		player.stopPlayer();
+		player.join();
+		probe.printReport(System.out, name);
+	}
+
+	/**
+	 * Play a riff with a MusicPlayer
+	 *
+	 * @param name Label of the configuration
+	 * @param sink Device to play to
+	 * @param seconds Time to run for
+	 */
+	private static void runMusicPlayer(String name, AudioSinkIntfc sink, double seconds) throws Exception {
+
+		BasicOscillator osc = new BasicOscillator();
+		VCA vca = createVoice(osc);
+
+		Note [] notes = new Note[RIFF.length];
+		for (int i = 0; i < notes.length; i++) {
+			notes[i] = new Note(RIFF[i], 32);
+		}
+		MusicPlayer mp = new MusicPlayer(osc, vca, null, notes);
+		mp.setSampleProvider(vca);
+
+		LatencyProbe probe = new LatencyProbe(sink);
+		probe.setSampleProvider(mp);
+		mp.setLatencyProbe(probe);
+		vca.setLatencyProbe(probe);
+		SamplePlayer player = new SamplePlayer(probe);
+		player.setSampleProvider(probe);
+		player.startPlayer();
+
+		// Settle, then play the riff for the given time
+		mp.setLoopCount((int) Math.ceil((SETTLE_MS / 1000.0) / (notes.length * 0.08)));
+		mp.playSong();
+		probe.reset();
+		mp.setLoopCount((int) Math.ceil(seconds / (notes.length * 0.08)));
+		mp.playSong();
+
+		player.stopPlayer();
+		player.join();
+		probe.printReport(System.out, name);
+	}
+}
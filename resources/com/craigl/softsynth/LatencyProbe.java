@@ -0,0 +1,360 @@
+package com.craigl.softsynth;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Latency Probe
+ * <p>
+ * Measures how long control events take to become sound. A control<br>
+ * thread calls stamp() right before it issues an event such as a<br>
+ * noteOn, which records System.nanoTime. The probe sits both at the top<br>
+ * of the signal chain and in front of the sink:
+ * <p>
+ * probe = new LatencyProbe(sink);<br>
+ * probe.setSampleProvider(chain);<br>
+ * player = new SamplePlayer(probe);<br>
+ * player.setSampleProvider(probe);
+ * <p>
+ * The module that takes the event up reports the frame at which it<br>
+ * does so by calling applied() from within the buffer being rendered;<br>
+ * a VCA does this when given the probe with setLatencyProbe(). Events<br>
+ * no module reports are not resolved. As a sink the probe notes, after<br>
+ * each write, the device's frame position and the time, from which the<br>
+ * time the event's frame is played follows. Sinks that do not implement<br>
+ * FramePositionIntfc only yield the time to apply.
+ * <p>
+ * The device's frame position at the probe's first write is taken as<br>
+ * the position of the probe's first frame, so the sink must have played<br>
+ * out anything written to it before.
+ * <p>
+ * Stamps are passed through a lock free single producer ring and the<br>
+ * results are kept in preallocated arrays, so the probe itself does<br>
+ * not allocate on the audio thread. Only one thread may stamp.
+ */
+
+public class LatencyProbe implements SampleProviderIntfc, AudioSinkIntfc, SilenceIntfc {
+
+	// Events in flight; must be a power of 2
+	private static final int PENDING_MAX = 1024;
+	private static final int PENDING_MASK = PENDING_MAX - 1;
+
+	// Results kept; later events are counted but not recorded
+	public static final int RESULTS_MAX = 65536;
+
+	private static final double NANOS_PER_FRAME = 1.0e9 / SamplePlayer.SAMPLE_RATE;
+
+	/**
+	 * LatencyProbe Class Constructor
+	 *
+	 * @param sink Sink the probe writes to; it closes the sink when closed
+	 */
+	public LatencyProbe(AudioSinkIntfc sink) {
+
+		this.sink = sink;
+		this.position = (sink instanceof FramePositionIntfc) ? (FramePositionIntfc) sink : null;
+	}
+
+	/**
+	 * Setup the provider of samples
+	 *
+	 * @param provider The provider of samples for this probe
+	 */
+	public void setSampleProvider(SampleProviderIntfc provider) {
+
+		this.provider = provider;
+	}
+
+	/**
+	 * Stamp a control event issued just now
+	 * <p>
+	 * Call from the control thread before the event's setter, so the<br>
+	 * stamp is in place when the audio thread takes the event up.<br>
+	 * Events beyond PENDING_MAX in flight are dropped.
+	 */
+	public void stamp() {
+
+		long time = System.nanoTime();
+		long h = head;
+		if (h - played >= PENDING_MAX) {
+			dropped++;
+			return;
+		}
+		stampNanos[(int) h & PENDING_MASK] = time;
+
+		// Publish after the stamp is stored
+		head = h + 1;
+	}
+
+	/**
+	 * Note that the audio thread has taken up the stamped events
+	 * <p>
+	 * Call from within the chain while it renders a buffer for this<br>
+	 * probe. Every event stamped and not yet applied is resolved to the<br>
+	 * given frame, as events issued before it was taken up have merged<br>
+	 * into it.
+	 *
+	 * @param frame Frame of the buffer being rendered at which the event applies
+	 */
+	public void applied(int frame) {
+
+		long h = head;
+		if (applied == h) {
+			return;
+		}
+		long now = System.nanoTime();
+		for (long e = applied; e < h; e++) {
+			int k = (int) e & PENDING_MASK;
+			appliedFrames[k] = renderedFrames + frame;
+			appliedNanos[k] = now;
+		}
+		applied = h;
+	}
+
+	/**
+	 * Render a buffer from the probed chain
+	 *
+	 * @param buffer Buffer in which the samples are to be processed
+	 *
+	 * @return Count of number of bytes processed
+	 */
+	public int getSamples(byte [] buffer) {
+
+		int count = provider.getSamples(buffer);
+		if (count > 0) {
+			renderedFrames += count >> 1;
+		}
+		return count;
+	}
+
+	/**
+	 * Return whether the last buffer was silent
+	 *
+	 * @return true if the probed chain reported silence
+	 */
+	public boolean isSilent() {
+
+		return Silence.isSilent(provider);
+	}
+
+	/**
+	 * Write samples to the sink and resolve the play times of events
+	 *
+	 * @param buffer Buffer holding the samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 *
+	 * @throws IOException If the sink cannot accept the samples
+	 */
+	public void write(byte [] buffer, int offset, int length) throws IOException {
+
+		started();
+		sink.write(buffer, offset, length);
+		written(length);
+	}
+
+	/**
+	 * Write as many samples as the sink accepts without waiting
+	 *
+	 * @param buffer Buffer holding the samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 *
+	 * @return Count of bytes accepted
+	 *
+	 * @throws IOException If the sink cannot accept the samples
+	 */
+	public int writeNonBlocking(byte [] buffer, int offset, int length) throws IOException {
+
+		started();
+		int n = sink.writeNonBlocking(buffer, offset, length);
+		written(n);
+		return n;
+	}
+
+	/**
+	 * Drain the sink
+	 *
+	 * @throws IOException If the samples cannot be delivered
+	 */
+	public void drain() throws IOException {
+
+		sink.drain();
+	}
+
+	/**
+	 * Close the sink
+	 *
+	 * @throws IOException If the sink cannot be closed cleanly
+	 */
+	public void close() throws IOException {
+
+		sink.close();
+	}
+
+	/**
+	 * Take the device's frame position before the probe's first write
+	 */
+	private void started() {
+
+		if ((position != null) && (! deviceStarted)) {
+			deviceStart = position.getLongFramePosition();
+			deviceStarted = true;
+		}
+	}
+
+	/**
+	 * Resolve the events whose frames have now been written
+	 *
+	 * @param length Count of bytes just written
+	 */
+	private void written(int length) {
+
+		writtenFrames += length >> 1;
+
+		long e = played;
+		if (e == applied) {
+			return;
+		}
+		long now = System.nanoTime();
+		long devicePosition = (position != null) ? position.getLongFramePosition() - deviceStart : 0;
+
+		for (; e < applied; e++) {
+			int k = (int) e & PENDING_MASK;
+			long frame = appliedFrames[k];
+			if (frame >= writtenFrames) {
+				break;
+			}
+			long stamped = stampNanos[k];
+			long playNanos = 0;
+			if (position != null) {
+				playNanos = now + (long) ((frame - devicePosition) * NANOS_PER_FRAME) - stamped;
+			}
+			record(appliedNanos[k] - stamped, playNanos);
+		}
+		played = e;
+	}
+
+	/**
+	 * Record the latencies of one event
+	 * <p>
+	 * The play latency is only kept when the sink reports its frame position.
+	 */
+	private void record(long applyNanos, long playNanos) {
+
+		int n = resultCount;
+		if (n < RESULTS_MAX) {
+			applyLatencies[n] = applyNanos;
+			playLatencies[n] = playNanos;
+			resultCount = n + 1;
+		}	else	{
+			overflow++;
+		}
+	}
+
+	/**
+	 * Forget the results so far, e.g. after warming up
+	 * <p>
+	 * Events in flight are recorded as they complete.
+	 */
+	public void reset() {
+
+		resultCount = 0;
+		overflow = 0;
+		dropped = 0;
+	}
+
+	/**
+	 * Return the count of events recorded
+	 *
+	 * @return Event count
+	 */
+	public int getEventCount() {
+
+		return resultCount;
+	}
+
+	/**
+	 * Return a percentile of the time from stamp to the audio thread applying the event
+	 * <p>
+	 * Covers waiting for the audio thread to reach the event and take it up.
+	 *
+	 * @param percentile Percentile between 0 and 100
+	 *
+	 * @return Latency in ms or NaN if nothing was recorded
+	 */
+	public double getApplyLatencyInMs(double percentile) {
+
+		return percentile(applyLatencies, percentile);
+	}
+
+	/**
+	 * Return a percentile of the time from stamp to the event's frame being played
+	 * <p>
+	 * Adds the queue of rendered buffers and the device buffer.
+	 *
+	 * @param percentile Percentile between 0 and 100
+	 *
+	 * @return Latency in ms or NaN if the sink reports no frame position
+	 */
+	public double getPlayLatencyInMs(double percentile) {
+
+		return (position == null) ? Double.NaN : percentile(playLatencies, percentile);
+	}
+
+	/**
+	 * Print the count of events and the percentiles of both latencies
+	 *
+	 * @param out Stream to print to
+	 * @param label Label of the line
+	 */
+	public void printReport(PrintStream out, String label) {
+
+		out.printf("%-28s %6d events  apply p50 %6.2f p90 %6.2f p99 %6.2f max %6.2f ms  play p50 %6.2f p90 %6.2f p99 %6.2f max %6.2f ms%n",
+				label, getEventCount(),
+				getApplyLatencyInMs(50), getApplyLatencyInMs(90), getApplyLatencyInMs(99), getApplyLatencyInMs(100),
+				getPlayLatencyInMs(50), getPlayLatencyInMs(90), getPlayLatencyInMs(99), getPlayLatencyInMs(100));
+		if ((dropped > 0) || (overflow > 0)) {
+			out.println("  " + dropped + " events dropped in flight, " + overflow + " not recorded");
+		}
+	}
+
+	private double percentile(long [] latencies, double percentile) {
+
+		int n = resultCount;
+		if (n == 0) {
+			return Double.NaN;
+		}
+		long [] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil((percentile / 100.0) * n) - 1;
+		index = (index < 0) ? 0 : index;
+		index = (index > n - 1) ? n - 1 : index;
+		return sorted[index] / 1.0e6;
+	}
+
+	// Instance data
+	private final AudioSinkIntfc sink;
+	private final FramePositionIntfc position;
+	private SampleProviderIntfc provider;
+
+	// Events in flight; stamped by the control thread, applied and played by the audio thread
+	private volatile long head;
+	private long applied;
+	private volatile long played;
+	private final long [] stampNanos = new long[PENDING_MAX];
+	private final long [] appliedNanos = new long[PENDING_MAX];
+	private final long [] appliedFrames = new long[PENDING_MAX];
+	private long renderedFrames;
+	private long writtenFrames;
+	private long deviceStart;
+	private boolean deviceStarted;
+	private volatile long dropped;
+
+	// Results
+	private final long [] applyLatencies = new long[RESULTS_MAX];
+	private final long [] playLatencies = new long[RESULTS_MAX];
+	private volatile int resultCount;
+	private int overflow;
+}
@@ -0,0 +1,102 @@
+package com.craigl.softsynth;
+
+import java.io.IOException;
+import javax.sound.sampled.*;
+
+/**
+ * Sound Card Audio Sink
+ * <p>
+ * Plays buffers through a javax.sound.sampled SourceDataLine. This is<br>
+ * the SamplePlayer's default sink. It needs a sound device, so on<br>
+ * headless machines use one of the other sinks instead.
+ */
+
+public class LineAudioSink implements AudioSinkIntfc, FramePositionIntfc {
+
+	/**
+	 * LineAudioSink Class Constructor
+	 * <p>
+	 * Opens and starts the default line for the SamplePlayer's format.
+	 *
+	 * @throws LineUnavailableException If no suitable line is available
+	 */
+	public LineAudioSink() throws LineUnavailableException {
+
+		AudioFormat format = SamplePlayer.createAudioFormat();
+
+		// Create dataline info object describing line format
+		DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+
+		// Get line to write data to
+		auline = (SourceDataLine) AudioSystem.getLine(info);
+		auline.open(format);
+		auline.start();
+	}
+
+	/**
+	 * Write samples to the line, waiting while its buffer is full
+	 *
+	 * @param buffer Buffer holding the samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 */
+	public void write(byte [] buffer, int offset, int length) {
+
+		auline.write(buffer, offset, length);
+	}
+
+	/**
+	 * Write as many samples as fit in the line's buffer
+	 *
+	 * @param buffer Buffer holding the samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 *
+	 * @return Count of bytes accepted
+	 */
+	public int writeNonBlocking(byte [] buffer, int offset, int length) {
+
+		int n = Math.min(length, auline.available()) & ~1;
+		return (n > 0) ? auline.write(buffer, offset, n) : 0;
+	}
+
+	/**
+	 * Wait until the line has played everything written to it
+	 */
+	public void drain() {
+
+		auline.drain();
+	}
+
+	/**
+	 * Play out the remaining samples and close the line
+	 */
+	public void close() {
+
+		auline.drain();
+		auline.close();
+	}
+
+	/**
+	 * Return the count of frames the line has played
+	 *
+	 * @return Frame position of the line
+	 */
+	public long getLongFramePosition() {
+
+		return auline.getLongFramePosition();
+	}
+
+	/**
+	 * Return the line the sink writes to
+	 *
+	 * @return The open SourceDataLine
+	 */
+	public SourceDataLine getLine() {
+
+		return auline;
+	}
+
+	// Instance data
+	private final SourceDataLine auline;
+}
@@ -0,0 +1,261 @@
+package com.craigl.softsynth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory mapped WAV file
+ * <p>
+ * Gives random access to the samples of a 16 bit PCM WAV file without<br>
+ * reading it onto the heap. The data chunk is mapped read only in regions<br>
+ * of at most a gigabyte, so files of many gigabytes can be used and only<br>
+ * the pages actually played are ever brought into memory.
+ * <p>
+ * Opening a file only parses its chunk headers. The root note and loop<br>
+ * points stored in a "smpl" chunk are picked up if present. Multi channel<br>
+ * files are played from their first channel.
+ */
+
+public class MappedWavFile {
+
+	// Bytes per mapped region at most; regions always hold whole frames
+	private static final int REGION_BYTES_SHIFT = 30;
+	private static final int PAGE_SIZE = 4096;
+	private static final int DEFAULT_ROOT_NOTE = 60;
+
+	private static final int RIFF_ID = 0x46464952;	// "RIFF" little endian
+	private static final int WAVE_ID = 0x45564157;	// "WAVE"
+	private static final int FMT_ID  = 0x20746D66;	// "fmt "
+	private static final int DATA_ID = 0x61746164;	// "data"
+	private static final int SMPL_ID = 0x6C706D73;	// "smpl"
+
+	private static final int WAVE_FORMAT_PCM = 1;
+	private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+	/**
+	 * MappedWavFile Class Constructor
+	 *
+	 * @param file The WAV file to map
+	 *
+	 * @throws IOException If the file cannot be read or is not 16 bit PCM
+	 */
+	public MappedWavFile(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long fileSize = channel.size();
+
+			ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header, 0);
+			if ((header.getInt(0) != RIFF_ID) || (header.getInt(8) != WAVE_ID)) {
+				throw new IOException(file + " is not a WAV file");
+			}
+
+			// Walk the chunk list
+			ByteBuffer chunk = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
+			long position = 12;
+			long dataOffset = -1;
+			long dataSize = 0;
+			int format = 0;
+			int channels = 0;
+			int bits = 0;
+			int rate = 0;
+			long smplLoopStart = -1;
+			long smplLoopEnd = -1;
+			int unityNote = DEFAULT_ROOT_NOTE;
+
+			while (position + 8 <= fileSize) {
+				chunk.clear();
+				chunk.limit(8);
+				readFully(channel, chunk, position);
+				int id = chunk.getInt(0);
+				long size = chunk.getInt(4) & 0xFFFFFFFFL;
+
+				if (id == FMT_ID) {
+					chunk.clear();
+					chunk.limit(16);
+					readFully(channel, chunk, position + 8);
+					format = chunk.getShort(0) & 0xFFFF;
+					channels = chunk.getShort(2) & 0xFFFF;
+					rate = chunk.getInt(4);
+					bits = chunk.getShort(14) & 0xFFFF;
+				}	else if (id == DATA_ID) {
+					dataOffset = position + 8;
+					// Sizes of huge files are often wrong; trust the file length
+					dataSize = Math.min(size, fileSize - dataOffset);
+				}	else if ((id == SMPL_ID) && (size >= 36 + 24)) {
+					chunk.clear();
+					chunk.limit(36);
+					readFully(channel, chunk, position + 8);
+					unityNote = chunk.getInt(12) & 0x7F;
+					if (chunk.getInt(28) > 0) {
+						// First loop: cue id, type, start, end, fraction, play count
+						ByteBuffer loop = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+						readFully(channel, loop, position + 8 + 36);
+						smplLoopStart = loop.getInt(8) & 0xFFFFFFFFL;
+						smplLoopEnd = (loop.getInt(12) & 0xFFFFFFFFL) + 1;
+					}
+				}
+				position += 8 + size + (size & 1);
+			}
+
+			if (((format != WAVE_FORMAT_PCM) && (format != WAVE_FORMAT_EXTENSIBLE)) || (bits != 16) || (channels < 1)) {
+				throw new IOException(file + " is not 16 bit PCM");
+			}
+			if (dataOffset < 0) {
+				throw new IOException(file + " has no data chunk");
+			}
+
+			frameSize = 2 * channels;
+			frameCount = dataSize / frameSize;
+			sampleRate = rate;
+			rootNote = unityNote;
+
+			// Largest power of two frame count whose region fits the byte limit
+			regionShift = REGION_BYTES_SHIFT - (32 - Integer.numberOfLeadingZeros(frameSize - 1));
+			long regionFrames = 1L << regionShift;
+			if ((smplLoopStart >= 0) && (smplLoopEnd > smplLoopStart) && (smplLoopEnd <= frameCount)) {
+				loopStart = smplLoopStart;
+				loopEnd = smplLoopEnd;
+			}	else	{
+				loopStart = -1;
+				loopEnd = -1;
+			}
+
+			// Map the sample data in whole frame regions
+			int regionCount = (int) ((frameCount + regionFrames - 1) / regionFrames);
+			regions = new MappedByteBuffer[Math.max(1, regionCount)];
+			for (int r = 0; r < regionCount; r++) {
+				long firstFrame = r * regionFrames;
+				long frames = Math.min(regionFrames, frameCount - firstFrame);
+				regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + firstFrame * frameSize, frames * frameSize);
+				regions[r].order(ByteOrder.LITTLE_ENDIAN);
+			}
+			if (regionCount == 0) {
+				regions[0] = channel.map(FileChannel.MapMode.READ_ONLY, 0, 0);
+			}
+		} finally {
+			// Mappings stay valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Return the number of frames in the file
+	 *
+	 * @return Frame count
+	 */
+	public long getFrameCount() {
+
+		return frameCount;
+	}
+
+	/**
+	 * Return the sample rate the file was recorded at
+	 *
+	 * @return Sample rate in Hz
+	 */
+	public int getSampleRate() {
+
+		return sampleRate;
+	}
+
+	/**
+	 * Return the MIDI note at which the file plays at its recorded pitch
+	 *
+	 * @return Root note from the smpl chunk, or 60 if the file has none
+	 */
+	public int getRootNote() {
+
+		return rootNote;
+	}
+
+	/**
+	 * Return the loop start stored in the file
+	 *
+	 * @return First frame of the loop or -1 if the file has no loop
+	 */
+	public long getLoopStart() {
+
+		return loopStart;
+	}
+
+	/**
+	 * Return the loop end stored in the file
+	 *
+	 * @return Frame following the last frame of the loop or -1 if the file has no loop
+	 */
+	public long getLoopEnd() {
+
+		return loopEnd;
+	}
+
+	/**
+	 * Return the sample of the first channel at a frame
+	 *
+	 * @param frame Frame index between 0 and getFrameCount() - 1
+	 *
+	 * @return Sample value
+	 */
+	public short getSample(long frame) {
+
+		int region = (int) (frame >>> regionShift);
+		int offset = (int) (frame & ((1L << regionShift) - 1)) * frameSize;
+		return regions[region].getShort(offset);
+	}
+
+	/**
+	 * Touch the pages holding a range of frames so they are resident before<br>
+	 * the audio thread needs them. Called from a prefetch thread.
+	 *
+	 * @param firstFrame First frame of the range
+	 * @param lastFrame Last frame of the range, inclusive
+	 *
+	 * @return A value derived from the touched bytes; returned only so the reads are not optimized away
+	 */
+	int touch(long firstFrame, long lastFrame) {
+
+		firstFrame = Math.max(0, firstFrame);
+		lastFrame = Math.min(frameCount - 1, lastFrame);
+
+		int framesPerPage = Math.max(1, PAGE_SIZE / frameSize);
+		int sum = 0;
+		for (long f = firstFrame; f <= lastFrame; f += framesPerPage) {
+			sum += getSample(f);
+		}
+		if (lastFrame >= firstFrame) {
+			sum += getSample(lastFrame);
+		}
+		return sum;
+	}
+
+	/**
+	 * Read bytes at a file position until the buffer is full
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				throw new IOException("Unexpected end of WAV file");
+			}
+			position += n;
+		}
+	}
+
+	// Instance data
+	private final MappedByteBuffer [] regions;
+	private final int regionShift;
+	private final int frameSize;
+	private final long frameCount;
+	private final int sampleRate;
+	private final int rootNote;
+	private final long loopStart;
+	private final long loopEnd;
+}
@@ -0,0 +1,121 @@
+package com.craigl.softsynth;
+
+import java.util.Arrays;
+
+/**
+ * Memory Audio Sink
+ * <p>
+ * Collects buffers in a growable byte array in the SamplePlayer's format.<br>
+ * Useful for tests, offline analysis and handing renders to code that<br>
+ * wants the samples rather than a file.
+ */
+
+public class MemoryAudioSink implements AudioSinkIntfc {
+
+	private static final int INITIAL_CAPACITY = 64 * SamplePlayer.BUFFER_SIZE;
+
+	/**
+	 * MemoryAudioSink Class Constructor
+	 */
+	public MemoryAudioSink() {
+
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * MemoryAudioSink Class Constructor
+	 *
+	 * @param initialCapacity Bytes to reserve up front; avoids growing for renders of known length
+	 */
+	public MemoryAudioSink(int initialCapacity) {
+
+		data = new byte[Math.max(2, initialCapacity)];
+	}
+
+	/**
+	 * Append samples
+	 *
+	 * @param buffer Buffer holding the samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 */
+	public synchronized void write(byte [] buffer, int offset, int length) {
+
+		if (size + length > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, size + length));
+		}
+		System.arraycopy(buffer, offset, data, size, length);
+		size += length;
+	}
+
+	/**
+	 * Append samples. Memory never makes the writer wait.
+	 *
+	 * @param buffer Buffer holding the samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 *
+	 * @return length
+	 */
+	public int writeNonBlocking(byte [] buffer, int offset, int length) {
+
+		write(buffer, offset, length);
+		return length;
+	}
+
+	/**
+	 * Nothing to drain; samples are stored as they are written
+	 */
+	public void drain() {
+	}
+
+	/**
+	 * Nothing to release; the collected samples remain available
+	 */
+	public void close() {
+	}
+
+	/**
+	 * Return the count of bytes collected
+	 *
+	 * @return Size in bytes
+	 */
+	public synchronized int size() {
+
+		return size;
+	}
+
+	/**
+	 * Return a collected sample
+	 *
+	 * @param index Sample index
+	 *
+	 * @return Sample value
+	 */
+	public synchronized short getSample(int index) {
+
+		return PcmCodec.getShort(data, index);
+	}
+
+	/**
+	 * Return a copy of the collected samples
+	 *
+	 * @return Samples in the SamplePlayer's format
+	 */
+	public synchronized byte [] toByteArray() {
+
+		return Arrays.copyOf(data, size);
+	}
+
+	/**
+	 * Discard the collected samples, keeping the allocated memory
+	 */
+	public synchronized void reset() {
+
+		size = 0;
+	}
+
+	// Instance data
+	private byte [] data;
+	private int size;
+}
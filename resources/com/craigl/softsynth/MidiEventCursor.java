@@ -0,0 +1,391 @@
+package com.craigl.softsynth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming cursor over the events of a Standard MIDI File.
+ * <p>
+ * All tracks of the file are merged in time order while they are read.<br>
+ * Tempo meta events are applied as they are encountered, so each channel<br>
+ * event is stamped with the sample frame at which it should sound.
+ * <p>
+ * The cursor holds only a handful of primitive values per track. Each call<br>
+ * to next decodes exactly one event into the cursor's fields; nothing is<br>
+ * allocated while stepping through the file. Meta and system exclusive<br>
+ * events are consumed internally and never returned.
+ * <p>
+ * Every read is checked against the end of its track. A track that is<br>
+ * truncated or corrupt ends at the event that runs past its end.
+ */
+
+public class MidiEventCursor {
+
+	private static final int DEFAULT_TEMPO_USECS = 500000;		// 120 BPM
+	private static final int META_EVENT = 0xFF;
+	private static final int META_END_OF_TRACK = 0x2F;
+	private static final int META_SET_TEMPO = 0x51;
+	private static final int SYSEX_EVENT = 0xF0;
+	private static final int SYSEX_ESCAPE = 0xF7;
+	private static final int MTC_QUARTER_FRAME = 0xF1;
+	private static final int SONG_POSITION = 0xF2;
+	private static final int SONG_SELECT = 0xF3;
+	private static final int SYSTEM_REAL_TIME = 0xF8;
+	private static final long TRACK_DONE = Long.MAX_VALUE;
+
+	/**
+	 * MidiEventCursor Class Constructor
+	 * <p>
+	 * Cursors are created by MidiFileReader.newCursor
+	 */
+	MidiEventCursor(ByteBuffer data, int [] trackStart, int [] trackEnd, int trackCount, int division) {
+
+		this.data = data;
+		this.trackStart = trackStart;
+		this.trackEnd = trackEnd;
+		this.trackCount = trackCount;
+		this.division = division;
+
+		position = new int[trackCount];
+		nextTick = new long[trackCount];
+		runningStatus = new int[trackCount];
+
+		reset();
+	}
+
+	/**
+	 * Rewind the cursor to the start of the file
+	 */
+	public void reset() {
+
+		for (int t = 0; t < trackCount; t++) {
+			runningStatus[t] = 0;
+			readPosition = trackStart[t];
+			readEnd = trackEnd[t];
+			overrun = false;
+			long delta = readVariableLength();
+			if ((! overrun) && (readPosition < readEnd)) {
+				nextTick[t] = delta;
+				position[t] = readPosition;
+			}	else	{
+				nextTick[t] = TRACK_DONE;
+			}
+		}
+		tempoTick = 0;
+		tempoFrame = 0.0;
+		setTempo(DEFAULT_TEMPO_USECS);
+
+		tick = 0;
+		frame = 0;
+		track = 0;
+		status = 0;
+		data1 = 0;
+		data2 = 0;
+	}
+
+	/**
+	 * Advance to the next channel event of any track
+	 *
+	 * @return true if an event was read; false at the end of the file
+	 */
+	public boolean next() {
+
+		while (true) {
+			// Find the track whose next event is earliest; ties go to the lowest track
+			int t = -1;
+			long earliest = TRACK_DONE;
+			for (int i = 0; i < trackCount; i++) {
+				if (nextTick[i] < earliest) {
+					earliest = nextTick[i];
+					t = i;
+				}
+			}
+			if (t < 0) {
+				return false;
+			}
+
+			readPosition = position[t];
+			readEnd = trackEnd[t];
+			overrun = false;
+			int s = data.get(readPosition) & 0xFF;
+			if (s < 0x80) {
+				// Running status; the byte is the first data byte
+				s = runningStatus[t];
+			}	else	{
+				readPosition++;
+			}
+
+			boolean channelEvent = false;
+			if (s == META_EVENT) {
+				runningStatus[t] = 0;
+				int type = readByte();
+				int length = readVariableLength();
+				if ((type == META_SET_TEMPO) && (length == 3)) {
+					int usecs = (readByte() << 16) | (readByte() << 8) | readByte();
+					if (! overrun) {
+						changeTempo(earliest, usecs);
+					}
+					length = 0;
+				}
+				skip(length);
+				if (type == META_END_OF_TRACK) {
+					readPosition = readEnd;
+				}
+			}	else if ((s == SYSEX_EVENT) || (s == SYSEX_ESCAPE)) {
+				runningStatus[t] = 0;
+				skip(readVariableLength());
+			}	else if (s > SYSEX_EVENT) {
+				// System common and real time messages do not belong in a file;
+				// skip their data bytes. Only system common cancels running status.
+				if (s < SYSTEM_REAL_TIME) {
+					runningStatus[t] = 0;
+				}
+				skip((s == SONG_POSITION) ? 2 : ((s == MTC_QUARTER_FRAME) || (s == SONG_SELECT)) ? 1 : 0);
+			}	else if (s >= 0x80) {
+				runningStatus[t] = s;
+				int d1 = readByte() & 0x7F;
+				int command = s & 0xF0;
+				int d2 = ((command == 0xC0) || (command == 0xD0)) ? 0 : readByte() & 0x7F;
+				if (! overrun) {
+					data1 = d1;
+					data2 = d2;
+					status = s;
+					channelEvent = true;
+				}
+			}	else	{
+				// Data byte with no running status; the track is corrupt
+				readPosition = readEnd;
+			}
+
+			// Read ahead the delta time of the track's following event. A track
+			// that runs past its end is truncated or corrupt and ends here.
+			long delta = 0;
+			if ((! overrun) && (readPosition < readEnd)) {
+				delta = readVariableLength();
+			}
+			if ((! overrun) && (readPosition < readEnd)) {
+				nextTick[t] = earliest + delta;
+				position[t] = readPosition;
+			}	else	{
+				nextTick[t] = TRACK_DONE;
+			}
+
+			if (channelEvent) {
+				tick = earliest;
+				track = t;
+				frame = tickToFrame(earliest);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Return the sample frame of the next event without consuming it.
+	 *
+	 * @return Frame of the next event in any track, or Long.MAX_VALUE at the end.<br>
+	 * The value is exact unless a tempo change sits in between.
+	 */
+	public long peekFrame() {
+
+		long earliest = TRACK_DONE;
+		for (int i = 0; i < trackCount; i++) {
+			if (nextTick[i] < earliest) {
+				earliest = nextTick[i];
+			}
+		}
+		return (earliest == TRACK_DONE) ? Long.MAX_VALUE : tickToFrame(earliest);
+	}
+
+	/**
+	 * Return the sample frame at which the current event sounds
+	 *
+	 * @return Frame relative to the start of the file
+	 */
+	public long getFrame() {
+
+		return frame;
+	}
+
+	/**
+	 * Return the tick of the current event
+	 *
+	 * @return Absolute tick count
+	 */
+	public long getTick() {
+
+		return tick;
+	}
+
+	/**
+	 * Return the index of the track the current event came from
+	 *
+	 * @return Track index
+	 */
+	public int getTrack() {
+
+		return track;
+	}
+
+	/**
+	 * Return the status byte of the current event
+	 *
+	 * @return Status byte including the channel
+	 */
+	public int getStatus() {
+
+		return status;
+	}
+
+	/**
+	 * Return the command of the current event, e.g. ShortMessage.NOTE_ON
+	 *
+	 * @return Status with the channel bits cleared
+	 */
+	public int getCommand() {
+
+		return status & 0xF0;
+	}
+
+	/**
+	 * Return the channel of the current event
+	 *
+	 * @return Channel between 0 and 15
+	 */
+	public int getChannel() {
+
+		return status & 0x0F;
+	}
+
+	/**
+	 * Return the first data byte of the current event
+	 *
+	 * @return Data byte between 0 and 127
+	 */
+	public int getData1() {
+
+		return data1;
+	}
+
+	/**
+	 * Return the second data byte of the current event
+	 *
+	 * @return Data byte between 0 and 127
+	 */
+	public int getData2() {
+
+		return data2;
+	}
+
+	/**
+	 * Convert an absolute tick to a frame using the current tempo segment
+	 *
+	 * @param t Tick to convert
+	 *
+	 * @return Frame at the sample rate
+	 */
+	private long tickToFrame(long t) {
+
+		return (long) (tempoFrame + ((t - tempoTick) * framesPerTick) + 0.5);
+	}
+
+	/**
+	 * Start a new tempo segment
+	 *
+	 * @param t Tick at which the tempo changes
+	 * @param usecsPerQuarter New tempo in microseconds per quarter note
+	 */
+	private void changeTempo(long t, int usecsPerQuarter) {
+
+		tempoFrame += (t - tempoTick) * framesPerTick;
+		tempoTick = t;
+		setTempo(usecsPerQuarter);
+	}
+
+	/**
+	 * Recalculate frames per tick for a tempo
+	 *
+	 * @param usecsPerQuarter Tempo in microseconds per quarter note
+	 */
+	private void setTempo(int usecsPerQuarter) {
+
+		if (division > 0) {
+			framesPerTick = (usecsPerQuarter * 1.0e-6 * SamplePlayer.SAMPLE_RATE) / division;
+		}	else	{
+			// SMPTE timing; tempo events do not apply
+			int framesPerSecond = -(division >> 8);
+			int ticksPerFrame = division & 0xFF;
+			double smpteRate = (framesPerSecond == 29) ? 29.97 : framesPerSecond;
+			framesPerTick = SamplePlayer.SAMPLE_RATE / (smpteRate * ticksPerFrame);
+		}
+	}
+
+	/**
+	 * Read a byte of the current track at readPosition, advancing it
+	 *
+	 * @return Byte value, or 0 with overrun set at the end of the track
+	 */
+	private int readByte() {
+
+		if (readPosition >= readEnd) {
+			overrun = true;
+			return 0;
+		}
+		return data.get(readPosition++) & 0xFF;
+	}
+
+	/**
+	 * Skip bytes of the current track, setting overrun if they run past its end
+	 *
+	 * @param count Count of bytes to skip
+	 */
+	private void skip(int count) {
+
+		if (count > readEnd - readPosition) {
+			overrun = true;
+			readPosition = readEnd;
+		}	else	{
+			readPosition += count;
+		}
+	}
+
+	/**
+	 * Read a variable length quantity at readPosition, advancing it
+	 *
+	 * @return Decoded value
+	 */
+	private int readVariableLength() {
+
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			int b = readByte();
+			value = (value << 7) | (b & 0x7F);
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		return value;
+	}
+
+	// Instance data
+	private final ByteBuffer data;
+	private final int [] trackStart;
+	private final int [] trackEnd;
+	private final int trackCount;
+	private final int division;
+	private final int [] position;
+	private final long [] nextTick;
+	private final int [] runningStatus;
+	private int readPosition;
+	private int readEnd;
+	private boolean overrun;
+
+	private long tempoTick;
+	private double tempoFrame;
+	private double framesPerTick;
+
+	private long tick;
+	private long frame;
+	private int track;
+	private int status;
+	private int data1;
+	private int data2;
+}
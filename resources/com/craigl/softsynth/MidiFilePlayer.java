@@ -0,0 +1,214 @@
+package com.craigl.softsynth;
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * This class plays Standard MIDI Files through an oscillator, VCA and VCF.
+ * <p>
+ * Like the MusicPlayer, a MidiFilePlayer sits in the signal chain and<br>
+ * passes through the samples of the previous provider. Each time a buffer<br>
+ * is requested it pulls the events due within that buffer from a<br>
+ * MidiEventCursor and schedules the oscillator frequency and noteOn/noteOff<br>
+ * events in its modules at their own samples within the buffer, so several<br>
+ * notes may fall in one buffer. Timing is therefore derived from the sample<br>
+ * stream and works identically in realtime and offline rendering.
+ * <p>
+ * The modules form a single monophonic voice; the most recent note wins.
+ */
+public class MidiFilePlayer implements SampleProviderIntfc, SilenceIntfc {
+
+
+	public static final int OMNI = -1;
+
+	/**
+	 * MidiFilePlayer Class Constructor
+	 *
+	 * @param osc Reference to the oscillator instance used to play the file
+	 * @param vca Reference to the VCA that is controlling note sound durations; if any.
+	 * @param vcf Reference to the VCF that is altering the sound; if any.
+	 * @param cursor Cursor over the events to play
+	 */
+	public MidiFilePlayer(BasicOscillator osc, VCA vca, VCF vcf, MidiEventCursor cursor) {
+
+		// Save incoming
+		this.osc = osc;
+		this.vca = vca;
+		this.vcf = vcf;
+		this.cursor = cursor;
+
+		channel = OMNI;
+		currentNote = -1;
+	}
+
+	/**
+	 * Select the MIDI channel to play
+	 *
+	 * @param channel Channel between 0 and 15 or OMNI for all channels
+	 */
+	public void setChannel(int channel) {
+
+		this.channel = channel;
+	}
+
+	/**
+	 * Return whether all events of the file have been played
+	 *
+	 * @return true once the cursor is exhausted
+	 */
+	public boolean isFinished() {
+
+		return finished;
+	}
+
+	/**
+	 * Rewind to the start of the file
+	 */
+	public void rewind() {
+
+		cursor.reset();
+		framePosition = 0;
+		pending = false;
+		finished = false;
+	}
+
+	/**
+	 * Apply all events due in the coming buffer, then return the samples<br>
+	 * of the previous sample provider in the chain.
+	 *
+	 * @param buffer Buffer in which the samples are to be processed
+	 *
+	 * @return Count of number of bytes processed
+	 */
+	public int getSamples(byte [] buffer) {
+
+		long blockEnd = framePosition + SamplePlayer.SAMPLES_PER_BUFFER;
+
+		while (! finished) {
+			if (! pending) {
+				if (! cursor.next()) {
+					finished = true;
+					break;
+				}
+				pending = true;
+			}
+			if (cursor.getFrame() >= blockEnd) {
+				break;
+			}
+			applyEvent();
+			pending = false;
+		}
+		framePosition = blockEnd;
+
+		// Return the samples from the previous provider in the chain
+		return provider.getSamples(buffer);
+	}
+
+	/**
+	 * Send the cursor's current event to the modules
+	 */
+	private void applyEvent() {
+
+		if ((channel != OMNI) && (cursor.getChannel() != channel)) {
+			return;
+		}
+		int command = cursor.getCommand();
+		int mnn = cursor.getData1();
+
+		// Place the event at its own sample within the coming buffer
+		int offset = (int) Math.max(0, cursor.getFrame() - framePosition);
+
+		if ((command == ShortMessage.NOTE_ON) && (cursor.getData2() > 0)) {
+			osc.setFrequency(midiNoteNumberToFrequency(mnn), offset);
+			currentNote = mnn;
+			if (vca != null) {
+				vca.noteOn(offset);
+			}
+			if (vcf != null) {
+				vcf.noteOn(offset);
+			}
+			if (matrix != null) {
+				matrix.noteOn(mnn, cursor.getData2(), offset);
+			}
+		}	else if ((command == ShortMessage.NOTE_OFF) || (command == ShortMessage.NOTE_ON)) {
+			// Only releasing the sounding note ends it
+			if (mnn == currentNote) {
+				currentNote = -1;
+				if (vca != null) {
+					vca.noteOff(offset);
+				}
+				if (vcf != null) {
+					vcf.noteOff(offset);
+				}
+				if (matrix != null) {
+					matrix.noteOff(offset);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set the tuning notes are played in
+	 *
+	 * @param tuning Tuning shared with other players; Tuning.EQUAL_TEMPERAMENT by default
+	 */
+	public void setTuning(Tuning tuning) {
+
+		this.tuning = tuning;
+	}
+
+	/**
+	 * Method that converts midi note numbers to actual frequency in Hz
+	 *
+	 * @param mnn Midi note number to resolve
+	 *
+	 * @return Frequency in Hz which corresponds to the mnn.
+	 */
+	private double midiNoteNumberToFrequency(int mnn) {
+
+		// Precomputed by the tuning
+		return tuning.getFrequency(mnn);
+	}
+
+	/**
+	 * Set the modulation matrix receiving note, velocity and gate
+	 *
+	 * @param matrix The matrix whose envelopes and note sources follow the notes played or null
+	 */
+	public void setModulationMatrix(ModulationMatrix matrix) {
+
+		this.matrix = matrix;
+	}
+
+	/**
+	 * Setup the provider of samples
+	 *
+	 * @param provider The provider of samples for this MidiFilePlayer
+	 */
+	public void setSampleProvider(SampleProviderIntfc provider) {
+		this.provider = provider;
+	}
+
+	/**
+	 * Return whether the last buffer was silent
+	 *
+	 * @return true if the previous provider in the chain reported silence
+	 */
+	public boolean isSilent() {
+
+		return Silence.isSilent(provider);
+	}
+
+	// Instance data
+	private Tuning tuning = Tuning.EQUAL_TEMPERAMENT;
+	private BasicOscillator osc;
+	private VCA vca;
+	private VCF vcf;
+	private ModulationMatrix matrix;
+	private MidiEventCursor cursor;
+	private int channel;
+	private int currentNote;
+	private long framePosition;
+	private boolean pending;
+	private boolean finished;
+	private SampleProviderIntfc provider;
+}
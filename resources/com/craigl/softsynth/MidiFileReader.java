@@ -0,0 +1,162 @@
+package com.craigl.softsynth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Standard MIDI File Reader
+ * <p>
+ * Reads format 0 and format 1 Standard MIDI Files. The file is memory<br>
+ * mapped and only the chunk headers are examined when it is opened; the<br>
+ * events themselves are decoded lazily by a MidiEventCursor as playback<br>
+ * reaches them, so even very large files are never expanded into objects.
+ * <p>
+ * Any number of independent cursors may be created over the same file.
+ */
+
+public class MidiFileReader {
+
+	private static final int HEADER_CHUNK_ID = 0x4D546864;	// "MThd"
+	private static final int TRACK_CHUNK_ID  = 0x4D54726B;	// "MTrk"
+
+	/**
+	 * MidiFileReader Class Constructor
+	 * <p>
+	 * Maps the given file read only.
+	 *
+	 * @param file Standard MIDI File to read
+	 *
+	 * @throws IOException If the file cannot be read or is not a supported MIDI file
+	 */
+	public MidiFileReader(File file) throws IOException {
+
+		this(map(file));
+	}
+
+	/**
+	 * MidiFileReader Class Constructor
+	 *
+	 * @param data Contents of a Standard MIDI File
+	 *
+	 * @throws IOException If the data is not a supported MIDI file
+	 */
+	public MidiFileReader(ByteBuffer data) throws IOException {
+
+		this.data = data;
+
+		if ((data.limit() < 14) || (data.getInt(0) != HEADER_CHUNK_ID)) {
+			throw new IOException("Not a Standard MIDI File");
+		}
+		int headerLength = data.getInt(4);
+		format = data.getShort(8) & 0xFFFF;
+		int declaredTracks = data.getShort(10) & 0xFFFF;
+		division = data.getShort(12);
+
+		if (format > 1) {
+			throw new IOException("MIDI file format " + format + " is not supported");
+		}
+		if (division == 0) {
+			throw new IOException("Invalid MIDI time division");
+		}
+		if ((headerLength < 6) || (headerLength > data.limit() - 8)) {
+			throw new IOException("Invalid MIDI header length " + headerLength);
+		}
+
+		// Locate the track chunks without decoding them
+		trackStart = new int[declaredTracks];
+		trackEnd = new int[declaredTracks];
+		int count = 0;
+		int position = 8 + headerLength;
+		while ((count < declaredTracks) && (position <= data.limit() - 8)) {
+			int id = data.getInt(position);
+			int length = data.getInt(position + 4);
+
+			// Compared against the room left so the sum cannot overflow
+			if ((length < 0) || (length > data.limit() - position - 8)) {
+				throw new IOException("Truncated MIDI file");
+			}
+			if (id == TRACK_CHUNK_ID) {
+				trackStart[count] = position + 8;
+				trackEnd[count] = position + 8 + length;
+				count++;
+			}
+			position += 8 + length;
+		}
+		trackCount = count;
+	}
+
+	/**
+	 * Return the file format
+	 *
+	 * @return 0 for a single track file; 1 for a multiple track file
+	 */
+	public int getFormat() {
+
+		return format;
+	}
+
+	/**
+	 * Return the number of track chunks found in the file
+	 *
+	 * @return Track count
+	 */
+	public int getTrackCount() {
+
+		return trackCount;
+	}
+
+	/**
+	 * Return the raw time division from the file header.
+	 * <p>
+	 * Positive values are ticks per quarter note; negative values encode<br>
+	 * SMPTE frames per second in the high byte and ticks per frame in the low byte.
+	 *
+	 * @return Time division
+	 */
+	public int getDivision() {
+
+		return division;
+	}
+
+	/**
+	 * Create a new cursor positioned at the start of the file
+	 *
+	 * @return Cursor over the file's events in time order
+	 */
+	public MidiEventCursor newCursor() {
+
+		return new MidiEventCursor(data, trackStart, trackEnd, trackCount, division);
+	}
+
+	/**
+	 * Map a file into memory read only
+	 *
+	 * @param file File to map
+	 *
+	 * @return Buffer over the file's contents
+	 *
+	 * @throws IOException If the file cannot be mapped
+	 */
+	private static ByteBuffer map(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// The mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	// Instance data
+	private final ByteBuffer data;
+	private final int format;
+	private final int division;
+	private final int trackCount;
+	private final int [] trackStart;
+	private final int [] trackEnd;
+}
@@ -0,0 +1,413 @@
+package com.craigl.softsynth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+
+/**
+ * This class plays live MIDI input through an oscillator, VCA and VCF.
+ * <p>
+ * A MidiInputPlayer is a javax.sound.midi Receiver. Note on, note off and<br>
+ * control change messages are time stamped on arrival and queued in a<br>
+ * lock-free ring. It is also a sample provider that sits in the signal<br>
+ * chain like the MusicPlayer. Rendered frames are kept on a frame clock:<br>
+ * frame n stands for the time the clock started plus n frame periods.<br>
+ * An event is scheduled at the frame of its time stamp plus a constant<br>
+ * delay of one buffer, so it keeps its place relative to the other<br>
+ * events however irregularly the buffers are pulled. Events for frames<br>
+ * beyond the coming buffer wait in the queue for their buffer.
+ * <p>
+ * The frame clock follows the pulls: when buffers are rendered ahead of<br>
+ * the time they stand for, e.g. while a line fills or offline, or fall<br>
+ * more than a buffer behind it after a stall, the clock is moved by the<br>
+ * difference so events are neither all late nor held back.
+ * <p>
+ * When a transmitter supplies MIDI time stamps those are used instead of<br>
+ * the arrival time. For headless use, connect any Transmitter (or call<br>
+ * send directly) and pull buffers without a SamplePlayer.
+ * <p>
+ * The latency from arrival of a message until its sample is rendered,<br>
+ * plus the configured output latency, is collected as a metric.
+ * <p>
+ * The modules form a single monophonic voice; the most recent note wins.
+ */
+public class MidiInputPlayer implements Receiver, SampleProviderIntfc, SilenceIntfc {
+
+
+	private static final int QUEUE_SIZE = 1024;
+	private static final int CC_ALL_NOTES_OFF = 123;
+	private static final double NANOS_PER_SAMPLE = 1.0e9 / SamplePlayer.SAMPLE_RATE;
+
+	public static final int OMNI = -1;
+	public static final int CONTROLLER_COUNT = 128;
+
+	/**
+	 * MidiInputPlayer Class Constructor
+	 *
+	 * @param osc Reference to the oscillator instance used to play notes
+	 * @param vca Reference to the VCA that is controlling note sound durations; if any.
+	 * @param vcf Reference to the VCF that is altering the sound; if any.
+	 */
+	public MidiInputPlayer(BasicOscillator osc, VCA vca, VCF vcf) {
+
+		// Save incoming
+		this.osc = osc;
+		this.vca = vca;
+		this.vcf = vcf;
+
+		channel = OMNI;
+		currentNote = -1;
+		clockOffsetNanos = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Connect a transmitter, e.g. of a MIDI input device, to this player
+	 *
+	 * @param transmitter Source of MIDI messages
+	 */
+	public void connect(Transmitter transmitter) {
+
+		transmitter.setReceiver(this);
+	}
+
+	/**
+	 * Select the MIDI channel to respond to
+	 *
+	 * @param channel Channel between 0 and 15 or OMNI for all channels
+	 */
+	public void setChannel(int channel) {
+
+		this.channel = channel;
+	}
+
+	/**
+	 * Set the latency of the output path after rendering, e.g. the line buffer.
+	 * <p>
+	 * Added to the measured latencies so they represent input to sound.
+	 *
+	 * @param ms Output latency in milliseconds
+	 */
+	public void setOutputLatencyInMs(double ms) {
+
+		outputLatencyNanos = (long) (ms * 1.0e6);
+	}
+
+	/**
+	 * Queue a MIDI message. Called by the transmitter's thread.
+	 *
+	 * @param message The MIDI message
+	 * @param timeStamp Time stamp in microseconds or -1 if not supported
+	 */
+	public synchronized void send(MidiMessage message, long timeStamp) {
+
+		long arrival = System.nanoTime();
+
+		if (! (message instanceof ShortMessage)) {
+			return;
+		}
+		ShortMessage sm = (ShortMessage) message;
+		int command = sm.getCommand();
+		if ((command != ShortMessage.NOTE_ON) && (command != ShortMessage.NOTE_OFF) &&
+			(command != ShortMessage.CONTROL_CHANGE)) {
+			return;
+		}
+
+		// Place device time stamps on the nanoTime clock. The smallest offset
+		// seen belongs to the message that was delivered with least delay.
+		long eventTime = arrival;
+		if (timeStamp >= 0) {
+			long offset = arrival - (timeStamp * 1000L);
+			if (offset < clockOffsetNanos) {
+				clockOffsetNanos = offset;
+			}
+			eventTime = (timeStamp * 1000L) + clockOffsetNanos;
+		}
+
+		long t = tail.get();
+		if (t - head.get() >= QUEUE_SIZE) {
+			droppedMessages++;
+			return;
+		}
+		int slot = (int) (t & (QUEUE_SIZE - 1));
+		messages[slot] = sm.getStatus() | (sm.getData1() << 8) | (sm.getData2() << 16);
+		eventTimes[slot] = eventTime;
+		arrivalTimes[slot] = arrival;
+		tail.lazySet(t + 1);
+	}
+
+	/**
+	 * Close the receiver. Queued messages are discarded.
+	 */
+	public void close() {
+
+		head.set(tail.get());
+	}
+
+	/**
+	 * Schedule the messages whose frames fall within the coming buffer,<br>
+	 * then return the samples of the previous sample provider in the chain.
+	 *
+	 * @param buffer Buffer in which the samples are to be processed
+	 *
+	 * @return Count of number of bytes processed
+	 */
+	public int getSamples(byte [] buffer) {
+
+		long blockStart = System.nanoTime();
+
+		// Keep the buffer's time on the frame clock within a buffer before now
+		long bufferNanos = (long) (SamplePlayer.SAMPLES_PER_BUFFER * NANOS_PER_SAMPLE);
+		long frameTime = clockStartNanos + (long) (framesRendered * NANOS_PER_SAMPLE);
+		if ((framesRendered == 0) || (frameTime > blockStart)) {
+			clockStartNanos = blockStart - (long) (framesRendered * NANOS_PER_SAMPLE);
+		}	else if (frameTime < blockStart - bufferNanos) {
+			clockStartNanos = blockStart - bufferNanos - (long) (framesRendered * NANOS_PER_SAMPLE);
+		}
+
+		long h = head.get();
+		long t = tail.get();
+		while (h != t) {
+			int slot = (int) (h & (QUEUE_SIZE - 1));
+
+			// Frame of the event, one buffer after its time stamp
+			long frame = (long) Math.floor((eventTimes[slot] - clockStartNanos) / NANOS_PER_SAMPLE) + SamplePlayer.SAMPLES_PER_BUFFER;
+			long offset = frame - framesRendered;
+			if (offset >= SamplePlayer.SAMPLES_PER_BUFFER) {
+				break;
+			}
+			offset = (offset < 0) ? 0 : offset;
+
+			applyMessage(messages[slot], (int) offset);
+
+			long renderTime = clockStartNanos + (long) ((framesRendered + offset) * NANOS_PER_SAMPLE);
+			recordLatency(renderTime + outputLatencyNanos - arrivalTimes[slot]);
+			h++;
+		}
+		head.lazySet(h);
+		framesRendered += SamplePlayer.SAMPLES_PER_BUFFER;
+
+		// Return the samples from the previous provider in the chain
+		return provider.getSamples(buffer);
+	}
+
+	/**
+	 * Send a queued message to the modules
+	 *
+	 * @param packed Status and data bytes packed into an int
+	 * @param offset Sample offset within the coming buffer
+	 */
+	private void applyMessage(int packed, int offset) {
+
+		int status = packed & 0xFF;
+		int data1 = (packed >> 8) & 0x7F;
+		int data2 = (packed >> 16) & 0x7F;
+
+		if ((channel != OMNI) && ((status & 0x0F) != channel)) {
+			return;
+		}
+		int command = status & 0xF0;
+
+		if (command == ShortMessage.CONTROL_CHANGE) {
+			controllers[data1] = data2 / 127.0;
+			if ((data1 == CC_ALL_NOTES_OFF) && (currentNote >= 0)) {
+				releaseNote(offset);
+			}
+		}	else if ((command == ShortMessage.NOTE_ON) && (data2 > 0)) {
+			osc.setFrequency(midiNoteNumberToFrequency(data1), offset);
+			currentNote = data1;
+			if (vca != null) {
+				vca.noteOn(offset);
+			}
+			if (vcf != null) {
+				vcf.noteOn(offset);
+			}
+			if (matrix != null) {
+				matrix.noteOn(data1, data2, offset);
+			}
+		}	else if (data1 == currentNote) {
+			// Only releasing the sounding note ends it
+			releaseNote(offset);
+		}
+	}
+
+	/**
+	 * Release the sounding note
+	 *
+	 * @param offset Sample offset within the coming buffer
+	 */
+	private void releaseNote(int offset) {
+
+		currentNote = -1;
+		if (vca != null) {
+			vca.noteOff(offset);
+		}
+		if (vcf != null) {
+			vcf.noteOff(offset);
+		}
+		if (matrix != null) {
+			matrix.noteOff(offset);
+		}
+	}
+
+	/**
+	 * Accumulate a latency measurement. Audio thread only.
+	 *
+	 * @param nanos Measured latency in nanoseconds
+	 */
+	private void recordLatency(long nanos) {
+
+		latencyTotalNanos += nanos;
+		if (nanos > latencyMaxNanos) {
+			latencyMaxNanos = nanos;
+		}
+		latencyLastNanos = nanos;
+		latencyCount++;
+	}
+
+	/**
+	 * Return the most recent controller value received
+	 *
+	 * @param controller Controller number between 0 and CONTROLLER_COUNT - 1
+	 *
+	 * @return Controller value between 0.0 and 1.0
+	 */
+	public double getControllerValue(int controller) {
+
+		return controllers[controller];
+	}
+
+	/**
+	 * Return the number of events whose latency has been measured
+	 *
+	 * @return Measured event count
+	 */
+	public long getLatencyCount() {
+
+		return latencyCount;
+	}
+
+	/**
+	 * Return the mean input to sound latency
+	 *
+	 * @return Mean latency in milliseconds
+	 */
+	public double getMeanLatencyInMs() {
+
+		long n = latencyCount;
+		return (n == 0) ? 0.0 : (latencyTotalNanos / (double) n) * 1.0e-6;
+	}
+
+	/**
+	 * Return the maximum input to sound latency
+	 *
+	 * @return Maximum latency in milliseconds
+	 */
+	public double getMaxLatencyInMs() {
+
+		return latencyMaxNanos * 1.0e-6;
+	}
+
+	/**
+	 * Return the input to sound latency of the most recent event
+	 *
+	 * @return Latency in milliseconds
+	 */
+	public double getLastLatencyInMs() {
+
+		return latencyLastNanos * 1.0e-6;
+	}
+
+	/**
+	 * Return the number of messages dropped because the queue was full
+	 *
+	 * @return Dropped message count
+	 */
+	public long getDroppedMessageCount() {
+
+		return droppedMessages;
+	}
+
+	/**
+	 * Set the tuning notes are played in
+	 *
+	 * @param tuning Tuning shared with other players; Tuning.EQUAL_TEMPERAMENT by default
+	 */
+	public void setTuning(Tuning tuning) {
+
+		this.tuning = tuning;
+	}
+
+	/**
+	 * Method that converts midi note numbers to actual frequency in Hz
+	 *
+	 * @param mnn Midi note number to resolve
+	 *
+	 * @return Frequency in Hz which corresponds to the mnn.
+	 */
+	private double midiNoteNumberToFrequency(int mnn) {
+
+		// Precomputed by the tuning
+		return tuning.getFrequency(mnn);
+	}
+
+	/**
+	 * Set the modulation matrix receiving note, velocity and gate
+	 *
+	 * @param matrix The matrix whose envelopes and note sources follow the notes played or null
+	 */
+	public void setModulationMatrix(ModulationMatrix matrix) {
+
+		this.matrix = matrix;
+	}
+
+	/**
+	 * Setup the provider of samples
+	 *
+	 * @param provider The provider of samples for this MidiInputPlayer
+	 */
+	public void setSampleProvider(SampleProviderIntfc provider) {
+		this.provider = provider;
+	}
+
+	/**
+	 * Return whether the last buffer was silent
+	 *
+	 * @return true if the previous provider in the chain reported silence
+	 */
+	public boolean isSilent() {
+
+		return Silence.isSilent(provider);
+	}
+
+	// Instance data
+	private Tuning tuning = Tuning.EQUAL_TEMPERAMENT;
+	private BasicOscillator osc;
+	private VCA vca;
+	private VCF vcf;
+	private ModulationMatrix matrix;
+	private int channel;
+	private int currentNote;
+	private long clockStartNanos;
+	private long framesRendered;
+	private long outputLatencyNanos;
+	private final double [] controllers = new double[CONTROLLER_COUNT];
+	private SampleProviderIntfc provider;
+
+	// Message queue written by the transmitter and read by the audio thread
+	private final int [] messages = new int[QUEUE_SIZE];
+	private final long [] eventTimes = new long[QUEUE_SIZE];
+	private final long [] arrivalTimes = new long[QUEUE_SIZE];
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private long clockOffsetNanos;
+	private volatile long droppedMessages;
+
+	// Latency metrics written by the audio thread and read by any thread
+	private volatile long latencyCount;
+	private volatile long latencyTotalNanos;
+	private volatile long latencyMaxNanos;
+	private volatile long latencyLastNanos;
+}
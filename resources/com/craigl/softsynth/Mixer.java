@@ -0,0 +1,592 @@
+package com.craigl.softsynth;
+
+import java.util.Arrays;
+
+/**
+ * Mixer
+ * <p>
+ * Mixes up to CHANNELS_MAX channels into a master bus. Each channel has<br>
+ * a gain, a pan position and a send level to each of up to BUSES_MAX<br>
+ * effect buses. The sends of all channels to a bus are summed and fed<br>
+ * to one effect, whose output comes back through a return channel with<br>
+ * its own gain and pan and is summed into the master bus.
+ * <p>
+ * An effect on a bus is instantiated and run once however many channels<br>
+ * send to it, so effect cost grows with the number of buses rather than<br>
+ * the number of voices. A bus is wired like any other chain:
+ * <p>
+ * int bus = mixer.addBus();<br>
+ * delay.setSampleProvider(mixer.getSend(bus));<br>
+ * mixer.setReturn(bus, delay);
+ * <p>
+ * Sends are taken after the channel gain. Pan positions only apply when<br>
+ * the mixer is pulled as a stereo provider; returns that are stereo<br>
+ * providers themselves are then pulled in stereo. Silent channels are<br>
+ * skipped and a bus no channel sent to reports silence to its effect.
+ * <p>
+ * At the STEAL_VOICES quality stage the quieter half of the channels<br>
+ * that sounded in the last buffer, by peak level after the channel<br>
+ * gain, are stolen: a channel whose provider is an EnvelopeGenerator,<br>
+ * such as a VCA, is sent a noteOff to end its voice, and every stolen<br>
+ * channel fades out over one buffer. From then on a stolen channel is<br>
+ * no longer rendered; only an EnvelopeGenerator's envelope is advanced,<br>
+ * which is cheap, so the stolen note plays out its release unheard.<br>
+ * Other providers stand still. When quality recovers the channels are<br>
+ * rendered again and fade back in.
+ */
+
+public class Mixer implements SampleProviderIntfc, StereoSampleProviderIntfc, SilenceIntfc, QualityIntfc {
+
+	public static final int CHANNELS_MAX = 32;
+	public static final int BUSES_MAX    =  8;
+
+	public static final double GAIN_MIN     = 0.0;
+	public static final double GAIN_MAX     = 2.0;
+	public static final double GAIN_DEFAULT = 1.0;
+
+	public static final double PAN_MIN     = -1.0;
+	public static final double PAN_MAX     =  1.0;
+	public static final double PAN_DEFAULT =  0.0;
+
+	public static final double SEND_MIN = 0.0;
+	public static final double SEND_MAX = 1.0;
+
+	private static final int SAMPLES = SamplePlayer.SAMPLES_PER_BUFFER;
+
+	/**
+	 * Mixer Class Constructor
+	 * <p>
+	 * Creates a mixer with no channels or buses and unity master gain
+	 */
+	public Mixer() {
+
+		setMasterGain(GAIN_DEFAULT);
+	}
+
+	/**
+	 * Add a channel
+	 * <p>
+	 * The channel starts at GAIN_DEFAULT, PAN_DEFAULT and no sends.
+	 *
+	 * @param provider The provider of the channel's samples
+	 *
+	 * @return Index of the channel
+	 */
+	public int addChannel(SampleProviderIntfc provider) {
+
+		if (channelCount == CHANNELS_MAX) {
+			throw new IllegalStateException("Mixer has no free channel");
+		}
+		int channel = channelCount++;
+		providers[channel] = provider;
+		channelGains[channel] = GAIN_DEFAULT;
+		channelPans[channel] = PAN_DEFAULT;
+		channelFades[channel] = 1.0;
+		updateChannel(channel);
+		return channel;
+	}
+
+	/**
+	 * Add an effect bus
+	 * <p>
+	 * The bus has no return until one is set.
+	 *
+	 * @return Index of the bus
+	 */
+	public int addBus() {
+
+		if (busCount == BUSES_MAX) {
+			throw new IllegalStateException("Mixer has no free bus");
+		}
+		int bus = busCount++;
+		sends[bus] = new Send(bus);
+		returnGains[bus] = GAIN_DEFAULT;
+		returnPans[bus] = PAN_DEFAULT;
+		updateReturn(bus);
+		return bus;
+	}
+
+	/**
+	 * Return the provider of a bus's summed sends
+	 *
+	 * @param bus Index of the bus
+	 *
+	 * @return Provider to set as the sample provider of the bus's effect
+	 */
+	public SampleProviderIntfc getSend(int bus) {
+
+		return sends[checkBus(bus)];
+	}
+
+	/**
+	 * Set the return of a bus
+	 *
+	 * @param bus Index of the bus
+	 * @param provider The effect pulling from the bus's send or null for none
+	 */
+	public void setReturn(int bus, SampleProviderIntfc provider) {
+
+		returns[checkBus(bus)] = provider;
+	}
+
+	/**
+	 * Set the gain of a channel
+	 *
+	 * @param channel Index of the channel
+	 * @param gain Gain between GAIN_MIN and GAIN_MAX
+	 */
+	public void setChannelGain(int channel, double gain) {
+
+		gain = (gain < GAIN_MIN) ? GAIN_MIN : gain;
+		gain = (gain > GAIN_MAX) ? GAIN_MAX : gain;
+
+		channelGains[checkChannel(channel)] = gain;
+		updateChannel(channel);
+	}
+
+	/**
+	 * Set the pan position of a channel
+	 *
+	 * @param channel Index of the channel
+	 * @param pan Position between PAN_MIN for hard left and PAN_MAX for hard right
+	 */
+	public void setChannelPan(int channel, double pan) {
+
+		pan = (pan < PAN_MIN) ? PAN_MIN : pan;
+		pan = (pan > PAN_MAX) ? PAN_MAX : pan;
+
+		channelPans[checkChannel(channel)] = pan;
+		updateChannel(channel);
+	}
+
+	/**
+	 * Set the level a channel sends to a bus
+	 *
+	 * @param channel Index of the channel
+	 * @param bus Index of the bus
+	 * @param level Level between SEND_MIN and SEND_MAX
+	 */
+	public void setSendLevel(int channel, int bus, double level) {
+
+		level = (level < SEND_MIN) ? SEND_MIN : level;
+		level = (level > SEND_MAX) ? SEND_MAX : level;
+
+		sendLevels[checkChannel(channel) * BUSES_MAX + checkBus(bus)] = level;
+		updateChannel(channel);
+	}
+
+	/**
+	 * Set the gain of a bus's return
+	 *
+	 * @param bus Index of the bus
+	 * @param gain Gain between GAIN_MIN and GAIN_MAX
+	 */
+	public void setReturnGain(int bus, double gain) {
+
+		gain = (gain < GAIN_MIN) ? GAIN_MIN : gain;
+		gain = (gain > GAIN_MAX) ? GAIN_MAX : gain;
+
+		returnGains[checkBus(bus)] = gain;
+		updateReturn(bus);
+	}
+
+	/**
+	 * Set the pan position of a bus's return
+	 * <p>
+	 * A stereo return is balanced rather than panned.
+	 *
+	 * @param bus Index of the bus
+	 * @param pan Position between PAN_MIN for hard left and PAN_MAX for hard right
+	 */
+	public void setReturnPan(int bus, double pan) {
+
+		pan = (pan < PAN_MIN) ? PAN_MIN : pan;
+		pan = (pan > PAN_MAX) ? PAN_MAX : pan;
+
+		returnPans[checkBus(bus)] = pan;
+		updateReturn(bus);
+	}
+
+	/**
+	 * Set the gain of the master bus
+	 *
+	 * @param gain Gain between GAIN_MIN and GAIN_MAX
+	 */
+	public void setMasterGain(double gain) {
+
+		gain = (gain < GAIN_MIN) ? GAIN_MIN : gain;
+		gain = (gain > GAIN_MAX) ? GAIN_MAX : gain;
+
+		masterGain = gain;
+	}
+
+	private int checkChannel(int channel) {
+
+		if ((channel < 0) || (channel >= channelCount)) {
+			throw new IndexOutOfBoundsException("Mixer channel " + channel);
+		}
+		return channel;
+	}
+
+	private int checkBus(int bus) {
+
+		if ((bus < 0) || (bus >= busCount)) {
+			throw new IndexOutOfBoundsException("Mixer bus " + bus);
+		}
+		return bus;
+	}
+
+	/**
+	 * Recalculate the channel gains of a channel
+	 */
+	private void updateChannel(int channel) {
+
+		double gain = channelGains[channel];
+		channelLeftGains[channel] = gain * panLeft(channelPans[channel]);
+		channelRightGains[channel] = gain * panRight(channelPans[channel]);
+
+		// Sends are after the channel gain
+		boolean sending = false;
+		for (int b = 0; b < BUSES_MAX; b++) {
+			int k = channel * BUSES_MAX + b;
+			sendGains[k] = gain * sendLevels[k];
+			sending |= (sendGains[k] != 0.0);
+		}
+		channelSending[channel] = sending;
+	}
+
+	/**
+	 * Recalculate the channel gains of a return
+	 */
+	private void updateReturn(int bus) {
+
+		returnLeftGains[bus] = returnGains[bus] * panLeft(returnPans[bus]);
+		returnRightGains[bus] = returnGains[bus] * panRight(returnPans[bus]);
+	}
+
+	// Equal power pan law; unity in both channels at the center
+	private static double panLeft(double pan) {
+
+		return Math.cos((pan + 1.0) * Math.PI / 4.0) * Math.sqrt(2.0);
+	}
+
+	private static double panRight(double pan) {
+
+		return Math.sin((pan + 1.0) * Math.PI / 4.0) * Math.sqrt(2.0);
+	}
+
+	/**
+	 * Mix the channels and returns of a buffer into the master bus
+	 *
+	 * @param stereo If true separate left and right mixes are rendered
+	 */
+	private void render(boolean stereo) {
+
+		double [] l = left;
+		double [] r = right;
+		double [] x = input;
+
+		Arrays.fill(l, 0.0);
+		if (stereo) {
+			Arrays.fill(r, 0.0);
+		}
+		for (int b = 0; b < busCount; b++) {
+			if (busActive[b]) {
+				Arrays.fill(busMixes[b], 0.0);
+				busActive[b] = false;
+			}
+		}
+
+		// Channels into the master bus and the effect buses
+		for (int c = 0; c < channelCount; c++) {
+			SampleProviderIntfc provider = providers[c];
+
+			// Stolen and faded out; not rendered, an envelope only keeps its time
+			double fade = channelFades[c];
+			double fadeTo = stolen[c] ? 0.0 : 1.0;
+			if ((fade == 0.0) && (fadeTo == 0.0)) {
+				if (provider instanceof EnvelopeGenerator) {
+					((EnvelopeGenerator) provider).getValue(SAMPLES);
+				}
+				channelLevels[c] = 0.0;
+				continue;
+			}
+			provider.getSamples(scratch);
+			if (Silence.isSilent(provider)) {
+				channelFades[c] = fadeTo;
+				channelLevels[c] = 0.0;
+				continue;
+			}
+			PcmCodec.unpack(scratch, x, SAMPLES);
+			channelLevels[c] = channelGains[c] * peak(x);
+
+			// Fade over the buffer when the channel is stolen or given back
+			if (fade != fadeTo) {
+				double step = (fadeTo - fade) / SAMPLES;
+				for (int i = 0; i < SAMPLES; i++) {
+					fade += step;
+					x[i] *= fade;
+				}
+				channelFades[c] = fadeTo;
+			}
+
+			double gl = stereo ? channelLeftGains[c] : channelGains[c];
+			double gr = channelRightGains[c];
+			for (int i = 0; i < SAMPLES; i++) {
+				l[i] += gl * x[i];
+			}
+			if (stereo) {
+				for (int i = 0; i < SAMPLES; i++) {
+					r[i] += gr * x[i];
+				}
+			}
+			if (channelSending[c]) {
+				for (int b = 0; b < busCount; b++) {
+					double g = sendGains[c * BUSES_MAX + b];
+					if (g == 0.0) {
+						continue;
+					}
+					double [] mix = busMixes[b];
+					for (int i = 0; i < SAMPLES; i++) {
+						mix[i] += g * x[i];
+					}
+					busActive[b] = true;
+				}
+			}
+		}
+
+		// Each effect runs once on its bus and returns into the master bus
+		for (int b = 0; b < busCount; b++) {
+			SampleProviderIntfc ret = returns[b];
+			if (ret == null) {
+				continue;
+			}
+			if (stereo && (ret instanceof StereoSampleProviderIntfc)) {
+				((StereoSampleProviderIntfc) ret).getSamples(scratch, scratchRight);
+				if (Silence.isSilent(ret)) {
+					continue;
+				}
+				PcmCodec.unpack(scratch, x, SAMPLES);
+				double gl = returnLeftGains[b];
+				for (int i = 0; i < SAMPLES; i++) {
+					l[i] += gl * x[i];
+				}
+				PcmCodec.unpack(scratchRight, x, SAMPLES);
+				double gr = returnRightGains[b];
+				for (int i = 0; i < SAMPLES; i++) {
+					r[i] += gr * x[i];
+				}
+			}	else	{
+				ret.getSamples(scratch);
+				if (Silence.isSilent(ret)) {
+					continue;
+				}
+				PcmCodec.unpack(scratch, x, SAMPLES);
+				double gl = stereo ? returnLeftGains[b] : returnGains[b];
+				double gr = returnRightGains[b];
+				for (int i = 0; i < SAMPLES; i++) {
+					l[i] += gl * x[i];
+				}
+				if (stereo) {
+					for (int i = 0; i < SAMPLES; i++) {
+						r[i] += gr * x[i];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set whether TPDF dither is added when the master bus is quantized
+	 * <p>
+	 * Sends to the effect buses are never dithered.
+	 *
+	 * @param dither true to dither the master bus
+	 */
+	public void setDither(boolean dither) {
+
+		master = new PcmCodec(PcmCodec.ENCODING.PCM_16, true, dither);
+	}
+
+	/**
+	 * Return whether the master bus is dithered
+	 *
+	 * @return true if TPDF dither is added
+	 */
+	public boolean isDithered() {
+
+		return master.isDithered();
+	}
+
+	/**
+	 * Set the quality stage to render at
+	 *
+	 * @param stage Stage; at STEAL_VOICES the quieter channels are stolen
+	 */
+	public void setQualityStage(QualityController.STAGE stage) {
+
+		boolean steal = stage.compareTo(QualityController.STAGE.STEAL_VOICES) >= 0;
+		if (steal && (! stealing)) {
+			stealQuietest();
+		}	else if ((! steal) && stealing) {
+			Arrays.fill(stolen, false);
+		}
+		stealing = steal;
+	}
+
+	/**
+	 * Steal the quieter half of the channels that sounded in the last buffer
+	 */
+	private void stealQuietest() {
+
+		int sounding = 0;
+		for (int c = 0; c < channelCount; c++) {
+			if (channelLevels[c] > 0.0) {
+				sounding++;
+			}
+		}
+		int keep = (sounding + 1) / 2;
+		for (int c = 0; c < channelCount; c++) {
+			double level = channelLevels[c];
+			if (level == 0.0) {
+				continue;
+			}
+			// Rank by level; ties go to the lower channel
+			int louder = 0;
+			for (int o = 0; o < channelCount; o++) {
+				if ((channelLevels[o] > level) || ((channelLevels[o] == level) && (o < c))) {
+					louder++;
+				}
+			}
+			stolen[c] = (louder >= keep);
+
+			// End the voice so it does not play on unheard
+			if (stolen[c] && (providers[c] instanceof EnvelopeGenerator)) {
+				((EnvelopeGenerator) providers[c]).noteOff();
+			}
+		}
+	}
+
+	/**
+	 * Return the peak magnitude of normalized samples
+	 */
+	private static double peak(double [] samples) {
+
+		double peak = 0.0;
+		for (int i = 0; i < SAMPLES; i++) {
+			double a = Math.abs(samples[i]);
+			peak = (a > peak) ? a : peak;
+		}
+		return peak;
+	}
+
+	/**
+	 * Get a buffer of the master bus mixed to mono
+	 *
+	 * @param buffer Array to fill with samples
+	 *
+	 * @return Count of bytes produced.
+	 */
+	public int getSamples(byte [] buffer) {
+
+		render(false);
+		silent = master.encode(left, 0, SAMPLES, masterGain, buffer, 0);
+
+		return SamplePlayer.BUFFER_SIZE;
+	}
+
+	/**
+	 * Get a pair of buffers of the master bus
+	 *
+	 * @param leftBuffer Array to fill with left channel samples
+	 * @param rightBuffer Array to fill with right channel samples
+	 *
+	 * @return Count of bytes produced per channel
+	 */
+	public int getSamples(byte [] leftBuffer, byte [] rightBuffer) {
+
+		render(true);
+		silent = master.encode(left, 0, SAMPLES, masterGain, leftBuffer, 0) & master.encode(right, 0, SAMPLES, masterGain, rightBuffer, 0);
+
+		return SamplePlayer.BUFFER_SIZE;
+	}
+
+	/**
+	 * Return whether the last buffer was silent
+	 *
+	 * @return true if the last buffer was silent
+	 */
+	public boolean isSilent() {
+
+		return silent;
+	}
+
+	/**
+	 * The summed sends of one bus, pulled by the bus's effect
+	 */
+	private class Send implements SampleProviderIntfc, SilenceIntfc {
+
+		Send(int bus) {
+			this.bus = bus;
+		}
+
+		public int getSamples(byte [] buffer) {
+
+			if (busActive[bus]) {
+				silent = PcmCodec.pack(busMixes[bus], 1.0, buffer, SAMPLES);
+			}	else	{
+				Arrays.fill(buffer, (byte) 0);
+				silent = true;
+			}
+			return SamplePlayer.BUFFER_SIZE;
+		}
+
+		public boolean isSilent() {
+
+			return silent;
+		}
+
+		private final int bus;
+		private boolean silent;
+	}
+
+	// Instance data
+	private int channelCount;
+	private int busCount;
+	private double masterGain;
+	private volatile PcmCodec master = new PcmCodec(PcmCodec.ENCODING.PCM_16, true, false);
+	private boolean silent;
+
+	// Channel state, one element per channel
+	private final SampleProviderIntfc [] providers = new SampleProviderIntfc[CHANNELS_MAX];
+	private final double [] channelGains = new double[CHANNELS_MAX];
+	private final double [] channelPans = new double[CHANNELS_MAX];
+	private final double [] channelLeftGains = new double[CHANNELS_MAX];
+	private final double [] channelRightGains = new double[CHANNELS_MAX];
+	private final boolean [] channelSending = new boolean[CHANNELS_MAX];
+	private final double [] channelLevels = new double[CHANNELS_MAX];
+	private final boolean [] stolen = new boolean[CHANNELS_MAX];
+	private final double [] channelFades = new double[CHANNELS_MAX];
+	private boolean stealing;
+
+	// Send levels and gains, BUSES_MAX elements per channel
+	private final double [] sendLevels = new double[CHANNELS_MAX * BUSES_MAX];
+	private final double [] sendGains = new double[CHANNELS_MAX * BUSES_MAX];
+
+	// Bus state, one element per bus
+	private final Send [] sends = new Send[BUSES_MAX];
+	private final double [][] busMixes = new double[BUSES_MAX][SAMPLES];
+	private final boolean [] busActive = new boolean[BUSES_MAX];
+	private final SampleProviderIntfc [] returns = new SampleProviderIntfc[BUSES_MAX];
+	private final double [] returnGains = new double[BUSES_MAX];
+	private final double [] returnPans = new double[BUSES_MAX];
+	private final double [] returnLeftGains = new double[BUSES_MAX];
+	private final double [] returnRightGains = new double[BUSES_MAX];
+
+	// Working buffers
+	private final byte [] scratch = new byte[SamplePlayer.BUFFER_SIZE];
+	private final byte [] scratchRight = new byte[SamplePlayer.BUFFER_SIZE];
+	private final double [] input = new double[SAMPLES];
+	private final double [] left = new double[SAMPLES];
+	private final double [] right = new double[SAMPLES];
+}
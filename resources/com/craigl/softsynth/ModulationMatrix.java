@@ -0,0 +1,415 @@
+package com.craigl.softsynth;
+
+import com.craigl.softsynth.BasicOscillator.WAVESHAPE;
+
+/**
+ * Modulation Matrix
+ * <p>
+ * Routes any number of modulation sources (LFOs, envelopes, note number,<br>
+ * velocity, a per note random value) to modulation destinations in the<br>
+ * other modules (oscillator pitch, VCF cutoff and resonance, VCA gain,<br>
+ * effect mix and feedback), each route with its own amount.
+ * <p>
+ * Sources are evaluated at control rate, once every control interval<br>
+ * samples, and the summed modulation of each destination is written to<br>
+ * a ModulationTrack which the destination module interpolates to audio<br>
+ * rate. A sine LFO thus costs one Math.sin per control interval instead<br>
+ * of one per sample. Routing is held in flat primitive arrays.
+ * <p>
+ * At the CONTROL_RATE quality stage and below the control interval is<br>
+ * stretched by CONTROL_INTERVAL_DEGRADE_FACTOR until quality recovers.
+ * <p>
+ * The matrix must be pulled before the modules it modulates, so place it<br>
+ * in the chain above them and below any MIDI player feeding it notes:
+ * <pre>
+ *   ModulationMatrix mm = new ModulationMatrix();
+ *   mm.setSampleProvider(vca);
+ *   osc.setPitchModulation(mm.getTrack(DESTINATION.OSC_PITCH));
+ *   mm.setLfoFrequency(0, 5.0);
+ *   mm.addRoute(SOURCE.LFO_1, DESTINATION.OSC_PITCH, 0.02);
+ * </pre>
+ * Destination units: OSC_PITCH and VCF_CUTOFF in octaves, VCF_RESONANCE<br>
+ * in resonance, VCA_GAIN as gain added to 1.0, mix and feedback in percent.<br>
+ * LFOs are bipolar (-1 .. 1); envelopes, velocity and random are 0 .. 1;<br>
+ * NOTE is the distance from middle C in octaves.
+ */
+
+public class ModulationMatrix implements SampleProviderIntfc, SilenceIntfc, QualityIntfc {
+
+	/**
+	 * Modulation source enumeration
+	 */
+	public enum SOURCE {
+		LFO_1, LFO_2, LFO_3, ENVELOPE_1, ENVELOPE_2, NOTE, VELOCITY, RANDOM
+	}
+
+	/**
+	 * Modulation destination enumeration
+	 */
+	public enum DESTINATION {
+		OSC_PITCH, VCF_CUTOFF, VCF_RESONANCE, VCA_GAIN, DELAY_MIX, DELAY_FEEDBACK, PHASER_MIX, PHASER_FEEDBACK
+	}
+
+	public static final int LFO_COUNT = 3;
+	public static final int ENVELOPE_COUNT = 2;
+	public static final int ROUTES_MAX = 32;
+
+	public static final double LFO_FREQUENCY_MIN = 0.01;
+	public static final double LFO_FREQUENCY_MAX = 20.0;
+	public static final double LFO_FREQUENCY_DEFAULT = 1.0;
+
+	// Control interval must divide the buffer evenly
+	public static final int CONTROL_INTERVAL_MIN = 1;
+	public static final int CONTROL_INTERVAL_MAX = SamplePlayer.SAMPLES_PER_BUFFER;
+	public static final int CONTROL_INTERVAL_DEFAULT = 25;
+	public static final int CONTROL_INTERVAL_DEGRADE_FACTOR = 4;
+
+	private static final int SOURCE_COUNT = SOURCE.values().length;
+	private static final int DESTINATION_COUNT = DESTINATION.values().length;
+	private static final int MIDDLE_C = 60;
+
+	/**
+	 * ModulationMatrix Class Constructor
+	 */
+	public ModulationMatrix() {
+
+		tracks = new ModulationTrack[DESTINATION_COUNT];
+		for (int d = 0; d < DESTINATION_COUNT; d++) {
+			tracks[d] = new ModulationTrack();
+		}
+		envelopes = new EnvelopeGenerator[ENVELOPE_COUNT];
+		for (int e = 0; e < ENVELOPE_COUNT; e++) {
+			envelopes[e] = new EnvelopeGenerator();
+		}
+		for (int l = 0; l < LFO_COUNT; l++) {
+			lfoShapes[l] = WAVESHAPE.SIN;
+			setLfoFrequency(l, LFO_FREQUENCY_DEFAULT);
+		}
+		setControlInterval(CONTROL_INTERVAL_DEFAULT);
+	}
+
+	/**
+	 * Set the count of samples between evaluations of the sources
+	 * <p>
+	 * Rounded down to a divisor of the buffer size.
+	 *
+	 * @param samples Control interval in samples
+	 */
+	public void setControlInterval(int samples) {
+
+		controlInterval = toDivisor(samples);
+		degradedInterval = toDivisor(samples * CONTROL_INTERVAL_DEGRADE_FACTOR);
+	}
+
+	/**
+	 * Limit a control interval to its range and round it down to a divisor of the buffer size
+	 *
+	 * @param samples Control interval in samples
+	 *
+	 * @return Usable control interval
+	 */
+	private static int toDivisor(int samples) {
+
+		samples = (samples < CONTROL_INTERVAL_MIN) ? CONTROL_INTERVAL_MIN : samples;
+		samples = (samples > CONTROL_INTERVAL_MAX) ? CONTROL_INTERVAL_MAX : samples;
+
+		while ((SamplePlayer.SAMPLES_PER_BUFFER % samples) != 0) {
+			samples--;
+		}
+		return samples;
+	}
+
+	/**
+	 * Set the quality stage to render at
+	 *
+	 * @param stage Stage; from CONTROL_RATE on the control interval is stretched
+	 */
+	public void setQualityStage(QualityController.STAGE stage) {
+
+		degraded = stage.compareTo(QualityController.STAGE.CONTROL_RATE) >= 0;
+	}
+
+	/**
+	 * Return the control interval
+	 *
+	 * @return Samples between evaluations of the sources
+	 */
+	public int getControlInterval() {
+
+		return controlInterval;
+	}
+
+	/**
+	 * Return the track of a destination, to be given to the destination module
+	 *
+	 * @param destination The destination
+	 *
+	 * @return The destination's track
+	 */
+	public ModulationTrack getTrack(DESTINATION destination) {
+
+		return tracks[destination.ordinal()];
+	}
+
+	/**
+	 * Return one of the matrix's envelope generators, for setting its ADSR
+	 *
+	 * @param index 0 for ENVELOPE_1; 1 for ENVELOPE_2
+	 *
+	 * @return The envelope generator
+	 */
+	public EnvelopeGenerator getEnvelope(int index) {
+
+		return envelopes[index];
+	}
+
+	/**
+	 * Set the frequency of an LFO
+	 *
+	 * @param index 0 for LFO_1 up to LFO_COUNT - 1
+	 * @param frequency Frequency in Hz
+	 */
+	public void setLfoFrequency(int index, double frequency) {
+
+		frequency = (frequency < LFO_FREQUENCY_MIN) ? LFO_FREQUENCY_MIN : frequency;
+		frequency = (frequency > LFO_FREQUENCY_MAX) ? LFO_FREQUENCY_MAX : frequency;
+
+		lfoFrequencies[index] = frequency;
+	}
+
+	/**
+	 * Set the waveshape of an LFO
+	 *
+	 * @param index 0 for LFO_1 up to LFO_COUNT - 1
+	 * @param waveshape SIN, SQU or SAW
+	 */
+	public void setLfoWaveshape(int index, WAVESHAPE waveshape) {
+
+		lfoShapes[index] = waveshape;
+	}
+
+	/**
+	 * Add a route from a source to a destination
+	 *
+	 * @param source The modulation source
+	 * @param destination The modulated destination
+	 * @param amount Scale of the source in the destination's units
+	 *
+	 * @return Index of the route for setRouteAmount
+	 */
+	public int addRoute(SOURCE source, DESTINATION destination, double amount) {
+
+		if (routeCount == ROUTES_MAX) {
+			throw new IllegalStateException("ModulationMatrix is limited to " + ROUTES_MAX + " routes");
+		}
+		int r = routeCount;
+		routeSources[r] = source.ordinal();
+		routeDestinations[r] = destination.ordinal();
+		routeAmounts[r] = amount;
+		routeCount = r + 1;
+
+		tracks[destination.ordinal()].setActive(true);
+		return r;
+	}
+
+	/**
+	 * Change the amount of a route
+	 *
+	 * @param route Index returned by addRoute
+	 * @param amount Scale of the source in the destination's units
+	 */
+	public void setRouteAmount(int route, double amount) {
+
+		routeAmounts[route] = amount;
+	}
+
+	/**
+	 * Return the count of routes
+	 *
+	 * @return Route count
+	 */
+	public int getRouteCount() {
+
+		return routeCount;
+	}
+
+	/**
+	 * Remove all routes; the destinations return to their unmodulated values
+	 */
+	public void clearRoutes() {
+
+		routeCount = 0;
+		for (int d = 0; d < DESTINATION_COUNT; d++) {
+			tracks[d].setActive(false);
+			lastValues[d] = 0.0;
+		}
+	}
+
+	/**
+	 * Start a note: sets NOTE, VELOCITY and RANDOM and triggers the envelopes
+	 *
+	 * @param mnn Midi note number
+	 * @param velocity Note velocity between 0 and 127
+	 * @param delaySamples Samples from the start of the coming buffer
+	 */
+	public void noteOn(int mnn, int velocity, int delaySamples) {
+
+		if (! noteEvents.schedule(delaySamples, mnn, velocity)) {
+			// Schedule full; take the note at the next control interval
+			noteEvents.clear();
+			noteEvents.schedule(0, mnn, velocity);
+		}
+		for (EnvelopeGenerator e : envelopes) {
+			e.noteOn(delaySamples);
+		}
+	}
+
+	/**
+	 * Release the envelopes
+	 *
+	 * @param delaySamples Samples from the start of the coming buffer
+	 */
+	public void noteOff(int delaySamples) {
+
+		for (EnvelopeGenerator e : envelopes) {
+			e.noteOff(delaySamples);
+		}
+	}
+
+	/**
+	 * Evaluate the sources over one control interval
+	 *
+	 * @param interval Control interval in samples
+	 */
+	private void evaluateSources(int interval) {
+
+		// Take the scheduled notes falling due within the interval; the last one wins
+		while (noteEvents.hasDue(interval)) {
+			int note = noteEvents.peekType();
+			double velocity = noteEvents.peekValue();
+			noteEvents.pop();
+			if (! noteEvents.hasDue(interval)) {
+				sourceValues[SOURCE.NOTE.ordinal()] = (note - MIDDLE_C) / 12.0;
+				sourceValues[SOURCE.VELOCITY.ordinal()] = velocity / 127.0;
+
+				// xorshift; a new random value per note
+				randomState ^= randomState << 13;
+				randomState ^= randomState >>> 7;
+				randomState ^= randomState << 17;
+				sourceValues[SOURCE.RANDOM.ordinal()] = (randomState >>> 11) * 0x1.0p-53;
+			}
+		}
+		noteEvents.advance(interval);
+
+		for (int l = 0; l < LFO_COUNT; l++) {
+			double phase = lfoPhases[l] + (lfoFrequencies[l] * interval) / SamplePlayer.SAMPLE_RATE;
+			phase -= Math.floor(phase);
+			lfoPhases[l] = phase;
+
+			double value;
+			switch (lfoShapes[l]) {
+				default:
+				case SIN:
+					value = Math.sin(2.0 * Math.PI * phase);
+					break;
+
+				case SQU:
+					value = (phase < 0.5) ? 1.0 : -1.0;
+					break;
+
+				case SAW:
+					value = 2.0 * phase - 1.0;
+					break;
+			}
+			sourceValues[SOURCE.LFO_1.ordinal() + l] = value;
+		}
+
+		for (int e = 0; e < ENVELOPE_COUNT; e++) {
+			sourceValues[SOURCE.ENVELOPE_1.ordinal() + e] = envelopes[e].getValue(interval);
+		}
+	}
+
+	/**
+	 * Compute the modulation tracks for the coming buffer and pull the<br>
+	 * buffer from the previous provider in the chain.
+	 *
+	 * @param buffer Buffer in which the samples are to be processed
+	 *
+	 * @return Count of number of bytes processed
+	 */
+	public int getSamples(byte [] buffer) {
+
+		int interval = degraded ? degradedInterval : controlInterval;
+		int points = SamplePlayer.SAMPLES_PER_BUFFER / interval;
+		int count = routeCount;
+		double [] sums = lastValues;
+
+		for (int d = 0; d < DESTINATION_COUNT; d++) {
+			ModulationTrack track = tracks[d];
+			track.interval = interval;
+			track.values[0] = sums[d];
+		}
+
+		for (int k = 1; k <= points; k++) {
+			evaluateSources(interval);
+
+			for (int d = 0; d < DESTINATION_COUNT; d++) {
+				sums[d] = 0.0;
+			}
+			for (int r = 0; r < count; r++) {
+				sums[routeDestinations[r]] += routeAmounts[r] * sourceValues[routeSources[r]];
+			}
+			for (int d = 0; d < DESTINATION_COUNT; d++) {
+				tracks[d].values[k] = sums[d];
+			}
+		}
+
+		// Return the samples from the previous provider in the chain
+		return provider.getSamples(buffer);
+	}
+
+	/**
+	 * Setup the provider of samples
+	 *
+	 * @param provider The provider of samples for this ModulationMatrix
+	 */
+	public void setSampleProvider(SampleProviderIntfc provider) {
+		this.provider = provider;
+	}
+
+	/**
+	 * Return whether the last buffer was silent
+	 *
+	 * @return true if the previous provider in the chain reported silence
+	 */
+	public boolean isSilent() {
+
+		return Silence.isSilent(provider);
+	}
+
+	// Instance data
+	private final ModulationTrack [] tracks;
+	private final EnvelopeGenerator [] envelopes;
+	private int controlInterval;
+	private int degradedInterval;
+	private boolean degraded;
+
+	// Sources
+	private final double [] sourceValues = new double[SOURCE_COUNT];
+	private final double [] lfoFrequencies = new double[LFO_COUNT];
+	private final double [] lfoPhases = new double[LFO_COUNT];
+	private final WAVESHAPE [] lfoShapes = new WAVESHAPE[LFO_COUNT];
+	private final EventSchedule noteEvents = new EventSchedule();
+	private long randomState = 0x2545F4914F6CDD1DL;
+
+	// Routing
+	private final int [] routeSources = new int[ROUTES_MAX];
+	private final int [] routeDestinations = new int[ROUTES_MAX];
+	private final double [] routeAmounts = new double[ROUTES_MAX];
+	private int routeCount;
+
+	// Summed modulation per destination at the latest control point
+	private final double [] lastValues = new double[DESTINATION_COUNT];
+
+	private SampleProviderIntfc provider;
+}
@@ -0,0 +1,82 @@
+package com.craigl.softsynth;
+
+import java.util.Arrays;
+
+/**
+ * Modulation Track
+ * <p>
+ * The modulation of one destination over the coming buffer, as computed<br>
+ * by a ModulationMatrix at control rate. The track holds one value per<br>
+ * control point; modules read it linearly interpolated, which smooths<br>
+ * the modulation to audio rate without per sample source evaluation.
+ * <p>
+ * Value k applies at sample k * interval of the buffer; value 0 carries<br>
+ * on from the end of the previous buffer so there are no steps between<br>
+ * buffers.
+ */
+
+public class ModulationTrack {
+
+	/**
+	 * ModulationTrack Class Constructor
+	 * <p>
+	 * Tracks are created by ModulationMatrix
+	 */
+	ModulationTrack() {
+
+		values = new double[SamplePlayer.SAMPLES_PER_BUFFER + 1];
+		interval = SamplePlayer.SAMPLES_PER_BUFFER;
+	}
+
+	/**
+	 * Return whether any route modulates this track's destination
+	 *
+	 * @return false if the track is constantly zero
+	 */
+	public boolean isActive() {
+
+		return active;
+	}
+
+	/**
+	 * Return the count of samples between control points
+	 *
+	 * @return Control interval in samples
+	 */
+	public int getInterval() {
+
+		return interval;
+	}
+
+	/**
+	 * Return the modulation at a sample of the coming buffer
+	 *
+	 * @param sample Sample index within the buffer
+	 *
+	 * @return Interpolated modulation value
+	 */
+	public double getValue(int sample) {
+
+		int k = sample / interval;
+		double v0 = values[k];
+		return v0 + (values[k + 1] - v0) * (sample - k * interval) / interval;
+	}
+
+	/**
+	 * Switch the track on or off; a track switched on starts from zero
+	 *
+	 * @param active true if any route modulates the destination
+	 */
+	void setActive(boolean active) {
+
+		if (active && ! this.active) {
+			Arrays.fill(values, 0.0);
+		}
+		this.active = active;
+	}
+
+	// Instance data; written by the matrix, read by modules on the audio thread
+	final double [] values;
+	int interval;
+	private boolean active;
+}
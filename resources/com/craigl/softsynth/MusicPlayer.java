@@ -11,12 +11,9 @@ package com.craigl.softsynth;
  * 
  * @author craiglindley
  */
-public class MusicPlayer implements SampleProviderIntfc {
+public class MusicPlayer implements SampleProviderIntfc, SilenceIntfc {
 		
 	private static final double THIRTY_SECOND_NOTE_DURATION_IN_SECS = 0.08;
-	private static final int REFERENCE_NOTE_NUMBER = 69;
-	private static final int REFERENCE_NOTE_FREQ = 440;	
-	private static final int NOTES_PER_OCTAVE = 12;		
 		
 	/**
 	 * MusicPlayer Class Constructor
@@ -79,6 +76,9 @@ public class MusicPlayer implements SampleProviderIntfc {
 
 				// Play the note if it is not a rest
 				if (mnn != 0) {
+					if (probe != null) {
+						probe.stamp();
+					}
 					if (vca != null) {
 						vca.noteOn();
 					}
@@ -137,6 +137,26 @@ public class MusicPlayer implements SampleProviderIntfc {
 		}
 	}
 
+	/**
+	 * Set the probe measuring how long notes take to be heard
+	 *
+	 * @param probe Probe stamped at every note on or null for none
+	 */
+	public void setLatencyProbe(LatencyProbe probe) {
+		
+		this.probe = probe;
+	}
+
+	/**
+	 * Set the tuning notes are played in
+	 *
+	 * @param tuning Tuning shared with other players; Tuning.EQUAL_TEMPERAMENT by default
+	 */
+	public void setTuning(Tuning tuning) {
+		
+		this.tuning = tuning;
+	}
+
 	/**
 	 * Method that converts midi note numbers to actual frequency in Hz
 	 * <p>
@@ -148,9 +168,8 @@ public class MusicPlayer implements SampleProviderIntfc {
 	 */
 	private double midiNoteNumberToFrequency(int mnn) {		  
 		
-		// Convert a midi note number to a frequency in Hz
-		double soundOffset = (mnn - REFERENCE_NOTE_NUMBER) / (double) NOTES_PER_OCTAVE;
-		return REFERENCE_NOTE_FREQ * Math.pow(2.0, soundOffset);
+		// Precomputed by the tuning
+		return tuning.getFrequency(mnn);
 	}
 	
 	/**
@@ -200,7 +219,19 @@ public class MusicPlayer implements SampleProviderIntfc {
 		this.provider = provider;
 	}
 
+	/**
+	 * Return whether the last buffer was silent
+	 *
+	 * @return true if the previous provider in the chain reported silence
+	 */
+	public boolean isSilent() {
+
+		return Silence.isSilent(provider);
+	}
+
 	// Instance data
+	private Tuning tuning = Tuning.EQUAL_TEMPERAMENT;
+	private LatencyProbe probe;
 	private BasicOscillator osc;
 	private VCA vca;
 	private VCF vcf;
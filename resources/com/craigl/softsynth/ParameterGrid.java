@@ -0,0 +1,167 @@
+package com.craigl.softsynth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A grid of parameter values for batch rendering.
+ * <p>
+ * Each axis has a name and a list of values. The grid is the cartesian<br>
+ * product of all axes; points are numbered from 0 with the last axis<br>
+ * varying fastest, so a point's index, values and file name are fully<br>
+ * determined by the grid and never depend on rendering order.
+ */
+
+public class ParameterGrid {
+
+	/**
+	 * Add an axis with explicit values
+	 *
+	 * @param name Name of the parameter; used in file names
+	 * @param values Values the parameter takes
+	 *
+	 * @return This grid
+	 */
+	public ParameterGrid addAxis(String name, double... values) {
+
+		if (values.length == 0) {
+			throw new IllegalArgumentException("Axis " + name + " has no values");
+		}
+		names.add(name);
+		axes.add(values.clone());
+		return this;
+	}
+
+	/**
+	 * Add an axis of evenly spaced values
+	 *
+	 * @param name Name of the parameter; used in file names
+	 * @param first First value
+	 * @param last Last value
+	 * @param steps Count of values, at least 1
+	 *
+	 * @return This grid
+	 */
+	public ParameterGrid addLinearAxis(String name, double first, double last, int steps) {
+
+		double [] values = new double[Math.max(1, steps)];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (values.length == 1) ? first : first + ((last - first) * i) / (values.length - 1);
+		}
+		return addAxis(name, values);
+	}
+
+	/**
+	 * Return the number of axes, which is the length of a point's value array
+	 *
+	 * @return Axis count
+	 */
+	public int getAxisCount() {
+
+		return axes.size();
+	}
+
+	/**
+	 * Return the name of an axis
+	 *
+	 * @param axis Axis index
+	 *
+	 * @return Parameter name
+	 */
+	public String getAxisName(int axis) {
+
+		return names.get(axis);
+	}
+
+	/**
+	 * Return the number of points in the grid
+	 *
+	 * @return Product of the axis sizes
+	 */
+	public int size() {
+
+		long size = 1;
+		for (double [] values : axes) {
+			size *= values.length;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Parameter grid too large");
+		}
+		return (int) size;
+	}
+
+	/**
+	 * Decode a point index into its parameter values
+	 *
+	 * @param index Point index between 0 and size() - 1
+	 * @param values Array of getAxisCount() entries receiving the values
+	 */
+	public void getPoint(int index, double [] values) {
+
+		for (int axis = axes.size() - 1; axis >= 0; axis--) {
+			double [] axisValues = axes.get(axis);
+			values[axis] = axisValues[index % axisValues.length];
+			index /= axisValues.length;
+		}
+	}
+
+	/**
+	 * Return the file name for a point
+	 * <p>
+	 * The name consists of the prefix, the zero padded point index and<br>
+	 * each parameter name with its value, e.g. "pad-0007_cutoff-1000_res-0.85.wav".
+	 *
+	 * @param prefix Leading part of the name
+	 * @param index Point index
+	 *
+	 * @return File name
+	 */
+	public String getFileName(String prefix, int index) {
+
+		double [] values = new double[axes.size()];
+		getPoint(index, values);
+
+		int digits = Integer.toString(Math.max(0, size() - 1)).length();
+		StringBuilder sb = new StringBuilder(prefix);
+		sb.append('-');
+		String number = Integer.toString(index);
+		for (int i = number.length(); i < digits; i++) {
+			sb.append('0');
+		}
+		sb.append(number);
+		for (int axis = 0; axis < values.length; axis++) {
+			sb.append('_').append(names.get(axis)).append('-').append(formatValue(values[axis]));
+		}
+		return sb.append(".wav").toString();
+	}
+
+	/**
+	 * Format a value compactly and independent of the default locale
+	 *
+	 * @param value Value to format
+	 *
+	 * @return Formatted value
+	 */
+	private static String formatValue(double value) {
+
+		if (value == Math.rint(value) && Math.abs(value) < 1.0e15) {
+			return Long.toString((long) value);
+		}
+		String s = String.format(Locale.ROOT, "%.6f", value);
+		int end = s.length();
+		while (s.charAt(end - 1) == '0') {
+			end--;
+		}
+		if (s.charAt(end - 1) == '.') {
+			// Rounded to a whole number at six decimals
+			end--;
+		}
+		s = s.substring(0, end);
+		return s.equals("-0") ? "0" : s;
+	}
+
+	// Instance data
+	private final List<String> names = new ArrayList<String>();
+	private final List<double []> axes = new ArrayList<double []>();
+}
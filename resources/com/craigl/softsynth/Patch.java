@@ -0,0 +1,101 @@
+package com.craigl.softsynth;
+
+/**
+ * Patch
+ * <p>
+ * The modules created from a Preset, already parameterized and wired<br>
+ * into a chain from the oscillator to the output. The oscillator, VCF<br>
+ * and VCA are exposed so they can be handed to a player, which needs<br>
+ * them to play notes.
+ */
+
+public class Patch {
+
+	/**
+	 * Patch Class Constructor
+	 *
+	 * @param modules Modules in chain order; each pulls samples from the one before it
+	 */
+	Patch(SampleProviderIntfc [] modules) {
+
+		this.modules = modules;
+
+		for (SampleProviderIntfc module : modules) {
+			if (module instanceof BasicOscillator) {
+				osc = (BasicOscillator) module;
+			}	else if (module instanceof VCF) {
+				vcf = (VCF) module;
+			}	else if (module instanceof VCA) {
+				vca = (VCA) module;
+			}
+		}
+	}
+
+	/**
+	 * Return the oscillator at the start of the chain
+	 *
+	 * @return The oscillator
+	 */
+	public BasicOscillator getOscillator() {
+
+		return osc;
+	}
+
+	/**
+	 * Return the VCF of the chain
+	 *
+	 * @return The VCF or null if the patch has none
+	 */
+	public VCF getVCF() {
+
+		return vcf;
+	}
+
+	/**
+	 * Return the VCA of the chain
+	 *
+	 * @return The VCA or null if the patch has none
+	 */
+	public VCA getVCA() {
+
+		return vca;
+	}
+
+	/**
+	 * Return the count of modules in the chain
+	 *
+	 * @return Module count
+	 */
+	public int getModuleCount() {
+
+		return modules.length;
+	}
+
+	/**
+	 * Return a module of the chain
+	 *
+	 * @param index Index of the module; 0 is the oscillator
+	 *
+	 * @return The module
+	 */
+	public SampleProviderIntfc getModule(int index) {
+
+		return modules[index];
+	}
+
+	/**
+	 * Return the end of the chain
+	 *
+	 * @return The module to pull the patch's samples from
+	 */
+	public SampleProviderIntfc getOutput() {
+
+		return modules[modules.length - 1];
+	}
+
+	// Instance data
+	private final SampleProviderIntfc [] modules;
+	private BasicOscillator osc;
+	private VCF vcf;
+	private VCA vca;
+}
@@ -0,0 +1,25 @@
+package com.craigl.softsynth;
+
+/**
+ * The Patch Factory Interface
+ * <p>
+ * Builds a complete, independent signal chain for one set of parameter<br>
+ * values. Used by the BatchRenderer, which calls it from several threads<br>
+ * at once, so implementations must not share modules between patches.
+ */
+
+public interface PatchFactoryIntfc {
+	
+	/**
+	 * Build a patch
+	 * <p>
+	 * Any notes the render should contain must be triggered or scheduled<br>
+	 * here, e.g. with noteOn and noteOff(delaySamples) or by a MidiFilePlayer,<br>
+	 * since the chain is pulled without any realtime control thread.
+	 * 
+	 * @param parameters Values for this render, in the order of the grid's axes
+	 * 
+	 * @return The last provider of the chain, which is pulled for samples
+	 */
+	SampleProviderIntfc createPatch(double [] parameters);
+}
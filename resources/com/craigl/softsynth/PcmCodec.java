@@ -0,0 +1,422 @@
+package com.craigl.softsynth;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * PCM Codec
+ * <p>
+ * The one place where samples are converted to and from PCM bytes.<br>
+ * Modules exchange blocks in the engine's format, 16 bit signed big<br>
+ * endian, and use the static methods here to read and write them:<br>
+ * get and put for a sample at a time, unpack and pack for a block.<br>
+ * Samples are normalized so that 1.0 is FULL_SCALE_16. Writing<br>
+ * saturates at the limits of the format instead of wrapping around and<br>
+ * rounds to the nearest step.
+ * <p>
+ * An instance converts between normalized samples or engine blocks and<br>
+ * one of several output formats: 16, 24 or 32 bit integer or 32 bit<br>
+ * float PCM in either byte order. An instance may add triangular (TPDF)<br>
+ * dither of one step peak when it encodes to an integer format; exact<br>
+ * zeros are not dithered, so silence stays silent. Float samples are<br>
+ * written without clipping.
+ * <p>
+ * Samples are read and written through byte array view VarHandles, so<br>
+ * a 16 bit sample is one load or store rather than two byte accesses.
+ */
+
+public final class PcmCodec {
+
+	/**
+	 * Output encoding enumeration
+	 */
+	public enum ENCODING {
+		PCM_16, PCM_24, PCM_32, FLOAT_32
+	}
+
+	// Sample value that a normalized 1.0 maps to in the engine's format
+	public static final double FULL_SCALE_16 = 32768.0;
+
+	private static final double FULL_SCALE_24 = 8388608.0;
+	private static final double FULL_SCALE_32 = 2147483648.0;
+
+	private static final VarHandle SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle FLOAT_BE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle FLOAT_LE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * PcmCodec Class Constructor
+	 *
+	 * @param encoding Sample encoding
+	 * @param bigEndian true for big endian, false for little endian
+	 * @param dither true to add TPDF dither when encoding to an integer format
+	 */
+	public PcmCodec(ENCODING encoding, boolean bigEndian, boolean dither) {
+
+		this.encoding = encoding;
+		this.bigEndian = bigEndian;
+		this.dither = dither && (encoding != ENCODING.FLOAT_32);
+
+		switch (encoding) {
+			default:
+			case PCM_16:
+				bytesPerSample = 2;
+				fullScale = FULL_SCALE_16;
+				break;
+
+			case PCM_24:
+				bytesPerSample = 3;
+				fullScale = FULL_SCALE_24;
+				break;
+
+			case PCM_32:
+				bytesPerSample = 4;
+				fullScale = FULL_SCALE_32;
+				break;
+
+			case FLOAT_32:
+				bytesPerSample = 4;
+				fullScale = 1.0;
+				break;
+		}
+		maxValue = fullScale - 1.0;
+	}
+
+	/**
+	 * Return the sample encoding
+	 *
+	 * @return Encoding
+	 */
+	public ENCODING getEncoding() {
+
+		return encoding;
+	}
+
+	/**
+	 * Return the byte order
+	 *
+	 * @return true if samples are big endian
+	 */
+	public boolean isBigEndian() {
+
+		return bigEndian;
+	}
+
+	/**
+	 * Return whether encoding adds dither
+	 *
+	 * @return true if TPDF dither is added
+	 */
+	public boolean isDithered() {
+
+		return dither;
+	}
+
+	/**
+	 * Return the size of a sample
+	 *
+	 * @return Bytes per sample
+	 */
+	public int getBytesPerSample() {
+
+		return bytesPerSample;
+	}
+
+	/**
+	 * Read a sample of an engine block
+	 *
+	 * @param buffer Block of 16 bit big endian samples
+	 * @param sample Index of the sample
+	 *
+	 * @return Sample normalized to -1.0 .. 1.0
+	 */
+	public static double get(byte [] buffer, int sample) {
+
+		return ((short) SHORT_BE.get(buffer, sample << 1)) * (1.0 / FULL_SCALE_16);
+	}
+
+	/**
+	 * Read a sample of an engine block as its 16 bit value
+	 *
+	 * @param buffer Block of 16 bit big endian samples
+	 * @param sample Index of the sample
+	 *
+	 * @return Sample value
+	 */
+	public static short getShort(byte [] buffer, int sample) {
+
+		return (short) SHORT_BE.get(buffer, sample << 1);
+	}
+
+	/**
+	 * Write a sample of an engine block, saturating at full scale
+	 *
+	 * @param buffer Block of 16 bit big endian samples
+	 * @param sample Index of the sample
+	 * @param value Sample normalized to -1.0 .. 1.0
+	 *
+	 * @return The 16 bit value written; zero for silence
+	 */
+	public static int put(byte [] buffer, int sample, double value) {
+
+		short ss = quantize(value);
+		SHORT_BE.set(buffer, sample << 1, ss);
+		return ss;
+	}
+
+	/**
+	 * Convert a normalized sample to the nearest 16 bit value, saturating at full scale
+	 *
+	 * @param value Sample normalized to -1.0 .. 1.0
+	 *
+	 * @return 16 bit sample value
+	 */
+	public static short quantize(double value) {
+
+		double ds = value * FULL_SCALE_16;
+		ds = (ds > Short.MAX_VALUE) ? Short.MAX_VALUE : ds;
+		ds = (ds < Short.MIN_VALUE) ? Short.MIN_VALUE : ds;
+		return (short) Math.round(ds);
+	}
+
+	/**
+	 * Unpack an engine block into normalized samples
+	 *
+	 * @param buffer Block of 16 bit big endian samples
+	 * @param samples Array receiving the normalized samples
+	 * @param count Count of samples
+	 */
+	public static void unpack(byte [] buffer, double [] samples, int count) {
+
+		for (int i = 0; i < count; i++) {
+			samples[i] = ((short) SHORT_BE.get(buffer, i << 1)) * (1.0 / FULL_SCALE_16);
+		}
+	}
+
+	/**
+	 * Pack normalized samples into an engine block, saturating at full scale
+	 *
+	 * @param samples Normalized samples
+	 * @param gain Gain applied to the samples
+	 * @param buffer Block receiving 16 bit big endian samples
+	 * @param count Count of samples
+	 *
+	 * @return true if every packed sample is zero
+	 */
+	public static boolean pack(double [] samples, double gain, byte [] buffer, int count) {
+
+		int sound = 0;
+		for (int i = 0; i < count; i++) {
+			sound |= put(buffer, i, samples[i] * gain);
+		}
+		return sound == 0;
+	}
+
+	/**
+	 * Encode normalized samples in this codec's format
+	 *
+	 * @param samples Normalized samples
+	 * @param offset Index of the first sample
+	 * @param count Count of samples
+	 * @param gain Gain applied to the samples
+	 * @param out Array receiving the encoded samples
+	 * @param outOffset Offset of the first byte to write
+	 *
+	 * @return true if every encoded sample is zero
+	 */
+	public boolean encode(double [] samples, int offset, int count, double gain, byte [] out, int outOffset) {
+
+		int sound = 0;
+		int position = outOffset;
+		for (int i = offset; i < offset + count; i++) {
+			sound |= store(samples[i] * gain, dither, out, position);
+			position += bytesPerSample;
+		}
+		return sound == 0;
+	}
+
+	/**
+	 * Decode samples in this codec's format into normalized samples
+	 *
+	 * @param in Array holding the encoded samples
+	 * @param inOffset Offset of the first byte to read
+	 * @param samples Array receiving the normalized samples
+	 * @param offset Index of the first sample to write
+	 * @param count Count of samples
+	 */
+	public void decode(byte [] in, int inOffset, double [] samples, int offset, int count) {
+
+		int position = inOffset;
+		for (int i = offset; i < offset + count; i++) {
+			samples[i] = load(in, position);
+			position += bytesPerSample;
+		}
+	}
+
+	/**
+	 * Convert an engine block to this codec's format
+	 * <p>
+	 * No dither is added; engine samples already are 16 bit.
+	 *
+	 * @param block Block of 16 bit big endian samples
+	 * @param offset Offset of the first byte to read
+	 * @param length Count of bytes to read; must be even
+	 * @param out Array receiving the encoded samples
+	 * @param outOffset Offset of the first byte to write
+	 *
+	 * @return Count of bytes written
+	 */
+	public int transcode(byte [] block, int offset, int length, byte [] out, int outOffset) {
+
+		int count = length >> 1;
+		int position = outOffset;
+		for (int i = 0; i < count; i++) {
+			short s = (short) SHORT_BE.get(block, offset + (i << 1));
+			if (encoding == ENCODING.PCM_16) {
+				if (bigEndian) {
+					SHORT_BE.set(out, position, s);
+				}	else	{
+					SHORT_LE.set(out, position, s);
+				}
+			}	else	{
+				store(s * (1.0 / FULL_SCALE_16), false, out, position);
+			}
+			position += bytesPerSample;
+		}
+		return position - outOffset;
+	}
+
+	/**
+	 * Return the bytes an engine block takes in this codec's format
+	 *
+	 * @param length Length of the engine block in bytes
+	 *
+	 * @return Length in this format
+	 */
+	public int transcodedLength(int length) {
+
+		return (length >> 1) * bytesPerSample;
+	}
+
+	/**
+	 * Encode one sample
+	 *
+	 * @param value Normalized sample
+	 * @param dithered Whether to add dither
+	 * @param out Array receiving the sample
+	 * @param position Offset of the sample's first byte
+	 *
+	 * @return The bits written; zero for silence
+	 */
+	private int store(double value, boolean dithered, byte [] out, int position) {
+
+		if (encoding == ENCODING.FLOAT_32) {
+			float f = (float) value;
+			if (bigEndian) {
+				FLOAT_BE.set(out, position, f);
+			}	else	{
+				FLOAT_LE.set(out, position, f);
+			}
+			return Float.floatToRawIntBits(f) & 0x7FFFFFFF;
+		}
+
+		double ds = value * fullScale;
+		if (dithered && (value != 0.0)) {
+			ds += nextUniform() - nextUniform();
+		}
+		ds = (ds > maxValue) ? maxValue : ds;
+		ds = (ds < -fullScale) ? -fullScale : ds;
+		int q = (int) Math.round(ds);
+
+		switch (encoding) {
+			default:
+			case PCM_16:
+				if (bigEndian) {
+					SHORT_BE.set(out, position, (short) q);
+				}	else	{
+					SHORT_LE.set(out, position, (short) q);
+				}
+				break;
+
+			case PCM_24:
+				if (bigEndian) {
+					out[position]     = (byte) (q >> 16);
+					out[position + 1] = (byte) (q >> 8);
+					out[position + 2] = (byte) q;
+				}	else	{
+					out[position]     = (byte) q;
+					out[position + 1] = (byte) (q >> 8);
+					out[position + 2] = (byte) (q >> 16);
+				}
+				break;
+
+			case PCM_32:
+				if (bigEndian) {
+					INT_BE.set(out, position, q);
+				}	else	{
+					INT_LE.set(out, position, q);
+				}
+				break;
+		}
+		return q;
+	}
+
+	/**
+	 * Decode one sample
+	 *
+	 * @param in Array holding the sample
+	 * @param position Offset of the sample's first byte
+	 *
+	 * @return Normalized sample
+	 */
+	private double load(byte [] in, int position) {
+
+		switch (encoding) {
+			default:
+			case PCM_16:
+				return (bigEndian ? (short) SHORT_BE.get(in, position) : (short) SHORT_LE.get(in, position)) / fullScale;
+
+			case PCM_24:
+				int q;
+				if (bigEndian) {
+					q = (in[position] << 16) | ((in[position + 1] & 0xFF) << 8) | (in[position + 2] & 0xFF);
+				}	else	{
+					q = (in[position + 2] << 16) | ((in[position + 1] & 0xFF) << 8) | (in[position] & 0xFF);
+				}
+				return q / fullScale;
+
+			case PCM_32:
+				return (bigEndian ? (int) INT_BE.get(in, position) : (int) INT_LE.get(in, position)) / fullScale;
+
+			case FLOAT_32:
+				return bigEndian ? (float) FLOAT_BE.get(in, position) : (float) FLOAT_LE.get(in, position);
+		}
+	}
+
+	/**
+	 * Return a uniformly distributed value between 0.0 and 1.0
+	 */
+	private double nextUniform() {
+
+		// xorshift64
+		long x = ditherState;
+		x ^= x << 13;
+		x ^= x >>> 7;
+		x ^= x << 17;
+		ditherState = x;
+		return (x >>> 11) * 0x1.0p-53;
+	}
+
+	// Instance data
+	private final ENCODING encoding;
+	private final boolean bigEndian;
+	private final boolean dither;
+	private final int bytesPerSample;
+	private final double fullScale;
+	private final double maxValue;
+	private long ditherState = 0x9E3779B97F4A7C15L;
+}
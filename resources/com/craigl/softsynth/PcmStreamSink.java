@@ -0,0 +1,223 @@
+package com.craigl.softsynth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Raw PCM Stream Audio Sink
+ * <p>
+ * Writes headerless 16 bit mono samples at SAMPLE_RATE to an output<br>
+ * stream such as System.out or a pipe, so a render can be fed straight<br>
+ * into an external encoder without an intermediate file, e.g.
+ * <pre>
+ *   java MyRender | ffmpeg -f s16be -ar 22050 -ac 1 -i - out.flac
+ * </pre>
+ * Samples may be converted to another PcmCodec format on the way, e.g.<br>
+ * 32 bit float little endian for -f f32le.
+ * <p>
+ * Samples are queued in a BlockRing and written by a daemon thread, so<br>
+ * a slow reader on the far side of the pipe does not stall the renderer<br>
+ * until the queue is full.
+ */
+
+public class PcmStreamSink implements AudioSinkIntfc {
+
+	// Buffers queued between the renderer and the stream
+	public static final int PCM_STREAM_BLOCKS = 64;
+
+	/**
+	 * PcmStreamSink Class Constructor
+	 * <p>
+	 * Samples are written big endian, as rendered.
+	 *
+	 * @param out Stream to write to
+	 */
+	public PcmStreamSink(OutputStream out) {
+
+		this(out, true);
+	}
+
+	/**
+	 * PcmStreamSink Class Constructor
+	 *
+	 * @param out Stream to write to
+	 * @param bigEndian If false, samples are byte swapped to little endian (s16le)
+	 */
+	public PcmStreamSink(OutputStream out, boolean bigEndian) {
+
+		this(out, new PcmCodec(PcmCodec.ENCODING.PCM_16, bigEndian, false));
+	}
+
+	/**
+	 * PcmStreamSink Class Constructor
+	 *
+	 * @param out Stream to write to
+	 * @param codec Format the samples are written in
+	 */
+	public PcmStreamSink(OutputStream out, PcmCodec codec) {
+
+		this.out = out;
+		this.codec = codec;
+		ring = new BlockRing(PCM_STREAM_BLOCKS, codec.transcodedLength(SamplePlayer.BUFFER_SIZE));
+
+		writer = new Thread("PcmStreamSink") {
+			public void run() {
+				writerLoop();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queue samples, waiting while the queue is full
+	 *
+	 * @param buffer Buffer holding the samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 *
+	 * @throws IOException If the stream has failed
+	 */
+	public void write(byte [] buffer, int offset, int length) throws IOException {
+
+		while (length > 0) {
+			int n = writeNonBlocking(buffer, offset, length);
+			if (n == 0) {
+				LockSupport.parkNanos(WAIT_NANOS);
+			}
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Queue as many samples as there is room for
+	 *
+	 * @param buffer Buffer holding the samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 *
+	 * @return Count of bytes queued
+	 *
+	 * @throws IOException If the stream has failed
+	 */
+	public int writeNonBlocking(byte [] buffer, int offset, int length) throws IOException {
+
+		checkError();
+
+		int accepted = 0;
+		while (accepted < length) {
+			byte [] slot = ring.claim();
+			if (slot == null) {
+				break;
+			}
+			int n = Math.min(length - accepted, SamplePlayer.BUFFER_SIZE);
+			ring.commit(codec.transcode(buffer, offset + accepted, n, slot, 0));
+			queuedBlocks++;
+			accepted += n;
+		}
+		if (accepted > 0) {
+			LockSupport.unpark(writer);
+		}
+		return accepted;
+	}
+
+	/**
+	 * Wait until every queued sample has been written to the stream and flushed
+	 *
+	 * @throws IOException If the stream has failed
+	 */
+	public void drain() throws IOException {
+
+		while ((writtenBlocks != queuedBlocks) && (error == null)) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(WAIT_NANOS);
+		}
+		checkError();
+		out.flush();
+	}
+
+	/**
+	 * Drain the queue, stop the writer thread and close the stream
+	 *
+	 * @throws IOException If the stream has failed
+	 */
+	public void close() throws IOException {
+
+		try {
+			drain();
+		} finally {
+			done = true;
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			out.close();
+		}
+	}
+
+	/**
+	 * Return the thread writing to the stream
+	 *
+	 * @return Writer thread
+	 */
+	Thread getWriterThread() {
+
+		return writer;
+	}
+
+	/**
+	 * Rethrow a failure of the writer thread on the renderer's thread
+	 *
+	 * @throws IOException The stream's error
+	 */
+	private void checkError() throws IOException {
+
+		IOException e = error;
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	/**
+	 * Writer thread; copies queued blocks to the stream
+	 */
+	private void writerLoop() {
+
+		try {
+			while (true) {
+				byte [] block = ring.peek();
+				if (block == null) {
+					if (done) {
+						return;
+					}
+					LockSupport.parkNanos(this, WAIT_NANOS);
+					continue;
+				}
+				out.write(block, 0, ring.peekLength());
+				ring.release();
+				writtenBlocks++;
+			}
+		} catch (IOException e) {
+			error = e;
+		}
+	}
+
+	// Longest a waiting thread sleeps before looking again
+	private static final long WAIT_NANOS = 1000000L;
+
+	// Instance data
+	private final OutputStream out;
+	private final PcmCodec codec;
+	private final BlockRing ring;
+	private final Thread writer;
+	private volatile boolean done;
+	private volatile IOException error;
+
+	// Each written by one side only
+	private volatile long queuedBlocks;
+	private volatile long writtenBlocks;
+}
@@ -1,16 +1,29 @@
 package com.craigl.softsynth;
 
+import java.util.Arrays;
+
 /**
  * Phaser Effect
  * <p>
  * Programmable effect that emulates an analog guitar phaser.
  * <p>
+ * The number of allpass stages is configurable. Stage state is held in<br>
+ * primitive arrays and the sweep is updated at control rate, every<br>
+ * PHASER_CONTROL_INTERVAL samples, so the inner loop only runs the<br>
+ * allpass stages. In stereo the right channel runs its own stages with<br>
+ * a sweep that is offset in phase from the left channel.
+ * <p>
+ * A bypassed effect passes buffers through untouched. Once the input<br>
+ * is silent and the allpass stages have rung out, buffers pass through<br>
+ * without being processed and the sweep pauses. Stage state is flushed<br>
+ * to zero before it can decay into subnormal doubles.
+ * <p>
  * See text for details.
  * 
  * @author craiglindley
  */
 
-public class PhaserEffect implements SampleProviderIntfc {
+public class PhaserEffect implements SampleProviderIntfc, StereoSampleProviderIntfc, SilenceIntfc {
 	
 	public static final double PHASER_DRYWETMIXPERCENT_MIN     =   0.0;
 	public static final double PHASER_DRYWETMIXPERCENT_MAX     = 100.0;	
@@ -28,7 +41,20 @@ public class PhaserEffect implements SampleProviderIntfc {
 	public static final double PHASER_FEEDBACKPERCENT_MAX     = 100.0;	
 	public static final double PHASER_FEEDBACKPERCENT_DEFAULT =  10.0;
 	
+	public static final int PHASER_STAGES_MIN     =  2;
+	public static final int PHASER_STAGES_MAX     = 24;
+	public static final int PHASER_STAGES_DEFAULT =  4;
+
+	public static final double PHASER_STEREOPHASE_MIN_DEGREES     =   0.0;
+	public static final double PHASER_STEREOPHASE_MAX_DEGREES     = 180.0;
+	public static final double PHASER_STEREOPHASE_DEGREES_DEFAULT =  90.0;
+
+	// Samples between sweep updates
+	public static final int PHASER_CONTROL_INTERVAL = 16;
+
 	private static final double PHASER_BASE_FREQUENCY = 100.0;
+
+	private static final int CHANNELS = 2;
 	
 	/**
 	 * Phaser Effect Class Constructor
@@ -41,10 +67,12 @@ public class PhaserEffect implements SampleProviderIntfc {
 
 		// Parameterize effect
 		setBypassed(true);
+		setStageCount(PHASER_STAGES_DEFAULT);
 		setDryWetMixPercent(PHASER_DRYWETMIXPERCENT_DEFAULT);
 		setSweepRate(PHASER_SWEEPRATE_HZ_DEFAULT);
 		setSweepRangeInOctaves(PHASER_SWEEPRANGE_DEFAULT);
 		setFeedbackPercent(PHASER_FEEDBACKPERCENT_DEFAULT);
+		setStereoPhaseInDegrees(PHASER_STEREOPHASE_DEGREES_DEFAULT);
 	}
 
 	/**
@@ -57,6 +85,50 @@ public class PhaserEffect implements SampleProviderIntfc {
 		this.bypassed = bypassed;
 	}
 
+	/**
+	 * Returns the state of the PhaserEffect
+	 *
+	 * @return true if the effect is bypassed
+	 */
+	public boolean isBypassed() {
+
+		return bypassed;
+	}
+
+	/**
+	 * Sets the number of allpass stages
+	 * <p>
+	 * Each pair of stages adds one notch to the phaser's response.<br>
+	 * Stage count must be between PHASER_STAGES_MIN and PHASER_STAGES_MAX.
+	 * 
+	 * @param stageCount Number of allpass stages
+	 */
+	public void setStageCount(int stageCount) {
+
+		stageCount = (stageCount < PHASER_STAGES_MIN) ? PHASER_STAGES_MIN : stageCount;
+		stageCount = (stageCount > PHASER_STAGES_MAX) ? PHASER_STAGES_MAX : stageCount;
+
+		// Stages being switched in start from rest
+		for (int c = 0; c < CHANNELS; c++) {
+			int base = c * PHASER_STAGES_MAX;
+			for (int s = this.stageCount; s < stageCount; s++) {
+				stageOut[base + s] = 0.0;
+				stagePrevIn[base + s] = 0.0;
+			}
+		}
+		this.stageCount = stageCount;
+	}
+
+	/**
+	 * Returns the number of allpass stages
+	 *
+	 * @return Number of allpass stages
+	 */
+	public int getStageCount() {
+
+		return stageCount;
+	}
+
 	/**
 	 * Sets the dry / wet mix for the PhaserEffect
 	 * 
@@ -70,6 +142,16 @@ public class PhaserEffect implements SampleProviderIntfc {
 		this.dryWetMixPercent = dryWetMixPercent;
 	}
 
+	/**
+	 * Returns the dry / wet mix for the PhaserEffect
+	 *
+	 * @return The percentage of wet signal in the mix
+	 */
+	public double getDryWetMixPercent() {
+
+		return dryWetMixPercent;
+	}
+
 	/**
 	 * Sets the sweep rate
 	 * <p>
@@ -88,6 +170,16 @@ public class PhaserEffect implements SampleProviderIntfc {
 		initialize();	
 	}
 
+	/**
+	 * Returns the sweep rate
+	 *
+	 * @return The rate of frequency sweep in Hz.
+	 */
+	public double getSweepRate() {
+
+		return sweepRate;
+	}
+
 	/**
 	 * Sets the sweep range
 	 * <p>
@@ -106,6 +198,16 @@ public class PhaserEffect implements SampleProviderIntfc {
 		initialize();
 	}
 
+	/**
+	 * Returns the sweep range
+	 *
+	 * @return The range of frequency sweep in octaves.
+	 */
+	public int getSweepRangeInOctaves() {
+
+		return sweepRangeInOctaves;
+	}
+
 	/**
 	 * Sets the feedback level which is the amount of output feedback to the input.
 	 * 
@@ -119,6 +221,42 @@ public class PhaserEffect implements SampleProviderIntfc {
 		this.feedbackPercent = feedbackPercent;
 	}
 
+	/**
+	 * Returns the feedback level
+	 *
+	 * @return The percentage of the output feedback to the input
+	 */
+	public double getFeedbackPercent() {
+
+		return feedbackPercent;
+	}
+
+	/**
+	 * Sets the phase offset of the right channel sweep relative to the left
+	 * <p>
+	 * Only used when the effect is pulled as a stereo provider.<br>
+	 * Offset must be between PHASER_STEREOPHASE_MIN_DEGREES and PHASER_STEREOPHASE_MAX_DEGREES.
+	 * 
+	 * @param degrees Phase offset of the right sweep in degrees
+	 */
+	public void setStereoPhaseInDegrees(double degrees) {
+
+		degrees = (degrees < PHASER_STEREOPHASE_MIN_DEGREES) ? PHASER_STEREOPHASE_MIN_DEGREES : degrees;
+		degrees = (degrees > PHASER_STEREOPHASE_MAX_DEGREES) ? PHASER_STEREOPHASE_MAX_DEGREES : degrees;
+
+		stereoPhaseOffset = degrees / 360.0;
+	}
+
+	/**
+	 * Returns the phase offset of the right channel sweep relative to the left
+	 *
+	 * @return Phase offset of the right sweep in degrees
+	 */
+	public double getStereoPhaseInDegrees() {
+
+		return stereoPhaseOffset * 360.0;
+	}
+
 	/**
 	 * Setup the provider of samples
 	 * 
@@ -128,19 +266,206 @@ public class PhaserEffect implements SampleProviderIntfc {
 		this.provider = provider;
 	}
 
+	/**
+	 * Set the track modulating the dry / wet mix
+	 * <p>
+	 * The modulation is sampled once per PHASER_CONTROL_INTERVAL.
+	 * 
+	 * @param track Percentage added to the mix from a ModulationMatrix or null for none
+	 */
+	public void setMixModulation(ModulationTrack track) {
+		
+		mixModulation = track;
+	}
+
+	/**
+	 * Set the track modulating the feedback
+	 * <p>
+	 * The modulation is sampled once per PHASER_CONTROL_INTERVAL.
+	 * 
+	 * @param track Percentage added to the feedback from a ModulationMatrix or null for none
+	 */
+	public void setFeedbackModulation(ModulationTrack track) {
+		
+		feedbackModulation = track;
+	}
+
 	/**
 	 * Perform initialization calculation based upon sweep rate and range.
+	 * <p>
+	 * The sweep moves the allpass break frequency exponentially between<br>
+	 * PHASER_BASE_FREQUENCY and sweepRangeInOctaves above it and back<br>
+	 * again sweepRate times a second.
 	 */
 	private void initialize() {
 		
-		wp = minWp = (2.0 * Math.PI * PHASER_BASE_FREQUENCY) / SamplePlayer.SAMPLE_RATE;
+		minWp = (2.0 * Math.PI * PHASER_BASE_FREQUENCY) / SamplePlayer.SAMPLE_RATE;
+		
+		sweepPhaseIncrement = (sweepRate * PHASER_CONTROL_INTERVAL) / SamplePlayer.SAMPLE_RATE;
+	}
+
+	/**
+	 * Calculate the allpass coefficient for a point of the sweep
+	 * 
+	 * @param phase Sweep phase between 0.0 and 1.0
+	 * 
+	 * @return Allpass coefficient A for the difference equation
+	 */
+	private double coefficient(double phase) {
+
+		// Triangle from 0 up to 1 and back down over one sweep period
+		double tri = (phase < 0.5) ? (2.0 * phase) : (2.0 - 2.0 * phase);
+		double wp = minWp * Math.pow(2.0, sweepRangeInOctaves * tri);
+
+		return (1.0 - wp) / (1.0 + wp);
+	}
+
+	/**
+	 * Advance the sweep by one control interval and recompute the coefficients
+	 * 
+	 * @param stereo If true the right channel coefficient is also computed
+	 */
+	private void updateSweep(boolean stereo) {
+
+		coefficients[0] = coefficient(sweepPhase);
+		if (stereo) {
+			double rightPhase = sweepPhase + stereoPhaseOffset;
+			coefficients[1] = coefficient(rightPhase - Math.floor(rightPhase));
+		}
+		sweepPhase += sweepPhaseIncrement;
+		sweepPhase -= Math.floor(sweepPhase);
+	}
+
+	/**
+	 * Run a span of samples of one channel through the allpass cascade
+	 * 
+	 * @param channel 0 for left; 1 for right
+	 * @param input Normalized input samples
+	 * @param output Array receiving normalized processed samples
+	 * @param offset Index of the first sample of the span
+	 * @param count Count of samples in the span
+	 */
+	private void processStages(int channel, double [] input, double [] output, int offset, int count) {
+
+		double [] out = stageOut;
+		double [] prevIn = stagePrevIn;
+		int base = channel * PHASER_STAGES_MAX;
+		int end = base + stageCount;
+
+		double A = coefficients[channel];
+		double feedback = spanFeedback;
+		double wet = spanWet;
+		double dry = 1.0 - wet;
+		double last = lastOut[channel];
+
+		for (int i = offset; i < offset + count; i++) {
+			double sample = input[i];
+			double x = sample + (feedback * last);
+			
+			// Cascade of first order allpass filters
+			for (int s = base; s < end; s++) {
+				double y = A * (x + out[s]) - prevIn[s];
+				prevIn[s] = x;
+				out[s] = y;
+				x = y;
+			}
+			last = x;
+
+			// Calculate wet and dry contributions
+			double outSample = (dry * sample) + (wet * x);
+
+			if (outSample > 1.0) {
+				outSample = 1.0;
+			}	else if (outSample < -1.0)	{
+				outSample = -1.0;
+			}
+			output[i] = outSample;
+		}
+		lastOut[channel] = last;
+	}
+
+	/**
+	 * Calculate the mix and feedback for a span, adding any modulation
+	 * 
+	 * @param count Count of samples being processed
+	 * @param offset Index of the first sample of the span
+	 */
+	private void updateLevels(int count, int offset) {
+
+		double mix = dryWetMixPercent;
+		double feedback = feedbackPercent;
 		
-		// Convert octave range to freq range
-		double freqRange = Math.pow(2.0, sweepRangeInOctaves);
+		// Modulation tracks only describe whole buffers
+		if (count == SamplePlayer.SAMPLES_PER_BUFFER) {
+			ModulationTrack mm = mixModulation;
+			if ((mm != null) && mm.isActive()) {
+				mix += mm.getValue(offset);
+				mix = (mix < PHASER_DRYWETMIXPERCENT_MIN) ? PHASER_DRYWETMIXPERCENT_MIN : mix;
+				mix = (mix > PHASER_DRYWETMIXPERCENT_MAX) ? PHASER_DRYWETMIXPERCENT_MAX : mix;
+			}
+			ModulationTrack fm = feedbackModulation;
+			if ((fm != null) && fm.isActive()) {
+				feedback += fm.getValue(offset);
+				feedback = (feedback < PHASER_FEEDBACKPERCENT_MIN) ? PHASER_FEEDBACKPERCENT_MIN : feedback;
+				feedback = (feedback > PHASER_FEEDBACKPERCENT_MAX) ? PHASER_FEEDBACKPERCENT_MAX : feedback;
+			}
+		}
+		spanWet = mix / 100.0;
+		spanFeedback = feedback / 100.0;
+	}
+
+	/**
+	 * Process count normalized input samples into one or both output channels
+	 * 
+	 * @param count Count of samples in the input array
+	 * @param stereo If true the right channel is processed as well
+	 */
+	private void process(int count, boolean stereo) {
+
+		int i = 0;
+		while (i < count) {
+			if (samplesUntilUpdate == 0) {
+				updateSweep(stereo);
+				samplesUntilUpdate = PHASER_CONTROL_INTERVAL;
+			}
+			int span = Math.min(samplesUntilUpdate, count - i);
+
+			updateLevels(count, i);
+			processStages(0, input, leftOutput, i, span);
+			if (stereo) {
+				processStages(1, input, rightOutput, i, span);
+			}
+			samplesUntilUpdate -= span;
+			i += span;
+		}
+	}
+
+	/**
+	 * Flush stage state that is decaying into the subnormal range to zero
+	 */
+	private void flushState() {
 		
-		maxWp = minWp * freqRange;
+		Silence.flush(stageOut, 0, stageOut.length);
+		Silence.flush(stagePrevIn, 0, stagePrevIn.length);
+		Silence.flush(lastOut, 0, lastOut.length);
+	}
+
+	/**
+	 * Return whether the allpass stages have decayed below hearing, zeroing them if so
+	 * 
+	 * @return true if the stages have rung out
+	 */
+	private boolean isRungOut() {
 		
-		currentStep = step = Math.pow(freqRange, sweepRate / (SamplePlayer.SAMPLE_RATE / 2.0));
+		if (! (Silence.flush(stageOut, 0, stageOut.length) &&
+			   Silence.flush(stagePrevIn, 0, stagePrevIn.length) &&
+			   Silence.flush(lastOut, 0, lastOut.length))) {
+			return false;
+		}
+		Arrays.fill(stageOut, 0.0);
+		Arrays.fill(stagePrevIn, 0.0);
+		Arrays.fill(lastOut, 0.0);
+		return true;
 	}
 
 	/**
@@ -156,51 +481,12 @@ public class PhaserEffect implements SampleProviderIntfc {
 			return shortSample;
 		}
 
-		double sample = ((double) shortSample) / Short.MAX_VALUE;
+		input[0] = shortSample * (1.0 / PcmCodec.FULL_SCALE_16);
+		process(1, false);
 
-		// Calculate A in difference equation
-		double A = (1.0 - wp) / (1.0 + wp);
-		
-		double inSample = sample + ((feedbackPercent * thisOut4) / 100.0);
-		
-		// Do the first allpass filter
-		thisOut1 = A * (inSample + thisOut1) - prevIn1;
-		prevIn1 = inSample;
-		
-		// Do the second allpass filter
-		thisOut2 = A * (thisOut1 + thisOut2) - prevIn2;
-		prevIn2 = thisOut1;
-		
-		// Do the third allpass filter
-		thisOut3 = A * (thisOut2 + thisOut3) - prevIn3;
-		prevIn3 = thisOut2;
-		
-		// Do the forth allpass filter
-		thisOut4 = A * (thisOut3 + thisOut4) - prevIn4;
-		prevIn4 = thisOut3;
-		
-		// Calculate wet and dry contributions
-		double dryLevel = ((100.0 - dryWetMixPercent) * sample) / 100.0;
-		double wetLevel = (dryWetMixPercent * thisOut4) / 100.0;
-		double outSample = dryLevel + wetLevel;
-		
-		if (outSample > 1.0) {
-			outSample = 1.0;
-		}	else if (outSample < -1.0)	{
-			outSample = -1.0;
-		}
-					
-		// Update sweep
-		wp *= currentStep;		// Apply step value
-		
-		if(wp > maxWp) {		// Exceed max Wp ?
-			currentStep = 1.0 / step;
-		}	else if (wp < minWp) {	// Exceed min Wp ?
-			currentStep = step;
-		}
-		return (short)(outSample * Short.MAX_VALUE);
+		return PcmCodec.quantize(leftOutput[0]);
 	}
-	
+
 	/**
 	 * Process a buffer full of samples pulled from the sample provider
 	 * 
@@ -213,33 +499,82 @@ public class PhaserEffect implements SampleProviderIntfc {
 		// Grab samples to manipulate from this modules sample provider
 		provider.getSamples(buffer);
 		
-		int index = 0;
-		for (int i = 0; i < SamplePlayer.SAMPLES_PER_BUFFER; i++) {
-			// Get a sample to process
-			byte b2 = buffer[index];
-			byte b1 = buffer[index+1];
-
-			// Convert bytes into short sample
-			short s = (short)((((int) b2) << 8) + b1);
-			
-			// Process the sample
-			s = processSample(s);
-			
-			// Store the processed sample
-			buffer[index++] = (byte)(s >> 8);
-			buffer[index++] = (byte)(s & 0xFF);			
+		// Bypassed, or silence in and the stages rung out; pass the buffer through
+		silent = Silence.isSilent(provider);
+		if (bypassed || (silent && isRungOut())) {
+			return SamplePlayer.BUFFER_SIZE;
+		}
+		silent = false;
+		PcmCodec.unpack(buffer, input, SamplePlayer.SAMPLES_PER_BUFFER);
+		process(SamplePlayer.SAMPLES_PER_BUFFER, false);
+		flushState();
+		PcmCodec.pack(leftOutput, 1.0, buffer, SamplePlayer.SAMPLES_PER_BUFFER);
+
+		return SamplePlayer.BUFFER_SIZE;
+	}
+
+	/**
+	 * Process a buffer full of mono samples pulled from the sample provider<br>
+	 * into left and right channels with phase offset sweeps.
+	 * 
+	 * @param leftBuffer Buffer in which the left channel samples are to be processed
+	 * @param rightBuffer Buffer in which the right channel samples are to be processed
+	 * 
+	 * @return Count of number of bytes processed per channel
+	 */
+	public int getSamples(byte [] leftBuffer, byte [] rightBuffer) {
+
+		// Grab samples to manipulate from this modules sample provider
+		provider.getSamples(leftBuffer);
+
+		silent = Silence.isSilent(provider);
+		if (bypassed || (silent && isRungOut())) {
+			System.arraycopy(leftBuffer, 0, rightBuffer, 0, SamplePlayer.BUFFER_SIZE);
+			return SamplePlayer.BUFFER_SIZE;
 		}
+		silent = false;
+		PcmCodec.unpack(leftBuffer, input, SamplePlayer.SAMPLES_PER_BUFFER);
+		process(SamplePlayer.SAMPLES_PER_BUFFER, true);
+		flushState();
+		PcmCodec.pack(leftOutput, 1.0, leftBuffer, SamplePlayer.SAMPLES_PER_BUFFER);
+		PcmCodec.pack(rightOutput, 1.0, rightBuffer, SamplePlayer.SAMPLES_PER_BUFFER);
+
 		return SamplePlayer.BUFFER_SIZE;
 	}
 
+	/**
+	 * Return whether the last buffer was silent
+	 * 
+	 * @return true if the last buffer, or both last buffers in stereo, were silent
+	 */
+	public boolean isSilent() {
+		
+		return silent;
+	}
+
 	// Instance data
 	private boolean bypassed;
+	private boolean silent;
 	private double sweepRate, dryWetMixPercent, feedbackPercent;
+	private double spanWet, spanFeedback;
+	private ModulationTrack mixModulation, feedbackModulation;
 	private int sweepRangeInOctaves;
+	private int stageCount;
+	private double stereoPhaseOffset;
 	
-	private double wp, minWp, maxWp, currentStep, step;
-	private double thisOut1, thisOut2, thisOut3, thisOut4;
-	private double prevIn1, prevIn2, prevIn3, prevIn4;
+	private double minWp;
+	private double sweepPhase, sweepPhaseIncrement;
+	private int samplesUntilUpdate;
+	private final double [] coefficients = new double[CHANNELS];
+
+	// Allpass stage state; channel c occupies [c * PHASER_STAGES_MAX, c * PHASER_STAGES_MAX + stageCount)
+	private final double [] stageOut    = new double[CHANNELS * PHASER_STAGES_MAX];
+	private final double [] stagePrevIn = new double[CHANNELS * PHASER_STAGES_MAX];
+	private final double [] lastOut     = new double[CHANNELS];
+
+	private final double [] input       = new double[SamplePlayer.SAMPLES_PER_BUFFER];
+	private final double [] leftOutput  = new double[SamplePlayer.SAMPLES_PER_BUFFER];
+	private final double [] rightOutput = new double[SamplePlayer.SAMPLES_PER_BUFFER];
 	
 	private SampleProviderIntfc provider;
 }
@@ -0,0 +1,523 @@
+package com.craigl.softsynth;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pipelined Chain
+ * <p>
+ * Spreads one long signal chain over several cores. The chain is split<br>
+ * into stages and every stage but the last runs on a thread of its own,<br>
+ * rendering ahead into a BlockRing that the next stage reads from. The<br>
+ * last stage runs on the thread that pulls the pipeline, normally the<br>
+ * SamplePlayer's. While the last stage processes block n the stage<br>
+ * before it renders block n + 1 and so on up the chain, so a chain too<br>
+ * slow for one core keeps up as long as its slowest stage does.
+ * <p>
+ * Each stage is given the module at its end. The module at the start<br>
+ * of the next stage pulls from the input returned when the stage is<br>
+ * added:
+ * <p>
+ * PipelinedChain pipe = new PipelinedChain(1, PipelinedChain.WAIT.PARK);<br>
+ * phaser.setSampleProvider(pipe.addStage(vcf));<br>
+ * delay.setSampleProvider(pipe.addStage(phaser));<br>
+ * pipe.addStage(delay);<br>
+ * pipe.startPipeline();<br>
+ * player.setSampleProvider(pipe);
+ * <p>
+ * A stage may run up to latencyBlocks blocks ahead of the next one, so<br>
+ * the pipeline adds up to (stages - 1) * latencyBlocks blocks of latency<br>
+ * to events applied to the first stage. A stage waiting for its input<br>
+ * or for room in its output either spins, which reacts quickest but<br>
+ * keeps a core busy, or parks until the other side signals it. Spin<br>
+ * only when every stage has a core of its own.
+ * <p>
+ * The time each stage spends rendering, waiting for its input and<br>
+ * waiting for room is counted, so the split can be balanced; see<br>
+ * printReport. Stages do not allocate once the pipeline is running.
+ * <p>
+ * A stage returning a negative count ends the stream: the count is<br>
+ * passed on to the next stage, which is given it on every later pull,<br>
+ * and the threads of that stage and the stages feeding it finish.
+ */
+
+public class PipelinedChain implements SampleProviderIntfc, SilenceIntfc {
+
+	/**
+	 * Wait mode enumeration
+	 */
+	public enum WAIT {
+		SPIN, PARK
+	}
+
+	public static final int STAGES_MAX = 16;
+
+	public static final int LATENCY_BLOCKS_MIN = 1;
+	public static final int LATENCY_BLOCKS_MAX = 64;
+	public static final int LATENCY_BLOCKS_DEFAULT = 1;
+
+	// Longest a parked stage sleeps before checking again
+	private static final long PARK_NANOS = 1000000L;
+
+	/**
+	 * PipelinedChain Class Constructor
+	 * <p>
+	 * Stages run LATENCY_BLOCKS_DEFAULT blocks ahead and park while waiting
+	 */
+	public PipelinedChain() {
+
+		this(LATENCY_BLOCKS_DEFAULT, WAIT.PARK);
+	}
+
+	/**
+	 * PipelinedChain Class Constructor
+	 *
+	 * @param latencyBlocks Blocks a stage may run ahead, between LATENCY_BLOCKS_MIN and LATENCY_BLOCKS_MAX
+	 * @param wait How stages wait for input and room
+	 */
+	public PipelinedChain(int latencyBlocks, WAIT wait) {
+
+		latencyBlocks = (latencyBlocks < LATENCY_BLOCKS_MIN) ? LATENCY_BLOCKS_MIN : latencyBlocks;
+		latencyBlocks = (latencyBlocks > LATENCY_BLOCKS_MAX) ? LATENCY_BLOCKS_MAX : latencyBlocks;
+
+		this.latencyBlocks = latencyBlocks;
+		this.wait = wait;
+	}
+
+	/**
+	 * Add the next stage of the chain
+	 * <p>
+	 * The returned input delivers the stage's output to the next stage;<br>
+	 * the input returned for the last stage is not used.
+	 *
+	 * @param output Module at the end of the stage
+	 *
+	 * @return Provider for the module at the start of the next stage
+	 */
+	public SampleProviderIntfc addStage(SampleProviderIntfc output) {
+
+		if (workers != null) {
+			throw new IllegalStateException("Pipeline is already running");
+		}
+		if (stageCount == STAGES_MAX) {
+			throw new IllegalStateException("Too many pipeline stages");
+		}
+		int stage = stageCount++;
+		stages[stage] = output;
+		links[stage] = new Link(stage + 1);
+		return links[stage];
+	}
+
+	/**
+	 * Return the count of stages
+	 *
+	 * @return Stage count
+	 */
+	public int getStageCount() {
+
+		return stageCount;
+	}
+
+	/**
+	 * Return the blocks a stage may run ahead of the next
+	 *
+	 * @return Latency in blocks per stage
+	 */
+	public int getLatencyBlocks() {
+
+		return latencyBlocks;
+	}
+
+	/**
+	 * Start a thread for every stage but the last
+	 */
+	public void startPipeline() {
+
+		if (stageCount == 0) {
+			throw new IllegalStateException("Pipeline has no stages");
+		}
+		running = true;
+		ended = -1;
+		reset();
+
+		workers = new Thread[stageCount - 1];
+		for (int i = 0; i < workers.length; i++) {
+			final int stage = i;
+			workers[i] = new Thread("PipelinedChain-" + i) {
+				public void run() {
+					workerLoop(stage);
+				}
+			};
+			workers[i].setDaemon(true);
+			links[i].producer = workers[i];
+		}
+		for (Thread worker : workers) {
+			worker.start();
+		}
+	}
+
+	/**
+	 * Stop the stage threads and wait for them to finish
+	 * <p>
+	 * Inputs deliver silence once the pipeline is stopped.
+	 */
+	public void stopPipeline() {
+
+		running = false;
+		if (workers == null) {
+			return;
+		}
+		for (Thread worker : workers) {
+			LockSupport.unpark(worker);
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Return the stage threads
+	 *
+	 * @return Threads of all stages but the last, or an empty array if not started
+	 */
+	public Thread [] getWorkers() {
+
+		return (workers == null) ? new Thread[0] : workers.clone();
+	}
+
+	/**
+	 * Render blocks of one stage into its output ring until stopped
+	 *
+	 * @param stage Index of the stage
+	 */
+	private void workerLoop(int stage) {
+
+		SampleProviderIntfc output = stages[stage];
+		Link link = links[stage];
+		while (running && (stage > ended)) {
+			byte [] slot = link.awaitRoom(stage);
+			if (slot == null) {
+				break;
+			}
+			int count = render(stage, output, slot);
+			link.publish(count, Silence.isSilent(output) || (count < 0));
+			if (count < 0) {
+				end(stage);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Finish the stages feeding a stage whose stream has ended
+	 *
+	 * @param stage Index of the stage that returned a negative count
+	 */
+	private synchronized void end(int stage) {
+
+		if (stage > ended) {
+			ended = stage;
+		}
+		for (int i = 0; i < stage; i++) {
+			LockSupport.unpark(workers[i]);
+		}
+	}
+
+	/**
+	 * Render a block of a stage, counting the time it took less the time it waited for input
+	 *
+	 * @param stage Index of the stage
+	 * @param output Module at the end of the stage
+	 * @param buffer Buffer to render into
+	 *
+	 * @return Count of bytes rendered
+	 */
+	private int render(int stage, SampleProviderIntfc output, byte [] buffer) {
+
+		long waited = starvedNanos[stage];
+		long start = System.nanoTime();
+		int count = output.getSamples(buffer);
+		long nanos = (System.nanoTime() - start) - (starvedNanos[stage] - waited);
+
+		busyNanos[stage] += nanos;
+		maxBusyNanos[stage] = (nanos > maxBusyNanos[stage]) ? nanos : maxBusyNanos[stage];
+		blocks[stage]++;
+		return count;
+	}
+
+	/**
+	 * Render a buffer with the last stage
+	 *
+	 * @param buffer Buffer in which the samples are to be processed
+	 *
+	 * @return Count of number of bytes processed
+	 */
+	public int getSamples(byte [] buffer) {
+
+		int last = stageCount - 1;
+		return render(last, stages[last], buffer);
+	}
+
+	/**
+	 * Return whether the last buffer was silent
+	 *
+	 * @return true if the last stage reported silence
+	 */
+	public boolean isSilent() {
+
+		return Silence.isSilent(stages[stageCount - 1]);
+	}
+
+	/**
+	 * Forget the timings so far
+	 */
+	public void reset() {
+
+		for (int s = 0; s < STAGES_MAX; s++) {
+			blocks[s] = 0;
+			busyNanos[s] = 0;
+			maxBusyNanos[s] = 0;
+			starvedNanos[s] = 0;
+			blockedNanos[s] = 0;
+		}
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Return the share of the time since the last reset a stage spent rendering
+	 *
+	 * @param stage Index of the stage
+	 *
+	 * @return Busy time in percent
+	 */
+	public double getBusyPercent(int stage) {
+
+		return percent(busyNanos[stage]);
+	}
+
+	/**
+	 * Return the share of the time since the last reset a stage waited for its input
+	 *
+	 * @param stage Index of the stage
+	 *
+	 * @return Starved time in percent
+	 */
+	public double getStarvedPercent(int stage) {
+
+		return percent(starvedNanos[stage]);
+	}
+
+	/**
+	 * Return the share of the time since the last reset a stage waited for room in its output
+	 *
+	 * @param stage Index of the stage
+	 *
+	 * @return Blocked time in percent
+	 */
+	public double getBlockedPercent(int stage) {
+
+		return percent(blockedNanos[stage]);
+	}
+
+	/**
+	 * Return how evenly the work is spread over the stages
+	 * <p>
+	 * The mean busy time of the stages over that of the busiest stage.
+	 *
+	 * @return Balance between 1 / stages and 1.0 for a perfect split
+	 */
+	public double getBalance() {
+
+		long total = 0;
+		long max = 0;
+		for (int s = 0; s < stageCount; s++) {
+			total += busyNanos[s];
+			max = (busyNanos[s] > max) ? busyNanos[s] : max;
+		}
+		return (max == 0) ? 1.0 : total / ((double) stageCount * max);
+	}
+
+	/**
+	 * Print the timings of every stage and the balance of the split
+	 *
+	 * @param out Stream to print to
+	 * @param label Label of the report
+	 */
+	public void printReport(PrintStream out, String label) {
+
+		int bottleneck = 0;
+		for (int s = 0; s < stageCount; s++) {
+			bottleneck = (busyNanos[s] > busyNanos[bottleneck]) ? s : bottleneck;
+		}
+		out.printf("%-28s %d stages, %d blocks ahead, %s  balance %4.2f  bottleneck stage %d%n",
+				label, stageCount, latencyBlocks, wait, getBalance(), bottleneck);
+		for (int s = 0; s < stageCount; s++) {
+			double mean = (blocks[s] == 0) ? 0.0 : busyNanos[s] / (blocks[s] * 1.0e6);
+			out.printf("  stage %2d %8d blocks  mean %6.3f max %6.3f ms  busy %5.1f%%  starved %5.1f%%  blocked %5.1f%%%n",
+					s, blocks[s], mean, maxBusyNanos[s] / 1.0e6,
+					getBusyPercent(s), getStarvedPercent(s), getBlockedPercent(s));
+		}
+	}
+
+	private double percent(long nanos) {
+
+		long elapsed = System.nanoTime() - startNanos;
+		return (elapsed <= 0) ? 0.0 : (100.0 * nanos) / elapsed;
+	}
+
+	/**
+	 * Wait for a condition, spinning or parking per the wait mode
+	 *
+	 * @param start Time the wait began; returned unchanged on the first pass
+	 *
+	 * @return Time the wait began
+	 */
+	private long pause(long start) {
+
+		if (start == 0) {
+			return System.nanoTime();
+		}
+		if (wait == WAIT.SPIN) {
+			Thread.onSpinWait();
+		}	else	{
+			LockSupport.parkNanos(this, PARK_NANOS);
+		}
+		return start;
+	}
+
+	/**
+	 * The ring between a stage and the next, read by the next stage as its input
+	 */
+	private class Link implements SampleProviderIntfc, SilenceIntfc {
+
+		Link(int consumerStage) {
+
+			this.consumerStage = consumerStage;
+			ring = new BlockRing(latencyBlocks, SamplePlayer.BUFFER_SIZE);
+			silences = new boolean[ring.capacity()];
+		}
+
+		/**
+		 * Wait for room in the ring; called by the producing stage
+		 *
+		 * @param stage Index of the producing stage
+		 *
+		 * @return Slot to render into or null if the pipeline stopped
+		 */
+		byte [] awaitRoom(int stage) {
+
+			long start = 0;
+			while (ring.size() >= latencyBlocks) {
+				if ((! running) || (stage <= ended)) {
+					return null;
+				}
+				start = pause(start);
+			}
+			if (start != 0) {
+				blockedNanos[stage] += System.nanoTime() - start;
+			}
+			return ring.claim();
+		}
+
+		/**
+		 * Publish the rendered slot and wake the consumer
+		 *
+		 * @param count Count of bytes rendered
+		 * @param silent Whether the block is silent
+		 */
+		void publish(int count, boolean silent) {
+
+			silences[(int) (published++ & (silences.length - 1))] = silent;
+			ring.commit(count);
+			if (wait == WAIT.PARK) {
+				Thread c = consumer;
+				if (c != null) {
+					LockSupport.unpark(c);
+				}
+			}
+		}
+
+		/**
+		 * Deliver the next block of the producing stage
+		 *
+		 * @param buffer Array to fill with samples
+		 *
+		 * @return Count of bytes produced.
+		 */
+		public int getSamples(byte [] buffer) {
+
+			long start = 0;
+			byte [] block;
+			consumer = Thread.currentThread();
+			while ((block = ring.peek()) == null) {
+				if (! running) {
+					Arrays.fill(buffer, (byte) 0);
+					silent = true;
+					return SamplePlayer.BUFFER_SIZE;
+				}
+				start = pause(start);
+			}
+			if (start != 0) {
+				starvedNanos[consumerStage] += System.nanoTime() - start;
+			}
+			int count = ring.peekLength();
+
+			// End of stream; the block is kept so every later pull returns it too
+			if (count < 0) {
+				silent = true;
+				return count;
+			}
+			System.arraycopy(block, 0, buffer, 0, count);
+			silent = silences[(int) (consumed++ & (silences.length - 1))];
+			ring.release();
+
+			// The producer may render the next block while this one is processed
+			if (wait == WAIT.PARK) {
+				Thread p = producer;
+				if (p != null) {
+					LockSupport.unpark(p);
+				}
+			}
+			return count;
+		}
+
+		public boolean isSilent() {
+
+			return silent;
+		}
+
+		private final int consumerStage;
+		private final BlockRing ring;
+		private final boolean [] silences;
+		private long published;
+		private long consumed;
+		private boolean silent;
+		private volatile Thread producer;
+		private volatile Thread consumer;
+	}
+
+	// Instance data
+	private final int latencyBlocks;
+	private final WAIT wait;
+	private final SampleProviderIntfc [] stages = new SampleProviderIntfc[STAGES_MAX];
+	private final Link [] links = new Link[STAGES_MAX];
+	private int stageCount;
+	private Thread [] workers;
+	private volatile boolean running;
+
+	// Highest stage whose stream has ended, or -1
+	private volatile int ended = -1;
+
+	// Timings, one element per stage, each written by its stage's thread
+	private long startNanos;
+	private final long [] blocks = new long[STAGES_MAX];
+	private final long [] busyNanos = new long[STAGES_MAX];
+	private final long [] maxBusyNanos = new long[STAGES_MAX];
+	private final long [] starvedNanos = new long[STAGES_MAX];
+	private final long [] blockedNanos = new long[STAGES_MAX];
+}
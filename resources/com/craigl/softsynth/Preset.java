@@ -0,0 +1,451 @@
+package com.craigl.softsynth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.craigl.softsynth.AdvancedOscillator.MOD_TYPE;
+import com.craigl.softsynth.BasicOscillator.WAVESHAPE;
+
+/**
+ * Preset
+ * <p>
+ * A compact binary record of a patch: the chain of modules from the<br>
+ * oscillator to the output with every parameter of each module, plus<br>
+ * an opaque block of application data such as an arpeggiator's<br>
+ * configuration. A preset is captured from live modules with the add<br>
+ * methods and turned back into modules with instantiate().
+ * <p>
+ * All values are big endian. A record is laid out as:<br>
+ * int MAGIC, short VERSION, short name length, name in UTF-8,<br>
+ * short module count, then per module a byte module type, a short<br>
+ * parameter length and the parameters, and last an int application<br>
+ * data length and the application data.
+ * <p>
+ * Presets read from a buffer copy only the name and the application<br>
+ * data when they are created; the modules are decoded in place by<br>
+ * instantiate(), so the module records of a preset looked up in a<br>
+ * memory mapped PresetBank are never copied.
+ */
+
+public class Preset {
+
+	public static final int MAGIC = 0x41305052;	// "A0PR"
+	public static final int VERSION = 1;
+
+	// Longest name in UTF-8 bytes; fits a PresetBank index entry
+	public static final int NAME_LENGTH_MAX = 32;
+
+	// Module types
+	private static final int OSCILLATOR = 1;
+	private static final int ADVANCED_OSCILLATOR = 2;
+	private static final int FILTER = 3;
+	private static final int AMPLIFIER = 4;
+	private static final int DELAY = 5;
+	private static final int PHASER = 6;
+
+	private static final WAVESHAPE [] WAVESHAPES = WAVESHAPE.values();
+	private static final MOD_TYPE [] MOD_TYPES = MOD_TYPE.values();
+
+	/**
+	 * Preset Class Constructor
+	 * <p>
+	 * Creates an empty preset for modules to be added to.
+	 *
+	 * @param name Name of the preset; at most NAME_LENGTH_MAX bytes in UTF-8
+	 */
+	public Preset(String name) {
+
+		byte [] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		if (nameBytes.length > NAME_LENGTH_MAX) {
+			throw new IllegalArgumentException("Preset name longer than " + NAME_LENGTH_MAX + " bytes");
+		}
+		this.name = name;
+		this.data = null;
+		modules = new ByteArrayOutputStream();
+		out = new DataOutputStream(modules);
+		applicationData = new byte[0];
+	}
+
+	/**
+	 * Preset Class Constructor
+	 * <p>
+	 * Wraps an encoded preset. The name and the application data are<br>
+	 * copied out here; the modules are left in the buffer and decoded<br>
+	 * by instantiate().
+	 *
+	 * @param data Encoded preset from its position to its limit
+	 *
+	 * @throws IOException If the data is not a supported preset
+	 */
+	public Preset(ByteBuffer data) throws IOException {
+
+		this.data = data.slice();
+		modules = null;
+		out = null;
+
+		try {
+			ByteBuffer in = this.data.duplicate();
+			if (in.getInt() != MAGIC) {
+				throw new IOException("Not a preset");
+			}
+			int version = in.getShort();
+			if ((version < 1) || (version > VERSION)) {
+				throw new IOException("Preset version " + version + " is not supported");
+			}
+			byte [] nameBytes = new byte[checkLength(in, in.getShort())];
+			in.get(nameBytes);
+			name = new String(nameBytes, StandardCharsets.UTF_8);
+
+			// Step over the modules to find the application data
+			moduleCount = in.getShort();
+			if (moduleCount < 0) {
+				throw new IOException("Preset module count " + moduleCount + " is not valid");
+			}
+			modulesStart = in.position();
+			for (int i = 0; i < moduleCount; i++) {
+				in.get();
+				int length = in.getShort() & 0xFFFF;
+				in.position(in.position() + length);
+			}
+			applicationData = new byte[checkLength(in, in.getInt())];
+			in.get(applicationData);
+
+		}	catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Truncated preset");
+		}
+	}
+
+	/**
+	 * Check a length read from an encoded preset before it is allocated
+	 *
+	 * @param in Encoded preset positioned after the length
+	 * @param length Length read
+	 *
+	 * @return length
+	 *
+	 * @throws IOException If the length is negative or runs past the data
+	 */
+	private static int checkLength(ByteBuffer in, int length) throws IOException {
+
+		if ((length < 0) || (length > in.remaining())) {
+			throw new IOException("Truncated preset");
+		}
+		return length;
+	}
+
+	/**
+	 * Add an oscillator to the preset
+	 * <p>
+	 * The oscillator must be the first module. An AdvancedOscillator is<br>
+	 * recorded with its modulation settings.
+	 *
+	 * @param osc Oscillator whose parameters are recorded
+	 */
+	public void addOscillator(BasicOscillator osc) {
+
+		if (moduleCount != 0) {
+			throw new IllegalStateException("The oscillator must be the first module");
+		}
+		try {
+			if (osc instanceof AdvancedOscillator) {
+				AdvancedOscillator aosc = (AdvancedOscillator) osc;
+				startModule(ADVANCED_OSCILLATOR, 30);
+				out.writeByte(aosc.getWaveshape().ordinal());
+				out.writeDouble(aosc.getFrequency());
+				out.writeByte(aosc.getFrequencyRange());
+				out.writeByte(aosc.getModulationType().ordinal());
+				out.writeDouble(aosc.getModulationDepth());
+				out.writeShort(aosc.getDetuneInCents());
+				out.writeByte(aosc.getLfoWaveshape().ordinal());
+				out.writeDouble(aosc.getLfoFrequency());
+			}	else	{
+				startModule(OSCILLATOR, 9);
+				out.writeByte(osc.getWaveshape().ordinal());
+				out.writeDouble(osc.getFrequency());
+			}
+		}	catch (IOException e) {
+			// Writes to a byte array do not fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Add a VCF to the preset
+	 *
+	 * @param vcf VCF whose envelope and filter parameters are recorded
+	 */
+	public void addVCF(VCF vcf) {
+
+		try {
+			startModule(FILTER, 44);
+			writeEnvelope(vcf);
+			out.writeDouble(vcf.getCutoffFrequencyInHz());
+			out.writeDouble(vcf.getResonance());
+			out.writeDouble(vcf.getDepth());
+		}	catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Add a VCA to the preset
+	 *
+	 * @param vca VCA whose envelope parameters are recorded
+	 */
+	public void addVCA(VCA vca) {
+
+		try {
+			startModule(AMPLIFIER, 20);
+			writeEnvelope(vca);
+		}	catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Add a delay effect to the preset
+	 *
+	 * @param effect Effect whose parameters are recorded
+	 */
+	public void addEffect(DelayEffect effect) {
+
+		try {
+			startModule(DELAY, 19);
+			out.writeBoolean(effect.isBypassed());
+			out.writeDouble(effect.getDryWetMixPercent());
+			out.writeShort(effect.getDelayInMs());
+			out.writeDouble(effect.getFeedbackPercent());
+		}	catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Add a phaser effect to the preset
+	 *
+	 * @param effect Effect whose parameters are recorded
+	 */
+	public void addEffect(PhaserEffect effect) {
+
+		try {
+			startModule(PHASER, 35);
+			out.writeBoolean(effect.isBypassed());
+			out.writeByte(effect.getStageCount());
+			out.writeDouble(effect.getDryWetMixPercent());
+			out.writeDouble(effect.getSweepRate());
+			out.writeByte(effect.getSweepRangeInOctaves());
+			out.writeDouble(effect.getFeedbackPercent());
+			out.writeDouble(effect.getStereoPhaseInDegrees());
+		}	catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Set the application data stored with the preset
+	 *
+	 * @param applicationData Data the synthesizer does not interpret
+	 */
+	public void setApplicationData(byte [] applicationData) {
+
+		if (out == null) {
+			throw new IllegalStateException("Preset is read only");
+		}
+		this.applicationData = applicationData.clone();
+	}
+
+	/**
+	 * Return the application data stored with the preset
+	 *
+	 * @return Copy of the data; empty if none was stored
+	 */
+	public byte [] getApplicationData() {
+
+		return applicationData.clone();
+	}
+
+	/**
+	 * Return the name of the preset
+	 *
+	 * @return Name
+	 */
+	public String getName() {
+
+		return name;
+	}
+
+	/**
+	 * Return the encoded preset
+	 *
+	 * @return Read only buffer from the start to the end of the record
+	 */
+	public ByteBuffer getData() {
+
+		if (data != null) {
+			return data.asReadOnlyBuffer();
+		}
+		byte [] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer encoded = ByteBuffer.allocate(14 + nameBytes.length + modules.size() + applicationData.length);
+		encoded.putInt(MAGIC);
+		encoded.putShort((short) VERSION);
+		encoded.putShort((short) nameBytes.length);
+		encoded.put(nameBytes);
+		encoded.putShort((short) moduleCount);
+		encoded.put(modules.toByteArray());
+		encoded.putInt(applicationData.length);
+		encoded.put(applicationData);
+		encoded.flip();
+		return encoded.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Create the modules of the preset
+	 * <p>
+	 * Each module is created, parameterized through its setters and set<br>
+	 * to pull samples from the module before it.
+	 *
+	 * @return The modules wired into a chain
+	 *
+	 * @throws IOException If the preset holds an unknown or malformed module
+	 */
+	public Patch instantiate() throws IOException {
+
+		if (data == null) {
+			return new Preset(getData()).instantiate();
+		}
+		ByteBuffer in = data.duplicate();
+		in.position(modulesStart);
+
+		SampleProviderIntfc [] chain = new SampleProviderIntfc[moduleCount];
+		try {
+			for (int i = 0; i < moduleCount; i++) {
+				int type = in.get();
+				int length = in.getShort() & 0xFFFF;
+				int end = in.position() + length;
+
+				if ((i == 0) != ((type == OSCILLATOR) || (type == ADVANCED_OSCILLATOR))) {
+					throw new IOException("The oscillator must be the first module");
+				}
+				switch (type) {
+
+					case OSCILLATOR:
+						BasicOscillator osc = new BasicOscillator();
+						osc.setWaveshape(WAVESHAPES[in.get()]);
+						osc.setFrequency(in.getDouble());
+						chain[i] = osc;
+						break;
+
+					case ADVANCED_OSCILLATOR:
+						AdvancedOscillator aosc = new AdvancedOscillator();
+						aosc.setWaveshape(WAVESHAPES[in.get()]);
+						aosc.setFrequency(in.getDouble());
+						aosc.setFrequencyRange(in.get());
+						aosc.setModulationType(MOD_TYPES[in.get()]);
+						aosc.setModulationDepth(in.getDouble());
+						aosc.setDetuneInCents(in.getShort());
+						aosc.setLfoWaveshape(WAVESHAPES[in.get()]);
+						aosc.setLfoFrequency(in.getDouble());
+						chain[i] = aosc;
+						break;
+
+					case FILTER:
+						VCF vcf = new VCF();
+						readEnvelope(in, vcf);
+						vcf.setCutoffFrequencyInHz(in.getDouble());
+						vcf.setResonance(in.getDouble());
+						vcf.setDepth(in.getDouble());
+						vcf.setSampleProvider(chain[i - 1]);
+						chain[i] = vcf;
+						break;
+
+					case AMPLIFIER:
+						VCA vca = new VCA();
+						readEnvelope(in, vca);
+						vca.setSampleProvider(chain[i - 1]);
+						chain[i] = vca;
+						break;
+
+					case DELAY:
+						DelayEffect delay = new DelayEffect();
+						delay.setBypassed(in.get() != 0);
+						delay.setDryWetMixPercent(in.getDouble());
+						delay.setDelayInMs(in.getShort());
+						delay.setFeedbackPercent(in.getDouble());
+						delay.setSampleProvider(chain[i - 1]);
+						chain[i] = delay;
+						break;
+
+					case PHASER:
+						PhaserEffect phaser = new PhaserEffect();
+						phaser.setBypassed(in.get() != 0);
+						phaser.setStageCount(in.get());
+						phaser.setDryWetMixPercent(in.getDouble());
+						phaser.setSweepRate(in.getDouble());
+						phaser.setSweepRangeInOctaves(in.get());
+						phaser.setFeedbackPercent(in.getDouble());
+						phaser.setStereoPhaseInDegrees(in.getDouble());
+						phaser.setSampleProvider(chain[i - 1]);
+						chain[i] = phaser;
+						break;
+
+					default:
+						throw new IOException("Unknown module type " + type);
+				}
+				if (in.position() != end) {
+					throw new IOException("Malformed module of type " + type);
+				}
+			}
+		}	catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Malformed preset " + name);
+		}
+		if (moduleCount == 0) {
+			throw new IOException("Preset " + name + " has no modules");
+		}
+		return new Patch(chain);
+	}
+
+	/**
+	 * Start the record of a module
+	 *
+	 * @param type Module type
+	 * @param length Length of the module's parameters in bytes
+	 */
+	private void startModule(int type, int length) throws IOException {
+
+		if (out == null) {
+			throw new IllegalStateException("Preset is read only");
+		}
+		out.writeByte(type);
+		out.writeShort(length);
+		moduleCount++;
+	}
+
+	private void writeEnvelope(EnvelopeGenerator eg) throws IOException {
+
+		out.writeInt(eg.getAttackTimeInMS());
+		out.writeInt(eg.getDecayTimeInMS());
+		out.writeDouble(eg.getSustainLevel());
+		out.writeInt(eg.getReleaseTimeInMS());
+	}
+
+	private static void readEnvelope(ByteBuffer in, EnvelopeGenerator eg) {
+
+		eg.setAttackTimeInMS(in.getInt());
+		eg.setDecayTimeInMS(in.getInt());
+		eg.setSustainLevel(in.getDouble());
+		eg.setReleaseTimeInMS(in.getInt());
+	}
+
+	// Instance data
+	private final String name;
+	private final ByteBuffer data;
+	private final ByteArrayOutputStream modules;
+	private final DataOutputStream out;
+	private int moduleCount;
+	private int modulesStart;
+	private byte [] applicationData;
+}
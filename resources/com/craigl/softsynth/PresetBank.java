@@ -0,0 +1,296 @@
+package com.craigl.softsynth;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Preset Bank
+ * <p>
+ * A file of presets with an index sorted by name. The file is memory<br>
+ * mapped when it is opened and nothing is read up front; looking up a<br>
+ * preset is a binary search of the index entries in the mapping followed<br>
+ * by wrapping the preset's bytes, so a bank of thousands of presets<br>
+ * opens and answers lookups in microseconds.
+ * <p>
+ * All values are big endian. The file starts with an int MAGIC, a short<br>
+ * VERSION, a short of zero and an int preset count, followed by one<br>
+ * index entry per preset and then the presets themselves. An index<br>
+ * entry is the preset's name in UTF-8 padded with zeros to<br>
+ * Preset.NAME_LENGTH_MAX bytes, then the int offset and int length of<br>
+ * the preset in the file.
+ */
+
+public class PresetBank {
+
+	public static final int MAGIC = 0x41305042;	// "A0PB"
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 12;
+	private static final int ENTRY_SIZE = Preset.NAME_LENGTH_MAX + 8;
+
+	/**
+	 * PresetBank Class Constructor
+	 * <p>
+	 * Maps the given file read only.
+	 *
+	 * @param file Preset bank file to read
+	 *
+	 * @throws IOException If the file cannot be read or is not a preset bank
+	 */
+	public PresetBank(File file) throws IOException {
+
+		this(map(file));
+	}
+
+	/**
+	 * PresetBank Class Constructor
+	 *
+	 * @param data Contents of a preset bank file
+	 *
+	 * @throws IOException If the data is not a preset bank
+	 */
+	public PresetBank(ByteBuffer data) throws IOException {
+
+		this.data = data;
+
+		if ((data.limit() < HEADER_SIZE) || (data.getInt(0) != MAGIC)) {
+			throw new IOException("Not a preset bank");
+		}
+		int version = data.getShort(4);
+		if ((version < 1) || (version > VERSION)) {
+			throw new IOException("Preset bank version " + version + " is not supported");
+		}
+		count = data.getInt(8);
+		if ((count < 0) || ((long) HEADER_SIZE + (long) count * ENTRY_SIZE > data.limit())) {
+			throw new IOException("Truncated preset bank");
+		}
+	}
+
+	/**
+	 * Return the count of presets in the bank
+	 *
+	 * @return Preset count
+	 */
+	public int getPresetCount() {
+
+		return count;
+	}
+
+	/**
+	 * Return the name of a preset
+	 *
+	 * @param index Index of the preset; presets are in name order
+	 *
+	 * @return Name of the preset
+	 */
+	public String getName(int index) {
+
+		int entry = entryPosition(index);
+		int length = 0;
+		while ((length < Preset.NAME_LENGTH_MAX) && (data.get(entry + length) != 0)) {
+			length++;
+		}
+		byte [] name = new byte[length];
+		for (int i = 0; i < length; i++) {
+			name[i] = data.get(entry + i);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Find a preset by name
+	 *
+	 * @param name Name of the preset
+	 *
+	 * @return Index of the preset or -1 if the bank has no preset of that name
+	 */
+	public int indexOf(String name) {
+
+		byte [] key = name.getBytes(StandardCharsets.UTF_8);
+		if (key.length > Preset.NAME_LENGTH_MAX) {
+			return -1;
+		}
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = compareName(entryPosition(mid), key);
+			if (c < 0) {
+				low = mid + 1;
+			}	else if (c > 0) {
+				high = mid - 1;
+			}	else	{
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return a preset of the bank
+	 *
+	 * @param index Index of the preset
+	 *
+	 * @return The preset over the bank's bytes
+	 *
+	 * @throws IOException If the preset is malformed
+	 */
+	public Preset getPreset(int index) throws IOException {
+
+		int entry = entryPosition(index);
+		int offset = data.getInt(entry + Preset.NAME_LENGTH_MAX);
+		int length = data.getInt(entry + Preset.NAME_LENGTH_MAX + 4);
+		if ((offset < 0) || (length < 0) || ((long) offset + length > data.limit())) {
+			throw new IOException("Preset " + index + " lies outside the bank");
+		}
+		ByteBuffer record = data.duplicate();
+		record.limit(offset + length);
+		record.position(offset);
+		return new Preset(record);
+	}
+
+	/**
+	 * Return a preset of the bank by name
+	 *
+	 * @param name Name of the preset
+	 *
+	 * @return The preset or null if the bank has no preset of that name
+	 *
+	 * @throws IOException If the preset is malformed
+	 */
+	public Preset getPreset(String name) throws IOException {
+
+		int index = indexOf(name);
+		return (index < 0) ? null : getPreset(index);
+	}
+
+	/**
+	 * Write a preset bank file
+	 *
+	 * @param file File to write
+	 * @param presets Presets to store; names must be unique
+	 *
+	 * @throws IOException If the file cannot be written
+	 */
+	public static void write(File file, List<Preset> presets) throws IOException {
+
+		List<Preset> sorted = new ArrayList<Preset>(presets);
+		sorted.sort(new Comparator<Preset>() {
+			public int compare(Preset a, Preset b) {
+				return compareBytes(a.getName().getBytes(StandardCharsets.UTF_8), b.getName().getBytes(StandardCharsets.UTF_8));
+			}
+		});
+
+		int size = HEADER_SIZE + sorted.size() * ENTRY_SIZE;
+		ByteBuffer [] records = new ByteBuffer[sorted.size()];
+		for (int i = 0; i < records.length; i++) {
+			if ((i > 0) && sorted.get(i).getName().equals(sorted.get(i - 1).getName())) {
+				throw new IllegalArgumentException("Duplicate preset name " + sorted.get(i).getName());
+			}
+			records[i] = sorted.get(i).getData();
+			size += records[i].remaining();
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(size);
+		out.putInt(MAGIC);
+		out.putShort((short) VERSION);
+		out.putShort((short) 0);
+		out.putInt(records.length);
+
+		int offset = HEADER_SIZE + records.length * ENTRY_SIZE;
+		for (int i = 0; i < records.length; i++) {
+			byte [] name = Arrays.copyOf(sorted.get(i).getName().getBytes(StandardCharsets.UTF_8), Preset.NAME_LENGTH_MAX);
+			out.put(name);
+			out.putInt(offset);
+			out.putInt(records[i].remaining());
+			offset += records[i].remaining();
+		}
+		for (ByteBuffer record : records) {
+			out.put(record);
+		}
+
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			fos.write(out.array());
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Return the position of an index entry
+	 */
+	private int entryPosition(int index) {
+
+		if ((index < 0) || (index >= count)) {
+			throw new IndexOutOfBoundsException("Preset index " + index);
+		}
+		return HEADER_SIZE + index * ENTRY_SIZE;
+	}
+
+	/**
+	 * Compare the name of an index entry with a name, byte by byte
+	 *
+	 * @return Negative, zero or positive as the entry sorts before, with or after the key
+	 */
+	private int compareName(int entry, byte [] key) {
+
+		for (int i = 0; i < Preset.NAME_LENGTH_MAX; i++) {
+			int a = data.get(entry + i) & 0xFF;
+			int b = (i < key.length) ? (key[i] & 0xFF) : 0;
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Compare names as unsigned bytes; the order of the index
+	 */
+	private static int compareBytes(byte [] a, byte [] b) {
+
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * Map a file into memory read only
+	 *
+	 * @param file File to map
+	 *
+	 * @return Buffer over the file's contents
+	 *
+	 * @throws IOException If the file cannot be mapped
+	 */
+	private static ByteBuffer map(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// The mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	// Instance data
+	private final ByteBuffer data;
+	private final int count;
+}
@@ -0,0 +1,355 @@
+package com.craigl.softsynth;
+
+import java.io.PrintStream;
+
+/**
+ * Quality Controller
+ * <p>
+ * Keeps the engine inside its deadline when load spikes by trading<br>
+ * fidelity for render time. The controller sits at the top of the<br>
+ * signal chain and times every buffer rendered below it against the<br>
+ * time the buffer lasts, BUFFER_TIME_IN_SECS. When a buffer takes more<br>
+ * than DEGRADE_LOAD of that budget the controller moves one stage down<br>
+ * and tells every registered QualityIntfc module:
+ * <p>
+ * CONTROL_RATE: filters and the modulation matrix update less often<br>
+ * CHEAP_KERNELS: oscillators and voices use cheaper kernels<br>
+ * STEAL_VOICES: the quietest mixer channels fade out and are then no longer rendered
+ * <p>
+ * After a stage change the controller waits HOLD_BUFFERS buffers for<br>
+ * it to take effect before going further. Once buffers have stayed<br>
+ * below RECOVER_LOAD for a while it moves one stage back up. If load<br>
+ * climbs again soon after a recovery the wait before the next recovery<br>
+ * doubles, so a chain that only just fits does not flip back and forth.
+ * <p>
+ * Every stage change is logged with its time and load, along with the<br>
+ * buffers rendered in each stage and the deadlines missed. The log and<br>
+ * counters are preallocated, so the controller does not allocate on the<br>
+ * audio thread.
+ * <p>
+ * controller.setSampleProvider(chain);<br>
+ * controller.addParticipant(vcf);<br>
+ * player.setSampleProvider(controller);
+ */
+
+public class QualityController implements SampleProviderIntfc, SilenceIntfc {
+
+	/**
+	 * Quality stage enumeration, from full quality down
+	 */
+	public enum STAGE {
+		FULL, CONTROL_RATE, CHEAP_KERNELS, STEAL_VOICES
+	}
+
+	private static final STAGE [] STAGES = STAGE.values();
+
+	public static final int PARTICIPANTS_MAX = 256;
+
+	// Stage changes logged; later changes are counted but not logged
+	public static final int CHANGES_MAX = 4096;
+
+	public static final int BUDGET_PERCENT_MIN = 10;
+	public static final int BUDGET_PERCENT_MAX = 100;
+	public static final int BUDGET_PERCENT_DEFAULT = 100;
+
+	// Fractions of the budget above which quality drops and below which it recovers
+	public static final double DEGRADE_LOAD = 0.75;
+	public static final double RECOVER_LOAD = 0.40;
+
+	// Buffers to wait after a change before degrading further
+	private static final int HOLD_BUFFERS = 4;
+
+	// Calm buffers before a recovery; about 2 seconds, backing off to about 32
+	private static final int RECOVER_BUFFERS = (int) Math.ceil(2.0 / SamplePlayer.BUFFER_TIME_IN_SECS);
+	private static final int RECOVER_BUFFERS_MAX = 16 * RECOVER_BUFFERS;
+
+	private static final double DEADLINE_NANOS = SamplePlayer.BUFFER_TIME_IN_SECS * 1.0e9;
+
+	/**
+	 * QualityController Class Constructor
+	 * <p>
+	 * Starts at full quality with the whole buffer time as budget
+	 */
+	public QualityController() {
+
+		setBudgetPercent(BUDGET_PERCENT_DEFAULT);
+	}
+
+	/**
+	 * Setup the provider of samples
+	 *
+	 * @param provider The provider of samples for this controller
+	 */
+	public void setSampleProvider(SampleProviderIntfc provider) {
+
+		this.provider = provider;
+	}
+
+	/**
+	 * Register a module to be told of stage changes
+	 * <p>
+	 * The module is set to the current stage straight away.
+	 *
+	 * @param participant Module that can reduce its quality
+	 */
+	public void addParticipant(QualityIntfc participant) {
+
+		if (participantCount == PARTICIPANTS_MAX) {
+			throw new IllegalStateException("Too many quality participants");
+		}
+		participant.setQualityStage(stage);
+		participants[participantCount++] = participant;
+	}
+
+	/**
+	 * Set the share of the buffer time the chain may use to render
+	 * <p>
+	 * Lower it when the audio thread has other work between buffers.
+	 *
+	 * @param percent Budget between BUDGET_PERCENT_MIN and BUDGET_PERCENT_MAX
+	 */
+	public void setBudgetPercent(int percent) {
+
+		percent = (percent < BUDGET_PERCENT_MIN) ? BUDGET_PERCENT_MIN : percent;
+		percent = (percent > BUDGET_PERCENT_MAX) ? BUDGET_PERCENT_MAX : percent;
+
+		budgetPercent = percent;
+		budgetNanos = DEADLINE_NANOS * percent / 100.0;
+	}
+
+	/**
+	 * Return the share of the buffer time the chain may use to render
+	 *
+	 * @return Budget in percent
+	 */
+	public int getBudgetPercent() {
+
+		return budgetPercent;
+	}
+
+	/**
+	 * Render a buffer, timing it and changing stage if need be
+	 *
+	 * @param buffer Buffer in which the samples are to be processed
+	 *
+	 * @return Count of number of bytes processed
+	 */
+	public int getSamples(byte [] buffer) {
+
+		long start = System.nanoTime();
+		int count = provider.getSamples(buffer);
+		long nanos = System.nanoTime() - start;
+
+		if (startNanos == 0) {
+			startNanos = start;
+		}
+		update(nanos);
+		return count;
+	}
+
+	/**
+	 * Account for a rendered buffer and change stage when the load calls for it
+	 *
+	 * @param nanos Time taken to render the buffer
+	 */
+	private void update(long nanos) {
+
+		double load = nanos / budgetNanos;
+		lastLoad = load;
+		peakLoad = (load > peakLoad) ? load : peakLoad;
+		if (nanos > DEADLINE_NANOS) {
+			deadlineMisses++;
+		}
+		int current = stage.ordinal();
+		buffersInStage[current]++;
+		buffers++;
+		sinceChange++;
+
+		if (load > DEGRADE_LOAD) {
+			calmBuffers = 0;
+			if ((current < STAGES.length - 1) && (sinceChange >= HOLD_BUFFERS)) {
+				if (recovered && (sinceChange < recoverBuffers)) {
+					// The last recovery came too soon; wait longer next time
+					recoverBuffers = Math.min(recoverBuffers * 2, RECOVER_BUFFERS_MAX);
+				}
+				change(STAGES[current + 1], load);
+				recovered = false;
+			}
+		}	else if (load < RECOVER_LOAD) {
+			if ((++calmBuffers >= recoverBuffers) && (current > 0)) {
+				change(STAGES[current - 1], load);
+				recovered = true;
+				calmBuffers = 0;
+			}
+		}	else	{
+			calmBuffers = 0;
+		}
+
+		// Long enough without trouble to forget earlier flip flopping
+		if (sinceChange >= RECOVER_BUFFERS_MAX) {
+			recoverBuffers = RECOVER_BUFFERS;
+		}
+	}
+
+	/**
+	 * Move to another stage, log the change and tell the participants
+	 *
+	 * @param to Stage to move to
+	 * @param load Load of the buffer that caused the change
+	 */
+	private void change(STAGE to, double load) {
+
+		int n = changeCount;
+		if (n < CHANGES_MAX) {
+			changeNanos[n] = System.nanoTime() - startNanos;
+			changeFrom[n] = (byte) stage.ordinal();
+			changeTo[n] = (byte) to.ordinal();
+			changeLoads[n] = load;
+		}
+		stage = to;
+		sinceChange = 0;
+		for (int i = 0; i < participantCount; i++) {
+			participants[i].setQualityStage(to);
+		}
+
+		// Publish after the change is logged
+		changeCount = n + 1;
+	}
+
+	/**
+	 * Return whether the last buffer was silent
+	 *
+	 * @return true if the controlled chain reported silence
+	 */
+	public boolean isSilent() {
+
+		return Silence.isSilent(provider);
+	}
+
+	/**
+	 * Return the stage currently rendered at
+	 *
+	 * @return Current stage
+	 */
+	public STAGE getStage() {
+
+		return stage;
+	}
+
+	/**
+	 * Return the render time of the last buffer as a fraction of the budget
+	 *
+	 * @return Load; above 1.0 when the budget was overrun
+	 */
+	public double getLoad() {
+
+		return lastLoad;
+	}
+
+	/**
+	 * Return the highest load of any buffer since the last reset
+	 *
+	 * @return Peak load
+	 */
+	public double getPeakLoad() {
+
+		return peakLoad;
+	}
+
+	/**
+	 * Return the count of buffers that took longer to render than they last
+	 *
+	 * @return Count of missed deadlines
+	 */
+	public long getDeadlineMissCount() {
+
+		return deadlineMisses;
+	}
+
+	/**
+	 * Return the count of buffers rendered at a stage
+	 *
+	 * @param stage Stage
+	 *
+	 * @return Buffer count
+	 */
+	public long getBuffersInStage(STAGE stage) {
+
+		return buffersInStage[stage.ordinal()];
+	}
+
+	/**
+	 * Return the count of stage changes since the last reset
+	 *
+	 * @return Stage change count
+	 */
+	public int getStageChangeCount() {
+
+		return changeCount;
+	}
+
+	/**
+	 * Forget the metrics so far; the stage is kept
+	 */
+	public void reset() {
+
+		changeCount = 0;
+		deadlineMisses = 0;
+		peakLoad = 0.0;
+		buffers = 0;
+		for (int s = 0; s < buffersInStage.length; s++) {
+			buffersInStage[s] = 0;
+		}
+		startNanos = 0;
+	}
+
+	/**
+	 * Print the metrics and the log of stage changes
+	 *
+	 * @param out Stream to print to
+	 * @param label Label of the report
+	 */
+	public void printReport(PrintStream out, String label) {
+
+		out.printf("%-28s %8d buffers  %6d missed  peak load %5.2f  now %s%n",
+				label, buffers, deadlineMisses, peakLoad, stage);
+		for (STAGE s : STAGES) {
+			out.printf("  %-14s %8d buffers%n", s, buffersInStage[s.ordinal()]);
+		}
+		int n = changeCount;
+		for (int i = 0; i < Math.min(n, CHANGES_MAX); i++) {
+			out.printf("  %9.3f s  %-14s -> %-14s load %5.2f%n",
+					changeNanos[i] / 1.0e9, STAGES[changeFrom[i]], STAGES[changeTo[i]], changeLoads[i]);
+		}
+		if (n > CHANGES_MAX) {
+			out.println("  " + (n - CHANGES_MAX) + " later changes not logged");
+		}
+	}
+
+	// Instance data
+	private SampleProviderIntfc provider;
+	private final QualityIntfc [] participants = new QualityIntfc[PARTICIPANTS_MAX];
+	private int participantCount;
+	private int budgetPercent;
+	private double budgetNanos;
+
+	// Stage state; changed by the audio thread only
+	private volatile STAGE stage = STAGE.FULL;
+	private int sinceChange;
+	private int calmBuffers;
+	private int recoverBuffers = RECOVER_BUFFERS;
+	private boolean recovered;
+
+	// Metrics
+	private long startNanos;
+	private volatile double lastLoad;
+	private volatile double peakLoad;
+	private volatile long deadlineMisses;
+	private volatile long buffers;
+	private final long [] buffersInStage = new long[STAGES.length];
+	private final long [] changeNanos = new long[CHANGES_MAX];
+	private final byte [] changeFrom = new byte[CHANGES_MAX];
+	private final byte [] changeTo = new byte[CHANGES_MAX];
+	private final double [] changeLoads = new double[CHANGES_MAX];
+	private volatile int changeCount;
+}
@@ -0,0 +1,22 @@
+package com.craigl.softsynth;
+
+/**
+ * The Quality Interface
+ * <p>
+ * Implemented by modules that can trade fidelity for render time when<br>
+ * a QualityController finds the engine at risk of missing its deadline.<br>
+ * Each module acts on the stages that concern it and ignores the rest;<br>
+ * every stage includes the stages before it.
+ * <p>
+ * setQualityStage is called on the audio thread between buffers.
+ */
+
+public interface QualityIntfc {
+
+	/**
+	 * Set the quality stage to render at
+	 *
+	 * @param stage Stage; QualityController.STAGE.FULL for full quality
+	 */
+	void setQualityStage(QualityController.STAGE stage);
+}
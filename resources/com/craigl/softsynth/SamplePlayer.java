@@ -7,7 +7,9 @@ import javax.sound.sampled.*;
  * Sample Player Class based on the javax.sound.sampled package.
  * <p>
  * Instances of this class pull samples from sample providers<br>
- * and writes them to the hardware so that they can be heard.
+ * and writes them to the hardware so that they can be heard.<br>
+ * Alternatively the samples can be written to any AudioSinkIntfc,<br>
+ * e.g. a WAV file, a PCM stream or memory, which needs no sound device.
  * <p>
  * Various important constants are defined in this class as well.
  * <p>
@@ -40,22 +42,42 @@ public class SamplePlayer extends Thread implements SampleProviderIntfc  {
 	public static final double SAMPLE_TIME_IN_SECS = 1.0 / SAMPLE_RATE;
 	public static final double BUFFER_TIME_IN_SECS = SAMPLE_TIME_IN_SECS * SAMPLES_PER_BUFFER;
 
+	/**
+	 * Return the format of the samples passed between modules
+	 * 
+	 * @return 16 bit signed big endian mono at SAMPLE_RATE
+	 */
+	public static AudioFormat createAudioFormat() {
+		
+		return new AudioFormat(SAMPLE_RATE, SAMPLE_SIZE, CHANNELS, SIGNED, BIG_ENDIAN);
+	}
+
 	/**
 	 * SamplePlayer Class Constructor
+	 * <p>
+	 * Samples are played through the default sound device.
 	 */
 	public SamplePlayer() {
 		
-		// Create the audio format we wish to use
-		format = new AudioFormat(SAMPLE_RATE, SAMPLE_SIZE, CHANNELS, SIGNED, BIG_ENDIAN);
-
-		// Create dataline info object describing line format
-		info = new DataLine.Info(SourceDataLine.class, format);
+		this(null);
+	}
+	
+	/**
+	 * SamplePlayer Class Constructor
+	 * 
+	 * @param sink Destination of the samples or null for the default sound device.<br>
+	 * The player closes the sink when it stops.
+	 */
+	public SamplePlayer(AudioSinkIntfc sink) {
+		
+		this.sink = sink;
 		
 		// Clear buffer initially
 		Arrays.fill(sampleData, (byte) 0);
 		
-		// Set temp provider so zeroed buffers are consumed initially
-		provider = this;
+		// Set temp provider so zeroed buffers are consumed initially.
+		// Only the sound device needs this.
+		provider = (sink == null) ? this : null;
 	}
 	
 	/**
@@ -85,7 +107,7 @@ public class SamplePlayer extends Thread implements SampleProviderIntfc  {
 	 * <p>
 	 * This thread will continue to run until either<br>
 	 * the done flag gets set or the sample provider runs<br>
-	 * out of samples. 
+	 * out of samples. The sink is then drained and closed.
 	 * <p>
 	 * NOTE: once the thread ends it cannot be restarted.
 	 */ 
@@ -95,22 +117,29 @@ public class SamplePlayer extends Thread implements SampleProviderIntfc  {
 		int nBytesRead = 0;
 
 		try {
-			// Get line to write data to
-			auline = (SourceDataLine) AudioSystem.getLine(info);
-			auline.open(format);
-			auline.start();
+			if (sink == null) {
+				sink = new LineAudioSink();
+			}
+			if (provider == null) {
+				provider = realProvider;
+			}
 
 			while ((nBytesRead != -1) && (! done)) {
 				nBytesRead = provider.getSamples(sampleData);
 				if (nBytesRead > 0) {
-					auline.write(sampleData, 0, nBytesRead);
+					sink.write(sampleData, 0, nBytesRead);
 				}
 			}
 		} catch(Exception e) {
 			e.printStackTrace();				
 		} finally {
-			auline.drain();
-			auline.close();							
+			if (sink != null) {
+				try {
+					sink.close();
+				} catch(Exception e) {
+					e.printStackTrace();
+				}
+			}
 		}
 	}		
 	
@@ -149,9 +178,7 @@ public class SamplePlayer extends Thread implements SampleProviderIntfc  {
 	}
 	
 	// Instance data
-	private AudioFormat format;
-	private DataLine.Info info;
-	private SourceDataLine auline;
+	private AudioSinkIntfc sink;
 	private boolean hasRun;
 	private boolean done;
 	private int bufferCount;
@@ -0,0 +1,139 @@
+package com.craigl.softsynth;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sample Prefetcher
+ * <p>
+ * Background thread that keeps the pages of mapped samples resident<br>
+ * just ahead of the SamplerVoices playing them. Every few milliseconds it<br>
+ * reads one sample per page over the next LOOKAHEAD_MS of each playing<br>
+ * voice, including the start of its loop when the loop end is near, so a<br>
+ * page fault is taken here rather than on the audio thread.
+ * <p>
+ * The attack of each sample is touched when its voice is registered so<br>
+ * that the first note does not wait for the disk either.
+ */
+
+public class SamplePrefetcher extends Thread {
+
+	public static final int LOOKAHEAD_MS_DEFAULT = 500;
+
+	private static final long INTERVAL_NANOS = 5000000L;
+
+	/**
+	 * SamplePrefetcher Class Constructor
+	 */
+	public SamplePrefetcher() {
+
+		super("SamplePrefetcher");
+		setLookaheadInMs(LOOKAHEAD_MS_DEFAULT);
+
+		// Prefetching must never keep the application alive
+		setDaemon(true);
+	}
+
+	/**
+	 * Set how far ahead of the playback position pages are touched
+	 *
+	 * @param ms Lookahead in milliseconds of output time
+	 */
+	public void setLookaheadInMs(int ms) {
+
+		lookaheadSamples = (long) ms * SamplePlayer.SAMPLE_RATE / 1000;
+	}
+
+	/**
+	 * Register a voice whose sample data should be prefetched
+	 *
+	 * @param voice The voice to watch
+	 */
+	public void addVoice(SamplerVoice voice) {
+
+		voices.add(voice);
+
+		// Bring in the attack ahead of the first note
+		sink += voice.getSample().touch(0, (long) (lookaheadSamples * voice.getIncrement()));
+	}
+
+	/**
+	 * Stop watching a voice
+	 *
+	 * @param voice The voice to remove
+	 */
+	public void removeVoice(SamplerVoice voice) {
+
+		voices.remove(voice);
+	}
+
+	/**
+	 * Method to start the prefetch thread
+	 */
+	public void startPrefetcher() {
+
+		start();
+	}
+
+	/**
+	 * Method to stop the prefetch thread
+	 */
+	public void stopPrefetcher() {
+
+		done = true;
+	}
+
+	/**
+	 * Prefetch thread loop
+	 */
+	public void run() {
+
+		while (! done) {
+			for (SamplerVoice voice : voices) {
+				if (voice.isPlaying()) {
+					prefetch(voice);
+				}
+			}
+			LockSupport.parkNanos(INTERVAL_NANOS);
+		}
+	}
+
+	/**
+	 * Touch the pages a voice will play next that have not been touched yet
+	 *
+	 * @param voice A playing voice
+	 */
+	private void prefetch(SamplerVoice voice) {
+
+		MappedWavFile sample = voice.getSample();
+		long position = voice.getPlayPosition();
+		long ahead = (long) (lookaheadSamples * voice.getIncrement()) + 1;
+
+		// Start over if the voice was restarted or wrapped around its loop
+		long from = voice.prefetchedUntil;
+		if ((from < position) || (from > position + ahead)) {
+			from = position;
+		}
+		long to = position + ahead;
+
+		long loopStart = voice.getLoopStart();
+		long loopEnd = voice.getLoopEnd();
+		if ((loopEnd > 0) && (to >= loopEnd)) {
+			// Continue from the loop start for the part beyond the loop end
+			sink += sample.touch(from, loopEnd - 1);
+			sink += sample.touch(loopStart, loopStart + (to - loopEnd));
+			voice.prefetchedUntil = loopEnd;
+		}	else	{
+			sink += sample.touch(from, to);
+			voice.prefetchedUntil = to;
+		}
+	}
+
+	// Instance data
+	private final CopyOnWriteArrayList<SamplerVoice> voices = new CopyOnWriteArrayList<SamplerVoice>();
+	private volatile long lookaheadSamples;
+	private volatile boolean done;
+
+	// Keeps the touching reads from being optimized away
+	private volatile int sink;
+}
@@ -0,0 +1,286 @@
+package com.craigl.softsynth;
+
+/**
+ * Sampler Voice
+ * <p>
+ * A sample provider that plays a recorded sound from a MappedWavFile.<br>
+ * The sample data stays in the mapped file; the voice only holds its<br>
+ * playback position, so heap use does not depend on the size of the<br>
+ * sample library.
+ * <p>
+ * Playback can be pitch shifted by any ratio with linear or cubic<br>
+ * interpolation, and can repeat a loop for sustained sounds. Shape the<br>
+ * amplitude by feeding the voice through a VCA. To keep the audio thread<br>
+ * from waiting on disk, register the voice with a SamplePrefetcher.
+ */
+
+public class SamplerVoice implements SampleProviderIntfc {
+
+	/**
+	 * Interpolation enumeration
+	 */
+	public enum INTERPOLATION {
+		LINEAR, CUBIC
+	}
+
+	/**
+	 * SamplerVoice Class Constructor
+	 * <p>
+	 * The voice uses cubic interpolation and the file's own loop, if any.
+	 *
+	 * @param sample The sample to play
+	 */
+	public SamplerVoice(MappedWavFile sample) {
+
+		setInterpolation(INTERPOLATION.CUBIC);
+		setSample(sample);
+	}
+
+	/**
+	 * Set the sample to play. Stops the voice.
+	 *
+	 * @param sample The sample to play
+	 */
+	public void setSample(MappedWavFile sample) {
+
+		playing = false;
+		this.sample = sample;
+		rootNote = sample.getRootNote();
+		rateRatio = (double) sample.getSampleRate() / SamplePlayer.SAMPLE_RATE;
+		setLoopPoints(sample.getLoopStart(), sample.getLoopEnd());
+		setPitchRatio(1.0);
+	}
+
+	/**
+	 * Return the sample being played
+	 *
+	 * @return The voice's sample
+	 */
+	public MappedWavFile getSample() {
+
+		return sample;
+	}
+
+	/**
+	 * Set the interpolation used between sample frames
+	 *
+	 * @param interpolation LINEAR or CUBIC
+	 */
+	public void setInterpolation(INTERPOLATION interpolation) {
+
+		this.interpolation = interpolation;
+	}
+
+	/**
+	 * Set the loop region
+	 * <p>
+	 * Looping is switched off if the region is empty or outside the sample.
+	 *
+	 * @param start First frame of the loop
+	 * @param end Frame following the last frame of the loop
+	 */
+	public void setLoopPoints(long start, long end) {
+
+		if ((start >= 0) && (end > start) && (end <= sample.getFrameCount())) {
+			loopStart = start;
+			loopEnd = end;
+			looping = true;
+		}	else	{
+			looping = false;
+		}
+	}
+
+	/**
+	 * Set whether the loop region repeats
+	 *
+	 * @param looping If true and loop points are set, the loop repeats until stop
+	 */
+	public void setLooping(boolean looping) {
+
+		this.looping = looping && (loopEnd > loopStart);
+	}
+
+	/**
+	 * Set the playback pitch relative to the recorded pitch
+	 *
+	 * @param ratio 2.0 plays an octave up; 0.5 an octave down
+	 */
+	public void setPitchRatio(double ratio) {
+
+		increment = ratio * rateRatio;
+	}
+
+	/**
+	 * Set the tuning notes are played in
+	 *
+	 * @param tuning Tuning shared with other voices; Tuning.EQUAL_TEMPERAMENT by default
+	 */
+	public void setTuning(Tuning tuning) {
+
+		this.tuning = tuning;
+	}
+
+	/**
+	 * Start playing the sample from its beginning at the pitch of a MIDI note
+	 *
+	 * @param mnn Midi note number; the sample's root note plays unshifted
+	 */
+	public void noteOn(int mnn) {
+
+		// Both pitches are precomputed by the tuning
+		double root = tuning.getFrequency(rootNote);
+		setPitchRatio((root > 0.0) ? tuning.getFrequency(mnn) / root : 1.0);
+		position = 0;
+		fraction = 0.0;
+		playPosition = 0;
+		playing = true;
+	}
+
+	/**
+	 * Stop playing immediately
+	 */
+	public void stop() {
+
+		playing = false;
+	}
+
+	/**
+	 * Return whether the voice is producing sound
+	 *
+	 * @return true while playing
+	 */
+	public boolean isPlaying() {
+
+		return playing;
+	}
+
+	/**
+	 * Return the frame position at the start of the current buffer
+	 *
+	 * @return Playback frame
+	 */
+	public long getPlayPosition() {
+
+		return playPosition;
+	}
+
+	/**
+	 * Return the number of sample frames advanced per output sample
+	 *
+	 * @return Playback increment
+	 */
+	public double getIncrement() {
+
+		return increment;
+	}
+
+	/**
+	 * Return the active loop start for the prefetcher
+	 *
+	 * @return First frame of the loop or -1 if not looping
+	 */
+	long getLoopStart() {
+
+		return looping ? loopStart : -1;
+	}
+
+	/**
+	 * Return the active loop end for the prefetcher
+	 *
+	 * @return Frame following the loop or -1 if not looping
+	 */
+	long getLoopEnd() {
+
+		return looping ? loopEnd : -1;
+	}
+
+	/**
+	 * Return a sample frame, wrapping into the loop or padding with silence
+	 *
+	 * @param frame Frame index, possibly outside the sample
+	 *
+	 * @return Sample value
+	 */
+	private double frameAt(long frame) {
+
+		if (looping && (frame >= loopEnd)) {
+			frame = loopStart + ((frame - loopEnd) % (loopEnd - loopStart));
+		}
+		if ((frame < 0) || (frame >= sample.getFrameCount())) {
+			return 0.0;
+		}
+		return sample.getSample(frame);
+	}
+
+	/**
+	 * Get a buffer of samples
+	 *
+	 * @param buffer Array to fill with samples
+	 *
+	 * @return Count of bytes produced.
+	 */
+	public int getSamples(byte [] buffer) {
+
+		long frameCount = sample.getFrameCount();
+		boolean cubic = (interpolation == INTERPOLATION.CUBIC);
+
+		for (int i = 0; i < SamplePlayer.SAMPLES_PER_BUFFER; i++) {
+			double value = 0.0;
+
+			if (playing) {
+				double y1 = frameAt(position);
+				double y2 = frameAt(position + 1);
+				double t = fraction;
+
+				if (cubic) {
+					// 4 point, 3rd order Hermite
+					double y0 = frameAt(position - 1);
+					double y3 = frameAt(position + 2);
+					double c1 = 0.5 * (y2 - y0);
+					double c2 = y0 - 2.5 * y1 + 2.0 * y2 - 0.5 * y3;
+					double c3 = 0.5 * (y3 - y0) + 1.5 * (y1 - y2);
+					value = ((c3 * t + c2) * t + c1) * t + y1;
+				}	else	{
+					value = y1 + (y2 - y1) * t;
+				}
+
+				// Advance the playback position
+				fraction += increment;
+				int whole = (int) fraction;
+				position += whole;
+				fraction -= whole;
+
+				if (looping) {
+					if (position >= loopEnd) {
+						position = loopStart + ((position - loopEnd) % (loopEnd - loopStart));
+					}
+				}	else if (position >= frameCount) {
+					playing = false;
+				}
+			}
+
+			// Interpolation may overshoot full scale; put saturates
+			PcmCodec.put(buffer, i, value * (1.0 / PcmCodec.FULL_SCALE_16));
+		}
+		playPosition = position;
+		return SamplePlayer.BUFFER_SIZE;
+	}
+
+	// Instance data
+	private Tuning tuning = Tuning.EQUAL_TEMPERAMENT;
+	private MappedWavFile sample;
+	private INTERPOLATION interpolation;
+	private int rootNote;
+	private double rateRatio;
+	private double increment;
+	private long loopStart;
+	private long loopEnd;
+	private boolean looping;
+	private volatile boolean playing;
+	private long position;
+	private double fraction;
+	private volatile long playPosition;
+
+	// Written by the prefetcher only
+	long prefetchedUntil;
+}
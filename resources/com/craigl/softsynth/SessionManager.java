@@ -0,0 +1,213 @@
+package com.craigl.softsynth;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Session Manager
+ * <p>
+ * Hosts many independent synth sessions on a fixed pool of worker threads,<br>
+ * one per core by default, instead of one SamplePlayer thread per session.
+ * <p>
+ * Every session renders one buffer per buffer period. Its next buffer is<br>
+ * released LEAD_BUFFERS periods before it is due and the workers always<br>
+ * take the released session with the earliest deadline. Sessions thereby<br>
+ * share the cores fairly and a slow session delays only itself. Load and<br>
+ * missed deadlines are accounted per session.
+ * <p>
+ * Worker threads write to the sessions' sinks directly, so sinks should<br>
+ * accept a buffer without blocking for long.
+ */
+
+public class SessionManager {
+
+	// Buffers a session may be rendered ahead of its deadline
+	public static final int LEAD_BUFFERS_DEFAULT = 2;
+
+	private static final long PERIOD_NANOS = (long) (SamplePlayer.BUFFER_TIME_IN_SECS * 1.0e9);
+
+	/**
+	 * SessionManager Class Constructor
+	 * <p>
+	 * Starts one worker per available processor
+	 */
+	public SessionManager() {
+
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * SessionManager Class Constructor
+	 *
+	 * @param workerCount Number of worker threads to start
+	 */
+	public SessionManager(int workerCount) {
+
+		leadNanos = LEAD_BUFFERS_DEFAULT * PERIOD_NANOS;
+
+		workers = new Thread[Math.max(1, workerCount)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread("SessionWorker-" + i) {
+				public void run() {
+					workerLoop();
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Set how far ahead of its deadline a session's buffer may be rendered.
+	 * <p>
+	 * Applies to sessions opened afterwards. A larger lead absorbs more<br>
+	 * scheduling jitter at the cost of latency.
+	 *
+	 * @param buffers Lead in buffer periods
+	 */
+	public void setLeadBuffers(int buffers) {
+
+		leadNanos = Math.max(0, buffers) * PERIOD_NANOS;
+	}
+
+	/**
+	 * Start rendering a new session
+	 *
+	 * @param provider Last provider of the session's signal chain
+	 * @param sink Destination of the session's buffers
+	 *
+	 * @return The new session
+	 */
+	public SynthSession openSession(SampleProviderIntfc provider, AudioSinkIntfc sink) {
+
+		synchronized (queue) {
+			if (shutdown) {
+				throw new IllegalStateException("SessionManager has been shut down");
+			}
+			SynthSession session = new SynthSession(++lastId, provider, sink, System.nanoTime(), PERIOD_NANOS, leadNanos);
+			queue.add(session);
+			sessionCount++;
+
+			// The new session may be due before anything a worker is waiting for
+			queue.notifyAll();
+			return session;
+		}
+	}
+
+	/**
+	 * Return the number of open sessions
+	 *
+	 * @return Session count
+	 */
+	public int getSessionCount() {
+
+		synchronized (queue) {
+			return sessionCount;
+		}
+	}
+
+	/**
+	 * Return the number of worker threads
+	 *
+	 * @return Worker count
+	 */
+	public int getWorkerCount() {
+
+		return workers.length;
+	}
+
+	/**
+	 * Return the worker threads, for the allocation audit
+	 *
+	 * @return Workers
+	 */
+	Thread [] getWorkers() {
+
+		return workers;
+	}
+
+	/**
+	 * Stop all workers. Sessions still open are left unclosed.
+	 *
+	 * @throws InterruptedException If interrupted while waiting for the workers
+	 */
+	public void shutdown() throws InterruptedException {
+
+		synchronized (queue) {
+			shutdown = true;
+			queue.notifyAll();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+	/**
+	 * Worker loop; renders released sessions in deadline order
+	 */
+	private void workerLoop() {
+
+		while (true) {
+			SynthSession session = takeSession();
+			if (session == null) {
+				return;
+			}
+
+			boolean alive = session.renderBuffer();
+
+			synchronized (queue) {
+				if (alive) {
+					queue.add(session);
+					queue.notify();
+				}	else	{
+					sessionCount--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for the released session with the earliest deadline
+	 *
+	 * @return The session to render or null on shutdown
+	 */
+	private SynthSession takeSession() {
+
+		// Monitor waits, unlike Condition waits, do not allocate
+		synchronized (queue) {
+			try {
+				while (! shutdown) {
+					SynthSession head = queue.peek();
+					if (head == null) {
+						queue.wait();
+						continue;
+					}
+					long wait = head.getReleaseTime() - System.nanoTime();
+					if (wait > 0) {
+						queue.wait((wait + 999999L) / 1000000L);
+						continue;
+					}
+					return queue.poll();
+				}
+			} catch (InterruptedException e) {
+				// Treated as shutdown
+			}
+			return null;
+		}
+	}
+
+	// Earliest deadline first; equal periods make this round robin
+	private static final Comparator<SynthSession> BY_DEADLINE = new Comparator<SynthSession>() {
+		public int compare(SynthSession a, SynthSession b) {
+			return Long.compare(a.getDeadline(), b.getDeadline());
+		}
+	};
+
+	// Instance data
+	private final Thread [] workers;
+	private final PriorityQueue<SynthSession> queue = new PriorityQueue<SynthSession>(64, BY_DEADLINE);
+	private volatile long leadNanos;
+	private int lastId;
+	private int sessionCount;
+	private boolean shutdown;
+}
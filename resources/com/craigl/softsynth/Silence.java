@@ -0,0 +1,68 @@
+package com.craigl.softsynth;
+
+/**
+ * Silence helpers
+ * <p>
+ * Shared by the modules implementing SilenceIntfc, and by modules with<br>
+ * feedback whose state must not decay into subnormal doubles, which<br>
+ * are many times slower to compute with than normal ones.
+ */
+
+final class Silence {
+
+	// Normalized state below this can no longer be heard; tails end here
+	static final double TAIL_THRESHOLD = 1.0e-6;
+
+	// Normalized state below this is flushed to zero, far above the subnormal range
+	static final double DENORMAL_THRESHOLD = 1.0e-20;
+
+	private Silence() {
+	}
+
+	/**
+	 * Return whether a provider's last buffer was silent
+	 *
+	 * @param provider Provider to ask
+	 *
+	 * @return true if the provider implements SilenceIntfc and reports silence
+	 */
+	static boolean isSilent(SampleProviderIntfc provider) {
+
+		return (provider instanceof SilenceIntfc) && ((SilenceIntfc) provider).isSilent();
+	}
+
+	/**
+	 * Flush a value to zero if it is too small to matter
+	 *
+	 * @param value Normalized value
+	 *
+	 * @return The value or 0.0
+	 */
+	static double flush(double value) {
+
+		return (Math.abs(value) < DENORMAL_THRESHOLD) ? 0.0 : value;
+	}
+
+	/**
+	 * Flush the values in a range of an array that are too small to matter
+	 *
+	 * @param values Normalized values
+	 * @param from Index of the first value
+	 * @param to Index after the last value
+	 *
+	 * @return true if every value in the range is below TAIL_THRESHOLD
+	 */
+	static boolean flush(double [] values, int from, int to) {
+
+		boolean quiet = true;
+		for (int i = from; i < to; i++) {
+			double v = values[i];
+			if (Math.abs(v) < DENORMAL_THRESHOLD) {
+				values[i] = 0.0;
+			}	else if (Math.abs(v) >= TAIL_THRESHOLD)	{
+				quiet = false;
+			}
+		}
+		return quiet;
+	}
+}
@@ -0,0 +1,23 @@
+package com.craigl.softsynth;
+
+/**
+ * The Silence Interface
+ * <p>
+ * Implemented by sample providers that can tell when the buffer they<br>
+ * produced last is silent, so the modules they feed can skip work.<br>
+ * A silent buffer holds only zero samples.
+ * <p>
+ * Providers that do not implement this interface are taken never to<br>
+ * be silent. Silence is the only constant buffer reported; no module<br>
+ * produces other constant (DC) buffers, so there is no flag for them.
+ */
+
+public interface SilenceIntfc {
+	
+	/**
+	 * Return whether the buffer produced by the last call to getSamples was silent
+	 * 
+	 * @return true if every sample of the buffer was zero
+	 */
+	boolean isSilent();
+}
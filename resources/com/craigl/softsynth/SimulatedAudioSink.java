@@ -0,0 +1,186 @@
+package com.craigl.softsynth;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulated Audio Sink
+ * <p>
+ * Behaves like a sound card without needing one. Written samples queue<br>
+ * in a device buffer of a set size, which the simulated device empties<br>
+ * in real time at SAMPLE_RATE, one period of frames at a time. Writes<br>
+ * wait while the device buffer is full, just as SourceDataLine.write<br>
+ * does, and the frame position reports what the device has played.
+ * <p>
+ * When a period falls due and the buffer holds less than a period the<br>
+ * device plays what there is, counts an underrun and keeps going.<br>
+ * Periods that fall due while the sink is drained are not underruns.
+ * <p>
+ * Used to measure latency for different device buffer sizes and<br>
+ * periods; see LatencyHarness. The samples themselves are discarded.
+ */
+
+public class SimulatedAudioSink implements AudioSinkIntfc, FramePositionIntfc {
+
+	public static final int BUFFER_FRAMES_DEFAULT = 4096;
+	public static final int PERIOD_FRAMES_DEFAULT = 256;
+
+	/**
+	 * SimulatedAudioSink Class Constructor
+	 * <p>
+	 * Simulates a device with BUFFER_FRAMES_DEFAULT frames of buffer<br>
+	 * emptied PERIOD_FRAMES_DEFAULT frames at a time.
+	 */
+	public SimulatedAudioSink() {
+
+		this(BUFFER_FRAMES_DEFAULT, PERIOD_FRAMES_DEFAULT);
+	}
+
+	/**
+	 * SimulatedAudioSink Class Constructor
+	 *
+	 * @param bufferFrames Frames the device buffer holds
+	 * @param periodFrames Frames the device takes from its buffer at a time
+	 */
+	public SimulatedAudioSink(int bufferFrames, int periodFrames) {
+
+		if ((periodFrames < 1) || (bufferFrames < periodFrames)) {
+			throw new IllegalArgumentException("Device buffer must hold at least one period");
+		}
+		this.bufferFrames = bufferFrames;
+		this.periodFrames = periodFrames;
+	}
+
+	/**
+	 * Queue samples, waiting while the device buffer is full
+	 *
+	 * @param buffer Buffer holding the samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 */
+	public void write(byte [] buffer, int offset, int length) {
+
+		while (length > 0) {
+			int n = writeNonBlocking(buffer, offset, length);
+			if (n == 0) {
+				// Sleep until the device takes its next period
+				LockSupport.parkNanos(nanosUntilNextPeriod());
+			}
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Queue as many samples as fit in the device buffer
+	 *
+	 * @param buffer Buffer holding the samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 *
+	 * @return Count of bytes accepted
+	 */
+	public synchronized int writeNonBlocking(byte [] buffer, int offset, int length) {
+
+		if (startNanos == 0) {
+			// The device starts playing with the first write
+			startNanos = System.nanoTime();
+		}
+		update();
+		draining = false;
+		long room = bufferFrames - (written - played);
+		int frames = (int) Math.min(room, length >> 1);
+		written += frames;
+		return frames << 1;
+	}
+
+	/**
+	 * Wait until the device has played every frame written to it
+	 */
+	public void drain() {
+
+		synchronized (this) {
+			draining = true;
+		}
+		while (getLongFramePosition() < getFramesWritten()) {
+			LockSupport.parkNanos(nanosUntilNextPeriod());
+		}
+	}
+
+	/**
+	 * Play out the remaining frames
+	 */
+	public void close() {
+
+		drain();
+	}
+
+	/**
+	 * Return the count of frames the device has played
+	 *
+	 * @return Frame position of the device
+	 */
+	public synchronized long getLongFramePosition() {
+
+		update();
+		return played;
+	}
+
+	/**
+	 * Return the count of frames written
+	 *
+	 * @return Frames written since the sink was created
+	 */
+	public synchronized long getFramesWritten() {
+
+		return written;
+	}
+
+	/**
+	 * Return the count of periods the device could not fill
+	 *
+	 * @return Underrun count
+	 */
+	public synchronized long getUnderrunCount() {
+
+		return underruns;
+	}
+
+	/**
+	 * Let the device take every period that has fallen due
+	 */
+	private void update() {
+
+		if (startNanos == 0) {
+			return;
+		}
+		long due = (long) ((System.nanoTime() - startNanos) * (SamplePlayer.SAMPLE_RATE / 1.0e9)) / periodFrames;
+		for (; periods < due; periods++) {
+			long queued = written - played;
+			if ((queued < periodFrames) && (! draining)) {
+				underruns++;
+			}
+			played += Math.min(queued, periodFrames);
+		}
+	}
+
+	/**
+	 * Return the time until the device takes its next period
+	 *
+	 * @return Nanoseconds; at least one
+	 */
+	private synchronized long nanosUntilNextPeriod() {
+
+		long next = startNanos + (long) (((periods + 1) * periodFrames) * (1.0e9 / SamplePlayer.SAMPLE_RATE));
+		return Math.max(1, next - System.nanoTime());
+	}
+
+	// Instance data
+	private final int bufferFrames;
+	private final int periodFrames;
+	private long startNanos;
+	private long periods;
+	private long written;
+	private long played;
+	private long underruns;
+	private boolean draining;
+}
@@ -0,0 +1,62 @@
+package com.craigl.softsynth;
+
+/**
+ * Sine Table
+ * <p>
+ * One cycle of a sine wave shared by all oscillators that run on 32 bit<br>
+ * fixed point phase accumulators, where one cycle is 2^32 and the phase<br>
+ * wraps by integer overflow. Lookups interpolate linearly between table<br>
+ * entries, which keeps the error below 0.00002 with 4096 entries.
+ */
+
+final class SineTable {
+
+	// Table size is 2^TABLE_BITS
+	static final int TABLE_BITS = 12;
+	static final int TABLE_SIZE = 1 << TABLE_BITS;
+
+	// One cycle of the phase accumulator
+	static final double PHASE_SCALE = 4294967296.0;
+
+	private static final int FRACTION_BITS = 32 - TABLE_BITS;
+	private static final int FRACTION_MASK = (1 << FRACTION_BITS) - 1;
+	private static final double FRACTION_SCALE = 1.0 / (1 << FRACTION_BITS);
+
+	// One extra entry so interpolation never wraps the index
+	private static final double [] TABLE = new double[TABLE_SIZE + 1];
+	static {
+		for (int i = 0; i <= TABLE_SIZE; i++) {
+			TABLE[i] = Math.sin((2.0 * Math.PI * i) / TABLE_SIZE);
+		}
+	}
+
+	private SineTable() {
+	}
+
+	/**
+	 * Return the sine of a fixed point phase
+	 *
+	 * @param phase Phase; 2^32 is one cycle
+	 *
+	 * @return Sine between -1.0 and 1.0
+	 */
+	static double sin(int phase) {
+
+		int index = phase >>> FRACTION_BITS;
+		double a = TABLE[index];
+		return a + (TABLE[index + 1] - a) * ((phase & FRACTION_MASK) * FRACTION_SCALE);
+	}
+
+	/**
+	 * Convert cycles per sample to a fixed point phase increment
+	 *
+	 * @param cycles Cycles per sample; limited to the Nyquist frequency
+	 *
+	 * @return Phase increment
+	 */
+	static int toIncrement(double cycles) {
+
+		cycles = (cycles < 0.0) ? 0.0 : cycles;
+		return (int) Math.min(Math.round(cycles * PHASE_SCALE), Integer.MAX_VALUE);
+	}
+}
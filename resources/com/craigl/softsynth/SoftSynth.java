@@ -1,5 +1,8 @@
 package com.craigl.softsynth;
 
+import java.io.File;
+import java.io.IOException;
+
 import com.craigl.softsynth.AdvancedOscillator.MOD_TYPE;
 import com.craigl.softsynth.BasicOscillator.WAVESHAPE;
 
@@ -34,6 +37,119 @@ public class SoftSynth {
 		}		
 	}
 
+	/**
+	 * This example renders a VCF patch over a grid of cutoff and resonance<br>
+	 * values to WAV files, using all cores.
+	 * 
+	 * @param directory The directory to write the files to
+	 * 
+	 * @throws Exception If the renders cannot be written
+	 */ 
+	public void exampleThirteen(File directory) throws Exception {
+		
+		// Cutoff and resonance values to audition
+		ParameterGrid grid = new ParameterGrid();
+		grid.addAxis("cutoff", 250, 500, 1000, 2000, 4000);
+		grid.addLinearAxis("res", 0.0, 0.9, 4);
+		
+		// Each render gets its own oscillator, VCF and VCA
+		PatchFactoryIntfc factory = new PatchFactoryIntfc() {
+			public SampleProviderIntfc createPatch(double [] parameters) {
+
+				BasicOscillator osc = new BasicOscillator();
+				osc.setFrequency(110);
+				osc.setWaveshape(WAVESHAPE.SAW);
+
+				VCF vcf = new VCF();
+				vcf.setSampleProvider(osc);
+				vcf.setAttackTimeInMS(500);
+				vcf.setDecayTimeInMS(500);
+				vcf.setSustainLevel(0.5);
+				vcf.setReleaseTimeInMS(500);
+				vcf.setCutoffFrequencyInHz(parameters[0]);
+				vcf.setResonance(parameters[1]);
+				vcf.setDepth(1.0);
+
+				VCA vca = new VCA();
+				vca.setSampleProvider(vcf);
+				vca.setReleaseTimeInMS(500);
+
+				// Play one note of 1.5 seconds
+				int noteSamples = (int) (1.5 * SamplePlayer.SAMPLE_RATE);
+				vcf.noteOn();
+				vca.noteOn();
+				vcf.noteOff(noteSamples);
+				vca.noteOff(noteSamples);
+
+				return vca;
+			}
+		};
+		
+		// Render two seconds per grid point
+		BatchRenderer renderer = new BatchRenderer(factory, grid, directory, 2.0);
+		renderer.setFilePrefix("vcf");
+		renderer.setProgressListener(new BatchProgressIntfc() {
+			public void renderCompleted(int index, File file, int completed, int total) {
+				System.out.println(completed + "/" + total + " " + file.getName());
+			}
+		});
+		renderer.render();
+	}
+
+	/**
+	 * This example plays a Standard MIDI File
+	 * 
+	 * @param file The MIDI file to play
+	 * 
+	 * @throws IOException If the file cannot be read
+	 */ 
+	public void exampleTwelve(File file) throws IOException {
+		
+		// Open the file and get a cursor over its events
+		MidiFileReader reader = new MidiFileReader(file);
+		MidiEventCursor cursor = reader.newCursor();
+
+		// Create an oscillator
+		BasicOscillator osc = new BasicOscillator();
+		osc.setWaveshape(WAVESHAPE.SAW);
+		
+		// Create a VCA
+		VCA vca = new VCA();
+
+		// Set the VCA's sample provider
+		vca.setSampleProvider(osc);
+
+		// Parameterize the envelope generator
+		vca.setAttackTimeInMS(5);
+		vca.setDecayTimeInMS(200);
+		vca.setSustainLevel(0.4);
+		vca.setReleaseTimeInMS(300);		
+
+		// Create MIDI file player
+		MidiFilePlayer mp = new MidiFilePlayer(osc, vca, null, cursor);
+		
+		// Set the MIDI file player's sample provider
+		mp.setSampleProvider(vca);
+		
+		// Create a sample player
+		SamplePlayer player = new SamplePlayer();
+		
+		// Sets the sample player's sample provider
+		player.setSampleProvider(mp);
+		
+		// Start the player
+		player.startPlayer();		
+
+		// Wait for the file to finish and the last note to release
+		while (! mp.isFinished()) {
+			delay(100);
+		}
+		delay(1000);
+		
+		// Stop the player
+		player.stopPlayer();
+	}
+
 	/**
 	 * This example illustrates the AdvancedOscillator's FM capability
 	 */ 
@@ -578,13 +694,23 @@ public class SoftSynth {
 	 * SoftSynth entry point
 	 * 
 	 * @param args A single numeric digit is expected which determines<br>
-	 * which example to run. Valid values are 1 .. 7 at the present time.
+	 * which example to run. Valid values are 1 .. 11 at the present time.<br>
+	 * Example 12 additionally expects the path of a MIDI file and<br>
+	 * example 13 the path of an output directory.
+	 * 
+	 * @throws Exception If an example fails
 	 */
-	public static void main(String [] args) {
+	public static void main(String [] args) throws Exception {
 
 		SoftSynth synth = new SoftSynth();
 
-		if (args.length == 1) {
+		if ((args.length == 2) && (Integer.parseInt(args[0]) == 12)) {
+			synth.exampleTwelve(new File(args[1]));
+
+		}	else if ((args.length == 2) && (Integer.parseInt(args[0]) == 13)) {
+			synth.exampleThirteen(new File(args[1]));
+
+		}	else if (args.length == 1) {
 			int exampleIndex = Integer.parseInt(args[0]);
 
 			switch(exampleIndex) {
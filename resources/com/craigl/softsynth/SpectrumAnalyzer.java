@@ -0,0 +1,220 @@
+package com.craigl.softsynth;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spectrum Analyzer
+ * <p>
+ * Background thread that consumes the buffers copied by an AnalysisTap<br>
+ * and produces spectrum, peak and RMS measurements from them.
+ * <p>
+ * Incoming samples are collected in a circular history. Every hop of<br>
+ * fftSize / overlap samples the latest fftSize samples are windowed with<br>
+ * a Hann window and transformed. The result is written to the back buffer<br>
+ * of a TripleBuffer and published, so a meter or display thread can poll<br>
+ * getSnapshot at any rate without locking.
+ * <p>
+ * All work arrays and snapshots are allocated in the constructor; the<br>
+ * analysis loop itself does not allocate.
+ */
+
+public class SpectrumAnalyzer extends Thread {
+
+	public static final int FFT_SIZE_DEFAULT = 1024;
+
+	public static final int OVERLAP_MIN     = 1;
+	public static final int OVERLAP_MAX     = 8;
+	public static final int OVERLAP_DEFAULT = 2;
+
+	// Time to sleep when the tap has nothing queued
+	private static final long IDLE_PARK_NANOS = 1000000L;
+
+	/**
+	 * SpectrumAnalyzer Class Constructor
+	 * <p>
+	 * Analyzes with FFT_SIZE_DEFAULT and OVERLAP_DEFAULT
+	 *
+	 * @param tap The tap whose buffers are to be analyzed
+	 */
+	public SpectrumAnalyzer(AnalysisTap tap) {
+
+		this(tap, FFT_SIZE_DEFAULT, OVERLAP_DEFAULT);
+	}
+
+	/**
+	 * SpectrumAnalyzer Class Constructor
+	 *
+	 * @param tap The tap whose buffers are to be analyzed
+	 * @param fftSize Samples per analysis frame; a power of two
+	 * @param overlap Frames per fftSize samples between OVERLAP_MIN and OVERLAP_MAX
+	 */
+	public SpectrumAnalyzer(AnalysisTap tap, int fftSize, int overlap) {
+
+		super("SpectrumAnalyzer");
+
+		overlap = (overlap < OVERLAP_MIN) ? OVERLAP_MIN : overlap;
+		overlap = (overlap > OVERLAP_MAX) ? OVERLAP_MAX : overlap;
+
+		this.ring = tap.getRing();
+		fft = new FFT(fftSize);
+		hopSize = fftSize / overlap;
+		historyMask = fftSize - 1;
+		history = new double[fftSize];
+		work = new double[fftSize];
+
+		// Hann window and its sum for magnitude normalization
+		window = new double[fftSize];
+		double sum = 0.0;
+		for (int n = 0; n < fftSize; n++) {
+			window[n] = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * n / fftSize);
+			sum += window[n];
+		}
+		windowSum = sum;
+
+		snapshots = new TripleBuffer<AnalysisSnapshot>(
+				new AnalysisSnapshot(fftSize),
+				new AnalysisSnapshot(fftSize),
+				new AnalysisSnapshot(fftSize));
+
+		// Analysis must never keep the application alive
+		setDaemon(true);
+	}
+
+	/**
+	 * Return the most recent analysis result.
+	 * <p>
+	 * The returned snapshot is reused; it stays valid until the next call<br>
+	 * to this method. Intended to be polled from a single display thread.
+	 *
+	 * @return Latest snapshot; getSequence() is 0 until the first frame
+	 */
+	public AnalysisSnapshot getSnapshot() {
+
+		return snapshots.getReadBuffer();
+	}
+
+	/**
+	 * Return the number of samples between successive analysis frames
+	 *
+	 * @return Hop size in samples
+	 */
+	public int getHopSize() {
+
+		return hopSize;
+	}
+
+	/**
+	 * Method to start the analyzer thread
+	 */
+	public void startAnalyzer() {
+
+		start();
+	}
+
+	/**
+	 * Method to stop the analyzer thread
+	 */
+	public void stopAnalyzer() {
+
+		done = true;
+	}
+
+	/**
+	 * Analyzer thread loop; drains the tap's ring until stopped
+	 */
+	public void run() {
+
+		while (! done) {
+			byte [] block = ring.peek();
+			if (block == null) {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				continue;
+			}
+			processBlock(block, ring.peekLength());
+			ring.release();
+		}
+	}
+
+	/**
+	 * Accumulate a block of 16 bit samples into the history, analyzing at each hop
+	 *
+	 * @param block Tapped buffer
+	 * @param length Count of valid bytes in the buffer
+	 */
+	private void processBlock(byte [] block, int length) {
+
+		for (int i = 0; i < (length >> 1); i++) {
+			double sample = PcmCodec.get(block, i);
+
+			history[writeIndex] = sample;
+			writeIndex = (writeIndex + 1) & historyMask;
+
+			double level = Math.abs(sample);
+			if (level > peak) {
+				peak = level;
+			}
+			sumOfSquares += sample * sample;
+			samplePosition++;
+
+			if (++samplesSinceFrame >= hopSize) {
+				analyzeFrame();
+			}
+		}
+	}
+
+	/**
+	 * Transform the latest fftSize samples and publish a snapshot
+	 */
+	private void analyzeFrame() {
+
+		int size = work.length;
+
+		// Oldest sample sits at the write index
+		for (int n = 0; n < size; n++) {
+			work[n] = history[(writeIndex + n) & historyMask] * window[n];
+		}
+		fft.realForward(work);
+
+		AnalysisSnapshot snapshot = snapshots.getWriteBuffer();
+		double [] magnitudes = snapshot.magnitudes;
+		int half = size / 2;
+
+		double scale = 2.0 / windowSum;
+		magnitudes[0] = Math.abs(work[0]) / windowSum;
+		magnitudes[half] = Math.abs(work[1]) / windowSum;
+		for (int k = 1; k < half; k++) {
+			double re = work[2*k];
+			double im = work[2*k+1];
+			magnitudes[k] = Math.sqrt(re * re + im * im) * scale;
+		}
+
+		snapshot.peak = peak;
+		snapshot.rms = Math.sqrt(sumOfSquares / samplesSinceFrame);
+		snapshot.samplePosition = samplePosition;
+		snapshot.sequence = ++sequence;
+		snapshots.publish();
+
+		// Restart level measurement for the next hop
+		peak = 0.0;
+		sumOfSquares = 0.0;
+		samplesSinceFrame = 0;
+	}
+
+	// Instance data
+	private final BlockRing ring;
+	private final FFT fft;
+	private final int hopSize;
+	private final int historyMask;
+	private final double [] history;
+	private final double [] work;
+	private final double [] window;
+	private final double windowSum;
+	private final TripleBuffer<AnalysisSnapshot> snapshots;
+	private volatile boolean done;
+	private int writeIndex;
+	private int samplesSinceFrame;
+	private double peak;
+	private double sumOfSquares;
+	private long samplePosition;
+	private long sequence;
+}
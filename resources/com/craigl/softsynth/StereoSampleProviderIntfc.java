@@ -0,0 +1,22 @@
+package com.craigl.softsynth;
+
+/**
+ * The Stereo Sample Provider Interface
+ * <p>
+ * Implemented by modules that can produce separate left and right<br>
+ * channels. Each buffer holds mono samples in the same format as the<br>
+ * buffers of the SampleProviderIntfc.
+ */
+
+public interface StereoSampleProviderIntfc {
+	
+	/**
+	 * Process a pair of buffers full of samples
+	 * 
+	 * @param leftBuffer Buffer in which the left channel samples are to be processed
+	 * @param rightBuffer Buffer in which the right channel samples are to be processed
+	 * 
+	 * @return Count of number of bytes processed per channel
+	 */
+	int getSamples(byte [] leftBuffer, byte [] rightBuffer);
+}
@@ -0,0 +1,536 @@
+package com.craigl.softsynth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * String Bank
+ * <p>
+ * A bank of plucked and struck strings after Karplus and Strong, for<br>
+ * pieces that need far more voices than oscillator, VCF and VCA chains<br>
+ * allow. Each string is a delay line one period long that feeds back<br>
+ * through a loop filter:
+ * <p>
+ * An allpass interpolator supplies the fraction of a sample that the<br>
+ * delay line cannot, so strings are tuned exactly at any pitch.<br>
+ * A one-zero lowpass takes more from high partials on every pass the<br>
+ * darker the brightness, and a loop gain sets the decay time.
+ * <p>
+ * A pluck fills the delay line with lowpassed noise, a strike with a<br>
+ * hammer shaped pulse; either is combed at the pick position. The delay<br>
+ * lines of all strings are slices of one contiguous array, each long<br>
+ * enough for the lowest frequency the bank was built for.
+ * <p>
+ * Strings that have decayed below SILENCE_LEVEL are no longer rendered<br>
+ * and return to the free list, so the cost follows the strings sounding,<br>
+ * not the size of the bank. When every string sounds, a new pluck takes<br>
+ * the quietest one.
+ * <p>
+ * pluck and strike may be called from any thread. Requests are queued<br>
+ * in a lock-free ring and take effect at the start of the next buffer.
+ */
+
+public class StringBank implements SampleProviderIntfc, SilenceIntfc {
+
+	/**
+	 * Excitation enumeration
+	 */
+	public enum EXCITATION {
+		PLUCK, STRIKE
+	}
+
+	public static final int STRINGS_DEFAULT = 1024;
+	public static final int STRINGS_MAX = 16384;
+
+	public static final double LOWEST_FREQUENCY_DEFAULT = 27.5;
+	public static final double FREQUENCY_MIN = 20.0;
+	public static final double FREQUENCY_MAX = SamplePlayer.SAMPLE_RATE / 8.0;
+
+	public static final double DECAY_MIN = 0.05;
+	public static final double DECAY_MAX = 30.0;
+	public static final double DECAY_DEFAULT = 3.0;
+
+	public static final double BRIGHTNESS_DEFAULT = 0.5;
+	public static final double PICK_POSITION_MAX = 0.5;
+	public static final double PICK_POSITION_DEFAULT = 0.13;
+
+	public static final double GAIN_DEFAULT = 0.25;
+
+	// Strings below this peak level relative to their excitation stop
+	public static final double SILENCE_LEVEL = 1.0e-4;
+
+	private static final int QUEUE_SIZE = 1024;
+
+	/**
+	 * StringBank Class Constructor
+	 * <p>
+	 * Creates STRINGS_DEFAULT strings tuned down to LOWEST_FREQUENCY_DEFAULT.
+	 */
+	public StringBank() {
+
+		this(STRINGS_DEFAULT, LOWEST_FREQUENCY_DEFAULT);
+	}
+
+	/**
+	 * StringBank Class Constructor
+	 * <p>
+	 * The delay line arena holds strings times the period of the lowest<br>
+	 * frequency, rounded up to a power of two, in floats.
+	 *
+	 * @param strings Count of strings between 1 and STRINGS_MAX
+	 * @param lowestFrequency Lowest frequency a string can be tuned to; FREQUENCY_MIN or more
+	 */
+	public StringBank(int strings, double lowestFrequency) {
+
+		if ((strings < 1) || (strings > STRINGS_MAX)) {
+			throw new IllegalArgumentException("String bank must hold 1 to " + STRINGS_MAX + " strings");
+		}
+		lowestFrequency = (lowestFrequency < FREQUENCY_MIN) ? FREQUENCY_MIN : lowestFrequency;
+		lowestFrequency = (lowestFrequency > FREQUENCY_MAX) ? FREQUENCY_MAX : lowestFrequency;
+
+		this.strings = strings;
+		this.lowestFrequency = lowestFrequency;
+		int period = (int) Math.ceil(SamplePlayer.SAMPLE_RATE / lowestFrequency) + 2;
+		lineSize = Integer.highestOneBit(period - 1) << 1;
+		lineMask = lineSize - 1;
+		lines = new float[strings * lineSize];
+		excitation = new double[lineSize];
+
+		writeIndex = new int[strings];
+		delay = new int[strings];
+		allpassCoefficient = new double[strings];
+		allpassIn = new double[strings];
+		allpassOut = new double[strings];
+		filterPrevious = new double[strings];
+		filterMix = new double[strings];
+		loopGain = new double[strings];
+		amplitude = new double[strings];
+		level = new double[strings];
+		active = new int[strings];
+		free = new int[strings];
+		for (int s = 0; s < strings; s++) {
+			free[s] = strings - 1 - s;
+		}
+		freeCount = strings;
+
+		setDecay(DECAY_DEFAULT);
+		setBrightness(BRIGHTNESS_DEFAULT);
+		setPickPosition(PICK_POSITION_DEFAULT);
+		setGain(GAIN_DEFAULT);
+	}
+
+	/**
+	 * Set how long newly excited strings ring
+	 * <p>
+	 * Sets the loop damping; the fundamental falls by 60 dB in this time.
+	 *
+	 * @param seconds Decay time between DECAY_MIN and DECAY_MAX
+	 */
+	public void setDecay(double seconds) {
+
+		seconds = (seconds < DECAY_MIN) ? DECAY_MIN : seconds;
+		seconds = (seconds > DECAY_MAX) ? DECAY_MAX : seconds;
+
+		decay = seconds;
+	}
+
+	/**
+	 * Set the brightness of newly excited strings
+	 * <p>
+	 * Controls both the excitation and how fast high partials die away.
+	 *
+	 * @param brightness 0.0 for a dull, quickly mellowing tone up to 1.0 for a bright, metallic one
+	 */
+	public void setBrightness(double brightness) {
+
+		brightness = (brightness < 0.0) ? 0.0 : brightness;
+		brightness = (brightness > 1.0) ? 1.0 : brightness;
+
+		this.brightness = brightness;
+	}
+
+	/**
+	 * Set where newly excited strings are plucked or struck
+	 * <p>
+	 * Partials with a node at this point are not excited.
+	 *
+	 * @param position Fraction of the string length from its end; 0.0 to PICK_POSITION_MAX, 0.0 for none
+	 */
+	public void setPickPosition(double position) {
+
+		position = (position < 0.0) ? 0.0 : position;
+		position = (position > PICK_POSITION_MAX) ? PICK_POSITION_MAX : position;
+
+		pickPosition = position;
+	}
+
+	/**
+	 * Set the output gain
+	 *
+	 * @param gain Gain applied to the sum of the strings; 0.0 or more
+	 */
+	public void setGain(double gain) {
+
+		this.gain = (gain < 0.0) ? 0.0 : gain;
+	}
+
+	/**
+	 * Pluck a string
+	 *
+	 * @param frequency Frequency in Hz between the bank's lowest frequency and FREQUENCY_MAX
+	 * @param velocity Level between 0.0 and 1.0
+	 */
+	public void pluck(double frequency, double velocity) {
+
+		excite(EXCITATION.PLUCK, frequency, velocity);
+	}
+
+	/**
+	 * Strike a string
+	 *
+	 * @param frequency Frequency in Hz between the bank's lowest frequency and FREQUENCY_MAX
+	 * @param velocity Level between 0.0 and 1.0
+	 */
+	public void strike(double frequency, double velocity) {
+
+		excite(EXCITATION.STRIKE, frequency, velocity);
+	}
+
+	/**
+	 * Queue the excitation of a string with the current settings
+	 *
+	 * @param excitation Pluck or strike
+	 * @param frequency Frequency in Hz
+	 * @param velocity Level between 0.0 and 1.0
+	 */
+	public synchronized void excite(EXCITATION excitation, double frequency, double velocity) {
+
+		frequency = (frequency < lowestFrequency) ? lowestFrequency : frequency;
+		frequency = (frequency > FREQUENCY_MAX) ? FREQUENCY_MAX : frequency;
+		velocity = (velocity < 0.0) ? 0.0 : velocity;
+		velocity = (velocity > 1.0) ? 1.0 : velocity;
+
+		long t = tail.get();
+		if (t - head.get() >= QUEUE_SIZE) {
+			droppedRequests++;
+			return;
+		}
+		int slot = (int) (t & (QUEUE_SIZE - 1));
+		requestStrike[slot] = (excitation == EXCITATION.STRIKE);
+		requestFrequency[slot] = frequency;
+		requestVelocity[slot] = velocity;
+		requestDecay[slot] = decay;
+		requestBrightness[slot] = brightness;
+		requestPick[slot] = pickPosition;
+		tail.lazySet(t + 1);
+	}
+
+	/**
+	 * Return the count of strings in the bank
+	 *
+	 * @return String count
+	 */
+	public int getStringCount() {
+
+		return strings;
+	}
+
+	/**
+	 * Return the count of strings sounding
+	 *
+	 * @return Strings rendered in the last buffer
+	 */
+	public int getActiveStringCount() {
+
+		return activeCount;
+	}
+
+	/**
+	 * Return the count of sounding strings taken for new notes
+	 *
+	 * @return Stolen string count
+	 */
+	public long getStolenCount() {
+
+		return stolen;
+	}
+
+	/**
+	 * Return the count of requests dropped because the queue was full
+	 *
+	 * @return Dropped request count
+	 */
+	public long getDroppedRequestCount() {
+
+		return droppedRequests;
+	}
+
+	/**
+	 * Return whether the last buffer was silent
+	 *
+	 * @return true if no string produced sound
+	 */
+	public boolean isSilent() {
+
+		return silent;
+	}
+
+	/**
+	 * Get a buffer of samples
+	 *
+	 * @param buffer Array to fill with samples
+	 *
+	 * @return Count of bytes produced.
+	 */
+	public int getSamples(byte [] buffer) {
+
+		drainRequests();
+
+		double [] out = mix;
+		for (int i = 0; i < SAMPLES; i++) {
+			out[i] = 0.0;
+		}
+
+		float [] arena = lines;
+		int mask = lineMask;
+		int n = activeCount;
+		for (int a = 0; a < n; ) {
+			int s = active[a];
+			int base = s * lineSize;
+			int w = writeIndex[s];
+			int d = delay[s];
+			double c = allpassCoefficient[s];
+			double x1 = allpassIn[s];
+			double y1 = allpassOut[s];
+			double prev = filterPrevious[s];
+			double mixS = filterMix[s];
+			double g = loopGain[s];
+			double amp = amplitude[s];
+			double peak = 0.0;
+
+			for (int i = 0; i < SAMPLES; i++) {
+				double x = arena[base + ((w - d) & mask)];
+
+				// Allpass supplies the fractional part of the delay
+				double y = c * (x - y1) + x1;
+				x1 = x;
+				y1 = y;
+
+				// One-zero lowpass and loop gain
+				double v = g * (y + mixS * (prev - y));
+				prev = y;
+
+				arena[base + (w & mask)] = (float) v;
+				w++;
+				out[i] += amp * v;
+				peak = Math.max(peak, Math.abs(v));
+			}
+
+			if (peak >= SILENCE_LEVEL) {
+				writeIndex[s] = w & mask;
+				allpassIn[s] = x1;
+				allpassOut[s] = y1;
+				filterPrevious[s] = prev;
+				level[s] = amp * peak;
+				a++;
+			}	else	{
+				// Decayed; return the string to the free list
+				active[a] = active[--n];
+				free[freeCount++] = s;
+			}
+		}
+		activeCount = n;
+
+		silent = PcmCodec.pack(out, gain, buffer, SAMPLES);
+		return SamplePlayer.BUFFER_SIZE;
+	}
+
+	/**
+	 * Excite a string for every queued request
+	 */
+	private void drainRequests() {
+
+		long h = head.get();
+		long t = tail.get();
+		for (; h < t; h++) {
+			int slot = (int) (h & (QUEUE_SIZE - 1));
+			int s = allocate();
+			start(s, requestStrike[slot], requestFrequency[slot], requestVelocity[slot],
+					requestDecay[slot], requestBrightness[slot], requestPick[slot]);
+		}
+		head.lazySet(h);
+	}
+
+	/**
+	 * Take a free string, or the quietest sounding one if none is free
+	 *
+	 * @return Index of a string no longer in the active list
+	 */
+	private int allocate() {
+
+		if (freeCount > 0) {
+			return free[--freeCount];
+		}
+		int quietest = 0;
+		for (int a = 1; a < activeCount; a++) {
+			if (level[active[a]] < level[active[quietest]]) {
+				quietest = a;
+			}
+		}
+		int s = active[quietest];
+		active[quietest] = active[--activeCount];
+		stolen++;
+		return s;
+	}
+
+	/**
+	 * Tune a string, fill its delay line with an excitation and make it active
+	 *
+	 * @param s String index
+	 * @param struck true to strike, false to pluck
+	 * @param frequency Frequency in Hz
+	 * @param velocity Level between 0.0 and 1.0
+	 * @param decaySeconds Decay time
+	 * @param bright Brightness between 0.0 and 1.0
+	 * @param pick Pick position
+	 */
+	private void start(int s, boolean struck, double frequency, double velocity,
+			double decaySeconds, double bright, double pick) {
+
+		// Phase delay and gain of the loop filter at the fundamental
+		double mixS = 0.5 * (1.0 - bright);
+		double w0 = 2.0 * Math.PI * frequency / SamplePlayer.SAMPLE_RATE;
+		double re = 1.0 - mixS + mixS * Math.cos(w0);
+		double im = mixS * Math.sin(w0);
+		double filterDelay = Math.atan2(im, re) / w0;
+		double filterGain = Math.sqrt(re * re + im * im);
+
+		// The allpass makes up the rest of the period; its delay eta is kept
+		// between 0.1 and 1.1 where it is stable, and the coefficient is exact
+		// at the fundamental rather than only at low frequencies
+		double period = SamplePlayer.SAMPLE_RATE / frequency;
+		int d = (int) (period - filterDelay - 0.1);
+		double eta = period - filterDelay - d;
+
+		writeIndex[s] = 0;
+		delay[s] = d;
+		allpassCoefficient[s] = Math.sin(0.5 * w0 * (1.0 - eta)) / Math.sin(0.5 * w0 * (1.0 + eta));
+		allpassIn[s] = 0.0;
+		allpassOut[s] = 0.0;
+		filterPrevious[s] = 0.0;
+		filterMix[s] = mixS;
+
+		// Make up the filter's loss at the fundamental, but never above unity
+		// loop gain, so dark high strings may die away faster than asked
+		loopGain[s] = Math.min(Math.pow(0.001, 1.0 / (decaySeconds * frequency)) / filterGain, 1.0);
+		amplitude[s] = velocity;
+		level[s] = velocity;
+
+		// One period of excitation, read back from the start of the line
+		int base = s * lineSize;
+		int from = -d & lineMask;
+		double alpha = 0.1 + 0.9 * bright;
+		double smooth = 0.0;
+		double width = Math.max(2.0, d * (0.02 + 0.2 * (1.0 - bright)));
+		for (int i = 0; i < d; i++) {
+			double e;
+			if (struck) {
+				// Raised cosine hammer; softer when darker
+				double u = (i - width) / width;
+				e = (Math.abs(u) < 1.0) ? 0.5 + 0.5 * Math.cos(Math.PI * u) : 0.0;
+			}	else	{
+				smooth += alpha * (nextBipolar() - smooth);
+				e = smooth;
+			}
+			excitation[i] = e;
+		}
+
+		// Comb at the pick position, then remove DC and normalise
+		int combDelay = (int) Math.round(pick * d);
+		if (combDelay > 0) {
+			for (int i = d - 1; i >= combDelay; i--) {
+				excitation[i] -= excitation[i - combDelay];
+			}
+		}
+		double mean = 0.0;
+		for (int i = 0; i < d; i++) {
+			mean += excitation[i];
+		}
+		mean /= d;
+		double peak = 0.0;
+		for (int i = 0; i < d; i++) {
+			excitation[i] -= mean;
+			peak = Math.max(peak, Math.abs(excitation[i]));
+		}
+		double scale = (peak > 0.0) ? 1.0 / peak : 0.0;
+		for (int i = 0; i < d; i++) {
+			lines[base + ((from + i) & lineMask)] = (float) (excitation[i] * scale);
+		}
+
+		active[activeCount++] = s;
+	}
+
+	/**
+	 * Return a uniformly distributed value between -1.0 and 1.0
+	 */
+	private double nextBipolar() {
+
+		// xorshift64
+		long x = randomState;
+		x ^= x << 13;
+		x ^= x >>> 7;
+		x ^= x << 17;
+		randomState = x;
+		return (x >>> 11) * 0x1.0p-52 - 1.0;
+	}
+
+	private static final int SAMPLES = SamplePlayer.SAMPLES_PER_BUFFER;
+
+	// Instance data
+	private final int strings;
+	private final double lowestFrequency;
+	private final double [] mix = new double[SAMPLES];
+
+	// Delay line arena; string s owns lineSize floats from s * lineSize
+	private final float [] lines;
+	private final int lineSize;
+	private final int lineMask;
+	private final double [] excitation;
+
+	// Settings for newly excited strings
+	private volatile double decay;
+	private volatile double brightness;
+	private volatile double pickPosition;
+	private double gain;
+
+	// String state, indexed by string
+	private final int [] writeIndex;
+	private final int [] delay;
+	private final double [] allpassCoefficient;
+	private final double [] allpassIn;
+	private final double [] allpassOut;
+	private final double [] filterPrevious;
+	private final double [] filterMix;
+	private final double [] loopGain;
+	private final double [] amplitude;
+	private final double [] level;
+
+	// Sounding strings occupy the first activeCount entries; the rest are free
+	private final int [] active;
+	private volatile int activeCount;
+	private final int [] free;
+	private int freeCount;
+	private volatile long stolen;
+	private long randomState = 0x5DEECE66DL;
+	private volatile boolean silent = true;
+
+	// Request queue written by any thread and read by the audio thread
+	private final boolean [] requestStrike = new boolean[QUEUE_SIZE];
+	private final double [] requestFrequency = new double[QUEUE_SIZE];
+	private final double [] requestVelocity = new double[QUEUE_SIZE];
+	private final double [] requestDecay = new double[QUEUE_SIZE];
+	private final double [] requestBrightness = new double[QUEUE_SIZE];
+	private final double [] requestPick = new double[QUEUE_SIZE];
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long droppedRequests;
+}
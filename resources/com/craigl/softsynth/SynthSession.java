@@ -0,0 +1,220 @@
+package com.craigl.softsynth;
+
+import java.io.IOException;
+
+/**
+ * One independent synth session hosted by a SessionManager.
+ * <p>
+ * A session owns a signal chain and an output sink. The manager's workers<br>
+ * render one buffer of the chain per buffer period and write it to the<br>
+ * sink, each buffer being due by its own deadline. The session keeps<br>
+ * account of the time spent rendering it and of deadlines it missed.
+ * <p>
+ * A session whose chain or sink throws is ended and its sink closed;<br>
+ * the exception is kept as its error and the other sessions carry on.
+ */
+
+public class SynthSession {
+
+	/**
+	 * SynthSession Class Constructor
+	 * <p>
+	 * Sessions are created by SessionManager.openSession
+	 */
+	SynthSession(int id, SampleProviderIntfc provider, AudioSinkIntfc sink, long startTime, long periodNanos, long leadNanos) {
+
+		this.id = id;
+		this.provider = provider;
+		this.sink = sink;
+		this.periodNanos = periodNanos;
+		this.leadNanos = leadNanos;
+		deadline = startTime + periodNanos;
+	}
+
+	/**
+	 * Return the session's identifier
+	 *
+	 * @return Session id, unique within its manager
+	 */
+	public int getId() {
+
+		return id;
+	}
+
+	/**
+	 * Ask the manager to stop rendering this session.
+	 * <p>
+	 * The sink is closed after the buffer in progress, if any, is written.
+	 */
+	public void close() {
+
+		closeRequested = true;
+	}
+
+	/**
+	 * Return whether the session has finished and its sink is closed
+	 *
+	 * @return true once closed
+	 */
+	public boolean isClosed() {
+
+		return closed;
+	}
+
+	/**
+	 * Return the error that ended the session, if any
+	 *
+	 * @return The sink's IOException, the chain's RuntimeException or null
+	 */
+	public Exception getError() {
+
+		return error;
+	}
+
+	/**
+	 * Return the number of buffers rendered
+	 *
+	 * @return Buffer count
+	 */
+	public long getBuffersRendered() {
+
+		return buffersRendered;
+	}
+
+	/**
+	 * Return the number of buffers completed after their deadline
+	 *
+	 * @return Missed deadline count
+	 */
+	public long getMissedDeadlines() {
+
+		return missedDeadlines;
+	}
+
+	/**
+	 * Return the mean time spent rendering and writing one buffer
+	 *
+	 * @return Mean render time in milliseconds
+	 */
+	public double getAverageRenderTimeInMs() {
+
+		long n = buffersRendered;
+		return (n == 0) ? 0.0 : (renderNanos / (double) n) * 1.0e-6;
+	}
+
+	/**
+	 * Return the longest time spent rendering and writing one buffer
+	 *
+	 * @return Maximum render time in milliseconds
+	 */
+	public double getMaxRenderTimeInMs() {
+
+		return maxRenderNanos * 1.0e-6;
+	}
+
+	/**
+	 * Return the fraction of one core this session uses
+	 *
+	 * @return Mean render time divided by the buffer period
+	 */
+	public double getLoad() {
+
+		long n = buffersRendered;
+		return (n == 0) ? 0.0 : renderNanos / ((double) n * periodNanos);
+	}
+
+	/**
+	 * Return the earliest time the next buffer may be rendered
+	 *
+	 * @return Release time on the System.nanoTime clock
+	 */
+	long getReleaseTime() {
+
+		return deadline - periodNanos - leadNanos;
+	}
+
+	/**
+	 * Return the time by which the next buffer must be complete
+	 *
+	 * @return Deadline on the System.nanoTime clock
+	 */
+	long getDeadline() {
+
+		return deadline;
+	}
+
+	/**
+	 * Render one buffer into the sink and account for it. Worker thread only.
+	 *
+	 * @return true if the session continues; false if it has ended
+	 */
+	boolean renderBuffer() {
+
+		if (closeRequested) {
+			finish();
+			return false;
+		}
+
+		long begin = System.nanoTime();
+		try {
+			int nBytes = provider.getSamples(buffer);
+			if (nBytes < 0) {
+				finish();
+				return false;
+			}
+			if (nBytes > 0) {
+				sink.write(buffer, 0, nBytes);
+			}
+		} catch (IOException | RuntimeException e) {
+			error = e;
+			finish();
+			return false;
+		}
+		long end = System.nanoTime();
+
+		long elapsed = end - begin;
+		renderNanos += elapsed;
+		if (elapsed > maxRenderNanos) {
+			maxRenderNanos = elapsed;
+		}
+		if (end > deadline) {
+			missedDeadlines++;
+		}
+		buffersRendered++;
+		deadline += periodNanos;
+		return true;
+	}
+
+	/**
+	 * Close the sink and mark the session closed
+	 */
+	private void finish() {
+
+		try {
+			sink.close();
+		} catch (IOException | RuntimeException e) {
+			if (error == null) {
+				error = e;
+			}
+		}
+		closed = true;
+	}
+
+	// Instance data
+	private final int id;
+	private final SampleProviderIntfc provider;
+	private final AudioSinkIntfc sink;
+	private final long periodNanos;
+	private final long leadNanos;
+	private final byte [] buffer = new byte[SamplePlayer.BUFFER_SIZE];
+	private long deadline;
+	private volatile boolean closeRequested;
+	private volatile boolean closed;
+	private volatile Exception error;
+
+	// Load accounting; written by whichever worker renders the session
+	private volatile long buffersRendered;
+	private volatile long missedDeadlines;
+	private volatile long renderNanos;
+	private volatile long maxRenderNanos;
+}
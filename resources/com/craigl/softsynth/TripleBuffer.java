@@ -0,0 +1,75 @@
+package com.craigl.softsynth;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wait-free triple buffer for handing the latest state from one thread to another.
+ * <p>
+ * The writer fills its back buffer and publishes it; the reader always<br>
+ * sees the most recently published buffer. Neither side ever waits on the<br>
+ * other and the three buffers are reused forever, so nothing is allocated.
+ *
+ * @param <T> Type of the buffered state
+ */
+
+public class TripleBuffer<T> {
+
+	private static final int INDEX_MASK = 0x3;
+	private static final int FRESH = 0x4;
+
+	/**
+	 * TripleBuffer Class Constructor
+	 *
+	 * @param front Initial buffer owned by the reader
+	 * @param middle Initial buffer in the exchange slot
+	 * @param back Initial buffer owned by the writer
+	 */
+	public TripleBuffer(T front, T middle, T back) {
+
+		buffers = new Object[] { front, middle, back };
+		frontIndex = 0;
+		exchange = new AtomicInteger(1);
+		backIndex = 2;
+	}
+
+	/**
+	 * Return the buffer the writer may fill. Writer thread only.
+	 *
+	 * @return The writer's back buffer
+	 */
+	@SuppressWarnings("unchecked")
+	public T getWriteBuffer() {
+
+		return (T) buffers[backIndex];
+	}
+
+	/**
+	 * Publish the back buffer and take over the exchange slot. Writer thread only.
+	 */
+	public void publish() {
+
+		backIndex = exchange.getAndSet(backIndex | FRESH) & INDEX_MASK;
+	}
+
+	/**
+	 * Return the most recently published buffer. Reader thread only.
+	 * <p>
+	 * The returned buffer belongs to the reader until the next call.
+	 *
+	 * @return The reader's front buffer
+	 */
+	@SuppressWarnings("unchecked")
+	public T getReadBuffer() {
+
+		if ((exchange.get() & FRESH) != 0) {
+			frontIndex = exchange.getAndSet(frontIndex) & INDEX_MASK;
+		}
+		return (T) buffers[frontIndex];
+	}
+
+	// Instance data
+	private final Object [] buffers;
+	private final AtomicInteger exchange;
+	private int frontIndex;
+	private int backIndex;
+}
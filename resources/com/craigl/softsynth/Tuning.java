@@ -0,0 +1,372 @@
+package com.craigl.softsynth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tuning
+ * <p>
+ * Maps midi note numbers to pitches. Every pitch a tuning can produce is<br>
+ * calculated once when the tuning is created and held in tables, so<br>
+ * converting a note to a frequency, a fixed point phase increment or a<br>
+ * step ratio is an array lookup however the tuning is defined. Twelve<br>
+ * tone equal temperament and microtonal scales cost the same to play.
+ * <p>
+ * Tunings are immutable so one instance may be shared by any number of<br>
+ * players and voices. Scales and keyboard mappings are read from Scala<br>
+ * .scl and .kbm files; see the Scala documentation for their format.
+ * <p>
+ * Notes a keyboard mapping leaves unmapped have a frequency of 0 Hz.
+ */
+
+public class Tuning {
+
+	public static final int NOTE_COUNT = 128;
+
+	public static final int REFERENCE_NOTE_NUMBER = 69;
+	public static final double REFERENCE_NOTE_FREQ = 440.0;
+	public static final int MIDDLE_NOTE_NUMBER = 60;
+
+	private static final double CENTS_PER_OCTAVE = 1200.0;
+
+	// Mapping entry and degree of a key that plays no note
+	private static final int UNMAPPED = Integer.MIN_VALUE;
+
+	/**
+	 * Twelve tone equal temperament with A4 at 440 Hz
+	 */
+	public static final Tuning EQUAL_TEMPERAMENT = equalTemperament(REFERENCE_NOTE_FREQ);
+
+	/**
+	 * Tuning Class Constructor
+	 *
+	 * @param description Description of the tuning
+	 * @param scale Pitches of the scale degrees above the tonic in cents; the last is the period
+	 * @param mapping Scale degree of each key in one repetition of the keyboard mapping or UNMAPPED
+	 * @param octaveDegree Scale degrees the mapping advances per repetition
+	 * @param firstNote Lowest note that is mapped
+	 * @param lastNote Highest note that is mapped
+	 * @param middleNote Note mapped to the first mapping entry
+	 * @param referenceNote Note tuned to the reference frequency
+	 * @param referenceFrequency Frequency of the reference note in Hz
+	 */
+	private Tuning(String description, double [] scale, int [] mapping, int octaveDegree,
+			int firstNote, int lastNote, int middleNote, int referenceNote, double referenceFrequency) {
+
+		this.description = description;
+
+		// Step ratios follow the scale alone
+		for (int steps = -(NOTE_COUNT - 1); steps < NOTE_COUNT; steps++) {
+			ratios[steps + NOTE_COUNT - 1] = Math.pow(2.0, degreeToCents(scale, steps) / CENTS_PER_OCTAVE);
+		}
+
+		int referenceDegree = noteToDegree(mapping, octaveDegree, middleNote, referenceNote);
+		if (referenceDegree == UNMAPPED) {
+			throw new IllegalArgumentException("Reference note " + referenceNote + " is not mapped");
+		}
+		double referenceCents = degreeToCents(scale, referenceDegree);
+
+		for (int mnn = 0; mnn < NOTE_COUNT; mnn++) {
+			int degree = noteToDegree(mapping, octaveDegree, middleNote, mnn);
+			if ((mnn < firstNote) || (mnn > lastNote) || (degree == UNMAPPED)) {
+				continue;
+			}
+			double cents = degreeToCents(scale, degree) - referenceCents;
+			frequencies[mnn] = referenceFrequency * Math.pow(2.0, cents / CENTS_PER_OCTAVE);
+			increments[mnn] = SineTable.toIncrement(frequencies[mnn] / SamplePlayer.SAMPLE_RATE);
+		}
+	}
+
+	/**
+	 * Create twelve tone equal temperament
+	 *
+	 * @param referenceFrequency Frequency of A4 in Hz
+	 *
+	 * @return The tuning
+	 */
+	public static Tuning equalTemperament(double referenceFrequency) {
+
+		double [] scale = new double[12];
+		for (int i = 0; i < scale.length; i++) {
+			scale[i] = (i + 1) * 100.0;
+		}
+		return fromCents("12 tone equal temperament", scale, referenceFrequency);
+	}
+
+	/**
+	 * Create a tuning from a scale with the default keyboard mapping
+	 * <p>
+	 * Consecutive keys play consecutive scale degrees; the tonic is on<br>
+	 * MIDDLE_NOTE_NUMBER and REFERENCE_NOTE_NUMBER is tuned to the<br>
+	 * reference frequency.
+	 *
+	 * @param description Description of the tuning
+	 * @param scale Pitches of the scale degrees above the tonic in cents; the last is the period
+	 * @param referenceFrequency Frequency of the reference note in Hz
+	 *
+	 * @return The tuning
+	 */
+	public static Tuning fromCents(String description, double [] scale, double referenceFrequency) {
+
+		if (scale.length == 0) {
+			throw new IllegalArgumentException("Scale has no degrees");
+		}
+		return new Tuning(description, scale.clone(), linearMapping(scale.length), scale.length,
+				0, NOTE_COUNT - 1, MIDDLE_NOTE_NUMBER, REFERENCE_NOTE_NUMBER, referenceFrequency);
+	}
+
+	/**
+	 * Read a tuning from a Scala scale file with the default keyboard mapping
+	 *
+	 * @param scl Scala .scl file
+	 *
+	 * @return The tuning
+	 *
+	 * @throws IOException If the file cannot be read or is not a valid scale
+	 */
+	public static Tuning readScala(File scl) throws IOException {
+
+		List<String> lines = readValues(scl, true);
+		return fromCents(lines.get(0), parseScale(lines), REFERENCE_NOTE_FREQ);
+	}
+
+	/**
+	 * Read a tuning from a Scala scale file and keyboard mapping file
+	 *
+	 * @param scl Scala .scl file
+	 * @param kbm Scala .kbm file
+	 *
+	 * @return The tuning
+	 *
+	 * @throws IOException If a file cannot be read or is not valid
+	 */
+	public static Tuning readScala(File scl, File kbm) throws IOException {
+
+		List<String> lines = readValues(scl, true);
+		double [] scale = parseScale(lines);
+
+		List<String> values = readValues(kbm, false);
+		if (values.size() < 7) {
+			throw new IOException("Truncated keyboard mapping");
+		}
+		int mapSize = parseInt(values.get(0));
+		int firstNote = parseInt(values.get(1));
+		int lastNote = parseInt(values.get(2));
+		int middleNote = parseInt(values.get(3));
+		int referenceNote = parseInt(values.get(4));
+		double referenceFrequency = parseDouble(values.get(5));
+		int octaveDegree = parseInt(values.get(6));
+
+		if ((mapSize < 0) || (values.size() < 7 + mapSize)) {
+			throw new IOException("Keyboard mapping has fewer than " + mapSize + " entries");
+		}
+		if ((referenceNote < 0) || (referenceNote >= NOTE_COUNT) || (referenceFrequency <= 0.0)) {
+			throw new IOException("Invalid reference note or frequency");
+		}
+
+		int [] mapping;
+		if (mapSize == 0) {
+			// Linear mapping
+			mapping = linearMapping(scale.length);
+			octaveDegree = scale.length;
+		}	else	{
+			mapping = new int[mapSize];
+			for (int i = 0; i < mapSize; i++) {
+				String entry = values.get(7 + i);
+				mapping[i] = entry.equalsIgnoreCase("x") ? UNMAPPED : parseInt(entry);
+				if ((mapping[i] < 0) && (mapping[i] != UNMAPPED)) {
+					throw new IOException("Invalid mapping entry " + entry);
+				}
+			}
+			octaveDegree = (octaveDegree == 0) ? scale.length : octaveDegree;
+		}
+		try {
+			return new Tuning(lines.get(0), scale, mapping, octaveDegree,
+					firstNote, lastNote, middleNote, referenceNote, referenceFrequency);
+		}	catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Read the lines of a Scala file that are not comments
+	 * <p>
+	 * Only the first word of each line is significant, except for the<br>
+	 * description line of a scale which is kept whole.
+	 *
+	 * @param file File to read
+	 * @param scale If true the file is a scale which starts with a description line
+	 */
+	private static List<String> readValues(File file, boolean scale) throws IOException {
+
+		List<String> values = new ArrayList<String>();
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.ISO_8859_1)) {
+			if (line.startsWith("!")) {
+				continue;
+			}
+			if (values.isEmpty() && scale) {
+				values.add(line.trim());
+				continue;
+			}
+			line = line.trim();
+			if (!line.isEmpty()) {
+				values.add(line.split("\\s+")[0]);
+			}
+		}
+		if (values.isEmpty()) {
+			throw new IOException(file.getName() + " is empty");
+		}
+		return values;
+	}
+
+	/**
+	 * Parse the pitches of a scale after its description line
+	 * <p>
+	 * A pitch containing a period is in cents; otherwise it is a ratio<br>
+	 * like 3/2 or a whole number.
+	 */
+	private static double [] parseScale(List<String> lines) throws IOException {
+
+		if (lines.size() < 2) {
+			throw new IOException("Scale has no note count");
+		}
+		int count = parseInt(lines.get(1));
+		if ((count < 1) || (lines.size() < 2 + count)) {
+			throw new IOException("Scale has fewer than " + count + " pitches");
+		}
+		double [] scale = new double[count];
+		for (int i = 0; i < count; i++) {
+			String pitch = lines.get(2 + i);
+			if (pitch.indexOf('.') >= 0) {
+				scale[i] = parseDouble(pitch);
+			}	else	{
+				int slash = pitch.indexOf('/');
+				double numerator = parseDouble((slash < 0) ? pitch : pitch.substring(0, slash));
+				double denominator = (slash < 0) ? 1.0 : parseDouble(pitch.substring(slash + 1));
+				if ((numerator <= 0.0) || (denominator <= 0.0)) {
+					throw new IOException("Invalid ratio " + pitch);
+				}
+				scale[i] = CENTS_PER_OCTAVE * Math.log(numerator / denominator) / Math.log(2.0);
+			}
+		}
+		if (scale[count - 1] <= 0.0) {
+			throw new IOException("Scale period must be above the tonic");
+		}
+		return scale;
+	}
+
+	private static int parseInt(String value) throws IOException {
+
+		try {
+			return Integer.parseInt(value);
+		}	catch (NumberFormatException e) {
+			throw new IOException("Invalid number " + value);
+		}
+	}
+
+	private static double parseDouble(String value) throws IOException {
+
+		try {
+			return Double.parseDouble(value);
+		}	catch (NumberFormatException e) {
+			throw new IOException("Invalid number " + value);
+		}
+	}
+
+	private static int [] linearMapping(int size) {
+
+		int [] mapping = new int[size];
+		for (int i = 0; i < size; i++) {
+			mapping[i] = i;
+		}
+		return mapping;
+	}
+
+	/**
+	 * Find the scale degree a note is mapped to
+	 *
+	 * @return Scale degree relative to the tonic or UNMAPPED
+	 */
+	private static int noteToDegree(int [] mapping, int octaveDegree, int middleNote, int mnn) {
+
+		int key = mnn - middleNote;
+		int entry = mapping[Math.floorMod(key, mapping.length)];
+		return (entry == UNMAPPED) ? UNMAPPED : Math.floorDiv(key, mapping.length) * octaveDegree + entry;
+	}
+
+	/**
+	 * Find the pitch of a scale degree
+	 *
+	 * @return Cents above the tonic; negative below it
+	 */
+	private static double degreeToCents(double [] scale, int degree) {
+
+		int n = scale.length;
+		int index = Math.floorMod(degree, n);
+		return Math.floorDiv(degree, n) * scale[n - 1] + ((index == 0) ? 0.0 : scale[index - 1]);
+	}
+
+	/**
+	 * Get the description of the tuning
+	 *
+	 * @return Description from the scale
+	 */
+	public String getDescription() {
+
+		return description;
+	}
+
+	/**
+	 * Get the frequency of a note
+	 *
+	 * @param mnn Midi note number between 0 and NOTE_COUNT - 1
+	 *
+	 * @return Frequency in Hz or 0.0 if the note is unmapped
+	 */
+	public double getFrequency(int mnn) {
+
+		return frequencies[mnn];
+	}
+
+	/**
+	 * Get the phase increment of a note
+	 * <p>
+	 * For oscillators running on 32 bit fixed point phase accumulators<br>
+	 * at SamplePlayer.SAMPLE_RATE.
+	 *
+	 * @param mnn Midi note number between 0 and NOTE_COUNT - 1
+	 *
+	 * @return Phase increment or 0 if the note is unmapped
+	 */
+	public int getIncrement(int mnn) {
+
+		return increments[mnn];
+	}
+
+	/**
+	 * Get the frequency ratio of a scale degree to the tonic
+	 * <p>
+	 * Independent of the keyboard mapping; in twelve tone equal<br>
+	 * temperament a step is a semitone. Only in equal temperaments does<br>
+	 * the ratio also hold between degrees other than the tonic; in other<br>
+	 * scales the interval between two degrees depends on where it starts.
+	 *
+	 * @param steps Scale steps from the tonic between -(NOTE_COUNT - 1) and NOTE_COUNT - 1
+	 *
+	 * @return Ratio of the pitch of the degree the steps above the tonic to the tonic
+	 */
+	public double getRatio(int steps) {
+
+		return ratios[steps + NOTE_COUNT - 1];
+	}
+
+	// Instance data
+	private final String description;
+	private final double [] frequencies = new double[NOTE_COUNT];
+	private final int [] increments = new int[NOTE_COUNT];
+	private final double [] ratios = new double[2 * NOTE_COUNT - 1];
+}
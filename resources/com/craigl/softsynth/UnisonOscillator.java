@@ -0,0 +1,356 @@
+package com.craigl.softsynth;
+
+import java.util.Arrays;
+
+import com.craigl.softsynth.BasicOscillator.WAVESHAPE;
+
+/**
+ * Unison Oscillator
+ * <p>
+ * Renders up to VOICES_MAX detuned copies of one waveshape, the classic<br>
+ * "supersaw" when the waveshape is SAW. The voices are spread evenly<br>
+ * over +/- the detune in cents and panned across the stereo field by<br>
+ * the stereo width.
+ * <p>
+ * Voice state is held as a structure of arrays: one array each of<br>
+ * phases, phase increments and channel gains. Phases are 32 bit fixed<br>
+ * point fractions of a cycle that wrap around by integer overflow, so<br>
+ * the waveforms need no floor or compare. Detune ratios and gains are<br>
+ * only recalculated when a parameter changes, and every voice is<br>
+ * rendered by one loop over the buffer whose iterations are independent<br>
+ * of each other, so the JIT compiler can vectorize it. Sixteen voices<br>
+ * therefore cost little more than a few BasicOscillators.
+ * <p>
+ * Voices start at scattered phases so they do not sum coherently on<br>
+ * the first cycle.
+ */
+
+public class UnisonOscillator implements SampleProviderIntfc, StereoSampleProviderIntfc {
+
+	public static final int VOICES_MIN     =  1;
+	public static final int VOICES_MAX     = 16;
+	public static final int VOICES_DEFAULT =  7;
+
+	public static final double DETUNE_MIN_CENTS     =   0.0;
+	public static final double DETUNE_MAX_CENTS     = 100.0;
+	public static final double DETUNE_DEFAULT_CENTS =  20.0;
+
+	public static final double WIDTH_MIN     = 0.0;
+	public static final double WIDTH_MAX     = 1.0;
+	public static final double WIDTH_DEFAULT = 0.5;
+
+	private static final int CENTS_PER_OCTAVE = 1200;
+
+	// Fixed point phase to -1.0 .. 1.0
+	private static final double TO_BIPOLAR = 1.0 / 2147483648.0;
+
+	/**
+	 * UnisonOscillator Class Constructor
+	 * <p>
+	 * Default instance is a SAW at 1000 Hz with VOICES_DEFAULT voices
+	 */
+	public UnisonOscillator() {
+
+		// Scatter the starting phases; xorshift so renders are repeatable
+		long seed = 0x2545F4914F6CDD1DL;
+		for (int v = 0; v < VOICES_MAX; v++) {
+			seed ^= seed << 13;
+			seed ^= seed >>> 7;
+			seed ^= seed << 17;
+			phases[v] = (int) seed;
+		}
+
+		// Set defaults
+		setWaveshape(WAVESHAPE.SAW);
+		setVoiceCount(VOICES_DEFAULT);
+		setDetuneInCents(DETUNE_DEFAULT_CENTS);
+		setStereoWidth(WIDTH_DEFAULT);
+		setFrequency(1000.0);
+	}
+
+	/**
+	 * Set waveshape of all voices
+	 *
+	 * @param waveshape Determines the waveshape of the voices
+	 */
+	public void setWaveshape(WAVESHAPE waveshape) {
+
+		this.waveshape = waveshape;
+	}
+
+	/**
+	 * Set the count of unison voices
+	 *
+	 * @param voiceCount Count between VOICES_MIN and VOICES_MAX
+	 */
+	public void setVoiceCount(int voiceCount) {
+
+		voiceCount = (voiceCount < VOICES_MIN) ? VOICES_MIN : voiceCount;
+		voiceCount = (voiceCount > VOICES_MAX) ? VOICES_MAX : voiceCount;
+
+		this.voiceCount = voiceCount;
+		updateVoices();
+	}
+
+	/**
+	 * Set the detune of the outermost voices
+	 *
+	 * @param cents Detune between DETUNE_MIN_CENTS and DETUNE_MAX_CENTS
+	 */
+	public void setDetuneInCents(double cents) {
+
+		cents = (cents < DETUNE_MIN_CENTS) ? DETUNE_MIN_CENTS : cents;
+		cents = (cents > DETUNE_MAX_CENTS) ? DETUNE_MAX_CENTS : cents;
+
+		detuneCents = cents;
+		updateVoices();
+	}
+
+	/**
+	 * Set how far the voices are panned apart
+	 * <p>
+	 * Only used when the oscillator is pulled as a stereo provider.
+	 *
+	 * @param width 0.0 for all voices centered up to 1.0 for the outermost voices hard left and right
+	 */
+	public void setStereoWidth(double width) {
+
+		width = (width < WIDTH_MIN) ? WIDTH_MIN : width;
+		width = (width > WIDTH_MAX) ? WIDTH_MAX : width;
+
+		stereoWidth = width;
+		updateVoices();
+	}
+
+	/**
+	 * Set frequency of the center of the unison in Hz.
+	 *
+	 * @param frequency Frequency in Hz for this oscillator
+	 */
+	public void setFrequency(double frequency) {
+
+		this.frequency = frequency;
+		noteIncrement = 0;
+		updateIncrements();
+	}
+
+	/**
+	 * Set the center of the unison to a note of the tuning
+	 * <p>
+	 * The phase increment is taken from the tuning's precomputed table and<br>
+	 * only scaled by each voice's detune, without converting a frequency.
+	 *
+	 * @param mnn Midi note number; an unmapped note is silent
+	 */
+	public void setNote(int mnn) {
+
+		frequency = tuning.getFrequency(mnn);
+		noteIncrement = tuning.getIncrement(mnn);
+		updateIncrements();
+	}
+
+	/**
+	 * Set the tuning notes are played in
+	 *
+	 * @param tuning Tuning shared with other voices; Tuning.EQUAL_TEMPERAMENT by default
+	 */
+	public void setTuning(Tuning tuning) {
+
+		this.tuning = tuning;
+	}
+
+	/**
+	 * Set the track modulating the oscillator's pitch
+	 * <p>
+	 * The pitch is held constant over each control interval.
+	 *
+	 * @param track Pitch modulation in octaves from a ModulationMatrix or null for none
+	 */
+	public void setPitchModulation(ModulationTrack track) {
+
+		pitchModulation = track;
+	}
+
+	/**
+	 * Recalculate the detune ratios and channel gains of the voices
+	 */
+	private void updateVoices() {
+
+		int n = voiceCount;
+
+		// Keep the level of the unison roughly that of one voice
+		double level = 1.0 / Math.sqrt(n);
+
+		for (int v = 0; v < n; v++) {
+			// Position of the voice in the spread between -1 and 1
+			double position = (n == 1) ? 0.0 : ((2.0 * v) / (n - 1)) - 1.0;
+
+			detuneRatios[v] = Math.pow(2.0, (position * detuneCents) / CENTS_PER_OCTAVE);
+
+			// Equal power pan; alternate sides so both channels get the whole spread
+			double pan = ((v & 1) == 0) ? position : -position;
+			double angle = (pan * stereoWidth + 1.0) * Math.PI / 4.0;
+			monoGains[v] = level;
+			leftGains[v] = level * Math.cos(angle) * Math.sqrt(2.0);
+			rightGains[v] = level * Math.sin(angle) * Math.sqrt(2.0);
+		}
+		updateIncrements();
+	}
+
+	/**
+	 * Recalculate the phase increments of the voices
+	 */
+	private void updateIncrements() {
+
+		int base = noteIncrement;
+		for (int v = 0; v < voiceCount; v++) {
+			if (base != 0) {
+				increments[v] = (detuneRatios[v] == 1.0) ? base : SineTable.toIncrement((base * detuneRatios[v]) / SineTable.PHASE_SCALE);
+			}	else	{
+				increments[v] = SineTable.toIncrement((frequency * detuneRatios[v]) / SamplePlayer.SAMPLE_RATE);
+			}
+		}
+	}
+
+	/**
+	 * Render all voices of a span of samples into the mix arrays
+	 *
+	 * @param offset Index of the first sample of the span
+	 * @param count Count of samples in the span
+	 * @param scale Multiplier applied to the phase increments
+	 * @param stereo If true separate left and right mixes are rendered
+	 */
+	private void render(int offset, int count, double scale, boolean stereo) {
+
+		double [] l = left;
+		double [] r = right;
+
+		for (int v = 0; v < voiceCount; v++) {
+			int start = phases[v];
+			int inc = (scale == 1.0) ? increments[v] : SineTable.toIncrement((increments[v] * scale) / SineTable.PHASE_SCALE);
+			double gl = stereo ? leftGains[v] : monoGains[v];
+			double gr = rightGains[v];
+
+			// The phase of each sample is computed from the start of the span,
+			// not from the previous sample, so iterations are independent
+			switch (waveshape) {
+
+				default:
+				case SAW:
+					// Offset the phase by half a cycle so it ramps from -1 to 1
+					start += Integer.MIN_VALUE;
+					gl *= TO_BIPOLAR;
+					gr *= TO_BIPOLAR;
+					if (stereo) {
+						for (int i = 0; i < count; i++) {
+							int p = start + i * inc;
+							l[offset + i] += gl * p;
+							r[offset + i] += gr * p;
+						}
+					}	else	{
+						for (int i = 0; i < count; i++) {
+							l[offset + i] += gl * (start + i * inc);
+						}
+					}
+					start -= Integer.MIN_VALUE;
+					break;
+
+				case SQU:
+					// Sign of the phase; 1 for the first half of the cycle
+					for (int i = 0; i < count; i++) {
+						int p = ((start + i * inc) >> 31) | 1;
+						l[offset + i] += gl * p;
+						r[offset + i] += gr * p;
+					}
+					break;
+
+				case SIN:
+					for (int i = 0; i < count; i++) {
+						double value = SineTable.sin(start + i * inc);
+						l[offset + i] += gl * value;
+						r[offset + i] += gr * value;
+					}
+					break;
+			}
+			phases[v] = start + count * inc;
+		}
+	}
+
+	/**
+	 * Render a buffer of samples into the mix arrays
+	 *
+	 * @param stereo If true separate left and right mixes are rendered
+	 */
+	private void render(boolean stereo) {
+
+		Arrays.fill(left, 0.0);
+		Arrays.fill(right, 0.0);
+
+		ModulationTrack pm = pitchModulation;
+		if ((pm != null) && pm.isActive()) {
+			int interval = pm.interval;
+			for (int i = 0; i < SamplePlayer.SAMPLES_PER_BUFFER; i += interval) {
+				// Pitch at the middle of the control interval
+				int k = i / interval;
+				double octaves = 0.5 * (pm.values[k] + pm.values[k + 1]);
+				render(i, interval, Math.pow(2.0, octaves), stereo);
+			}
+		}	else	{
+			render(0, SamplePlayer.SAMPLES_PER_BUFFER, 1.0, stereo);
+		}
+	}
+
+	/**
+	 * Get a buffer of the voices mixed to mono
+	 *
+	 * @param buffer Array to fill with samples
+	 *
+	 * @return Count of bytes produced.
+	 */
+	public int getSamples(byte [] buffer) {
+
+		render(false);
+		PcmCodec.pack(left, 1.0, buffer, SamplePlayer.SAMPLES_PER_BUFFER);
+
+		return SamplePlayer.BUFFER_SIZE;
+	}
+
+	/**
+	 * Get a pair of buffers of the voices panned across the stereo field
+	 *
+	 * @param leftBuffer Array to fill with left channel samples
+	 * @param rightBuffer Array to fill with right channel samples
+	 *
+	 * @return Count of bytes produced per channel
+	 */
+	public int getSamples(byte [] leftBuffer, byte [] rightBuffer) {
+
+		render(true);
+		PcmCodec.pack(left, 1.0, leftBuffer, SamplePlayer.SAMPLES_PER_BUFFER);
+		PcmCodec.pack(right, 1.0, rightBuffer, SamplePlayer.SAMPLES_PER_BUFFER);
+
+		return SamplePlayer.BUFFER_SIZE;
+	}
+
+	// Instance data
+	private WAVESHAPE waveshape;
+	private int voiceCount;
+	private double frequency, detuneCents, stereoWidth;
+	private ModulationTrack pitchModulation;
+	private Tuning tuning = Tuning.EQUAL_TEMPERAMENT;
+
+	// Increment of the center from the tuning's table; 0 when set by frequency
+	private int noteIncrement;
+
+	// Voice state, one element per voice
+	private final int [] phases = new int[VOICES_MAX];
+	private final int [] increments = new int[VOICES_MAX];
+	private final double [] detuneRatios = new double[VOICES_MAX];
+	private final double [] monoGains = new double[VOICES_MAX];
+	private final double [] leftGains = new double[VOICES_MAX];
+	private final double [] rightGains = new double[VOICES_MAX];
+
+	// Mix of the voices
+	private final double [] left = new double[SamplePlayer.SAMPLES_PER_BUFFER];
+	private final double [] right = new double[SamplePlayer.SAMPLES_PER_BUFFER];
+}
@@ -1,16 +1,23 @@
 package com.craigl.softsynth;
 
+import java.util.Arrays;
+
 /**
 * Digital equivalent of a Voltage Controller Amplifier or VCA.
 * <p>
 * VCA is meant to be driven by an Envelope Generator which controls<br>
 * the gain throught the amplifier.
 * <p>
+* While the envelope is idle the VCA produces silence without touching<br>
+* the samples. Its provider is still pulled every buffer, so the modules<br>
+* feeding it keep their time and are compiled before the first note; the<br>
+* ones with nothing to play skip their work through SilenceIntfc.
+* <p>
 * See text for details.
 * 
 * @author craiglindley
 */
-public class VCA extends EnvelopeGenerator implements SampleProviderIntfc {
+public class VCA extends EnvelopeGenerator implements SampleProviderIntfc, SilenceIntfc {
 	
 	/**
 	 * VCA Class Constructor
@@ -33,6 +40,26 @@ public class VCA extends EnvelopeGenerator implements SampleProviderIntfc {
 	public void setSampleProvider(SampleProviderIntfc provider) {
 		this.provider = provider;
 	}
+	
+	/**
+	 * Set the track modulating the VCA's gain
+	 * 
+	 * @param track Gain added to 1.0 from a ModulationMatrix or null for none
+	 */
+	public void setGainModulation(ModulationTrack track) {
+		
+		gainModulation = track;
+	}
+	
+	/**
+	 * Set the probe told where noteOn events are taken up
+	 * 
+	 * @param probe Probe at the top of the chain rendering this VCA or null for none
+	 */
+	public void setLatencyProbe(LatencyProbe probe) {
+		
+		this.probe = probe;
+	}
 		
 	/**
 	 * Process a buffer full of samples pulled from the sample provider
@@ -43,28 +70,89 @@ public class VCA extends EnvelopeGenerator implements SampleProviderIntfc {
 	 */
 	public int getSamples(byte [] buffer) {
 		
-		// Grab samples to manipulate from this modules sample provider
+		long start = getTime();
+		render(buffer);
+		
+		// Report a note started within this buffer
+		LatencyProbe p = probe;
+		if ((p != null) && (getNoteOnTime() >= start)) {
+			p.applied((int) (getNoteOnTime() - start));
+		}
+		return SamplePlayer.BUFFER_SIZE;
+	}
+	
+	/**
+	 * Process a buffer full of samples
+	 * 
+	 * @param buffer Buffer in which the samples are to be processed
+	 */
+	private void render(byte [] buffer) {
+		
+		// Grab samples to manipulate from this modules sample provider;
+		// always, so that upstream time keeps running
 		provider.getSamples(buffer);
 		
-		int index = 0;
+		// Closed; nothing upstream can be heard
+		if (isIdle()) {
+			getValue(SamplePlayer.SAMPLES_PER_BUFFER);
+			Arrays.fill(buffer, (byte) 0);
+			silent = true;
+			return;
+		}
+		
+		// Silence in is silence out; just keep the envelope's time
+		if (Silence.isSilent(provider)) {
+			getValue(SamplePlayer.SAMPLES_PER_BUFFER);
+			silent = true;
+			return;
+		}
+		silent = false;
+		
+		ModulationTrack gm = gainModulation;
+		boolean modulated = (gm != null) && gm.isActive();
+		int interval = modulated ? gm.interval : SamplePlayer.SAMPLES_PER_BUFFER;
+		double mod = 0.0;
+		double modStep = 0.0;
+		
 		for (int i = 0; i < SamplePlayer.SAMPLES_PER_BUFFER; i++) {
 			// Get a sample to process
-			byte b2 = buffer[index];
-			byte b1 = buffer[index+1];
-
-			// Convert bytes into short sample
-			short s = (short)((b2 << 8) + b1);
+			double s = PcmCodec.get(buffer, i);
 			
-			// Apply envelope value to sample
-			s *= getValue();
+			if (modulated) {
+				// Interpolate the gain modulation between control points
+				if ((i % interval) == 0) {
+					mod = gm.values[i / interval];
+					modStep = (gm.values[(i / interval) + 1] - mod) / interval;
+				}
+				double gain = 1.0 + mod;
+				gain = (gain < 0.0) ? 0.0 : gain;
+				mod += modStep;
+				
+				// Apply envelope value and modulated gain to sample
+				s *= getValue() * gain;
+			}	else	{
+				// Apply envelope value to sample
+				s *= getValue();
+			}
 			
 			// Store the processed sample
-			buffer[index++] = (byte)(s >> 8);
-			buffer[index++] = (byte)(s & 0xFF);			
+			PcmCodec.put(buffer, i, s);
 		}
-		return SamplePlayer.BUFFER_SIZE;
+	}
+	
+	/**
+	 * Return whether the last buffer was silent
+	 * 
+	 * @return true if the last buffer was silent
+	 */
+	public boolean isSilent() {
+		
+		return silent;
 	}
 	
 	// Instance data
 	private SampleProviderIntfc provider;
+	private boolean silent;
+	private ModulationTrack gainModulation;
+	private LatencyProbe probe;
 }
@@ -9,17 +9,28 @@ package com.craigl.softsynth;
  * VCF is meant to be driven by an Envelope Generator which controls<br>
  * the cutoff frequency of the filter.
  * <p>
+ * Once the input is silent and the filter has rung out, buffers pass<br>
+ * straight through with only the envelope's time kept. Filter state is<br>
+ * flushed to zero before it can decay into subnormal doubles.
+ * <p>
+ * The cutoff follows the envelope every sample. At the CONTROL_RATE<br>
+ * quality stage and below the coefficients are only recalculated every<br>
+ * VCF_CONTROL_INTERVAL samples, saving the Math.pow in between.
+ * <p>
  * See text for details.
  * 
  * @author craiglindley
  */
 
-public class VCF extends EnvelopeGenerator implements SampleProviderIntfc {
+public class VCF extends EnvelopeGenerator implements SampleProviderIntfc, SilenceIntfc, QualityIntfc {
 	
 	public static final double MIN_CUTOFF = 20.0;
 	public static final double MAX_CUTOFF = 8000.0;
 	public static final double MIN_DEPTH = -2.0;
 	public static final double MAX_DEPTH = 2.0;	
+
+	// Samples between coefficient updates when quality is reduced
+	public static final int VCF_CONTROL_INTERVAL = 16;
 	
 	/**
 	 * Set the static cutoff frequency of the filter.
@@ -41,6 +52,16 @@ public class VCF extends EnvelopeGenerator implements SampleProviderIntfc {
 		recalculate();
 	}
 
+	/**
+	 * Return the static cutoff frequency of the filter.
+	 *
+	 * @return Cutoff frequency in Hz
+	 */
+	public double getCutoffFrequencyInHz() {
+
+		return cutoffFrequencyInHz;
+	}
+
 	/**
 	 * Set the resonance of the filter.
 	 * <p>
@@ -55,6 +76,16 @@ public class VCF extends EnvelopeGenerator implements SampleProviderIntfc {
 
 		recalculate();
 	}
+
+	/**
+	 * Return the resonance of the filter.
+	 *
+	 * @return The resonance value
+	 */
+	public double getResonance() {
+
+		return resonance;
+	}
 		
 	/**
 	 * Set the depth of the filter effect.
@@ -77,6 +108,16 @@ public class VCF extends EnvelopeGenerator implements SampleProviderIntfc {
 		this.depth = depth;
 	}
 
+	/**
+	 * Return the depth of the filter effect.
+	 *
+	 * @return The depth
+	 */
+	public double getDepth() {
+
+		return depth;
+	}
+
 	/**
 	 * Setup the provider of samples
 	 * 
@@ -86,6 +127,26 @@ public class VCF extends EnvelopeGenerator implements SampleProviderIntfc {
 		this.provider = provider;
 	}
 
+	/**
+	 * Set the track modulating the cutoff frequency
+	 * 
+	 * @param track Cutoff modulation in octaves from a ModulationMatrix or null for none
+	 */
+	public void setCutoffModulation(ModulationTrack track) {
+		
+		cutoffModulation = track;
+	}
+
+	/**
+	 * Set the track modulating the resonance
+	 * 
+	 * @param track Resonance added to the set resonance from a ModulationMatrix or null for none
+	 */
+	public void setResonanceModulation(ModulationTrack track) {
+		
+		resonanceModulation = track;
+	}
+
 	/**
 	 * Recalculate filter parameters on changes to cutoff or resonance
 	 */
@@ -97,19 +158,19 @@ public class VCF extends EnvelopeGenerator implements SampleProviderIntfc {
 
 		double t = (1.0 - p) * 1.386249;
 		double t2 = 12.0 + t * t;
-		r = resonance * (t2 + 6.0 * t) / (t2 - 6.0 * t);
+		r = (resonance + resonanceOffset) * (t2 + 6.0 * t) / (t2 - 6.0 * t);
 	}
 
 	/**
 	 * Process a single sample through the filter
 	 * 
-	 * @param input The input sample to process
+	 * @param input The normalized input sample to process
 	 * 
 	 * @return Filtered sample
 	 */
-	private short processSample(short input) {
+	private double processSample(double input) {
 		// Process input
-		x = ((double) input/Short.MAX_VALUE) - r*y4;
+		x = input - r*y4;
 		
 		// Four cascaded one pole filters (bilinear transform)
 		y1 =  x*p +  oldx*p - k*y1;
@@ -121,7 +182,7 @@ public class VCF extends EnvelopeGenerator implements SampleProviderIntfc {
 		y4 -= (y4*y4*y4) / 6.0;
 		
 		oldx = x; oldy1 = y1; oldy2 = y2; oldy3 = y3;
-		return (short) (y4 * Short.MAX_VALUE);
+		return y4;
 	}
 		
 	/**
@@ -136,34 +197,112 @@ public class VCF extends EnvelopeGenerator implements SampleProviderIntfc {
 		// Grab samples to manipulate from this modules sample provider
 		provider.getSamples(buffer);
 		
-		int index = 0;
+		// Silence in and the filter rung out; silence out
+		silent = Silence.isSilent(provider) && isRungOut();
+		if (silent) {
+			getValue(SamplePlayer.SAMPLES_PER_BUFFER);
+			return SamplePlayer.BUFFER_SIZE;
+		}
+		
+		ModulationTrack cm = cutoffModulation;
+		ModulationTrack rm = resonanceModulation;
+		boolean cutoffModulated = (cm != null) && cm.isActive();
+		boolean resonanceModulated = (rm != null) && rm.isActive();
+		double cutoffMod = 0.0;
+		double cutoffModStep = 0.0;
+		double resonanceMod = 0.0;
+		double resonanceModStep = 0.0;
+		
 		for (int i = 0; i < SamplePlayer.SAMPLES_PER_BUFFER; i++) {
 			// Get a sample to process
-			byte b2 = buffer[index];
-			byte b1 = buffer[index+1];
-
-			// Convert bytes into short sample
-			short s = (short)((((int) b2) << 8) + b1);
+			double s = PcmCodec.get(buffer, i);
 			
 			// Get value from envelope generator in the range 0.0 .. 1.0
 			double v = getValue();
 			
-			// Calculate actual cutoff freq given depth and env gen modifiers
-			cutoff = cutoffFrequencyInHz * Math.pow(2.0, depth * v);
-			recalculate();
+			// Interpolate modulation between control points
+			if (cutoffModulated) {
+				if ((i % cm.interval) == 0) {
+					cutoffMod = cm.values[i / cm.interval];
+					cutoffModStep = (cm.values[(i / cm.interval) + 1] - cutoffMod) / cm.interval;
+				}
+				v = depth * v + cutoffMod;
+				cutoffMod += cutoffModStep;
+			}	else	{
+				v = depth * v;
+			}
+			if (resonanceModulated) {
+				if ((i % rm.interval) == 0) {
+					resonanceMod = rm.values[i / rm.interval];
+					resonanceModStep = (rm.values[(i / rm.interval) + 1] - resonanceMod) / rm.interval;
+				}
+				resonanceOffset = (resonanceMod < -resonance) ? -resonance : resonanceMod;
+				resonanceMod += resonanceModStep;
+			}	else	{
+				resonanceOffset = 0.0;
+			}
 			
-			// Return processed sample from filter
-			s = processSample(s);
+			// Calculate actual cutoff freq given depth, env gen and modulation modifiers
+			if ((i % controlInterval) == 0) {
+				cutoff = cutoffFrequencyInHz * Math.pow(2.0, v);
+				recalculate();
+			}
 			
-			// Store the processed sample
-			buffer[index++] = (byte)(s >> 8);
-			buffer[index++] = (byte)(s & 0xFF);			
+			// Store the processed sample from the filter
+			PcmCodec.put(buffer, i, processSample(s));
 		}
+		
+		// Keep the decaying state out of the subnormal range
+		x = Silence.flush(x);
+		y1 = Silence.flush(y1); y2 = Silence.flush(y2); y3 = Silence.flush(y3); y4 = Silence.flush(y4);
+		oldx = Silence.flush(oldx); oldy1 = Silence.flush(oldy1); oldy2 = Silence.flush(oldy2); oldy3 = Silence.flush(oldy3);
+		
 		return SamplePlayer.BUFFER_SIZE;
 	}
 
+	/**
+	 * Set the quality stage to render at
+	 * 
+	 * @param stage Stage; from CONTROL_RATE on the cutoff is updated less often
+	 */
+	public void setQualityStage(QualityController.STAGE stage) {
+		
+		boolean reduced = stage.compareTo(QualityController.STAGE.CONTROL_RATE) >= 0;
+		controlInterval = reduced ? VCF_CONTROL_INTERVAL : 1;
+	}
+
+	/**
+	 * Return whether the filter state has decayed below hearing, zeroing it if so
+	 * 
+	 * @return true if the filter has rung out
+	 */
+	private boolean isRungOut() {
+		
+		double t = Silence.TAIL_THRESHOLD;
+		if ((Math.abs(y1) >= t) || (Math.abs(y2) >= t) || (Math.abs(y3) >= t) || (Math.abs(y4) >= t) ||
+			(Math.abs(oldx) >= t) || (Math.abs(oldy1) >= t) || (Math.abs(oldy2) >= t) || (Math.abs(oldy3) >= t)) {
+			return false;
+		}
+		x = y1 = y2 = y3 = y4 = oldx = oldy1 = oldy2 = oldy3 = 0.0;
+		return true;
+	}
+
+	/**
+	 * Return whether the last buffer was silent
+	 * 
+	 * @return true if the last buffer was silent
+	 */
+	public boolean isSilent() {
+		
+		return silent;
+	}
+
 	// Instance data
-	private double resonance, depth, cutoff, cutoffFrequencyInHz;
+	private double resonance, resonanceOffset, depth, cutoff, cutoffFrequencyInHz;
 	private double x, r, p, k, y1, y2, y3, y4, oldx, oldy1, oldy2, oldy3;
 	private SampleProviderIntfc provider;
+	private ModulationTrack cutoffModulation;
+	private ModulationTrack resonanceModulation;
+	private boolean silent;
+	private int controlInterval = 1;
 }
@@ -0,0 +1,282 @@
+package com.craigl.softsynth;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * WAV File Audio Sink
+ * <p>
+ * Writes buffers in the SamplePlayer's format (16 bit signed big endian<br>
+ * mono at SAMPLE_RATE) to a RIFF WAVE file as they are produced, so a<br>
+ * render of any length needs only one buffer of memory. The header is<br>
+ * written with placeholder sizes which are filled in on close.
+ * <p>
+ * Samples are stored as 16 bit PCM unless a little endian PcmCodec is<br>
+ * given, in which case 24 or 32 bit integer or 32 bit float WAV files<br>
+ * can be written. Integer samples wider than 16 bits are described<br>
+ * with WAVE_FORMAT_EXTENSIBLE and float samples carry the fact chunk<br>
+ * that format requires.
+ */
+
+public class WavFileSink implements AudioSinkIntfc {
+
+	private static final int CHANNELS = 1;
+
+	// Format tags
+	private static final int WAVE_FORMAT_PCM = 1;
+	private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+	private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+	// Sizes of the fmt chunk bodies
+	private static final int FMT_SIZE_PCM = 16;
+	private static final int FMT_SIZE_FLOAT = 18;
+	private static final int FMT_SIZE_EXTENSIBLE = 40;
+
+	private static final int SPEAKER_FRONT_CENTER = 0x4;
+
+	// KSDATAFORMAT_SUBTYPE_PCM less its first two bytes, which hold the format tag
+	private static final byte [] SUBFORMAT_PCM_TAIL = {
+		0x00, 0x00, 0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00, 0x00, (byte) 0xAA, 0x00, 0x38, (byte) 0x9B, 0x71
+	};
+	private static final int WRITE_BUFFER_SIZE = 65536;
+
+	/**
+	 * WavFileSink Class Constructor
+	 * <p>
+	 * Creates or truncates the file and writes the header.
+	 *
+	 * @param file The file to write
+	 *
+	 * @throws IOException If the file cannot be created
+	 */
+	public WavFileSink(File file) throws IOException {
+
+		this(file, new PcmCodec(PcmCodec.ENCODING.PCM_16, false, false));
+	}
+
+	/**
+	 * WavFileSink Class Constructor
+	 * <p>
+	 * Creates or truncates the file and writes the header.
+	 *
+	 * @param file The file to write
+	 * @param codec Format of the stored samples; must be little endian
+	 *
+	 * @throws IOException If the file cannot be created
+	 */
+	public WavFileSink(File file, PcmCodec codec) throws IOException {
+
+		if (codec.isBigEndian()) {
+			throw new IllegalArgumentException("WAV samples are little endian");
+		}
+		this.file = file;
+		this.codec = codec;
+		out = new BufferedOutputStream(new FileOutputStream(file), WRITE_BUFFER_SIZE);
+		scratch = new byte[codec.transcodedLength(SamplePlayer.BUFFER_SIZE)];
+		writeHeader(out, 0, codec);
+	}
+
+	/**
+	 * Append samples to the file
+	 *
+	 * @param buffer Buffer of 16 bit big endian samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 *
+	 * @throws IOException If the write fails
+	 */
+	public void write(byte [] buffer, int offset, int length) throws IOException {
+
+		while (length > 0) {
+			int n = Math.min(length, SamplePlayer.BUFFER_SIZE);
+			int stored = codec.transcode(buffer, offset, n, scratch, 0);
+			out.write(scratch, 0, stored);
+			dataSize += stored;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Append samples to the file. Writing to a file never waits for long,
+	 * so all samples are accepted.
+	 *
+	 * @param buffer Buffer of 16 bit big endian samples
+	 * @param offset Offset of the first byte to write
+	 * @param length Count of bytes to write; must be even
+	 *
+	 * @return length
+	 *
+	 * @throws IOException If the write fails
+	 */
+	public int writeNonBlocking(byte [] buffer, int offset, int length) throws IOException {
+
+		write(buffer, offset, length);
+		return length;
+	}
+
+	/**
+	 * Push buffered samples out to the file
+	 *
+	 * @throws IOException If the write fails
+	 */
+	public void drain() throws IOException {
+
+		out.flush();
+	}
+
+	/**
+	 * Return the count of sample bytes written so far
+	 *
+	 * @return Data size in bytes
+	 */
+	public long getDataSize() {
+
+		return dataSize;
+	}
+
+	/**
+	 * Flush the remaining data and fill in the header sizes
+	 *
+	 * @throws IOException If the file cannot be completed
+	 */
+	public void close() throws IOException {
+
+		out.close();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			int headerSize = headerSize(codec);
+			raf.seek(4);
+			raf.writeInt(Integer.reverseBytes((int) (headerSize - 8 + dataSize)));
+			if (isFloat(codec)) {
+				raf.seek(factOffset(codec) + 8);
+				raf.writeInt(Integer.reverseBytes((int) (dataSize / (CHANNELS * codec.getBytesPerSample()))));
+			}
+			raf.seek(headerSize - 4);
+			raf.writeInt(Integer.reverseBytes((int) dataSize));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write the WAV header up to the start of the sample data
+	 * <p>
+	 * 16 bit PCM gets the canonical 44 byte header. Float samples get an<br>
+	 * 18 byte fmt chunk and a fact chunk holding the count of samples per<br>
+	 * channel. Wider integer samples get a WAVE_FORMAT_EXTENSIBLE fmt chunk.
+	 *
+	 * @param out Stream to write to
+	 * @param dataSize Size of the sample data in bytes
+	 * @param codec Format of the samples
+	 *
+	 * @throws IOException If the write fails
+	 */
+	static void writeHeader(OutputStream out, int dataSize, PcmCodec codec) throws IOException {
+
+		int bits = 8 * codec.getBytesPerSample();
+		int blockAlign = CHANNELS * codec.getBytesPerSample();
+		int byteRate = SamplePlayer.SAMPLE_RATE * blockAlign;
+		int fmtSize = fmtSize(codec);
+		int headerSize = headerSize(codec);
+
+		byte [] header = new byte[headerSize];
+		putTag(header, 0, "RIFF");
+		putInt(header, 4, headerSize - 8 + dataSize);
+		putTag(header, 8, "WAVE");
+		putTag(header, 12, "fmt ");
+		putInt(header, 16, fmtSize);
+		putShort(header, 22, CHANNELS);
+		putInt(header, 24, SamplePlayer.SAMPLE_RATE);
+		putInt(header, 28, byteRate);
+		putShort(header, 32, blockAlign);
+		putShort(header, 34, bits);
+
+		if (isFloat(codec)) {
+			putShort(header, 20, WAVE_FORMAT_IEEE_FLOAT);
+			putShort(header, 36, 0);	// cbSize
+
+			int fact = factOffset(codec);
+			putTag(header, fact, "fact");
+			putInt(header, fact + 4, 4);
+			putInt(header, fact + 8, dataSize / blockAlign);
+		}	else if (fmtSize == FMT_SIZE_EXTENSIBLE) {
+			putShort(header, 20, WAVE_FORMAT_EXTENSIBLE);
+			putShort(header, 36, FMT_SIZE_EXTENSIBLE - FMT_SIZE_FLOAT);	// cbSize
+			putShort(header, 38, bits);	// valid bits per sample
+			putInt(header, 40, SPEAKER_FRONT_CENTER);
+			putShort(header, 44, WAVE_FORMAT_PCM);
+			System.arraycopy(SUBFORMAT_PCM_TAIL, 0, header, 46, SUBFORMAT_PCM_TAIL.length);
+		}	else	{
+			putShort(header, 20, WAVE_FORMAT_PCM);
+		}
+		putTag(header, headerSize - 8, "data");
+		putInt(header, headerSize - 4, dataSize);
+
+		out.write(header);
+	}
+
+	/**
+	 * Return the size of the header written for a format
+	 *
+	 * @param codec Format of the samples
+	 *
+	 * @return Bytes before the sample data
+	 */
+	static int headerSize(PcmCodec codec) {
+
+		int size = 12 + 8 + fmtSize(codec) + 8;
+		return isFloat(codec) ? size + 12 : size;
+	}
+
+	private static int fmtSize(PcmCodec codec) {
+
+		if (isFloat(codec)) {
+			return FMT_SIZE_FLOAT;
+		}
+		return (codec.getBytesPerSample() > 2) ? FMT_SIZE_EXTENSIBLE : FMT_SIZE_PCM;
+	}
+
+	private static int factOffset(PcmCodec codec) {
+
+		return 12 + 8 + fmtSize(codec);
+	}
+
+	private static boolean isFloat(PcmCodec codec) {
+
+		return codec.getEncoding() == PcmCodec.ENCODING.FLOAT_32;
+	}
+
+	private static void putTag(byte [] b, int offset, String tag) {
+
+		for (int i = 0; i < 4; i++) {
+			b[offset + i] = (byte) tag.charAt(i);
+		}
+	}
+
+	private static void putInt(byte [] b, int offset, int value) {
+
+		b[offset]     = (byte) value;
+		b[offset + 1] = (byte) (value >> 8);
+		b[offset + 2] = (byte) (value >> 16);
+		b[offset + 3] = (byte) (value >> 24);
+	}
+
+	private static void putShort(byte [] b, int offset, int value) {
+
+		b[offset]     = (byte) value;
+		b[offset + 1] = (byte) (value >> 8);
+	}
+
+	// Instance data
+	private final File file;
+	private final PcmCodec codec;
+	private final OutputStream out;
+	private final byte [] scratch;
+	private long dataSize;
+}